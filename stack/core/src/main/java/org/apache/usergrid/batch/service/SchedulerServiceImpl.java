@@ -18,7 +18,11 @@ package org.apache.usergrid.batch.service;
 
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import javax.annotation.PostConstruct;
@@ -34,6 +38,7 @@ import org.apache.usergrid.mq.QueueManager;
 import org.apache.usergrid.mq.QueueManagerFactory;
 import org.apache.usergrid.mq.QueueQuery;
 import org.apache.usergrid.mq.QueueResults;
+import org.apache.usergrid.persistence.Entity;
 import org.apache.usergrid.persistence.EntityManager;
 import org.apache.usergrid.persistence.EntityManagerFactory;
 import org.apache.usergrid.persistence.Query;
@@ -177,50 +182,99 @@ public class SchedulerServiceImpl implements SchedulerService, JobAccessor, JobR
 
         List<JobDescriptor> results = new ArrayList<JobDescriptor>( jobs.size() );
 
+        if ( jobs.getMessages().isEmpty() ) {
+            return results;
+        }
+
+        // load the data and stats of every job with a single multiget instead of two reads per job
+        Set<UUID> ids = new LinkedHashSet<UUID>();
+
+        for ( Message job : jobs.getMessages() ) {
+            ids.add( UUID.fromString( job.getStringProperty( JOB_ID ) ) );
+            ids.add( UUID.fromString( job.getStringProperty( STATS_ID ) ) );
+        }
+
+        Map<UUID, Entity> loaded = new HashMap<UUID, Entity>( ids.size() );
+
+        try {
+            for ( Entity entity : em.get( ids ).getEntities() ) {
+                loaded.put( entity.getUuid(), entity );
+            }
+        }
+        catch ( Exception e ) {
+            // log and skip. This is a catastrophic runtime error if we see an
+            // exception here. We don't want to cause job loss, so leave the jobs in
+            // the Q.
+            LOG.error( "Unable to retrieve job data for {} jobs.  Skipping to avoid job loss", jobs.size(), e );
+            return results;
+        }
+
+        List<Message> orphans = new ArrayList<Message>();
+        List<Entity> orphanEntities = new ArrayList<Entity>();
+
         for ( Message job : jobs.getMessages() ) {
 
             UUID jobUuid = UUID.fromString( job.getStringProperty( JOB_ID ) );
             UUID statsUuid = UUID.fromString( job.getStringProperty( STATS_ID ) );
             String jobName = job.getStringProperty( JOB_NAME );
 
-            try {
-                JobData data = em.get( jobUuid, JobData.class );
-
-                JobStat stats = em.get( statsUuid, JobStat.class );
+            Entity data = loaded.get( jobUuid );
+            Entity stats = loaded.get( statsUuid );
 
-                /**
-                 * no job data, which is required even if empty to signal the job should
-                 * still fire. Ignore this job
-                 */
-                if ( data == null || stats == null ) {
-                    LOG.info( "Received job with data id '{}' from the queue, but no data was found.  Dropping job",
-                            jobUuid );
-                    qm.deleteTransaction( jobQueueName, job.getTransaction(), null );
+            /**
+             * no job data, which is required even if empty to signal the job should
+             * still fire. Ignore this job
+             */
+            if ( !( data instanceof JobData ) || !( stats instanceof JobStat ) ) {
+                LOG.info( "Received job with data id '{}' from the queue, but no data was found.  Dropping job",
+                        jobUuid );
 
-                    if ( data != null ) {
-                        em.delete( data );
-                    }
+                orphans.add( job );
 
-                    if ( stats != null ) {
-                        em.delete( stats );
-                    }
+                if ( data instanceof JobData ) {
+                    orphanEntities.add( data );
+                }
 
-                    continue;
+                if ( stats instanceof JobStat ) {
+                    orphanEntities.add( stats );
                 }
 
-                results.add( new JobDescriptor( jobName, job.getUuid(), job.getTransaction(), data, stats, this ) );
+                continue;
+            }
+
+            results.add( new JobDescriptor( jobName, job.getUuid(), job.getTransaction(), ( JobData ) data,
+                    ( JobStat ) stats, this ) );
+        }
+
+        deleteOrphans( orphans, orphanEntities );
+
+        return results;
+    }
+
+
+    /** Remove the queue transactions of jobs we're dropping along with whatever is left of their data and stats */
+    private void deleteOrphans( List<Message> orphans, List<Entity> orphanEntities ) {
+        for ( Message job : orphans ) {
+            try {
+                qm.deleteTransaction( jobQueueName, job.getTransaction(), null );
             }
             catch ( Exception e ) {
-                // log and skip. This is a catastrophic runtime error if we see an
-                // exception here. We don't want to cause job loss, so leave the job in
-                // the Q.
-                LOG.error(
-                        "Unable to retrieve job data for jobname {}, job id {}, stats id {}.  Skipping to avoid job "
-                                + "loss", new Object[] { jobName, jobUuid, statsUuid, e } );
+                LOG.error( "Unable to delete transaction {} of dropped job {}", new Object[] {
+                        job.getTransaction(), job.getStringProperty( JOB_ID ), e
+                } );
             }
         }
 
-        return results;
+        for ( Entity entity : orphanEntities ) {
+            try {
+                em.delete( entity );
+            }
+            catch ( Exception e ) {
+                LOG.error( "Unable to delete {} {} of a dropped job", new Object[] {
+                        entity.getType(), entity.getUuid(), e
+                } );
+            }
+        }
     }
 
 
@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.clustering.hazelcast;
+
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+
+/** The message published on the invalidation topic.  Keys must be serializable */
+public class CacheInvalidation implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String cacheName;
+
+    private final ArrayList<Object> keys;
+
+
+    public CacheInvalidation( String cacheName, Collection<?> keys ) {
+        this.cacheName = cacheName;
+        this.keys = new ArrayList<Object>( keys );
+    }
+
+
+    public String getCacheName() {
+        return cacheName;
+    }
+
+
+    public List<Object> getKeys() {
+        return keys;
+    }
+
+
+    @Override
+    public String toString() {
+        return "CacheInvalidation [cacheName=" + cacheName + ", keys=" + keys + "]";
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.clustering.hazelcast;
+
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.ITopic;
+import com.hazelcast.core.MessageListener;
+
+
+/**
+ * Broadcasts cache invalidations to every node of the Hazelcast cluster.  Node local caches register a listener under
+ * their name, and whoever changes the data behind a cached key publishes that key so every node, including this one,
+ * evicts it.
+ */
+public class CacheInvalidationBus implements MessageListener<CacheInvalidation> {
+
+    private static final Logger logger = LoggerFactory.getLogger( CacheInvalidationBus.class );
+
+    public static final String DEFAULT_TOPIC = "usergrid-cache-invalidation";
+
+    private final HazelcastInstance hazelcast;
+
+    private final String topicName;
+
+    private final ConcurrentMap<String, List<CacheInvalidationListener>> listeners =
+            new ConcurrentHashMap<String, List<CacheInvalidationListener>>();
+
+    private ITopic<CacheInvalidation> topic;
+
+
+    /** Use the default Hazelcast instance and topic */
+    public CacheInvalidationBus() {
+        this( Hazelcast.getDefaultInstance(), DEFAULT_TOPIC );
+    }
+
+
+    public CacheInvalidationBus( HazelcastInstance hazelcast, String topicName ) {
+        this.hazelcast = hazelcast;
+        this.topicName = topicName;
+    }
+
+
+    public void init() {
+        topic = hazelcast.getTopic( topicName );
+        topic.addMessageListener( this );
+        logger.info( "Listening for cache invalidations on topic {}", topicName );
+    }
+
+
+    public void destroy() {
+        if ( topic != null ) {
+            topic.removeMessageListener( this );
+            topic = null;
+        }
+    }
+
+
+    /** Register a listener for invalidations of the named cache */
+    public void register( String cacheName, CacheInvalidationListener listener ) {
+        List<CacheInvalidationListener> cacheListeners = listeners.get( cacheName );
+
+        if ( cacheListeners == null ) {
+            List<CacheInvalidationListener> created = new CopyOnWriteArrayList<CacheInvalidationListener>();
+            cacheListeners = listeners.putIfAbsent( cacheName, created );
+
+            if ( cacheListeners == null ) {
+                cacheListeners = created;
+            }
+        }
+
+        cacheListeners.add( listener );
+    }
+
+
+    public void unregister( String cacheName, CacheInvalidationListener listener ) {
+        List<CacheInvalidationListener> cacheListeners = listeners.get( cacheName );
+
+        if ( cacheListeners != null ) {
+            cacheListeners.remove( listener );
+        }
+    }
+
+
+    /** Evict the keys from the named cache on every node */
+    public void invalidate( String cacheName, Object... keys ) {
+        invalidate( cacheName, Arrays.asList( keys ) );
+    }
+
+
+    /** Evict the keys from the named cache on every node */
+    public void invalidate( String cacheName, Collection<?> keys ) {
+        if ( keys.isEmpty() ) {
+            return;
+        }
+
+        if ( topic == null ) {
+            throw new IllegalStateException( "The cache invalidation bus has not been initialized" );
+        }
+
+        topic.publish( new CacheInvalidation( cacheName, keys ) );
+    }
+
+
+    @Override
+    public void onMessage( CacheInvalidation invalidation ) {
+        List<CacheInvalidationListener> cacheListeners = listeners.get( invalidation.getCacheName() );
+
+        if ( cacheListeners == null ) {
+            return;
+        }
+
+        logger.debug( "Received {}", invalidation );
+
+        for ( CacheInvalidationListener listener : cacheListeners ) {
+            try {
+                listener.invalidate( invalidation.getKeys() );
+            }
+            catch ( RuntimeException e ) {
+                logger.error( "Unable to apply {}", invalidation, e );
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.clustering.hazelcast;
+
+
+import java.util.Collection;
+
+
+/** Receives the keys to evict from a node local cache when any node in the cluster changes them */
+public interface CacheInvalidationListener {
+
+    /**
+     * Evict the keys from the cache.  Called on the node that published the invalidation as well
+     *
+     * @param keys The keys to evict
+     */
+    public void invalidate( Collection<Object> keys );
+}
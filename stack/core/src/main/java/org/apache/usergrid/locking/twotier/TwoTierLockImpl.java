@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.locking.twotier;
+
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.usergrid.locking.Lock;
+import org.apache.usergrid.locking.exception.UGLockException;
+
+
+/**
+ * A lock on a path of a {@link TwoTierLockManagerImpl}.  Reentrant within a thread, and must be released by the thread
+ * that acquired it.
+ */
+public class TwoTierLockImpl implements Lock {
+
+    private final TwoTierLockManagerImpl manager;
+    private final TwoTierLockManagerImpl.LocalLock local;
+    private final UUID applicationId;
+    private final String[] path;
+
+
+    TwoTierLockImpl( TwoTierLockManagerImpl manager, TwoTierLockManagerImpl.LocalLock local, UUID applicationId,
+                     String[] path ) {
+        this.manager = manager;
+        this.local = local;
+        this.applicationId = applicationId;
+        this.path = path;
+    }
+
+
+    @Override
+    public boolean tryLock( long timeout, TimeUnit time ) throws UGLockException {
+        return manager.acquire( local, applicationId, path, time.toNanos( timeout ) );
+    }
+
+
+    @Override
+    public void lock() throws UGLockException {
+        manager.acquire( local, applicationId, path, -1 );
+    }
+
+
+    @Override
+    public void unlock() throws UGLockException {
+        manager.release( local );
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.locking.twotier;
+
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.apache.usergrid.locking.Lock;
+import org.apache.usergrid.locking.LockManager;
+import org.apache.usergrid.locking.LockPathBuilder;
+import org.apache.usergrid.locking.exception.UGLockException;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+
+/**
+ * A {@link LockManager} that puts a local lock in front of a distributed one.  Threads of this JVM first queue on a
+ * fair {@link ReentrantLock} for the path, so only one of them at a time goes to the cluster.  Once the distributed lock
+ * is held it's kept while other threads are queued on the local lock, letting them take it over without a round trip.
+ * It's given up as soon as nobody is waiting, or after it's been held for maxHoldMillis so that other nodes get their
+ * turn.
+ * <p/>
+ * Distributed locks such as the zookeeper one must be released by the thread that acquired them, so every distributed
+ * lock is acquired and released by a holder thread that parks in between, rather than by the callers.  At most
+ * maxHeldLocks distributed locks are held at once, callers wanting another one wait for a holder thread like they wait
+ * for the lock itself.
+ */
+public class TwoTierLockManagerImpl implements LockManager {
+
+    private static final Logger logger = LoggerFactory.getLogger( TwoTierLockManagerImpl.class );
+
+    public static final long DEFAULT_MAX_HOLD_MILLIS = 1000;
+
+    public static final int DEFAULT_MAX_HELD_LOCKS = 64;
+
+    private final LockManager distributed;
+
+    private long maxHoldMillis = DEFAULT_MAX_HOLD_MILLIS;
+
+    /**
+     * Local locks by path.  Values are weak so an entry goes away once no lock object, waiting thread or held
+     * distributed lock refers to it
+     */
+    private final LoadingCache<String, LocalLock> locks =
+            CacheBuilder.newBuilder().weakValues().build( new CacheLoader<String, LocalLock>() {
+                @Override
+                public LocalLock load( String path ) throws Exception {
+                    return new LocalLock( path );
+                }
+            } );
+
+    /** One thread per held distributed lock, never more than there are permits to hold one */
+    private final ThreadPoolExecutor holders;
+
+    private final Semaphore heldLocks;
+
+    /** Releases distributed locks left idle when the threads that were queued for them gave up */
+    private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat( "distributed-lock-reaper" ).setDaemon( true ).build() );
+
+    private final AtomicLong distributedAcquires = new AtomicLong();
+    private final AtomicLong localAcquires = new AtomicLong();
+
+
+    /** Wrap the distributed lock manager */
+    public TwoTierLockManagerImpl( LockManager distributed ) {
+        this( distributed, DEFAULT_MAX_HELD_LOCKS );
+    }
+
+
+    /**
+     * Wrap the distributed lock manager
+     *
+     * @param maxHeldLocks The most distributed locks held at once, each of them takes a thread
+     */
+    public TwoTierLockManagerImpl( LockManager distributed, int maxHeldLocks ) {
+        this.distributed = distributed;
+        this.heldLocks = new Semaphore( maxHeldLocks, true );
+        this.holders = new ThreadPoolExecutor( maxHeldLocks, maxHeldLocks, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat( "distributed-lock-%d" ).setDaemon( true ).build() );
+        this.holders.allowCoreThreadTimeOut( true );
+    }
+
+
+    @Override
+    public Lock createLock( UUID applicationId, String... path ) {
+        String lockPath = LockPathBuilder.buildPath( applicationId, path );
+
+        try {
+            return new TwoTierLockImpl( this, locks.get( lockPath ), applicationId, path );
+        }
+        catch ( ExecutionException e ) {
+            throw new RuntimeException( "Unable to create lock in cache", e );
+        }
+    }
+
+
+    /**
+     * Take the local lock and then the distributed lock, unless this JVM already holds it
+     *
+     * @param timeoutNanos The time to wait for both locks, or a negative value to wait for as long as it takes
+     *
+     * @return true if both locks are held
+     */
+    boolean acquire( LocalLock local, UUID applicationId, String[] path, long timeoutNanos ) throws UGLockException {
+
+        long deadline = System.nanoTime() + timeoutNanos;
+
+        try {
+            if ( timeoutNanos < 0 ) {
+                local.lock.lockInterruptibly();
+            }
+            else if ( !local.lock.tryLock( timeoutNanos, TimeUnit.NANOSECONDS ) ) {
+                return false;
+            }
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new UGLockException( "Interrupted while waiting for lock " + local.path, e );
+        }
+
+        // reentrant, the distributed lock is already held for this thread
+        if ( local.lock.getHoldCount() > 1 ) {
+            return true;
+        }
+
+        boolean acquired = false;
+
+        try {
+            if ( local.hold == null ) {
+                if ( !acquireHolder( local, timeoutNanos < 0 ? -1 : Math.max( 0, deadline - System.nanoTime() ) ) ) {
+                    return false;
+                }
+
+                long remaining = timeoutNanos < 0 ? -1 : Math.max( 0, deadline - System.nanoTime() );
+
+                Hold hold;
+
+                try {
+                    hold = new Hold( distributed.createLock( applicationId, path ), remaining, heldLocks );
+                }
+                catch ( RuntimeException e ) {
+                    heldLocks.release();
+                    throw e;
+                }
+
+                if ( !hold.acquire( holders ) ) {
+                    return false;
+                }
+
+                local.hold = hold;
+                distributedAcquires.incrementAndGet();
+            }
+            else {
+                localAcquires.incrementAndGet();
+            }
+
+            acquired = true;
+
+            return true;
+        }
+        finally {
+            if ( !acquired ) {
+                local.lock.unlock();
+            }
+        }
+    }
+
+
+    /** Take a permit to hold a distributed lock, it's given back by the holder thread once it's done with the lock */
+    private boolean acquireHolder( LocalLock local, long timeoutNanos ) throws UGLockException {
+        try {
+            if ( timeoutNanos < 0 ) {
+                heldLocks.acquire();
+                return true;
+            }
+
+            return heldLocks.tryAcquire( timeoutNanos, TimeUnit.NANOSECONDS );
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new UGLockException( "Interrupted while waiting to hold lock " + local.path, e );
+        }
+    }
+
+
+    /** Give up the local lock, and the distributed lock if no other thread in this JVM is waiting for it */
+    void release( LocalLock local ) throws UGLockException {
+        if ( !local.lock.isHeldByCurrentThread() ) {
+            throw new UGLockException( "Lock " + local.path + " is not held by this thread" );
+        }
+
+        try {
+            // only the outermost release can tell whether the distributed lock is still needed
+            if ( local.lock.getHoldCount() == 1 ) {
+                releaseIdle( local, local.lock.hasQueuedThreads() );
+            }
+        }
+        finally {
+            local.lock.unlock();
+        }
+    }
+
+
+    /** Must be called with the local lock held by a thread that isn't using the distributed lock */
+    private void releaseIdle( final LocalLock local, boolean waiting ) {
+        if ( local.hold == null ) {
+            return;
+        }
+
+        if ( !waiting || System.currentTimeMillis() - local.hold.since >= maxHoldMillis ) {
+            local.hold.release();
+            local.hold = null;
+            return;
+        }
+
+        // keep it for the waiting threads, but make sure it's released if they all give up
+        if ( local.reaping.compareAndSet( false, true ) ) {
+            reaper.schedule( new Runnable() {
+                @Override
+                public void run() {
+                    reap( local );
+                }
+            }, maxHoldMillis, TimeUnit.MILLISECONDS );
+        }
+    }
+
+
+    private void reap( LocalLock local ) {
+        local.reaping.set( false );
+
+        // if another thread has the lock, it checks the distributed lock when it's done
+        if ( local.lock.tryLock() ) {
+            try {
+                releaseIdle( local, local.lock.hasQueuedThreads() );
+            }
+            finally {
+                local.lock.unlock();
+            }
+        }
+    }
+
+
+    /** @return the number of times a lock was acquired from the distributed lock manager */
+    public long getDistributedAcquires() {
+        return distributedAcquires.get();
+    }
+
+
+    /** @return the number of distributed locks held by this JVM */
+    public int getHeldLocks() {
+        return holders.getActiveCount();
+    }
+
+
+    /** @return the number of times a lock was handed over within this JVM */
+    public long getLocalAcquires() {
+        return localAcquires.get();
+    }
+
+
+    /** Set the longest time a distributed lock is kept for waiting threads of this JVM */
+    public void setMaxHoldMillis( long maxHoldMillis ) {
+        this.maxHoldMillis = maxHoldMillis;
+    }
+
+
+    public long getMaxHoldMillis() {
+        return maxHoldMillis;
+    }
+
+
+    /** The local lock of a path, and the distributed lock while this JVM holds it */
+    static class LocalLock {
+
+        private final String path;
+
+        private final ReentrantLock lock = new ReentrantLock( true );
+
+        /** Only accessed with the lock held */
+        private Hold hold;
+
+        private final AtomicBoolean reaping = new AtomicBoolean();
+
+
+        private LocalLock( String path ) {
+            this.path = path;
+        }
+    }
+
+
+    /**
+     * A distributed lock, acquired and released on the holder thread that runs it.  The holder gives back its permit
+     * when it's done with the lock
+     */
+    private static class Hold implements Runnable {
+
+        private final Lock lock;
+        private final long timeoutNanos;
+        private final Semaphore permit;
+
+        private final CountDownLatch acquired = new CountDownLatch( 1 );
+        private final CountDownLatch released = new CountDownLatch( 1 );
+
+        private volatile boolean locked;
+        private volatile UGLockException failure;
+
+        private long since;
+
+
+        private Hold( Lock lock, long timeoutNanos, Semaphore permit ) {
+            this.lock = lock;
+            this.timeoutNanos = timeoutNanos;
+            this.permit = permit;
+        }
+
+
+        /** Have a holder thread take the lock, waiting until it has it or gave up */
+        private boolean acquire( ThreadPoolExecutor holders ) throws UGLockException {
+            try {
+                holders.execute( this );
+            }
+            catch ( RuntimeException e ) {
+                permit.release();
+                throw new UGLockException( "Unable to start holder thread", e );
+            }
+
+            awaitUninterruptibly( acquired );
+
+            if ( failure != null ) {
+                throw failure;
+            }
+
+            since = System.currentTimeMillis();
+
+            return locked;
+        }
+
+
+        private void release() {
+            released.countDown();
+        }
+
+
+        @Override
+        public void run() {
+            try {
+                hold();
+            }
+            finally {
+                permit.release();
+            }
+        }
+
+
+        private void hold() {
+            try {
+                if ( timeoutNanos < 0 ) {
+                    lock.lock();
+                    locked = true;
+                }
+                else {
+                    locked = lock.tryLock( timeoutNanos, TimeUnit.NANOSECONDS );
+                }
+            }
+            catch ( UGLockException e ) {
+                failure = e;
+            }
+            catch ( RuntimeException e ) {
+                failure = new UGLockException( "Unable to obtain lock", e );
+            }
+            finally {
+                acquired.countDown();
+            }
+
+            if ( !locked ) {
+                return;
+            }
+
+            awaitUninterruptibly( released );
+
+            try {
+                lock.unlock();
+            }
+            catch ( Exception e ) {
+                logger.error( "Unable to release distributed lock", e );
+            }
+        }
+
+
+        private static void awaitUninterruptibly( CountDownLatch latch ) {
+            boolean interrupted = false;
+
+            while ( true ) {
+                try {
+                    latch.await();
+                    break;
+                }
+                catch ( InterruptedException e ) {
+                    interrupted = true;
+                }
+            }
+
+            if ( interrupted ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
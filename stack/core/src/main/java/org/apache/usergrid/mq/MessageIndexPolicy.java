@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.mq;
+
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.lang.StringUtils;
+
+
+/**
+ * Controls which message properties a queue writes index entries for.  Queues that are only ever consumed in order
+ * can turn indexing off entirely, or limit it to the few properties they're filtered on, to avoid paying for an index
+ * write per property on every post.
+ * <p/>
+ * The policy is stored in the queue's {@link Queue#QUEUE_INDEXES} property as either "all" (the default when the
+ * property isn't set), "none", a comma separated string of property names or a list of property names.
+ */
+public class MessageIndexPolicy {
+
+    public static final String INDEX_ALL = "all";
+    public static final String INDEX_NONE = "none";
+
+    public static final MessageIndexPolicy ALL = new MessageIndexPolicy( null );
+    public static final MessageIndexPolicy NONE = new MessageIndexPolicy( Collections.<String>emptySet() );
+
+    /** The indexed properties, or null if every property is indexed */
+    private final Set<String> properties;
+
+
+    private MessageIndexPolicy( Set<String> properties ) {
+        this.properties = properties;
+    }
+
+
+    /** Create a policy that only indexes the given properties */
+    public static MessageIndexPolicy whitelist( Collection<String> names ) {
+        Set<String> properties = new TreeSet<String>( String.CASE_INSENSITIVE_ORDER );
+
+        for ( String name : names ) {
+            if ( StringUtils.isNotBlank( name ) ) {
+                properties.add( name.trim() );
+            }
+        }
+
+        if ( properties.isEmpty() ) {
+            return NONE;
+        }
+
+        return new MessageIndexPolicy( Collections.unmodifiableSet( properties ) );
+    }
+
+
+    /**
+     * Parse the policy from the value of a queue's {@link Queue#QUEUE_INDEXES} property
+     *
+     * @throws IllegalArgumentException if the value isn't "all", "none" or a list of top level property names
+     */
+    public static MessageIndexPolicy fromProperty( Object value ) {
+        if ( value == null ) {
+            return ALL;
+        }
+
+        if ( value instanceof String ) {
+            String policy = ( ( String ) value ).trim();
+
+            if ( INDEX_ALL.equalsIgnoreCase( policy ) ) {
+                return ALL;
+            }
+
+            if ( INDEX_NONE.equalsIgnoreCase( policy ) || policy.length() == 0 ) {
+                return NONE;
+            }
+
+            return whitelist( checkNames( Arrays.asList( StringUtils.split( policy, ',' ) ) ) );
+        }
+
+        if ( value instanceof Collection ) {
+            Set<String> names = new TreeSet<String>();
+
+            for ( Object name : ( Collection<?> ) value ) {
+                if ( !( name instanceof String ) ) {
+                    throw new IllegalArgumentException(
+                            "Queue property '" + Queue.QUEUE_INDEXES + "' must only contain property names, found "
+                                    + name );
+                }
+                names.add( ( String ) name );
+            }
+
+            return whitelist( checkNames( names ) );
+        }
+
+        throw new IllegalArgumentException(
+                "Queue property '" + Queue.QUEUE_INDEXES + "' must be \"" + INDEX_ALL + "\", \"" + INDEX_NONE
+                        + "\" or a list of property names" );
+    }
+
+
+    /** Nested and reserved names would never match a property, so they're most likely a mistake */
+    private static Collection<String> checkNames( Collection<String> names ) {
+        for ( String name : names ) {
+            String trimmed = name.trim();
+
+            if ( trimmed.indexOf( '.' ) >= 0 ) {
+                throw new IllegalArgumentException( "Queue property '" + Queue.QUEUE_INDEXES
+                        + "' must only contain top level property names, found " + trimmed );
+            }
+
+            if ( INDEX_ALL.equalsIgnoreCase( trimmed ) || INDEX_NONE.equalsIgnoreCase( trimmed ) ) {
+                throw new IllegalArgumentException(
+                        "Queue property '" + Queue.QUEUE_INDEXES + "' can't list \"" + trimmed
+                                + "\" with property names" );
+            }
+        }
+
+        return names;
+    }
+
+
+    /**
+     * @param name The property name.  For nested properties such as "a.b" the top level property name is checked
+     *
+     * @return true if index entries are written for the property
+     */
+    public boolean isIndexed( String name ) {
+        if ( properties == null ) {
+            return true;
+        }
+
+        if ( name == null ) {
+            return false;
+        }
+
+        int dot = name.indexOf( '.' );
+
+        return properties.contains( dot > 0 ? name.substring( 0, dot ) : name );
+    }
+
+
+    /** @return true if no property is indexed */
+    public boolean isNone() {
+        return properties != null && properties.isEmpty();
+    }
+
+
+    /** @return true if every property is indexed */
+    public boolean isAll() {
+        return properties == null;
+    }
+
+
+    /** @return the indexed property names, or null if every property is indexed */
+    public Set<String> getProperties() {
+        return properties;
+    }
+
+
+    @Override
+    public String toString() {
+        if ( isAll() ) {
+            return INDEX_ALL;
+        }
+
+        if ( isNone() ) {
+            return INDEX_NONE;
+        }
+
+        return StringUtils.join( properties, ',' );
+    }
+}
@@ -49,6 +49,7 @@ public class Queue {
     public static final String QUEUE_MODIFIED = "modified";
     public static final String QUEUE_NEWEST = "newest";
     public static final String QUEUE_OLDEST = "oldest";
+    public static final String QUEUE_INDEXES = "indexes";
 
     @SuppressWarnings("rawtypes")
     public static final Map<String, Class> QUEUE_PROPERTIES =
@@ -201,6 +202,13 @@ public class Queue {
     }
 
 
+    /** @return the message properties this queue writes index entries for */
+    @JsonIgnore
+    public MessageIndexPolicy getIndexPolicy() {
+        return MessageIndexPolicy.fromProperty( properties.get( QUEUE_INDEXES ) );
+    }
+
+
     public float getFloatProperty( String name ) {
         return getFloatValue( properties, name );
     }
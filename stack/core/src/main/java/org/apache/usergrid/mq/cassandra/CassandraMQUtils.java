@@ -70,6 +70,16 @@ public class CassandraMQUtils {
     }
 
 
+    /**
+     * Name of the column holding a message stored in the compact format.  The leading null character sorts it before
+     * any property column and keeps it from clashing with a property name
+     */
+    public static final String COMPACT_MESSAGE_COLUMN = "\u0000message";
+
+    /** Leading byte of a compact message value, identifying the layout of the rest of the value */
+    public static final byte COMPACT_MESSAGE_VERSION = 1;
+
+
     /**
      * Encode a message into a set of columns. JMS properties are encoded as strings and longs everything else is binary
      * JSON.
@@ -94,6 +104,73 @@ public class CassandraMQUtils {
     }
 
 
+    /**
+     * Encode a message into a single value holding all of its properties as binary JSON, prefixed with {@link
+     * #COMPACT_MESSAGE_VERSION}.  Null properties are left out.
+     */
+    public static ByteBuffer serializeCompactMessage( Message message ) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+
+        for ( Entry<String, Object> property : message.getProperties().entrySet() ) {
+            if ( property.getValue() != null ) {
+                properties.put( property.getKey(), property.getValue() );
+            }
+        }
+
+        ByteBuffer json = JsonUtils.toByteBuffer( properties );
+
+        ByteBuffer value = ByteBuffer.allocate( json.remaining() + 1 );
+        value.put( COMPACT_MESSAGE_VERSION );
+        value.put( json );
+        value.flip();
+
+        return value;
+    }
+
+
+    /** Decode the properties of a message stored by {@link #serializeCompactMessage(Message)} */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> deserializeCompactMessage( ByteBuffer value ) {
+        ByteBuffer json = value.duplicate();
+
+        byte version = json.get();
+
+        if ( version != COMPACT_MESSAGE_VERSION ) {
+            throw new IllegalStateException( "Unsupported message format version " + version );
+        }
+
+        Map<String, Object> properties = ( Map<String, Object> ) JsonUtils.fromByteBuffer( json, Map.class );
+
+        if ( properties == null ) {
+            throw new IllegalStateException( "Unable to decode compact message" );
+        }
+
+        return properties;
+    }
+
+
+    /**
+     * Add the message to the mutator, either as one column per property or, if compact is set, as a single {@link
+     * #COMPACT_MESSAGE_COLUMN} column
+     */
+    public static Mutator<ByteBuffer> addMessageToMutator( Mutator<ByteBuffer> m, Message message, long timestamp,
+                                                           boolean compact ) {
+        if ( message == null ) {
+            return m;
+        }
+
+        if ( !compact ) {
+            return addMessageToMutator( m, message, timestamp );
+        }
+
+        m.addInsertion( bytebuffer( message.getUuid() ), QueuesCF.MESSAGE_PROPERTIES.toString(),
+                createColumn( bytebuffer( COMPACT_MESSAGE_COLUMN ), serializeCompactMessage( message ), timestamp, be,
+                        be ) );
+
+        return m;
+    }
+
+
     public static Mutator<ByteBuffer> addMessageToMutator( Mutator<ByteBuffer> m, Message message, long timestamp ) {
 
         Map<ByteBuffer, ByteBuffer> columns = serializeMessage( message );
@@ -123,7 +200,10 @@ public class CassandraMQUtils {
 
         Map<String, Object> properties = new HashMap<String, Object>();
         for ( HColumn<String, ByteBuffer> column : columns ) {
-            if ( MESSAGE_TYPE.equals( column.getName() ) || MESSAGE_ID.equals( column.getName() ) ) {
+            if ( COMPACT_MESSAGE_COLUMN.equals( column.getName() ) ) {
+                properties.putAll( deserializeCompactMessage( column.getValue() ) );
+            }
+            else if ( MESSAGE_TYPE.equals( column.getName() ) || MESSAGE_ID.equals( column.getName() ) ) {
                 properties.put( column.getName(),
                         object( MESSAGE_PROPERTIES.get( column.getName() ), column.getValue() ) );
             }
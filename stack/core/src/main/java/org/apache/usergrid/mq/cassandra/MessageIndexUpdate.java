@@ -25,6 +25,7 @@ import java.util.Map.Entry;
 import java.util.UUID;
 
 import org.apache.usergrid.mq.Message;
+import org.apache.usergrid.mq.MessageIndexPolicy;
 
 import me.prettyprint.hector.api.beans.DynamicComposite;
 import me.prettyprint.hector.api.mutation.Mutator;
@@ -48,12 +49,20 @@ public class MessageIndexUpdate {
     public static final boolean FULLTEXT = false;
 
     final Message message;
-    final Map<String, List<Map.Entry<String, Object>>> propertyEntryList;
+    Map<String, List<Map.Entry<String, Object>>> propertyEntryList;
+
 
     public MessageIndexUpdate( Message message ) {
         this.message = message;
+    }
 
-        if ( message.isIndexed() ) {
+
+    /**
+     * Build the index entries for the message's properties.  This is deferred until the message is first posted to a
+     * queue that indexes something, so posts to queues with indexing turned off don't pay for it
+     */
+    private Map<String, List<Map.Entry<String, Object>>> getPropertyEntryList() {
+        if ( propertyEntryList == null && message.isIndexed() ) {
             propertyEntryList = new HashMap<String, List<Map.Entry<String, Object>>>();
 
             for ( Map.Entry<String, Object> property : message.getProperties().entrySet() ) {
@@ -68,16 +77,32 @@ public class MessageIndexUpdate {
                 }
             }
         }
-        else {
-            propertyEntryList = null;
-        }
+
+        return propertyEntryList;
     }
 
 
     public void addToMutation( Mutator<ByteBuffer> batch, UUID queueId, long shard_ts, long timestamp ) {
+        addToMutation( batch, queueId, shard_ts, timestamp, MessageIndexPolicy.ALL );
+    }
+
 
-        if ( propertyEntryList != null ) {
-            for ( Entry<String, List<Entry<String, Object>>> property : propertyEntryList.entrySet() ) {
+    /** Add the index entries for the properties the queue's policy allows */
+    public void addToMutation( Mutator<ByteBuffer> batch, UUID queueId, long shard_ts, long timestamp,
+                               MessageIndexPolicy policy ) {
+
+        if ( policy.isNone() ) {
+            return;
+        }
+
+        Map<String, List<Map.Entry<String, Object>>> entries = getPropertyEntryList();
+
+        if ( entries != null ) {
+            for ( Entry<String, List<Entry<String, Object>>> property : entries.entrySet() ) {
+
+                if ( !policy.isIndexed( property.getKey() ) ) {
+                    continue;
+                }
 
                 for ( Map.Entry<String, Object> indexEntry : property.getValue() ) {
 
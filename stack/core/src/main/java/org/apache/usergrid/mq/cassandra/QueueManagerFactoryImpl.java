@@ -17,16 +17,24 @@
 package org.apache.usergrid.mq.cassandra;
 
 
+import java.util.Collection;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.apache.usergrid.clustering.hazelcast.CacheInvalidationBus;
+import org.apache.usergrid.clustering.hazelcast.CacheInvalidationListener;
 import org.apache.usergrid.locking.LockManager;
+import org.apache.usergrid.mq.MessageIndexPolicy;
 import org.apache.usergrid.mq.QueueManager;
 import org.apache.usergrid.mq.QueueManagerFactory;
 import org.apache.usergrid.persistence.cassandra.CassandraService;
 import org.apache.usergrid.persistence.cassandra.CounterUtils;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 import static org.apache.usergrid.persistence.cassandra.Serializers.*;
 
 
@@ -36,10 +44,22 @@ public class QueueManagerFactoryImpl implements QueueManagerFactory {
 
     public static String IMPLEMENTATION_DESCRIPTION = "Cassandra Queue Manager Factory 1.0";
 
+    /** Name of the index policy cache on the cache invalidation bus */
+    public static final String INDEX_POLICY_CACHE = "queueIndexPolicies";
+
     private CassandraService cass;
     private CounterUtils counterUtils;
     private LockManager lockManager;
     private int lockTimeout;
+    private boolean compactMessages;
+    private CacheInvalidationBus cacheInvalidationBus;
+
+    /**
+     * Index policies of queues by application and queue id, read on every post.  Without a cache invalidation bus a
+     * change made on another node is only seen here once the entry expires, up to 30 seconds later
+     */
+    private final Cache<String, MessageIndexPolicy> indexPolicies =
+            CacheBuilder.newBuilder().maximumSize( 10000 ).expireAfterWrite( 30, TimeUnit.SECONDS ).build();
 
     /**
      * Must be constructed with a CassandraClientPool.
@@ -55,6 +75,41 @@ public class QueueManagerFactoryImpl implements QueueManagerFactory {
     }
 
 
+    /** Store new messages as a single column.  Only enable once every node can read the compact format */
+    public void setCompactMessages( boolean compactMessages ) {
+        this.compactMessages = compactMessages;
+    }
+
+
+    /** Evict index policies changed on any node of a Hazelcast cluster as soon as they're updated */
+    public void setCacheInvalidationBus( CacheInvalidationBus cacheInvalidationBus ) {
+        this.cacheInvalidationBus = cacheInvalidationBus;
+
+        cacheInvalidationBus.register( INDEX_POLICY_CACHE, new CacheInvalidationListener() {
+            @Override
+            public void invalidate( Collection<Object> keys ) {
+                indexPolicies.invalidateAll( keys );
+            }
+        } );
+    }
+
+
+    Cache<String, MessageIndexPolicy> getIndexPolicies() {
+        return indexPolicies;
+    }
+
+
+    /** Evict the cached index policy of the queue, on every node when a cache invalidation bus is set */
+    void invalidateIndexPolicy( String key ) {
+        if ( cacheInvalidationBus == null ) {
+            indexPolicies.invalidate( key );
+            return;
+        }
+
+        cacheInvalidationBus.invalidate( INDEX_POLICY_CACHE, key );
+    }
+
+
     @Override
     public String getImpementationDescription() throws Exception {
         return IMPLEMENTATION_DESCRIPTION;
@@ -65,6 +120,8 @@ public class QueueManagerFactoryImpl implements QueueManagerFactory {
     public QueueManager getQueueManager( UUID applicationId ) {
         QueueManagerImpl qm = new QueueManagerImpl();
         qm.init( cass, counterUtils, lockManager, applicationId, lockTimeout );
+        qm.setCompactMessages( compactMessages );
+        qm.setQueueManagerFactory( this );
         return qm;
         //return applicationContext.getAutowireCapableBeanFactory()
         //		.createBean(QueueManagerImpl.class)
@@ -28,12 +28,15 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.usergrid.locking.LockManager;
 import org.apache.usergrid.mq.CounterQuery;
 import org.apache.usergrid.mq.Message;
+import org.apache.usergrid.mq.MessageIndexPolicy;
 import org.apache.usergrid.mq.Query;
 import org.apache.usergrid.mq.Query.CounterFilterPredicate;
 import org.apache.usergrid.mq.QueryProcessor;
@@ -62,6 +65,7 @@ import org.apache.usergrid.persistence.cassandra.CounterUtils;
 import org.apache.usergrid.persistence.cassandra.CounterUtils.AggregateCounterSelection;
 import org.apache.usergrid.persistence.exceptions.TransactionNotFoundException;
 import org.apache.usergrid.persistence.hector.CountingMutator;
+import org.apache.usergrid.utils.JsonUtils;
 import org.apache.usergrid.utils.UUIDUtils;
 
 import com.fasterxml.uuid.UUIDComparator;
@@ -83,10 +87,12 @@ import me.prettyprint.hector.api.query.SliceCounterQuery;
 import me.prettyprint.hector.api.query.SliceQuery;
 
 import static me.prettyprint.hector.api.factory.HFactory.createColumn;
+import static me.prettyprint.hector.api.factory.HFactory.createColumnQuery;
 import static me.prettyprint.hector.api.factory.HFactory.createCounterSliceQuery;
 
 import static me.prettyprint.hector.api.factory.HFactory.createSliceQuery;
 import static org.apache.usergrid.mq.Queue.QUEUE_CREATED;
+import static org.apache.usergrid.mq.Queue.QUEUE_INDEXES;
 import static org.apache.usergrid.mq.Queue.QUEUE_MODIFIED;
 import static org.apache.usergrid.mq.Queue.QUEUE_NEWEST;
 import static org.apache.usergrid.mq.Queue.QUEUE_OLDEST;
@@ -148,6 +154,8 @@ public class QueueManagerImpl implements QueueManager {
     private CounterUtils counterUtils;
     private LockManager lockManager;
     private int lockTimeout;
+    private boolean compactMessages;
+    private QueueManagerFactoryImpl qmf;
 
 
 
@@ -166,6 +174,21 @@ public class QueueManagerImpl implements QueueManager {
     }
 
 
+    /**
+     * Store posted messages as a single column instead of one column per property.  Messages in either format can
+     * always be read
+     */
+    public void setCompactMessages( boolean compactMessages ) {
+        this.compactMessages = compactMessages;
+    }
+
+
+    /** Share the index policy cache of the factory, without one policies are read on every post */
+    public void setQueueManagerFactory( QueueManagerFactoryImpl qmf ) {
+        this.qmf = qmf;
+    }
+
+
     @Override
     public Message getMessage( UUID messageId ) {
         SliceQuery<UUID, String, ByteBuffer> q =
@@ -188,7 +211,7 @@ public class QueueManagerImpl implements QueueManager {
 
         message.sync();
 
-        addMessageToMutator( batch, message, timestamp );
+        addMessageToMutator( batch, message, timestamp, compactMessages );
 
         long shard_ts = roundLong( message.getTimestamp(), QUEUE_SHARD_INTERVAL );
 
@@ -213,7 +236,7 @@ public class QueueManagerImpl implements QueueManager {
         if ( indexUpdate == null ) {
             indexUpdate = new MessageIndexUpdate( message );
         }
-        indexUpdate.addToMutation( batch, queueId, shard_ts, timestamp );
+        indexUpdate.addToMutation( batch, queueId, shard_ts, timestamp, getIndexPolicy( queueId ) );
 
         counterUtils.addMessageCounterMutations( batch, applicationId, queueId, message, timestamp );
 
@@ -381,7 +404,7 @@ public class QueueManagerImpl implements QueueManager {
         QueueSearch search = null;
 
         if ( query.hasFilterPredicates() ) {
-            search = new FilterSearch( ko );
+            search = new FilterSearch( ko, getIndexPolicy( getQueueId( normalizeQueuePath( queuePath ) ) ) );
         }
 
         else if ( query.getPosition() == LAST || query.getPosition() == CONSUMER ) {
@@ -941,6 +964,52 @@ public class QueueManagerImpl implements QueueManager {
     }
 
 
+    /** Get the index policy of the queue, which defaults to indexing every property */
+    public MessageIndexPolicy getIndexPolicy( final UUID queueId ) {
+        if ( qmf == null ) {
+            return readIndexPolicy( queueId );
+        }
+
+        try {
+            return qmf.getIndexPolicies().get( getIndexPolicyKey( queueId ), new Callable<MessageIndexPolicy>() {
+                @Override
+                public MessageIndexPolicy call() throws Exception {
+                    return readIndexPolicy( queueId );
+                }
+            } );
+        }
+        catch ( ExecutionException e ) {
+            throw new RuntimeException( "Unable to read index policy of queue " + queueId, e.getCause() );
+        }
+    }
+
+
+    private MessageIndexPolicy readIndexPolicy( UUID queueId ) {
+        HColumn<String, ByteBuffer> column =
+                createColumnQuery( cass.getApplicationKeyspace( applicationId ), ue, se, be )
+                        .setColumnFamily( QUEUE_PROPERTIES.getColumnFamily() ).setKey( queueId )
+                        .setName( QUEUE_INDEXES ).execute().get();
+
+        if ( column == null ) {
+            return MessageIndexPolicy.ALL;
+        }
+
+        try {
+            return MessageIndexPolicy.fromProperty( JsonUtils.fromByteBuffer( column.getValue() ) );
+        }
+        catch ( IllegalArgumentException e ) {
+            // stored before updateQueue validated policies, don't fail posts because of it
+            logger.warn( "Indexing every property of queue {}: {}", queueId, e.getMessage() );
+            return MessageIndexPolicy.ALL;
+        }
+    }
+
+
+    private String getIndexPolicyKey( UUID queueId ) {
+        return applicationId + "/" + queueId;
+    }
+
+
     @Override
     public Queue getQueue( String queuePath ) {
         return getQueue( queuePath, getQueueId( queuePath ) );
@@ -951,6 +1020,8 @@ public class QueueManagerImpl implements QueueManager {
     public Queue updateQueue( String queuePath, Queue queue ) {
         queue.setPath( queuePath );
 
+        validateIndexPolicy( queuePath, queue );
+
         UUID timestampUuid = newTimeUUID();
         long timestamp = getTimestampInMicros( timestampUuid );
 
@@ -975,10 +1046,29 @@ public class QueueManagerImpl implements QueueManager {
 
         batchExecute( batch, RETRY_COUNT );
 
+        if ( qmf != null && queue.getProperties().containsKey( QUEUE_INDEXES ) ) {
+            qmf.invalidateIndexPolicy( getIndexPolicyKey( queue.getUuid() ) );
+        }
+
         return queue;
     }
 
 
+    /**
+     * Parse the queue's index policy so a malformed one is rejected here rather than when messages are posted
+     *
+     * @throws IllegalArgumentException if the index policy of the queue is malformed
+     */
+    private void validateIndexPolicy( String queuePath, Queue queue ) {
+        try {
+            queue.getIndexPolicy();
+        }
+        catch ( IllegalArgumentException e ) {
+            throw new IllegalArgumentException( "Unable to update queue " + queuePath + ": " + e.getMessage(), e );
+        }
+    }
+
+
     @Override
     public Queue updateQueue( String queuePath, Map<String, Object> properties ) {
         return updateQueue( queuePath, new Queue( properties ) );
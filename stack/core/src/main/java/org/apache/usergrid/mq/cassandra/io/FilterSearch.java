@@ -18,15 +18,19 @@ package org.apache.usergrid.mq.cassandra.io;
 
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
-import java.util.SortedSet;
+import java.util.NoSuchElementException;
 import java.util.TreeSet;
 import java.util.UUID;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.usergrid.mq.Message;
+import org.apache.usergrid.mq.MessageIndexPolicy;
 import org.apache.usergrid.mq.QueryProcessor;
 import org.apache.usergrid.mq.QueryProcessor.QuerySlice;
 import org.apache.usergrid.mq.QueueQuery;
@@ -42,7 +46,6 @@ import me.prettyprint.hector.api.beans.HColumn;
 import static me.prettyprint.hector.api.factory.HFactory.createSliceQuery;
 import static org.apache.usergrid.mq.Queue.getQueueId;
 import static org.apache.usergrid.mq.cassandra.CassandraMQUtils.getConsumerId;
-import static org.apache.usergrid.mq.cassandra.QueueManagerImpl.DEFAULT_SEARCH_COUNT;
 import static org.apache.usergrid.mq.cassandra.QueueManagerImpl.QUEUE_SHARD_INTERVAL;
 import static org.apache.usergrid.mq.cassandra.QueuesCF.PROPERTY_INDEX;
 import static org.apache.usergrid.persistence.cassandra.CassandraPersistenceUtils.key;
@@ -64,12 +67,32 @@ public class FilterSearch extends NoTransactionSearch
     private static final Logger logger = LoggerFactory.getLogger( FilterSearch.class );
 
 
+    /**
+     * Number of index columns read at a time from a shard
+     */
+    private static final int STREAM_PAGE_SIZE = 1000;
+
+
+    private final MessageIndexPolicy indexPolicy;
+
+
     /**
      *
      */
     public FilterSearch( Keyspace ko )
+    {
+        this( ko, MessageIndexPolicy.ALL );
+    }
+
+
+    /**
+     * @param indexPolicy The index policy of the queue being searched.  Queries on properties it doesn't index are
+     * rejected, since they would silently return nothing
+     */
+    public FilterSearch( Keyspace ko, MessageIndexPolicy indexPolicy )
     {
         super( ko );
+        this.indexPolicy = indexPolicy;
     }
 
 
@@ -86,66 +109,146 @@ public class FilterSearch extends NoTransactionSearch
         QueryProcessor qp = new QueryProcessor( query );
         List<QuerySlice> slices = qp.getSlices();
 
-        long limit = query.getLimit();
+        for ( QuerySlice slice : slices )
+        {
+            if ( !indexPolicy.isIndexed( slice.getPropertyName() ) )
+            {
+                throw new IllegalArgumentException(
+                        "Property '" + slice.getPropertyName() + "' is not indexed in queue " + queuePath
+                                + ", indexed properties are: " + indexPolicy );
+            }
+        }
 
         UUID queueId = getQueueId( queuePath );
         UUID consumerId = getConsumerId( queueId, query );
         QueueBounds bounds = getQueueBounds( queueId );
 
+        List<UUID> merged = searchQueue( queueId, bounds, slices, query );
+
+        List<Message> messages = loadMessages( merged, query.isReversed() );
+
+        QueueResults results = createResults( messages, queuePath, queueId, consumerId );
+
+        return results;
+    }
+
+
+    /**
+     * Find the ids of the messages matching every slice.  Each slice is read as a stream of ids in the order of the
+     * query, and the streams are intersected until the limit of the query is reached, so no more than a page of every
+     * slice is held at once
+     */
+    List<UUID> searchQueue( UUID queueId, QueueBounds bounds, List<QuerySlice> slices, QueueQuery query )
+    {
+
         UUIDComparator comparator = query.isReversed() ? new ReverseUUIDComparator() : new UUIDComparator();
 
-        SortedSet<UUID> merged = null;
+        List<Iterator<UUID>> sources = new ArrayList<Iterator<UUID>>( slices.size() );
 
         for ( QuerySlice slice : slices )
         {
-            SortedSet<UUID> results =
-                    searchQueueRange( ko, queueId, bounds, slice, query.getLastMessageId(), query.isReversed(),
-                            comparator );
+            sources.add( searchQueueRange( queueId, bounds, slice, query.getLastMessageId(), query.isReversed(),
+                    comparator ) );
+        }
 
-            if ( merged == null )
-            {
-                merged = results;
-            }
-            else
+        return intersect( sources, comparator, query.getLimit() );
+    }
+
+
+    /**
+     * Intersect iterators that each return unique ids in the order of the comparator, stopping once the limit is
+     * reached.  Every iterator is advanced to the largest id any of them is on, until they all agree.
+     */
+    static List<UUID> intersect( List<Iterator<UUID>> sources, Comparator<UUID> comparator, long limit )
+    {
+
+        List<UUID> results = new ArrayList<UUID>();
+
+        if ( sources.isEmpty() )
+        {
+            return results;
+        }
+
+        UUID[] heads = new UUID[sources.size()];
+
+        for ( int i = 0; i < heads.length; i++ )
+        {
+            if ( !sources.get( i ).hasNext() )
             {
-                merged.retainAll( results );
+                return results;
             }
+
+            heads[i] = sources.get( i ).next();
         }
 
-        // now trim. Not efficient, but when indexing is updated, seeking will
-        // change, so I'm not worried about this.
-        if ( merged.size() > limit )
+        while ( results.size() < limit )
         {
-            Iterator<UUID> current = merged.iterator();
-            UUID max = null;
+            UUID max = heads[0];
+
+            for ( UUID head : heads )
+            {
+                if ( comparator.compare( head, max ) > 0 )
+                {
+                    max = head;
+                }
+            }
 
+            boolean matched = true;
 
-            for ( int i = 0; i <= limit && current.hasNext(); i++ )
+            for ( int i = 0; i < heads.length; i++ )
             {
-                max = current.next();
+                Iterator<UUID> source = sources.get( i );
+
+                while ( comparator.compare( heads[i], max ) < 0 )
+                {
+                    if ( !source.hasNext() )
+                    {
+                        return results;
+                    }
+
+                    heads[i] = source.next();
+                }
+
+                if ( comparator.compare( heads[i], max ) > 0 )
+                {
+                    matched = false;
+                }
             }
 
-            merged = merged.headSet( max );
-        }
+            if ( !matched )
+            {
+                continue;
+            }
 
-        List<Message> messages = loadMessages( merged, query.isReversed() );
+            results.add( max );
 
-        QueueResults results = createResults( messages, queuePath, queueId, consumerId );
+            for ( int i = 0; i < heads.length; i++ )
+            {
+                if ( !sources.get( i ).hasNext() )
+                {
+                    return results;
+                }
+
+                heads[i] = sources.get( i ).next();
+            }
+        }
 
         return results;
     }
 
 
-    public SortedSet<UUID> searchQueueRange( Keyspace ko, UUID queueId, QueueBounds bounds, QuerySlice slice, UUID last,
-                                             boolean reversed, UUIDComparator comparator )
+    /**
+     * Get the ids of the messages matching the slice, in the order of the comparator.  The index rows of the queue are
+     * read a shard at a time and a page at a time as the iterator is advanced.
+     */
+    public Iterator<UUID> searchQueueRange( UUID queueId, QueueBounds bounds, QuerySlice slice, UUID last,
+                                            boolean reversed, UUIDComparator comparator )
     {
 
-        TreeSet<UUID> uuid_set = new TreeSet<UUID>( comparator );
-
         if ( bounds == null )
         {
             logger.error( "Necessary queue bounds not found" );
-            return uuid_set;
+            return Collections.<UUID>emptySet().iterator();
         }
 
         UUID start_uuid = reversed ? bounds.getNewest() : bounds.getOldest();
@@ -161,85 +264,278 @@ public class FilterSearch extends NoTransactionSearch
         if ( finish_uuid == null )
         {
             logger.error( "No last message in queue" );
-            return uuid_set;
+            return Collections.<UUID>emptySet().iterator();
         }
 
-        long start_ts_shard = roundLong( getTimestampInMillis( start_uuid ), QUEUE_SHARD_INTERVAL );
+        return new SliceIterator( queueId, slice, start_uuid, finish_uuid, reversed, comparator );
+    }
+
 
-        long finish_ts_shard = roundLong( getTimestampInMillis( finish_uuid ), QUEUE_SHARD_INTERVAL );
+    /**
+     * Read a page of the index row of a property in a shard of the queue
+     */
+    protected List<HColumn<ByteBuffer, ByteBuffer>> getIndexColumns( UUID queueId, long shard, String propertyName,
+                                                                     ByteBuffer start, ByteBuffer finish,
+                                                                     boolean reversed, int count )
+    {
+        return createSliceQuery( ko, be, be, be ).setColumnFamily( PROPERTY_INDEX.getColumnFamily() )
+                .setKey( bytebuffer( key( queueId, shard, propertyName ) ) ).setRange( start, finish, reversed, count )
+                .execute().get().getColumns();
+    }
 
-        long current_ts_shard = start_ts_shard;
 
-        if ( reversed )
+    /**
+     * A slice whose start and finish are the same value, so its index columns are ordered by message id
+     */
+    private static boolean isSingleValue( QuerySlice slice )
+    {
+        if ( slice.getStart() == null || slice.getFinish() == null || slice.getCursor() != null )
         {
-            current_ts_shard = finish_ts_shard;
+            return false;
         }
 
-        ByteBuffer start = null;
-        if ( slice.getCursor() != null )
+        Object start = slice.getStart().getValue();
+        Object finish = slice.getFinish().getValue();
+
+        // string equality is searched up to the value followed by a null character
+        return start.equals( finish ) || ( start instanceof String && finish.equals( start + "\u0000" ) );
+    }
+
+
+    /**
+     * Iterates the ids matching a slice in the order of the comparator, walking the shards between the start and finish
+     * ids.  The index columns of a single value are ordered by id and are streamed a page at a time, read backwards
+     * for a reversed search.  Any other range is ordered by value first, so the ids of one shard are read and sorted
+     * before they are returned.
+     */
+    private class SliceIterator implements Iterator<UUID>
+    {
+
+        private final UUID queueId;
+        private final QuerySlice slice;
+        private final UUID startUuid;
+        private final UUID finishUuid;
+        private final boolean reversed;
+        private final UUIDComparator comparator;
+        private final boolean singleValue;
+
+        private final ByteBuffer start;
+        private final ByteBuffer finish;
+
+        private final long lastShard;
+        private long shard;
+
+        /** The name of the last column read from the current shard, null before its first page */
+        private ByteBuffer lastColumn;
+        private boolean shardExhausted = true;
+
+        private Iterator<UUID> page = Collections.<UUID>emptySet().iterator();
+        private UUID next;
+        private boolean finished;
+
+
+        private SliceIterator( UUID queueId, QuerySlice slice, UUID startUuid, UUID finishUuid, boolean reversed,
+                               UUIDComparator comparator )
         {
-            start = slice.getCursor();
+            this.queueId = queueId;
+            this.slice = slice;
+            this.startUuid = startUuid;
+            this.finishUuid = finishUuid;
+            this.reversed = reversed;
+            this.comparator = comparator;
+            this.singleValue = isSingleValue( slice );
+
+            ByteBuffer rangeStart = null;
+            if ( slice.getCursor() != null )
+            {
+                rangeStart = slice.getCursor();
+            }
+            else if ( slice.getStart() != null )
+            {
+                DynamicComposite s = new DynamicComposite( slice.getStart().getCode(), slice.getStart().getValue() );
+                if ( !slice.getStart().isInclusive() )
+                {
+                    setEqualityFlag( s, ComponentEquality.GREATER_THAN_EQUAL );
+                }
+                rangeStart = s.serialize();
+            }
+
+            ByteBuffer rangeFinish = null;
+            if ( slice.getFinish() != null )
+            {
+                DynamicComposite f =
+                        new DynamicComposite( slice.getFinish().getCode(), slice.getFinish().getValue() );
+                if ( slice.getFinish().isInclusive() )
+                {
+                    setEqualityFlag( f, ComponentEquality.GREATER_THAN_EQUAL );
+                }
+                rangeFinish = f.serialize();
+            }
+
+            this.start = rangeStart;
+            this.finish = rangeFinish;
+
+            // shards are walked from the start id towards the finish id
+            this.shard = roundLong( getTimestampInMillis( startUuid ), QUEUE_SHARD_INTERVAL );
+            this.lastShard = roundLong( getTimestampInMillis( finishUuid ), QUEUE_SHARD_INTERVAL );
         }
-        else if ( slice.getStart() != null )
+
+
+        @Override
+        public boolean hasNext()
         {
-            DynamicComposite s = new DynamicComposite( slice.getStart().getCode(), slice.getStart().getValue() );
-            if ( !slice.getStart().isInclusive() )
+            while ( next == null && !finished )
             {
-                setEqualityFlag( s, ComponentEquality.GREATER_THAN_EQUAL );
+                if ( page.hasNext() )
+                {
+                    UUID uuid = page.next();
+
+                    // same bounds as the search always had, the start id is included and the finish id is not
+                    if ( comparator.compare( uuid, startUuid ) < 0 )
+                    {
+                        continue;
+                    }
+
+                    if ( comparator.compare( uuid, finishUuid ) >= 0 )
+                    {
+                        finished = true;
+                        break;
+                    }
+
+                    next = uuid;
+                }
+                else
+                {
+                    loadPage();
+                }
             }
-            start = s.serialize();
+
+            return next != null;
         }
 
-        ByteBuffer finish = null;
-        if ( slice.getFinish() != null )
+
+        @Override
+        public UUID next()
         {
-            DynamicComposite f = new DynamicComposite( slice.getFinish().getCode(), slice.getFinish().getValue() );
-            if ( slice.getFinish().isInclusive() )
+            if ( !hasNext() )
             {
-                setEqualityFlag( f, ComponentEquality.GREATER_THAN_EQUAL );
+                throw new NoSuchElementException();
             }
-            finish = f.serialize();
+
+            UUID uuid = next;
+            next = null;
+            return uuid;
         }
 
-        while ( ( current_ts_shard >= start_ts_shard ) && ( current_ts_shard <= finish_ts_shard ) && ( uuid_set.size()
-                < DEFAULT_SEARCH_COUNT ) )
+
+        @Override
+        public void remove()
         {
+            throw new UnsupportedOperationException( "Remove is not supported" );
+        }
+
+
+        /** Load the next page of the current shard, moving to the next shard when it's exhausted */
+        private void loadPage()
+        {
+            if ( shardExhausted )
+            {
+                if ( reversed ? shard < lastShard : shard > lastShard )
+                {
+                    finished = true;
+                    return;
+                }
+
+                lastColumn = null;
+                shardExhausted = false;
+            }
+
+            if ( !singleValue )
+            {
+                page = readShard();
+                shardExhausted = true;
+                shard += reversed ? -QUEUE_SHARD_INTERVAL : QUEUE_SHARD_INTERVAL;
+                return;
+            }
+
+            List<HColumn<ByteBuffer, ByteBuffer>> columns = readColumns( lastColumn );
+
+            List<UUID> uuids = new ArrayList<UUID>( columns.size() );
+
+            for ( HColumn<ByteBuffer, ByteBuffer> column : columns )
+            {
+                uuids.add( DynamicComposite.fromByteBuffer( column.getName().duplicate() ).get( 2, ue ) );
+            }
+
+            if ( columns.size() < STREAM_PAGE_SIZE )
+            {
+                shardExhausted = true;
+                shard += reversed ? -QUEUE_SHARD_INTERVAL : QUEUE_SHARD_INTERVAL;
+            }
+            else
+            {
+                lastColumn = columns.get( columns.size() - 1 ).getName().duplicate();
+            }
+
+            page = uuids.iterator();
+        }
+
+
+        /** Read every id of the current shard in the order of the comparator */
+        private Iterator<UUID> readShard()
+        {
+            TreeSet<UUID> uuids = new TreeSet<UUID>( comparator );
+
+            ByteBuffer after = null;
 
             while ( true )
             {
-                List<HColumn<ByteBuffer, ByteBuffer>> results =
-                        createSliceQuery( ko, be, be, be ).setColumnFamily( PROPERTY_INDEX.getColumnFamily() )
-                                .setKey( bytebuffer( key( queueId, current_ts_shard, slice.getPropertyName() ) ) )
-                                .setRange( start, finish, false, DEFAULT_SEARCH_COUNT ).execute().get().getColumns();
+                List<HColumn<ByteBuffer, ByteBuffer>> columns = readColumns( after );
 
-                for ( HColumn<ByteBuffer, ByteBuffer> column : results )
+                for ( HColumn<ByteBuffer, ByteBuffer> column : columns )
                 {
-                    DynamicComposite c = DynamicComposite.fromByteBuffer( column.getName().duplicate() );
-                    UUID uuid = c.get( 2, ue );
-
-                    uuid_set.add( uuid );
+                    uuids.add( DynamicComposite.fromByteBuffer( column.getName().duplicate() ).get( 2, ue ) );
                 }
 
-                if ( results.size() < DEFAULT_SEARCH_COUNT )
+                if ( columns.size() < STREAM_PAGE_SIZE )
                 {
-                    break;
+                    return uuids.iterator();
                 }
 
-                start = results.get( results.size() - 1 ).getName().duplicate();
+                after = columns.get( columns.size() - 1 ).getName().duplicate();
             }
+        }
 
-            if ( reversed )
+
+        /**
+         * Read a page of the current shard following the given column, or the first page if it's null.  A single value
+         * is read backwards for a reversed search, any other range is always read forwards
+         */
+        private List<HColumn<ByteBuffer, ByteBuffer>> readColumns( ByteBuffer after )
+        {
+            boolean reverseRead = singleValue && reversed;
+
+            ByteBuffer from = reverseRead ? finish : start;
+            ByteBuffer to = reverseRead ? start : finish;
+
+            if ( after == null )
             {
-                current_ts_shard -= QUEUE_SHARD_INTERVAL;
+                return getIndexColumns( queueId, shard, slice.getPropertyName(), from, to, reverseRead,
+                        STREAM_PAGE_SIZE );
             }
-            else
+
+            // the range is inclusive, so the first column is the one already returned
+            List<HColumn<ByteBuffer, ByteBuffer>> columns =
+                    getIndexColumns( queueId, shard, slice.getPropertyName(), after, to, reverseRead,
+                            STREAM_PAGE_SIZE + 1 );
+
+            if ( !columns.isEmpty() && columns.get( 0 ).getName().equals( after ) )
             {
-                current_ts_shard += QUEUE_SHARD_INTERVAL;
+                return columns.subList( 1, columns.size() );
             }
-        }
 
-        // trim the results
-        return uuid_set.headSet( finish_uuid ).tailSet( start_uuid );
+            return columns;
+        }
     }
 
 
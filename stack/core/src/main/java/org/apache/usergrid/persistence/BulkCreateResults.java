@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * The outcome of a bulk create.  Entities are kept in the same order as the property maps that were passed in, with a
+ * null in every position that could not be created.  The cause of each failure is available by input index.
+ */
+public class BulkCreateResults {
+
+    private final List<Entity> entities;
+
+    private final Map<Integer, Exception> errors = new TreeMap<Integer, Exception>();
+
+
+    public BulkCreateResults( int size ) {
+        this.entities = new ArrayList<Entity>( Collections.<Entity>nCopies( size, null ) );
+    }
+
+
+    public synchronized void setEntity( int index, Entity entity ) {
+        entities.set( index, entity );
+    }
+
+
+    /** Record a failure for the input at the given index.  Only the first failure per index is kept */
+    public synchronized void setError( int index, Exception error ) {
+        entities.set( index, null );
+
+        if ( !errors.containsKey( index ) ) {
+            errors.put( index, error );
+        }
+    }
+
+
+    /** @return the created entities, in input order.  Failed positions are null */
+    public synchronized List<Entity> getEntities() {
+        return new ArrayList<Entity>( entities );
+    }
+
+
+    /** @return the failures keyed by input index, in index order */
+    public synchronized Map<Integer, Exception> getErrors() {
+        return new TreeMap<Integer, Exception>( errors );
+    }
+
+
+    public synchronized boolean hasErrors() {
+        return !errors.isEmpty();
+    }
+
+
+    public synchronized int getCreatedCount() {
+        int count = 0;
+
+        for ( Entity entity : entities ) {
+            if ( entity != null ) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+
+    public int size() {
+        return entities.size();
+    }
+}
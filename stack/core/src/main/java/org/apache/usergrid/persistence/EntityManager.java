@@ -84,6 +84,19 @@ public interface EntityManager {
      */
     public Entity create( UUID importId, String entityType, Map<String, Object> properties ) throws Exception;
 
+    /**
+     * Creates a batch of entities of the specified type attached to the specified application. All documents are
+     * validated before anything is written, and the writes for valid documents are grouped into shared mutations that
+     * are executed concurrently. A failure on one document does not prevent the others from being created.
+     *
+     * @param entityType the type of the entities to create.
+     * @param propertiesList the property values of each new entity.
+     *
+     * @return the created entities in input order, along with the failure of each document that was not created.
+     */
+    public BulkCreateResults createBulk( String entityType, List<Map<String, Object>> propertiesList )
+            throws Exception;
+
     public void createApplicationCollection( String entityType ) throws Exception;
 
     public EntityRef getAlias( String aliasType, String alias ) throws Exception;
@@ -184,6 +197,14 @@ public interface EntityManager {
      */
     public void update( Entity entity ) throws Exception;
 
+    /**
+     * Checks whether the stored index entries of the entity match its current property values, in which case updating
+     * it would not change its secondary indexes.
+     *
+     * @param entity an Entity object.
+     */
+    public boolean isIndexCurrent( Entity entity ) throws Exception;
+
     /**
      * Gets the value for a named entity property. Entity properties must be defined in the schema
      *
@@ -301,6 +322,26 @@ public interface EntityManager {
 
     public Set<String> getDictionaries( EntityRef entity ) throws Exception;
 
+    /**
+     * Gets the dictionary names of several entities, reading them together rather than with a read per entity.
+     *
+     * @param entities the entities to get the dictionary names of.
+     *
+     * @return the dictionary names of each entity, keyed by entity id.
+     */
+    public Map<UUID, Set<String>> getDictionaries( Collection<? extends EntityRef> entities ) throws Exception;
+
+    /**
+     * Gets the contents of several dictionaries of several entities, reading them together rather than with a read per
+     * entity and dictionary.
+     *
+     * @param dictionaries the names of the dictionaries to get for each entity.
+     *
+     * @return the contents of each dictionary, keyed by entity id and then by dictionary name.
+     */
+    public Map<UUID, Map<String, Map<Object, Object>>> getDictionariesAsMaps(
+            Map<? extends EntityRef, ? extends Collection<String>> dictionaries ) throws Exception;
+
     /**
      * Deletes the specified entity.
      *
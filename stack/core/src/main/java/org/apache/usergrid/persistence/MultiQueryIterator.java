@@ -17,15 +17,35 @@
 package org.apache.usergrid.persistence;
 
 
+import java.io.Closeable;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 
 /**
  * For each in a set of source UUIDs, executes a sub-query and provides a unified iterator over the union of all
  * results. Honors page sizes for the Query to ensure memory isn't blown out.
+ * <p/>
+ * With a prefetch count, the first pages of the sub-queries for the next source UUIDs are loaded concurrently while
+ * the current one is consumed.  Results are still returned in source order.  Only first pages are prefetched, and no
+ * more are held than would fit in {@link Query#MAX_LIMIT} results.  Callers that stop before the iterator is exhausted
+ * should {@link #close()} it so the outstanding prefetches are cancelled.
  */
-public class MultiQueryIterator implements ResultsIterator {
+public class MultiQueryIterator implements ResultsIterator, Closeable {
+
+    /** The number of threads shared by all prefetching iterators */
+    public static final int PREFETCH_THREADS = 16;
+
+    private static final ExecutorService PREFETCH_EXECUTOR = Executors.newFixedThreadPool( PREFETCH_THREADS,
+            new ThreadFactoryBuilder().setNameFormat( "multi-query-prefetch-%d" ).setDaemon( true ).build() );
 
     private EntityManager entityManager;
     private Iterator<UUID> source;
@@ -33,6 +53,14 @@ public class MultiQueryIterator implements ResultsIterator {
     private MutableEntityRef entityRef = new MutableEntityRef();
     private Iterator currentIterator;
 
+    private final ExecutorService executor;
+
+    /** The number of sub-queries to run ahead of the one being consumed.  0 runs them one at a time */
+    private final int prefetch;
+
+    /** First pages of the upcoming sub-queries, in source order */
+    private final LinkedList<Future<Results>> pending = new LinkedList<Future<Results>>();
+
 
     public MultiQueryIterator( Results results, Query query ) {
         this( results.getQueryProcessor().getEntityManager(), new PagingResultsIterator( results, Results.Level.IDS ),
@@ -47,6 +75,34 @@ public class MultiQueryIterator implements ResultsIterator {
         this.entityManager = entityManager;
         this.source = source;
         this.query = query;
+        this.executor = null;
+        this.prefetch = 0;
+    }
+
+
+    /**
+     * @param prefetch The number of sub-queries to run ahead of the one being consumed on the shared prefetch pool
+     */
+    public MultiQueryIterator( EntityManager entityManager, Iterator<UUID> source, Query query, int prefetch ) {
+        this( entityManager, source, query, PREFETCH_EXECUTOR, prefetch );
+    }
+
+
+    /**
+     * @param executor The executor to run the prefetched sub-queries on
+     * @param prefetch The number of sub-queries to run ahead of the one being consumed
+     */
+    public MultiQueryIterator( EntityManager entityManager, Iterator<UUID> source, Query query,
+                               ExecutorService executor, int prefetch ) {
+        if ( query.getCollection() == null && query.getConnectionType() == null ) {
+            throw new IllegalArgumentException( "Query must have a collection or connectionType value" );
+        }
+        this.entityManager = entityManager;
+        this.source = source;
+        this.query = query;
+        this.executor = executor;
+        // the current and every prefetched page can each hold a full page of results, cap them at a max query's worth
+        this.prefetch = Math.max( 0, Math.min( prefetch, Query.MAX_LIMIT / Math.max( 1, query.getLimit() ) - 1 ) );
     }
 
 
@@ -58,6 +114,9 @@ public class MultiQueryIterator implements ResultsIterator {
         if ( currentIterator != null && currentIterator.hasNext() ) {
             return true;
         }
+        if ( prefetch > 0 ) {
+            return prefetchNext();
+        }
         while ( source.hasNext() ) {
             UUID uuid = source.next();
             Results r = getResultsFor( uuid );
@@ -101,6 +160,95 @@ public class MultiQueryIterator implements ResultsIterator {
     }
 
 
+    /** Move to the next sub-query with results, keeping the prefetch window full */
+    private boolean prefetchNext() {
+        try {
+            while ( true ) {
+                while ( pending.size() <= prefetch && source.hasNext() ) {
+                    pending.add( executor.submit( new SubQuery( source.next() ) ) );
+                }
+
+                if ( pending.isEmpty() ) {
+                    break;
+                }
+
+                Results r = get( pending.removeFirst() );
+
+                if ( r.size() > 0 ) {
+                    currentIterator = new PagingResultsIterator( r, query.getResultsLevel() );
+                    return currentIterator.hasNext();
+                }
+            }
+        }
+        catch ( RuntimeException e ) {
+            close();
+            throw e;
+        }
+        close();
+        return false;
+    }
+
+
+    /** Stop iterating, cancelling the sub-queries that are still being prefetched */
+    @Override
+    public void close() {
+        for ( Future<Results> future : pending ) {
+            future.cancel( true );
+        }
+
+        pending.clear();
+
+        if ( source instanceof Closeable ) {
+            try {
+                ( ( Closeable ) source ).close();
+            }
+            catch ( Exception e ) {
+                throw new RuntimeException( e );
+            }
+        }
+
+        currentIterator = null;
+        source = null;
+    }
+
+
+    private Results get( Future<Results> future ) {
+        try {
+            return future.get();
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( e );
+        }
+        catch ( ExecutionException e ) {
+            throw new RuntimeException( e.getCause() );
+        }
+    }
+
+
+    /** Loads the first page for a single source.  Uses its own ref and query since it runs concurrently */
+    private class SubQuery implements Callable<Results> {
+
+        private final UUID uuid;
+
+
+        private SubQuery( UUID uuid ) {
+            this.uuid = uuid;
+        }
+
+
+        @Override
+        public Results call() throws Exception {
+            EntityRef ref = new SimpleEntityRef( uuid );
+            Query subQuery = new Query( query );
+
+            return ( subQuery.getCollection() != null ) ?
+                   entityManager.searchCollection( ref, subQuery.getCollection(), subQuery ) :
+                   entityManager.searchConnectedEntities( ref, subQuery );
+        }
+    }
+
+
     // just avoid some garbage collection
     private static class MutableEntityRef implements EntityRef {
 
@@ -26,6 +26,7 @@ public class PathQuery<E> {
     private PathQuery source;
     private Query query;
     private UUID head;
+    private int prefetch;
 
 
     public PathQuery() {
@@ -74,7 +75,24 @@ public class PathQuery<E> {
 
 
     public PathQuery chain( Query query ) {
-        return new PathQuery( this, query );
+        PathQuery chained = new PathQuery( this, query );
+        chained.setPrefetch( prefetch );
+        return chained;
+    }
+
+
+    /**
+     * Load the first pages of up to this many source entities' sub-queries concurrently while traversing.  0 runs them
+     * one at a time, the default.  Chained queries inherit the value of the query they're chained from.  An iterator
+     * that isn't drained should be closed when it is {@link java.io.Closeable}, to cancel the outstanding prefetches
+     */
+    public void setPrefetch( int prefetch ) {
+        this.prefetch = prefetch;
+    }
+
+
+    public int getPrefetch() {
+        return prefetch;
     }
 
 
@@ -84,7 +102,7 @@ public class PathQuery<E> {
                 return new PagingResultsIterator( getHeadResults( em ), query.getResultsLevel() );
             }
             else {
-                return new MultiQueryIterator( em, source.uuidIterator( em ), query );
+                return new MultiQueryIterator( em, source.uuidIterator( em ), query, prefetch );
             }
         }
         catch ( Exception e ) {
@@ -110,7 +128,7 @@ public class PathQuery<E> {
                 q = new Query( q );
                 q.setResultsLevel( Results.Level.IDS );
             }
-            return new MultiQueryIterator( em, source.uuidIterator( em ), q );
+            return new MultiQueryIterator( em, source.uuidIterator( em ), q, prefetch );
         }
     }
 
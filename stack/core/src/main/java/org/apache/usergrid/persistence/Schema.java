@@ -1651,7 +1651,7 @@ public class Schema {
 
 
     public static Object deserializePropertyValueFromJsonBinary( ByteBuffer bytes ) {
-        return JsonUtils.normalizeJsonTree( JsonUtils.fromByteBuffer( bytes ) );
+        return JsonUtils.fromByteBufferNormalized( bytes );
     }
 
 
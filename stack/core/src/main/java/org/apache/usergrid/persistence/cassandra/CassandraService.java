@@ -259,22 +259,34 @@ public class CassandraService {
 
 
     public Keyspace getKeyspace( String keyspace, UUID prefix ) {
+        return getKeyspace( keyspace, prefix, consistencyLevelPolicy );
+    }
+
+
+    /** Get the keyspace with the given consistency levels rather than the configured ones */
+    public Keyspace getKeyspace( String keyspace, UUID prefix, ConsistencyLevelPolicy consistency ) {
         Keyspace ko = null;
         if ( USE_VIRTUAL_KEYSPACES && ( prefix != null ) ) {
-            ko = createVirtualKeyspace( keyspace, prefix, ue, cluster, consistencyLevelPolicy,
-                    ON_FAIL_TRY_ALL_AVAILABLE, accessMap );
+            ko = createVirtualKeyspace( keyspace, prefix, ue, cluster, consistency, ON_FAIL_TRY_ALL_AVAILABLE,
+                    accessMap );
         }
         else {
-            ko = HFactory.createKeyspace( keyspace, cluster, consistencyLevelPolicy, ON_FAIL_TRY_ALL_AVAILABLE,
-                    accessMap );
+            ko = HFactory.createKeyspace( keyspace, cluster, consistency, ON_FAIL_TRY_ALL_AVAILABLE, accessMap );
         }
         return ko;
     }
 
 
     public Keyspace getApplicationKeyspace( UUID applicationId ) {
+        return getApplicationKeyspace( applicationId, consistencyLevelPolicy );
+    }
+
+
+    /** Get the keyspace for the application with the given consistency levels rather than the configured ones */
+    public Keyspace getApplicationKeyspace( UUID applicationId, ConsistencyLevelPolicy consistency ) {
         assert applicationId != null;
-        Keyspace ko = getKeyspace( keyspaceForApplication( applicationId ), prefixForApplication( applicationId ) );
+        Keyspace ko = getKeyspace( keyspaceForApplication( applicationId ), prefixForApplication( applicationId ),
+                consistency );
         return ko;
     }
 
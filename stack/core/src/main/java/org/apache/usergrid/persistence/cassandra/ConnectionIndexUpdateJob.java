@@ -0,0 +1,304 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.cassandra;
+
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.commons.codec.binary.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import org.apache.usergrid.batch.JobExecution;
+import org.apache.usergrid.batch.job.OnlyOnceJob;
+import org.apache.usergrid.persistence.DynamicEntity;
+import org.apache.usergrid.persistence.EntityManagerFactory;
+import org.apache.usergrid.persistence.cassandra.IndexUpdate.IndexEntry;
+import org.apache.usergrid.persistence.entities.JobData;
+import org.apache.usergrid.persistence.hector.CountingMutator;
+
+import me.prettyprint.hector.api.mutation.Mutator;
+
+import static org.apache.usergrid.persistence.cassandra.CassandraPersistenceUtils.batchExecute;
+import static org.apache.usergrid.persistence.cassandra.Serializers.be;
+import static org.apache.usergrid.utils.ConversionUtils.getBoolean;
+import static org.apache.usergrid.utils.ConversionUtils.string;
+import static org.apache.usergrid.utils.ConversionUtils.uuid;
+
+
+/**
+ * Applies a property or dictionary index update to the indexes of every connection pointing at the updated entity.
+ * Entities with many incoming connections schedule this job instead of rewriting all those indexes while the request
+ * waits.  The job data holds the previous and new index entries, and every mutation is written with the timestamp of
+ * the original update, so executions can be retried or run out of order with later updates without corrupting the
+ * indexes.  Mutations are flushed by a pipelined {@link CountingMutator} while the next connections are read, and
+ * the execution heartbeat is sent every {@link #BATCH_SIZE} connections.
+ */
+@Component(ConnectionIndexUpdateJob.JOB_NAME)
+public class ConnectionIndexUpdateJob extends OnlyOnceJob {
+
+    public static final String JOB_NAME = "connectionIndexUpdateJob";
+
+    public static final String APPLICATION_ID = "applicationId";
+    public static final String ENTITY_ID = "entityId";
+    public static final String ENTITY_TYPE = "entityType";
+    public static final String ENTRY_NAME = "entryName";
+    public static final String TIMESTAMP = "timestamp";
+    public static final String MULTI_VALUE = "multiValue";
+    public static final String REMOVE_LIST_ENTRY = "removeListEntry";
+    public static final String PREV_ENTRIES = "prevEntries";
+    public static final String NEW_ENTRIES = "newEntries";
+    public static final String INDEXES = "indexes";
+
+    /** Number of connections updated between heartbeats */
+    public static final int BATCH_SIZE = 100;
+
+    private static final String ENTRY_PATH = "path";
+    private static final String ENTRY_TYPE = "type";
+    private static final String ENTRY_VALUE = "value";
+    private static final String ENTRY_TIMESTAMP = "timestamp";
+
+    private static final String TYPE_STRING = "string";
+    private static final String TYPE_UUID = "uuid";
+    private static final String TYPE_INTEGER = "integer";
+    private static final String TYPE_BYTES = "bytes";
+
+    private static final Logger logger = LoggerFactory.getLogger( ConnectionIndexUpdateJob.class );
+
+    private EntityManagerFactory emf;
+
+
+    /**
+     * Create the job data describing the update.
+     *
+     * @return The job data, or null if an entry holds a value that can't be stored in the job data, in which case the
+     *         update must be applied directly
+     */
+    public static JobData createJobData( UUID applicationId, IndexUpdate indexUpdate ) {
+
+        List<Map<String, Object>> prevEntries = encodeEntries( indexUpdate.getPrevEntries() );
+        List<Map<String, Object>> newEntries = encodeEntries( indexUpdate.getNewEntries() );
+
+        if ( prevEntries == null || newEntries == null ) {
+            return null;
+        }
+
+        JobData data = new JobData();
+        data.setProperty( APPLICATION_ID, applicationId );
+        data.setProperty( ENTITY_ID, indexUpdate.getEntity().getUuid() );
+        data.setProperty( ENTITY_TYPE, indexUpdate.getEntity().getType() );
+        data.setProperty( ENTRY_NAME, indexUpdate.getEntryName() );
+        data.setProperty( TIMESTAMP, indexUpdate.getTimestampUuid() );
+        data.setProperty( MULTI_VALUE, indexUpdate.isMultiValue() );
+        data.setProperty( REMOVE_LIST_ENTRY, indexUpdate.isRemoveListEntry() );
+        data.setProperty( PREV_ENTRIES, prevEntries );
+        data.setProperty( NEW_ENTRIES, newEntries );
+        data.setProperty( INDEXES, new ArrayList<String>( indexUpdate.getIndexesSet() ) );
+
+        return data;
+    }
+
+
+    /** Rebuild the update described by the job data, without a batch */
+    public static IndexUpdate toIndexUpdate( JobData data ) {
+
+        DynamicEntity entity =
+                new DynamicEntity( string( data.getProperty( ENTITY_TYPE ) ), uuid( data.getProperty( ENTITY_ID ) ) );
+
+        IndexUpdate indexUpdate = new IndexUpdate( null, entity, string( data.getProperty( ENTRY_NAME ) ), null, true,
+                getBoolean( data.getProperty( MULTI_VALUE ) ), getBoolean( data.getProperty( REMOVE_LIST_ENTRY ) ),
+                uuid( data.getProperty( TIMESTAMP ) ) );
+
+        for ( Map<?, ?> entry : getEntries( data, PREV_ENTRIES ) ) {
+            indexUpdate.addPrevEntry( string( entry.get( ENTRY_PATH ) ), decodeValue( entry ),
+                    uuid( entry.get( ENTRY_TIMESTAMP ) ), null );
+        }
+
+        for ( Map<?, ?> entry : getEntries( data, NEW_ENTRIES ) ) {
+            indexUpdate.addNewEntry( string( entry.get( ENTRY_PATH ) ), decodeValue( entry ) );
+        }
+
+        Object indexes = data.getProperty( INDEXES );
+
+        if ( indexes instanceof Collection ) {
+            for ( Object index : ( Collection<?> ) indexes ) {
+                indexUpdate.addIndex( string( index ) );
+            }
+        }
+
+        return indexUpdate;
+    }
+
+
+    @Override
+    protected void doJob( JobExecution execution ) throws Exception {
+
+        JobData data = execution.getJobData();
+
+        UUID applicationId = uuid( data.getProperty( APPLICATION_ID ), null );
+
+        if ( applicationId == null ) {
+            logger.error( "Job data {} has no {}, nothing to update", data.getUuid(), APPLICATION_ID );
+            return;
+        }
+
+        EntityManagerImpl em = ( EntityManagerImpl ) emf.getEntityManager( applicationId );
+
+        IndexUpdate indexUpdate = toIndexUpdate( data );
+
+        Mutator<ByteBuffer> batch =
+                CountingMutator.createPipelinedMutator( em.getCass().getApplicationKeyspace( applicationId ), be,
+                        CountingMutator.DEFAULT_MAX_IN_FLIGHT );
+
+        indexUpdate.setBatch( batch );
+
+        RelationManagerImpl rm = em.getRelationManager( indexUpdate.getEntity() );
+
+        Iterator<ConnectionRefImpl> connections = rm.getBackwardConnections( indexUpdate.getEntity() );
+
+        int count = 0;
+
+        while ( connections.hasNext() ) {
+            rm.batchUpdateConnectionIndex( indexUpdate, connections.next() );
+
+            if ( ++count % BATCH_SIZE == 0 ) {
+                execution.heartbeat();
+            }
+        }
+
+        batchExecute( batch, CassandraService.RETRY_COUNT );
+
+        logger.debug( "Updated {} for {} connections to entity {}", new Object[] {
+                indexUpdate.getEntryName(), count, indexUpdate.getEntity().getUuid()
+        } );
+    }
+
+
+    @Override
+    protected long getDelay( JobExecution execution ) throws Exception {
+        return 1000;
+    }
+
+
+    @Override
+    public void dead( JobExecution execution ) throws Exception {
+        logger.error( "Connection index update {} failed too many times, giving up.  Connection queries on {} of entity "
+                + "{} may return stale results", new Object[] {
+                execution.getJobId(), execution.getJobData().getProperty( ENTRY_NAME ),
+                execution.getJobData().getProperty( ENTITY_ID )
+        } );
+    }
+
+
+    @Autowired
+    public void setEmf( EntityManagerFactory emf ) {
+        this.emf = emf;
+    }
+
+
+    /** Index values are strings, uuids, integers or bytes.  Each is stored with its type so it can't change on reload */
+    private static List<Map<String, Object>> encodeEntries( List<IndexEntry> entries ) {
+        List<Map<String, Object>> encoded = new ArrayList<Map<String, Object>>( entries.size() );
+
+        for ( IndexEntry entry : entries ) {
+            Object value = entry.getValue();
+
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            map.put( ENTRY_PATH, entry.getPath() );
+            map.put( ENTRY_TIMESTAMP, entry.getTimestampUuid() );
+
+            if ( value instanceof String ) {
+                map.put( ENTRY_TYPE, TYPE_STRING );
+                map.put( ENTRY_VALUE, value );
+            }
+            else if ( value instanceof UUID ) {
+                map.put( ENTRY_TYPE, TYPE_UUID );
+                map.put( ENTRY_VALUE, value.toString() );
+            }
+            else if ( value instanceof BigInteger ) {
+                map.put( ENTRY_TYPE, TYPE_INTEGER );
+                map.put( ENTRY_VALUE, value.toString() );
+            }
+            else if ( value instanceof ByteBuffer ) {
+                ByteBuffer bytes = ( ( ByteBuffer ) value ).duplicate();
+                byte[] array = new byte[bytes.remaining()];
+                bytes.get( array );
+
+                map.put( ENTRY_TYPE, TYPE_BYTES );
+                map.put( ENTRY_VALUE, Base64.encodeBase64String( array ) );
+            }
+            else {
+                return null;
+            }
+
+            encoded.add( map );
+        }
+
+        return encoded;
+    }
+
+
+    private static Object decodeValue( Map<?, ?> entry ) {
+        String type = string( entry.get( ENTRY_TYPE ) );
+        String value = string( entry.get( ENTRY_VALUE ) );
+
+        if ( TYPE_STRING.equals( type ) ) {
+            return value;
+        }
+
+        if ( TYPE_UUID.equals( type ) ) {
+            return UUID.fromString( value );
+        }
+
+        if ( TYPE_INTEGER.equals( type ) ) {
+            return new BigInteger( value );
+        }
+
+        if ( TYPE_BYTES.equals( type ) ) {
+            return ByteBuffer.wrap( Base64.decodeBase64( value ) );
+        }
+
+        throw new IllegalArgumentException( "Unknown index entry type " + type );
+    }
+
+
+    private static List<Map<?, ?>> getEntries( JobData data, String name ) {
+        List<Map<?, ?>> entries = new ArrayList<Map<?, ?>>();
+
+        Object value = data.getProperty( name );
+
+        if ( value instanceof Collection ) {
+            for ( Object entry : ( Collection<?> ) value ) {
+                if ( entry instanceof Map ) {
+                    entries.add( ( Map<?, ?> ) entry );
+                }
+            }
+        }
+
+        return entries;
+    }
+}
@@ -18,6 +18,7 @@ package org.apache.usergrid.persistence.cassandra;
 
 
 import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.UUID;
@@ -27,6 +28,9 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
+import org.apache.usergrid.batch.service.SchedulerService;
+import org.apache.usergrid.clustering.hazelcast.CacheInvalidationBus;
+import org.apache.usergrid.clustering.hazelcast.CacheInvalidationListener;
 import org.apache.usergrid.persistence.DynamicEntity;
 import org.apache.usergrid.persistence.EntityManager;
 import org.apache.usergrid.persistence.EntityManagerFactory;
@@ -82,6 +86,9 @@ public class EntityManagerFactoryImpl implements EntityManagerFactory, Applicati
 
     public static final Class<DynamicEntity> APPLICATION_ENTITY_CLASS = DynamicEntity.class;
 
+    /** The cache name entity manager invalidations are published under, keyed by application id */
+    public static final String APPLICATION_CACHE = "applications";
+
 
     ApplicationContext applicationContext;
 
@@ -90,6 +97,16 @@ public class EntityManagerFactoryImpl implements EntityManagerFactory, Applicati
 
     private boolean skipAggregateCounters;
 
+    /**
+     * Maximum number of incoming connections whose indexes are updated while the entity update waits.  Updates to
+     * entities with more are handed to the {@link ConnectionIndexUpdateJob}.  Negative, the default, to always update
+     * directly, since deferred updates are only applied where the job scheduler is running
+     */
+    private int connectionIndexInlineMax = -1;
+
+    /** Optional bus used to evict cached entity managers on every node.  Null to only evict locally */
+    private CacheInvalidationBus cacheInvalidationBus;
+
     private LoadingCache<UUID, EntityManager> entityManagers =
             CacheBuilder.newBuilder().maximumSize( 100 ).build( new CacheLoader<UUID, EntityManager>() {
                 public EntityManager load( UUID appId ) { // no checked exception
@@ -396,4 +413,53 @@ public class EntityManagerFactoryImpl implements EntityManagerFactory, Applicati
     public void setCounterUtils( CounterUtils counterUtils ) {
         this.counterUtils = counterUtils;
     }
+
+
+    public int getConnectionIndexInlineMax() {
+        return connectionIndexInlineMax;
+    }
+
+
+    public void setConnectionIndexInlineMax( int connectionIndexInlineMax ) {
+        this.connectionIndexInlineMax = connectionIndexInlineMax;
+    }
+
+
+    /**
+     * Evict the cached entity manager, and with it the cached application entity, of the application.  When a cache
+     * invalidation bus is set this happens on every node of the cluster
+     */
+    public void invalidateApplication( UUID applicationId ) {
+        if ( cacheInvalidationBus == null ) {
+            entityManagers.invalidate( applicationId );
+            return;
+        }
+
+        cacheInvalidationBus.invalidate( APPLICATION_CACHE, applicationId );
+    }
+
+
+    public void setCacheInvalidationBus( CacheInvalidationBus cacheInvalidationBus ) {
+        this.cacheInvalidationBus = cacheInvalidationBus;
+
+        cacheInvalidationBus.register( APPLICATION_CACHE, new CacheInvalidationListener() {
+            @Override
+            public void invalidate( Collection<Object> keys ) {
+                entityManagers.invalidateAll( keys );
+            }
+        } );
+    }
+
+
+    /**
+     * @return the scheduler, or null if there is none in this context.  The scheduler only stores jobs, they run on the
+     *         nodes where the job scheduler background service is started
+     */
+    public SchedulerService getSchedulerService() {
+        if ( applicationContext == null || !applicationContext.containsBean( "schedulerService" ) ) {
+            return null;
+        }
+
+        return applicationContext.getBean( "schedulerService", SchedulerService.class );
+    }
 }
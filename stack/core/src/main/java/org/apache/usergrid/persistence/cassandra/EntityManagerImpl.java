@@ -18,6 +18,7 @@ package org.apache.usergrid.persistence.cassandra;
 
 
 import java.nio.ByteBuffer;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -25,14 +26,19 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 
 import javax.annotation.Resource;
 
@@ -40,12 +46,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationContext;
 import org.springframework.util.Assert;
-import org.apache.usergrid.locking.Lock;
 import org.apache.usergrid.mq.Message;
 import org.apache.usergrid.mq.QueueManager;
 import org.apache.usergrid.mq.cassandra.QueueManagerFactoryImpl;
 import org.apache.usergrid.persistence.AggregateCounter;
 import org.apache.usergrid.persistence.AggregateCounterSet;
+import org.apache.usergrid.persistence.BulkCreateResults;
 import org.apache.usergrid.persistence.CollectionRef;
 import org.apache.usergrid.persistence.ConnectedEntityRef;
 import org.apache.usergrid.persistence.ConnectionRef;
@@ -77,8 +83,10 @@ import org.apache.usergrid.persistence.entities.Role;
 import org.apache.usergrid.persistence.entities.User;
 import org.apache.usergrid.persistence.exceptions.DuplicateUniquePropertyExistsException;
 import org.apache.usergrid.persistence.exceptions.EntityNotFoundException;
+import org.apache.usergrid.persistence.exceptions.PropertyTypeConversionException;
 import org.apache.usergrid.persistence.exceptions.RequiredPropertyNotFoundException;
 import org.apache.usergrid.persistence.exceptions.UnexpectedEntityTypeException;
+import org.apache.usergrid.persistence.exceptions.UniquePropertyContentionException;
 import org.apache.usergrid.persistence.hector.CountingMutator;
 import org.apache.usergrid.persistence.schema.CollectionInfo;
 import org.apache.usergrid.utils.ClassUtils;
@@ -89,6 +97,8 @@ import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 import com.yammer.metrics.annotation.Metered;
 
+import me.prettyprint.cassandra.model.QuorumAllConsistencyLevelPolicy;
+import me.prettyprint.hector.api.ConsistencyLevelPolicy;
 import me.prettyprint.hector.api.Keyspace;
 import me.prettyprint.hector.api.beans.ColumnSlice;
 import me.prettyprint.hector.api.beans.CounterRow;
@@ -112,7 +122,6 @@ import static me.prettyprint.hector.api.factory.HFactory.createCounterSliceQuery
 
 import static org.apache.commons.lang.StringUtils.capitalize;
 import static org.apache.commons.lang.StringUtils.isBlank;
-import static org.apache.usergrid.locking.LockHelper.getUniqueUpdateLock;
 import static org.apache.usergrid.persistence.Results.Level.REFS;
 import static org.apache.usergrid.persistence.Results.fromEntities;
 import static org.apache.usergrid.persistence.Schema.COLLECTION_ROLES;
@@ -184,6 +193,38 @@ public class EntityManagerImpl implements EntityManager {
     public static final String APPLICATION_COLLECTION = "application.collection.";
     public static final String APPLICATION_ENTITIES = "application.entities";
     public static final long ONE_COUNT = 1L;
+
+    /** Default maximum number of mutators a single bulk create has executing at once */
+    public static final int DEFAULT_BULK_CREATE_MAX_IN_FLIGHT = 4;
+
+    /** Maximum number of dictionary rows fetched by a single multi-row read */
+    private static final int DICTIONARY_MULTIGET_SIZE = 100;
+
+    /** Maximum number of unique index rows checked by a single multi-row read during a bulk create */
+    private static final int UNIQUE_MULTIGET_SIZE = 100;
+
+    /** Seconds a unique value claim lives, it must outlast the time until the batch holding it is executed */
+    public static final int UNIQUE_CLAIM_TTL = 60;
+
+    /** Times a unique value claim that collided with another pending claim is retried */
+    private static final int UNIQUE_CLAIM_RETRIES = 4;
+
+    /** Upper bound in milliseconds of the first wait after a collision, doubled on each retry */
+    private static final int UNIQUE_CLAIM_BACKOFF_MILLIS = 10;
+
+    private static final String UNIQUE_CLAIM_PREFIX = "uniqueclaim";
+
+    private static final Random UNIQUE_CLAIM_BACKOFF = new Random();
+
+    /** Claims are only safe if their write and read back overlap on a majority of replicas */
+    private static final ConsistencyLevelPolicy UNIQUE_CLAIM_CONSISTENCY = new QuorumAllConsistencyLevelPolicy();
+
+    /** Maximum number of mutators a single bulk create has executing at once */
+    private final int bulkCreateMaxInFlight;
+
+    /** Shared pool that executes bulk create mutators, bounded per call by {@link #bulkCreateMaxInFlight} */
+    @Resource
+    private ExecutorService bulkCreateExecutor;
     @Resource
     private EntityManagerFactoryImpl emf;
     @Resource
@@ -202,6 +243,13 @@ public class EntityManagerImpl implements EntityManager {
     private boolean skipAggregateCounters;
 
     public EntityManagerImpl() {
+        this( DEFAULT_BULK_CREATE_MAX_IN_FLIGHT );
+    }
+
+
+    /** @param bulkCreateMaxInFlight The maximum number of mutators a single bulk create has executing at once */
+    public EntityManagerImpl( int bulkCreateMaxInFlight ) {
+        this.bulkCreateMaxInFlight = Math.max( 1, bulkCreateMaxInFlight );
     }
 
 
@@ -235,6 +283,11 @@ public class EntityManagerImpl implements EntityManager {
     }
 
 
+    EntityManagerFactoryImpl getEntityManagerFactory() {
+        return emf;
+    }
+
+
     @Override
     public EntityRef getApplicationRef() {
         return ref( TYPE_APPLICATION, applicationId );
@@ -254,6 +307,7 @@ public class EntityManagerImpl implements EntityManager {
     public void updateApplication( Application app ) throws Exception {
         update( app );
         this.application = app;
+        emf.invalidateApplication( applicationId );
     }
 
 
@@ -261,6 +315,7 @@ public class EntityManagerImpl implements EntityManager {
     public void updateApplication( Map<String, Object> properties ) throws Exception {
         this.updateProperties( applicationId, properties );
         this.application = get( applicationId, Application.class );
+        emf.invalidateApplication( applicationId );
     }
 
 
@@ -295,6 +350,14 @@ public class EntityManagerImpl implements EntityManager {
     public Mutator<ByteBuffer> batchSetProperty( Mutator<ByteBuffer> batch, EntityRef entity, String propertyName,
                                                  Object propertyValue, boolean force, boolean noRead,
                                                  UUID timestampUuid ) throws Exception {
+        return batchSetProperty( batch, entity, propertyName, propertyValue, force, noRead, false, timestampUuid );
+    }
+
+
+    /** @param claimed True if the entity already holds the claim on a unique value, so it isn't claimed again */
+    private Mutator<ByteBuffer> batchSetProperty( Mutator<ByteBuffer> batch, EntityRef entity, String propertyName,
+                                                  Object propertyValue, boolean force, boolean noRead,
+                                                  boolean claimed, UUID timestampUuid ) throws Exception {
 
         long timestamp = getTimestampInMicros( timestampUuid );
 
@@ -336,29 +399,19 @@ public class EntityManagerImpl implements EntityManager {
              */
             if ( defaultSchema.getEntityInfo( entity.getType() ).isPropertyUnique( propertyName ) ) {
 
-                Lock lock = getUniqueUpdateLock( cass.getLockManager(), applicationId, propertyValue, entity.getType(),
-                        propertyName );
-
-                try {
-                    lock.lock();
-
-                    if ( !isPropertyValueUniqueForEntity( entity.getUuid(), entity.getType(), propertyName,
-                            propertyValue ) ) {
-                        throw new DuplicateUniquePropertyExistsException( entity.getType(), propertyName,
-                                propertyValue );
-                    }
-
-
-                    String collectionName = Schema.defaultCollectionName( entity.getType() );
-
-                    uniquePropertyDelete( batch, collectionName, entity.getType(), propertyName, propertyValue,
-                            entity.getUuid(), timestamp - 1 );
-                    uniquePropertyWrite( batch, collectionName, propertyName, propertyValue, entity.getUuid(),
-                            timestamp );
-                }
-                finally {
-                    lock.unlock();
-                }
+                String collectionName = Schema.defaultCollectionName( entity.getType() );
+
+                // a held claim was written before now, so releasing it at the current time always lands above it
+                long claimTimestamp = claimed ? Math.max( timestamp, cass.createTimestamp() ) :
+                                      uniquePropertyClaim( collectionName, entity.getType(), propertyName,
+                                              propertyValue, entity.getUuid(), timestamp );
+                uniquePropertyDelete( batch, collectionName, entity.getType(), propertyName, propertyValue,
+                        entity.getUuid(), timestamp - 1 );
+                uniquePropertyWrite( batch, collectionName, propertyName, propertyValue, entity.getUuid(),
+                        timestamp );
+                // queued after the index entry, so a flush in between never frees the value before it's owned
+                uniqueClaimRelease( batch, collectionName, propertyName, propertyValue, entity.getUuid(),
+                        claimTimestamp );
             }
         }
 
@@ -566,6 +619,189 @@ public class EntityManagerImpl implements EntityManager {
     }
 
 
+    /**
+     * Reserve a unique value for the entity without taking a lock.  A claim column that expires after {@link
+     * #UNIQUE_CLAIM_TTL} seconds is written to the claim row of the value, then the claim row and the unique index row
+     * are read back at QUORUM.  The claim wins when no other entity owns or claims the value, and the batch then
+     * replaces it with the index entry followed by a {@link #uniqueClaimRelease}.  If another entity owns the value the
+     * claim is rolled back and the value rejected.  Of two claims made at the same time at least one always sees the
+     * other, so a claim that sees another pending claim rolls back, waits a random time and tries again.  A claim that
+     * still collides after {@link #UNIQUE_CLAIM_RETRIES} retries fails with a {@link
+     * UniquePropertyContentionException}, which can be retried.  Claims are written at the current time rather than the
+     * entity's, so a claim made again after {@link #releaseUniqueClaims} always lands above the release.
+     *
+     * @return The timestamp the winning claim must be deleted at
+     */
+    private long uniquePropertyClaim( String collectionName, String entityType, String propertyName,
+                                      Object propertyValue, UUID entityId, long timestamp ) throws Exception {
+
+        if ( propertyValue == null ) {
+            return timestamp;
+        }
+
+        Keyspace ko = cass.getApplicationKeyspace( applicationId, UNIQUE_CLAIM_CONSISTENCY );
+
+        ByteBuffer indexKey = bytebuffer( createUniqueIndexKey( applicationId, collectionName, propertyName,
+                propertyValue ) );
+        ByteBuffer claimKey = bytebuffer( createUniqueClaimKey( applicationId, collectionName, propertyName,
+                propertyValue ) );
+
+        long claimTimestamp = 0;
+
+        for ( int attempt = 0; ; attempt++ ) {
+
+            // every attempt writes above the tombstone of the previous one, and the batch deletes the winning claim
+            claimTimestamp = Math.max( cass.createTimestamp(), claimTimestamp + 1 );
+
+            Mutator<ByteBuffer> claim = HFactory.createMutator( ko, be );
+            claim.addInsertion( claimKey, ENTITY_UNIQUE.toString(),
+                    HFactory.createColumn( entityId, ByteBuffer.allocate( 0 ), claimTimestamp, UNIQUE_CLAIM_TTL, ue,
+                            be ) );
+            claim.execute();
+
+            Rows<ByteBuffer, UUID, ByteBuffer> rows =
+                    cass.getRows( ko, ENTITY_UNIQUE, asList( indexKey, claimKey ), be, ue, be );
+
+            Set<UUID> owners = getColumnNames( rows.getByKey( indexKey ) );
+            Set<UUID> claims = getColumnNames( rows.getByKey( claimKey ) );
+
+            claims.remove( entityId );
+
+            // entities can't lose values they already own, even if the index has more than one owner
+            boolean owned = owners.isEmpty() || owners.contains( entityId );
+
+            if ( owned && ( claims.isEmpty() || !owners.isEmpty() ) ) {
+                return Math.max( timestamp, claimTimestamp );
+            }
+
+            Mutator<ByteBuffer> rollback = HFactory.createMutator( ko, be );
+            rollback.addDeletion( claimKey, ENTITY_UNIQUE.toString(), entityId, ue, claimTimestamp );
+            rollback.execute();
+
+            if ( !owned ) {
+                throw new DuplicateUniquePropertyExistsException( entityType, propertyName, propertyValue );
+            }
+
+            if ( attempt == UNIQUE_CLAIM_RETRIES ) {
+                throw new UniquePropertyContentionException( entityType, propertyName, propertyValue );
+            }
+
+            logger.debug( "Claim of {} {} collided with {} other claims, retrying", new Object[] {
+                    propertyName, propertyValue, claims.size()
+            } );
+
+            Thread.sleep( 1 + UNIQUE_CLAIM_BACKOFF.nextInt( UNIQUE_CLAIM_BACKOFF_MILLIS << attempt ) );
+        }
+    }
+
+
+    /** Add the delete of a winning claim to the batch, it must be queued after the index entry that replaces it */
+    private void uniqueClaimRelease( Mutator<ByteBuffer> m, String collectionName, String propertyName,
+                                     Object propertyValue, UUID entityId, long timestamp ) throws Exception {
+
+        if ( propertyValue == null ) {
+            return;
+        }
+
+        addDeleteToMutator( m, ENTITY_UNIQUE,
+                bytebuffer( createUniqueClaimKey( applicationId, collectionName, propertyName, propertyValue ) ),
+                entityId, timestamp );
+    }
+
+
+    /**
+     * Delete the claims the entities may hold on their unique values.  Used when the batch that would have replaced the
+     * claims with index entries is never executed, so the values aren't held until the claims expire
+     */
+    private void releaseUniqueClaims( Collection<? extends Entity> entities ) {
+
+        Keyspace ko = cass.getApplicationKeyspace( applicationId, UNIQUE_CLAIM_CONSISTENCY );
+        Mutator<ByteBuffer> m = HFactory.createMutator( ko, be );
+
+        long timestamp = cass.createTimestamp();
+
+        for ( Entity entity : entities ) {
+            if ( entity != null ) {
+                addUniqueClaimReleases( m, entity, entity.getProperties(), timestamp );
+            }
+        }
+
+        executeUniqueClaimReleases( m );
+    }
+
+
+    /** Delete the claims an entity may hold on the unique values of properties that were never written */
+    private void releaseUniqueClaims( EntityRef entity, Map<String, Object> properties ) {
+
+        Keyspace ko = cass.getApplicationKeyspace( applicationId, UNIQUE_CLAIM_CONSISTENCY );
+        Mutator<ByteBuffer> m = HFactory.createMutator( ko, be );
+
+        addUniqueClaimReleases( m, entity, properties, cass.createTimestamp() );
+
+        executeUniqueClaimReleases( m );
+    }
+
+
+    private void addUniqueClaimReleases( Mutator<ByteBuffer> m, EntityRef entity, Map<String, Object> properties,
+                                         long timestamp ) {
+
+        Schema schema = getDefaultSchema();
+
+        String collectionName = Schema.defaultCollectionName( entity.getType() );
+
+        for ( Map.Entry<String, Object> property : properties.entrySet() ) {
+
+            if ( property.getValue() == null || !schema.isPropertyUnique( entity.getType(), property.getKey() ) ) {
+                continue;
+            }
+
+            Object value;
+
+            try {
+                value = schema.validateEntityPropertyValue( entity.getType(), property.getKey(), property.getValue() );
+            }
+            catch ( PropertyTypeConversionException e ) {
+                // a value that doesn't validate was never claimed
+                continue;
+            }
+
+            m.addDeletion(
+                    bytebuffer( createUniqueClaimKey( applicationId, collectionName, property.getKey(), value ) ),
+                    ENTITY_UNIQUE.toString(), entity.getUuid(), ue, timestamp );
+        }
+    }
+
+
+    private void executeUniqueClaimReleases( Mutator<ByteBuffer> m ) {
+
+        if ( m.getPendingMutationCount() == 0 ) {
+            return;
+        }
+
+        try {
+            m.execute();
+        }
+        catch ( Exception e ) {
+            logger.warn( "Unable to release unique value claims, they expire in {} seconds", UNIQUE_CLAIM_TTL, e );
+        }
+    }
+
+
+    private Set<UUID> getColumnNames( Row<ByteBuffer, UUID, ByteBuffer> row ) {
+        Set<UUID> names = new HashSet<UUID>();
+
+        if ( row == null ) {
+            return names;
+        }
+
+        for ( HColumn<UUID, ByteBuffer> column : row.getColumnSlice().getColumns() ) {
+            names.add( column.getName() );
+        }
+
+        return names;
+    }
+
+
     /** Add this unique index to the delete */
     private void uniquePropertyDelete( Mutator<ByteBuffer> m, String collectionName, String entityType,
                                        String propertyName, Object propertyValue, UUID entityId, long timestamp )
@@ -602,6 +838,15 @@ public class EntityManagerImpl implements EntityManager {
     }
 
 
+    /**
+     * Create the row key holding the pending claims on a unique value.  The prefix keeps it apart from any index key,
+     * which always starts with an owner id
+     */
+    private Object createUniqueClaimKey( UUID ownerId, String collectionName, String propertyName, Object value ) {
+        return key( UNIQUE_CLAIM_PREFIX, ownerId, collectionName, propertyName, value );
+    }
+
+
     @Override
     @Metered( group = "core", name = "EntityManager_getAlias_single" )
     public EntityRef getAlias( UUID ownerId, String collectionType, String aliasValue ) throws Exception {
@@ -720,17 +965,388 @@ public class EntityManagerImpl implements EntityManager {
         Mutator<ByteBuffer> m = CountingMutator.createFlushingMutator( ko, be );
         A entity = batchCreate( m, entityType, entityClass, properties, importId, timestampUuid );
 
-        batchExecute( m, CassandraService.RETRY_COUNT );
+        try {
+            batchExecute( m, CassandraService.RETRY_COUNT );
+        }
+        catch ( Exception e ) {
+            releaseUniqueClaims( Collections.singletonList( entity ) );
+            throw e;
+        }
 
         return entity;
     }
 
 
-    @SuppressWarnings( "unchecked" )
+    @Override
+    @Metered( group = "core", name = "EntityManager_createBulk" )
+    public BulkCreateResults createBulk( String entityType, List<Map<String, Object>> propertiesList )
+            throws Exception {
+
+        if ( ( entityType != null ) && ( entityType.startsWith( TYPE_ENTITY ) || entityType
+                .startsWith( "entities" ) ) ) {
+            throw new IllegalArgumentException( "Invalid entity type" );
+        }
+
+        BulkCreateResults results = new BulkCreateResults( propertiesList.size() );
+
+        List<Integer> valid = new ArrayList<Integer>( propertiesList.size() );
+
+        Map<ByteBuffer, UniqueValue> uniqueValues = new LinkedHashMap<ByteBuffer, UniqueValue>();
+
+        //validate everything up front so a bad document never leaves partial columns in a shared mutator
+        for ( int i = 0; i < propertiesList.size(); i++ ) {
+            try {
+                validateForCreate( entityType, i, propertiesList.get( i ), uniqueValues );
+                valid.add( i );
+            }
+            catch ( Exception e ) {
+                results.setError( i, e );
+            }
+        }
+
+        valid.removeAll( checkUniqueValues( entityType, uniqueValues, results ) );
+
+        Keyspace ko = cass.getApplicationKeyspace( applicationId );
+
+        BulkMutationExecutor executor = new BulkMutationExecutor( results, bulkCreateMaxInFlight );
+
+        List<Integer> chunk = new ArrayList<Integer>();
+        Map<Integer, Entity> chunkEntities = new HashMap<Integer, Entity>();
+
+        //allow a single large document to overflow the chunk without flushing half of it
+        Mutator<ByteBuffer> m = new CountingMutator<ByteBuffer>( HFactory.createMutator( ko, be ),
+                CountingMutator.MAX_SIZE * 2 );
+
+        try {
+            for ( Integer index : valid ) {
+
+                try {
+                    Entity entity = batchCreate( m, entityType, null, propertiesList.get( index ), null,
+                            newTimeUUID(), false, false );
+
+                    chunk.add( index );
+                    chunkEntities.put( index, entity );
+                }
+                catch ( Exception e ) {
+                    logger.error( "Unable to build bulk create for document {} of type {}", index, entityType );
+
+                    results.setError( index, e );
+
+                    //the failed document may have left columns behind, rebuild the chunk without it
+                    m.discardPendingMutations();
+                    rebuildChunk( m, entityType, propertiesList, chunk, chunkEntities, results );
+                }
+
+                if ( m.getPendingMutationCount() >= CountingMutator.MAX_SIZE ) {
+                    executor.submit( m, chunk, chunkEntities );
+
+                    chunk = new ArrayList<Integer>();
+                    chunkEntities = new HashMap<Integer, Entity>();
+                    m = new CountingMutator<ByteBuffer>( HFactory.createMutator( ko, be ),
+                            CountingMutator.MAX_SIZE * 2 );
+                }
+            }
+
+            if ( !chunk.isEmpty() ) {
+                executor.submit( m, chunk, chunkEntities );
+            }
+        }
+        catch ( Exception e ) {
+            // the chunk being built will never be executed
+            releaseUniqueClaims( chunkEntities.values() );
+            throw e;
+        }
+        finally {
+            executor.awaitCompletion();
+            incrementBulkCounters( results );
+        }
+
+        return results;
+    }
+
+
+    /**
+     * Increment the collection and entity counters once for everything a bulk create wrote, instead of once per
+     * entity
+     */
+    private void incrementBulkCounters( BulkCreateResults results ) {
+
+        Map<String, Long> counters = new HashMap<String, Long>();
+
+        for ( Entity entity : results.getEntities() ) {
+            if ( entity == null || TYPE_APPLICATION.equals( entity.getType() ) ) {
+                continue;
+            }
+
+            String collectionName =
+                    Event.ENTITY_TYPE.equals( entity.getType() ) ? "events" : defaultCollectionName( entity.getType() );
+
+            incrementCount( counters, APPLICATION_COLLECTION + collectionName );
+            incrementCount( counters, APPLICATION_ENTITIES );
+        }
+
+        if ( counters.isEmpty() ) {
+            return;
+        }
+
+        try {
+            incrementAggregateCounters( null, null, null, counters );
+        }
+        catch ( Exception e ) {
+            logger.error( "Unable to increment counters {} for bulk create", counters, e );
+        }
+    }
+
+
+    private static void incrementCount( Map<String, Long> counters, String name ) {
+        Long count = counters.get( name );
+        counters.put( name, count == null ? ONE_COUNT : count + ONE_COUNT );
+    }
+
+
+    /**
+     * Check everything about a new entity that would cause {@link #batchCreate} to fail, without writing anything.
+     * Unique values are checked against the other documents in the same bulk create and collected into the given map,
+     * so they can be checked against the datastore with {@link #checkUniqueValues}
+     */
+    private void validateForCreate( String entityType, int index, Map<String, Object> properties,
+                                    Map<ByteBuffer, UniqueValue> uniqueValues ) throws Exception {
+
+        Schema schema = getDefaultSchema();
+
+        if ( properties == null ) {
+            return;
+        }
+
+        Set<String> required = schema.getRequiredProperties( entityType );
+
+        if ( required != null ) {
+            for ( String p : required ) {
+                if ( PROPERTY_UUID.equals( p ) || PROPERTY_TYPE.equals( p ) || PROPERTY_CREATED.equals( p )
+                        || PROPERTY_MODIFIED.equals( p ) || schema.isPropertyTimestamp( entityType, p ) ) {
+                    continue;
+                }
+
+                Object v = properties.get( p );
+
+                if ( v == null || ( ( v instanceof String ) && isBlank( ( String ) v ) ) ) {
+                    throw new RequiredPropertyNotFoundException( entityType, p );
+                }
+            }
+        }
+
+        String collectionName = Schema.defaultCollectionName( entityType );
+
+        for ( Map.Entry<String, Object> property : properties.entrySet() ) {
+
+            String propertyName = property.getKey();
+            Object propertyValue = property.getValue();
+
+            if ( propertyValue == null ) {
+                continue;
+            }
+
+            if ( User.ENTITY_TYPE.equals( entityType ) && "me".equals( propertyName ) ) {
+                throw new DuplicateUniquePropertyExistsException( entityType, propertyName, propertyValue );
+            }
+
+            propertyValue = schema.validateEntityPropertyValue( entityType, propertyName, propertyValue );
+
+            if ( !schema.isPropertyUnique( entityType, propertyName ) ) {
+                continue;
+            }
+
+            ByteBuffer uniqueKey =
+                    bytebuffer( createUniqueIndexKey( applicationId, collectionName, propertyName, propertyValue ) );
+
+            if ( uniqueValues.containsKey( uniqueKey ) ) {
+                throw new DuplicateUniquePropertyExistsException( entityType, propertyName, propertyValue );
+            }
+
+            uniqueValues.put( uniqueKey, new UniqueValue( index, propertyName, propertyValue ) );
+        }
+    }
+
+
+    /**
+     * Check the unique values of a bulk create against the datastore, reading at most {@link #UNIQUE_MULTIGET_SIZE}
+     * unique index rows at a time.  Every document holding a value that is already taken gets an error
+     *
+     * @return The indexes of the documents that failed
+     */
+    private Set<Integer> checkUniqueValues( String entityType, Map<ByteBuffer, UniqueValue> uniqueValues,
+                                           BulkCreateResults results ) throws Exception {
+
+        Set<Integer> failed = new HashSet<Integer>();
+
+        Keyspace ko = cass.getApplicationKeyspace( applicationId );
+
+        List<ByteBuffer> keys = new ArrayList<ByteBuffer>( uniqueValues.keySet() );
+
+        for ( int i = 0; i < keys.size(); i += UNIQUE_MULTIGET_SIZE ) {
+
+            List<ByteBuffer> batch = keys.subList( i, Math.min( i + UNIQUE_MULTIGET_SIZE, keys.size() ) );
+
+            Map<ByteBuffer, List<HColumn<ByteBuffer, ByteBuffer>>> rows =
+                    cass.multiGetColumns( ko, ENTITY_UNIQUE, batch, null, null, 1, false );
+
+            for ( Map.Entry<ByteBuffer, List<HColumn<ByteBuffer, ByteBuffer>>> row : rows.entrySet() ) {
+
+                if ( row.getValue().isEmpty() ) {
+                    continue;
+                }
+
+                UniqueValue value = uniqueValues.get( row.getKey() );
+
+                if ( value == null ) {
+                    continue;
+                }
+
+                results.setError( value.index,
+                        new DuplicateUniquePropertyExistsException( entityType, value.propertyName, value.value ) );
+                failed.add( value.index );
+            }
+        }
+
+        return failed;
+    }
+
+
+    /** A unique property value of a document in a bulk create */
+    private static class UniqueValue {
+
+        private final int index;
+        private final String propertyName;
+        private final Object value;
+
+
+        private UniqueValue( int index, String propertyName, Object value ) {
+            this.index = index;
+            this.propertyName = propertyName;
+            this.value = value;
+        }
+    }
+
+
+    /**
+     * Re-add the documents already accepted into a chunk after its pending mutations were discarded.  Each document
+     * keeps the id it was first given and the claims it already holds on its unique values under that id, so only the
+     * index entries and claim releases are queued again
+     */
+    private void rebuildChunk( Mutator<ByteBuffer> m, String entityType, List<Map<String, Object>> propertiesList,
+                               List<Integer> chunk, Map<Integer, Entity> chunkEntities, BulkCreateResults results ) {
+
+        Iterator<Integer> indexes = chunk.iterator();
+
+        while ( indexes.hasNext() ) {
+            Integer index = indexes.next();
+
+            Entity previous = chunkEntities.get( index );
+            UUID entityId = previous != null ? previous.getUuid() : null;
+
+            try {
+                chunkEntities.put( index,
+                        batchCreate( m, entityType, null, propertiesList.get( index ), entityId, newTimeUUID(),
+                                false, true ) );
+            }
+            catch ( Exception e ) {
+                results.setError( index, e );
+                chunkEntities.remove( index );
+                indexes.remove();
+
+                m.discardPendingMutations();
+                rebuildChunk( m, entityType, propertiesList, chunk, chunkEntities, results );
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Executes the mutators built by a bulk create on a shared pool, never allowing more than the given number of
+     * mutators to be in flight for a single bulk create.  Entities are only reported as created once their mutator
+     * has been executed successfully, the unique value claims of a mutator that fails are released
+     */
+    private class BulkMutationExecutor {
+
+        private final BulkCreateResults results;
+        private final Semaphore inFlight;
+        private final int maxInFlight;
+
+
+        private BulkMutationExecutor( BulkCreateResults results, int maxInFlight ) {
+            this.results = results;
+            this.maxInFlight = maxInFlight;
+            this.inFlight = new Semaphore( maxInFlight );
+        }
+
+
+        private void submit( final Mutator<ByteBuffer> m, final List<Integer> chunk,
+                             final Map<Integer, Entity> entities ) throws InterruptedException {
+
+            inFlight.acquire();
+
+            try {
+                bulkCreateExecutor.execute( new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            batchExecute( m, CassandraService.RETRY_COUNT );
+
+                            for ( Integer index : chunk ) {
+                                results.setEntity( index, entities.get( index ) );
+                            }
+                        }
+                        catch ( Exception e ) {
+                            logger.error( "Unable to execute bulk create of {} entities", chunk.size(), e );
+
+                            for ( Integer index : chunk ) {
+                                results.setError( index, e );
+                            }
+
+                            releaseUniqueClaims( entities.values() );
+                        }
+                        finally {
+                            inFlight.release();
+                        }
+                    }
+                } );
+            }
+            catch ( RuntimeException e ) {
+                inFlight.release();
+                throw e;
+            }
+        }
+
+
+        /** Wait for every submitted mutator to finish */
+        private void awaitCompletion() throws InterruptedException {
+            inFlight.acquire( maxInFlight );
+            inFlight.release( maxInFlight );
+        }
+    }
+
+
     @Metered( group = "core", name = "EntityManager_batchCreate" )
     public <A extends Entity> A batchCreate( Mutator<ByteBuffer> m, String entityType, Class<A> entityClass,
                                              Map<String, Object> properties, UUID importId, UUID timestampUuid )
             throws Exception {
+        return batchCreate( m, entityType, entityClass, properties, importId, timestampUuid, true, false );
+    }
+
+
+    /**
+     * Add the creation of an entity to the mutator
+     *
+     * @param incrementCounters False if the caller increments the collection and entity counters itself, as a bulk
+     * create does once for all of its entities
+     * @param claimed True if the entity already holds the claims on its unique values, from an earlier batch that was
+     * discarded before it was executed
+     */
+    @SuppressWarnings( "unchecked" )
+    private <A extends Entity> A batchCreate( Mutator<ByteBuffer> m, String entityType, Class<A> entityClass,
+                                              Map<String, Object> properties, UUID importId, UUID timestampUuid,
+                                              boolean incrementCounters, boolean claimed ) throws Exception {
 
         String eType = Schema.normalizeEntityType( entityType );
 
@@ -863,7 +1479,7 @@ public class EntityManagerImpl implements EntityManager {
         }
 
         A entity = EntityFactory.newEntity( itemId, eType, entityClass );
-        logger.info( "Entity created of type {}", entity.getClass().getName() );
+        logger.debug( "Entity created of type {}", entity.getClass().getName() );
 
         if ( Event.ENTITY_TYPE.equals( eType ) ) {
             Event event = ( Event ) entity.toTypedEntity();
@@ -874,31 +1490,41 @@ public class EntityManagerImpl implements EntityManager {
                 }
             }
             Message message = storeEventAsMessage( m, event, timestamp );
-            incrementEntityCollection( "events", timestamp );
+
+            if ( incrementCounters ) {
+                incrementEntityCollection( "events", timestamp );
+            }
 
             entity.setUuid( message.getUuid() );
             return entity;
         }
 
-        for ( String prop_name : properties.keySet() ) {
+        try {
+            for ( String prop_name : properties.keySet() ) {
 
-            Object propertyValue = properties.get( prop_name );
+                Object propertyValue = properties.get( prop_name );
 
-            if ( propertyValue == null ) {
-                continue;
-            }
+                if ( propertyValue == null ) {
+                    continue;
+                }
 
 
-            if ( User.ENTITY_TYPE.equals( entityType ) && "me".equals( prop_name ) ) {
-                throw new DuplicateUniquePropertyExistsException( entityType, prop_name, propertyValue );
-            }
+                if ( User.ENTITY_TYPE.equals( entityType ) && "me".equals( prop_name ) ) {
+                    throw new DuplicateUniquePropertyExistsException( entityType, prop_name, propertyValue );
+                }
 
-            entity.setProperty( prop_name, propertyValue );
+                entity.setProperty( prop_name, propertyValue );
 
-            batchSetProperty( m, entity, prop_name, propertyValue, true, true, timestampUuid );
+                batchSetProperty( m, entity, prop_name, propertyValue, true, true, claimed, timestampUuid );
+            }
+        }
+        catch ( Exception e ) {
+            // the values claimed for the properties already set would otherwise stay reserved until the claims expire
+            releaseUniqueClaims( Collections.singletonList( entity ) );
+            throw e;
         }
 
-        if ( !is_application ) {
+        if ( !is_application && incrementCounters ) {
             incrementEntityCollection( collection_name, timestamp );
         }
 
@@ -1312,26 +1938,87 @@ public class EntityManagerImpl implements EntityManager {
 
         entity = validate( entity );
 
-        Map<Object, Object> dictionary = new LinkedHashMap<Object, Object>();
+        List<HColumn<ByteBuffer, ByteBuffer>> results =
+                cass.getAllColumns( cass.getApplicationKeyspace( applicationId ),
+                        getDictionaryCf( entity, dictionaryName ), key( entity.getUuid(), dictionaryName ), be, be );
 
-        ApplicationCF dictionaryCf = null;
+        return toDictionaryMap( entity, dictionaryName, results );
+    }
 
-        boolean entityHasDictionary = getDefaultSchema().hasDictionary( entity.getType(), dictionaryName );
 
-        if ( entityHasDictionary ) {
-            dictionaryCf = ENTITY_DICTIONARIES;
+    @Override
+    @Metered( group = "core", name = "EntityManager_getDictionariesAsMaps" )
+    public Map<UUID, Map<String, Map<Object, Object>>> getDictionariesAsMaps(
+            Map<? extends EntityRef, ? extends Collection<String>> dictionaries ) throws Exception {
+
+        Map<UUID, Map<String, Map<Object, Object>>> results =
+                new LinkedHashMap<UUID, Map<String, Map<Object, Object>>>();
+
+        Map<ApplicationCF, Map<String, Entry<EntityRef, String>>> keys =
+                new HashMap<ApplicationCF, Map<String, Entry<EntityRef, String>>>();
+
+        for ( Entry<? extends EntityRef, ? extends Collection<String>> entry : dictionaries.entrySet() ) {
+            EntityRef entity = entry.getKey();
+
+            results.put( entity.getUuid(), new LinkedHashMap<String, Map<Object, Object>>() );
+
+            for ( String dictionaryName : entry.getValue() ) {
+                ApplicationCF dictionaryCf = getDictionaryCf( entity, dictionaryName );
+
+                Map<String, Entry<EntityRef, String>> cfKeys = keys.get( dictionaryCf );
+
+                if ( cfKeys == null ) {
+                    cfKeys = new HashMap<String, Entry<EntityRef, String>>();
+                    keys.put( dictionaryCf, cfKeys );
+                }
+
+                cfKeys.put( key( entity.getUuid(), dictionaryName ).toString(),
+                        new AbstractMap.SimpleEntry<EntityRef, String>( entity, dictionaryName ) );
+            }
         }
-        else {
-            dictionaryCf = ENTITY_COMPOSITE_DICTIONARIES;
+
+        for ( Entry<ApplicationCF, Map<String, Entry<EntityRef, String>>> cfKeys : keys.entrySet() ) {
+
+            Map<String, List<HColumn<ByteBuffer, ByteBuffer>>> rows =
+                    getDictionaryRows( cfKeys.getKey(), cfKeys.getValue().keySet() );
+
+            for ( Entry<String, Entry<EntityRef, String>> rowKey : cfKeys.getValue().entrySet() ) {
+                EntityRef entity = rowKey.getValue().getKey();
+                String dictionaryName = rowKey.getValue().getValue();
+
+                List<HColumn<ByteBuffer, ByteBuffer>> columns = rows.get( rowKey.getKey() );
+
+                results.get( entity.getUuid() ).put( dictionaryName, toDictionaryMap( entity, dictionaryName,
+                        columns != null ? columns : Collections.<HColumn<ByteBuffer, ByteBuffer>>emptyList() ) );
+            }
         }
 
+        return results;
+    }
+
+
+    /** Dictionaries declared in the schema are kept in their own column family, all others in a composite one */
+    private ApplicationCF getDictionaryCf( EntityRef entity, String dictionaryName ) {
+        if ( getDefaultSchema().hasDictionary( entity.getType(), dictionaryName ) ) {
+            return ENTITY_DICTIONARIES;
+        }
+
+        return ENTITY_COMPOSITE_DICTIONARIES;
+    }
+
+
+    /** Deserialize the columns of a dictionary row */
+    private Map<Object, Object> toDictionaryMap( EntityRef entity, String dictionaryName,
+                                                 List<HColumn<ByteBuffer, ByteBuffer>> results ) {
+
+        Map<Object, Object> dictionary = new LinkedHashMap<Object, Object>();
+
+        boolean entityHasDictionary = getDefaultSchema().hasDictionary( entity.getType(), dictionaryName );
+
         Class<?> setType = getDefaultSchema().getDictionaryKeyType( entity.getType(), dictionaryName );
         Class<?> setCoType = getDefaultSchema().getDictionaryValueType( entity.getType(), dictionaryName );
         boolean coTypeIsBasic = ClassUtils.isBasicType( setCoType );
 
-        List<HColumn<ByteBuffer, ByteBuffer>> results =
-                cass.getAllColumns( cass.getApplicationKeyspace( applicationId ), dictionaryCf,
-                        key( entity.getUuid(), dictionaryName ), be, be );
         for ( HColumn<ByteBuffer, ByteBuffer> result : results ) {
             Object name = null;
             if ( entityHasDictionary ) {
@@ -1356,6 +2043,40 @@ public class EntityManagerImpl implements EntityManager {
     }
 
 
+    /** Read whole dictionary rows, at most {@link #DICTIONARY_MULTIGET_SIZE} rows per read */
+    private Map<String, List<HColumn<ByteBuffer, ByteBuffer>>> getDictionaryRows( ApplicationCF dictionaryCf,
+                                                                                Collection<String> keys )
+            throws Exception {
+
+        Map<String, List<HColumn<ByteBuffer, ByteBuffer>>> rows =
+                new HashMap<String, List<HColumn<ByteBuffer, ByteBuffer>>>();
+
+        Keyspace ko = cass.getApplicationKeyspace( applicationId );
+
+        List<String> batch = new ArrayList<String>( DICTIONARY_MULTIGET_SIZE );
+
+        Iterator<String> itr = keys.iterator();
+
+        while ( itr.hasNext() ) {
+            batch.add( itr.next() );
+
+            if ( batch.size() < DICTIONARY_MULTIGET_SIZE && itr.hasNext() ) {
+                continue;
+            }
+
+            Rows<String, ByteBuffer, ByteBuffer> results = cass.getRows( ko, dictionaryCf, batch, se, be, be );
+
+            for ( Row<String, ByteBuffer, ByteBuffer> row : results ) {
+                rows.put( row.getKey(), row.getColumnSlice().getColumns() );
+            }
+
+            batch.clear();
+        }
+
+        return rows;
+    }
+
+
     @Override
     public Set<Object> getDictionaryAsSet( EntityRef entity, String dictionaryName ) throws Exception {
         return new LinkedHashSet<Object>( getDictionaryAsMap( entity, dictionaryName ).keySet() );
@@ -1384,9 +2105,16 @@ public class EntityManagerImpl implements EntityManager {
         UUID timestampUuid = newTimeUUID();
         properties.put( PROPERTY_MODIFIED, getTimestampInMillis( timestampUuid ) );
 
-        batchUpdateProperties( m, entity, properties, timestampUuid );
+        try {
+            batchUpdateProperties( m, entity, properties, timestampUuid );
 
-        batchExecute( m, CassandraService.RETRY_COUNT );
+            batchExecute( m, CassandraService.RETRY_COUNT );
+        }
+        catch ( Exception e ) {
+            // the values claimed for the new properties would otherwise stay reserved until the claims expire
+            releaseUniqueClaims( entity, properties );
+            throw e;
+        }
     }
 
 
@@ -1921,6 +2649,12 @@ public class EntityManagerImpl implements EntityManager {
     }
 
 
+    @Override
+    public boolean isIndexCurrent( Entity entity ) throws Exception {
+        return getRelationManager( entity ).isIndexCurrent();
+    }
+
+
     @Override
     public Object getProperty( EntityRef entityRef, String propertyName ) throws Exception {
         Entity entity = loadPartialEntity( entityRef.getUuid(), propertyName );
@@ -2019,8 +2753,15 @@ public class EntityManagerImpl implements EntityManager {
         propertyValue = getDefaultSchema().validateEntityPropertyValue( entity.getType(), propertyName, propertyValue );
 
         entity.setProperty( propertyName, propertyValue );
-        batch = batchSetProperty( batch, entity, propertyName, propertyValue, override, false, timestampUuid );
-        batchExecute( batch, CassandraService.RETRY_COUNT );
+
+        try {
+            batch = batchSetProperty( batch, entity, propertyName, propertyValue, override, false, timestampUuid );
+            batchExecute( batch, CassandraService.RETRY_COUNT );
+        }
+        catch ( Exception e ) {
+            releaseUniqueClaims( entity, Collections.singletonMap( propertyName, propertyValue ) );
+            throw e;
+        }
     }
 
 
@@ -2130,6 +2871,42 @@ public class EntityManagerImpl implements EntityManager {
     }
 
 
+    @Override
+    @Metered( group = "core", name = "EntityManager_getDictionaries_multiple" )
+    public Map<UUID, Set<String>> getDictionaries( Collection<? extends EntityRef> entities ) throws Exception {
+
+        Map<UUID, Set<String>> dictionaries = new LinkedHashMap<UUID, Set<String>>();
+        Map<String, UUID> keys = new HashMap<String, UUID>();
+
+        for ( EntityRef entity : entities ) {
+            Set<String> dictionaryNames = new TreeSet<String>( CASE_INSENSITIVE_ORDER );
+
+            Set<String> schemaSets = getDefaultSchema().getDictionaryNames( entity.getType() );
+            if ( ( schemaSets != null ) && !schemaSets.isEmpty() ) {
+                dictionaryNames.addAll( schemaSets );
+            }
+
+            dictionaries.put( entity.getUuid(), dictionaryNames );
+            keys.put( key( entity.getUuid(), DICTIONARY_SETS ).toString(), entity.getUuid() );
+        }
+
+        for ( Entry<String, List<HColumn<ByteBuffer, ByteBuffer>>> row : getDictionaryRows( ENTITY_DICTIONARIES,
+                keys.keySet() ).entrySet() ) {
+
+            Set<String> dictionaryNames = dictionaries.get( keys.get( row.getKey() ) );
+
+            for ( HColumn<ByteBuffer, ByteBuffer> column : row.getValue() ) {
+                String str = string( column.getName() );
+                if ( str != null ) {
+                    dictionaryNames.add( str );
+                }
+            }
+        }
+
+        return dictionaries;
+    }
+
+
     @Override
     public void deleteProperty( EntityRef entityRef, String propertyName ) throws Exception {
         setProperty( entityRef, propertyName, null );
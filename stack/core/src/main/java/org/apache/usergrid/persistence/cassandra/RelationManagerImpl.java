@@ -21,11 +21,13 @@ import java.nio.ByteBuffer;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
@@ -34,6 +36,7 @@ import java.util.UUID;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.Assert;
+import org.apache.usergrid.batch.service.SchedulerService;
 import org.apache.usergrid.persistence.CollectionRef;
 import org.apache.usergrid.persistence.ConnectedEntityRef;
 import org.apache.usergrid.persistence.ConnectionRef;
@@ -57,6 +60,7 @@ import org.apache.usergrid.persistence.cassandra.index.IndexBucketScanner;
 import org.apache.usergrid.persistence.cassandra.index.IndexScanner;
 import org.apache.usergrid.persistence.cassandra.index.NoOpIndexScanner;
 import org.apache.usergrid.persistence.entities.Group;
+import org.apache.usergrid.persistence.entities.JobData;
 import org.apache.usergrid.persistence.geo.CollectionGeoSearch;
 import org.apache.usergrid.persistence.geo.ConnectionGeoSearch;
 import org.apache.usergrid.persistence.geo.EntityLocationRef;
@@ -794,7 +798,8 @@ public class RelationManagerImpl implements RelationManager {
 
     /**
      * Search each reverse connection type in the graph for connections.  If one is found, update the index
-     * appropriately
+     * appropriately.  When the entity has more incoming connections than the factory's inline maximum, the update is
+     * handed to a {@link ConnectionIndexUpdateJob} instead
      *
      * @param indexUpdate The index update to use
      *
@@ -803,30 +808,131 @@ public class RelationManagerImpl implements RelationManager {
     private IndexUpdate doBackwardConnectionsUpdate( IndexUpdate indexUpdate ) throws Exception {
         final Entity targetEntity = indexUpdate.getEntity();
 
-        final ConnectionTypesIterator connectionTypes =
-                new ConnectionTypesIterator( cass, applicationId, targetEntity.getUuid(), false, 100 );
+        final int inlineMax = em.getEntityManagerFactory().getConnectionIndexInlineMax();
+
+        final Iterator<ConnectionRefImpl> connections = getBackwardConnections( targetEntity );
 
-        for ( String connectionType : connectionTypes ) {
+        if ( inlineMax >= 0 ) {
 
-            PagingResultsIterator itr = getReversedConnectionsIterator( targetEntity, connectionType );
+            // read one past the maximum to find out if the update should be deferred
+            List<ConnectionRefImpl> inline = new ArrayList<ConnectionRefImpl>();
 
-            for ( Object connection : itr ) {
+            while ( connections.hasNext() && inline.size() <= inlineMax ) {
+                inline.add( connections.next() );
+            }
 
-                final ConnectedEntityRef sourceEntity = ( ConnectedEntityRef ) connection;
+            if ( inline.size() <= inlineMax ) {
+                for ( ConnectionRefImpl connectionRef : inline ) {
+                    batchUpdateConnectionIndex( indexUpdate, connectionRef );
+                }
+
+                return indexUpdate;
+            }
 
-                //we need to create a connection ref from the source entity (found via reverse edge) to the entity
-                // we're about to update.  This is the index that needs updated
-                final ConnectionRefImpl connectionRef =
-                        new ConnectionRefImpl( sourceEntity, connectionType, indexUpdate.getEntity() );
+            if ( scheduleBackwardConnectionsUpdate( indexUpdate ) ) {
+                return indexUpdate;
+            }
 
+            for ( ConnectionRefImpl connectionRef : inline ) {
                 batchUpdateConnectionIndex( indexUpdate, connectionRef );
             }
         }
 
+        while ( connections.hasNext() ) {
+            batchUpdateConnectionIndex( indexUpdate, connections.next() );
+        }
+
         return indexUpdate;
     }
 
 
+    /** Hand the update to the scheduler.  Returns false if it couldn't be, and the update must be applied directly */
+    private boolean scheduleBackwardConnectionsUpdate( IndexUpdate indexUpdate ) {
+        SchedulerService scheduler = em.getEntityManagerFactory().getSchedulerService();
+
+        if ( scheduler == null ) {
+            return false;
+        }
+
+        JobData data = ConnectionIndexUpdateJob.createJobData( applicationId, indexUpdate );
+
+        if ( data == null ) {
+            return false;
+        }
+
+        try {
+            scheduler.createJob( ConnectionIndexUpdateJob.JOB_NAME, System.currentTimeMillis(), data );
+        }
+        catch ( RuntimeException e ) {
+            logger.error( "Unable to schedule the connection index update of {} on entity {}, updating directly",
+                    new Object[] { indexUpdate.getEntryName(), indexUpdate.getEntity().getUuid(), e } );
+            return false;
+        }
+
+        logger.debug( "Scheduled the connection index update of {} on entity {}", indexUpdate.getEntryName(),
+                indexUpdate.getEntity().getUuid() );
+
+        return true;
+    }
+
+
+    /**
+     * Iterate every connection pointing at the target entity.  Each is returned as a ref from the connecting entity,
+     * found via the reverse edge, to the target, which is the connection whose index needs updating
+     */
+    Iterator<ConnectionRefImpl> getBackwardConnections( final EntityRef targetEntity ) {
+
+        final Iterator<String> connectionTypes =
+                new ConnectionTypesIterator( cass, applicationId, targetEntity.getUuid(), false, 100 );
+
+        return new Iterator<ConnectionRefImpl>() {
+
+            private String connectionType;
+            private Iterator<?> connections = Collections.emptyList().iterator();
+
+
+            @Override
+            public boolean hasNext() {
+                while ( !connections.hasNext() ) {
+                    if ( !connectionTypes.hasNext() ) {
+                        return false;
+                    }
+
+                    connectionType = connectionTypes.next();
+
+                    try {
+                        connections = getReversedConnectionsIterator( targetEntity, connectionType );
+                    }
+                    catch ( Exception e ) {
+                        throw new RuntimeException( "Unable to read " + connectionType + " connections to entity "
+                                + targetEntity.getUuid(), e );
+                    }
+                }
+
+                return true;
+            }
+
+
+            @Override
+            public ConnectionRefImpl next() {
+                if ( !hasNext() ) {
+                    throw new NoSuchElementException();
+                }
+
+                ConnectedEntityRef sourceEntity = ( ConnectedEntityRef ) connections.next();
+
+                return new ConnectionRefImpl( sourceEntity, connectionType, targetEntity );
+            }
+
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException( "Connections can't be removed through this iterator" );
+            }
+        };
+    }
+
+
     /**
      * Get a paging results iterator.  Should return an iterator for all results
      *
@@ -1195,16 +1301,7 @@ public class RelationManagerImpl implements RelationManager {
 
         if ( !isMultiValue || ( isMultiValue && !removeListEntry ) ) {
 
-            List<Map.Entry<String, Object>> list = IndexUtils.getKeyValueList( entryName, entryValue, fulltextIndexed );
-
-            if ( entryName.equalsIgnoreCase( "location" ) && ( entryValue instanceof Map ) ) {
-                @SuppressWarnings("rawtypes") double latitude =
-                        MapUtils.getDoubleValue( ( Map ) entryValue, "latitude" );
-                @SuppressWarnings("rawtypes") double longitude =
-                        MapUtils.getDoubleValue( ( Map ) entryValue, "longitude" );
-                list.add( new AbstractMap.SimpleEntry<String, Object>( "location.coordinates",
-                        latitude + "," + longitude ) );
-            }
+            List<Map.Entry<String, Object>> list = getIndexKeyValueList( entryName, entryValue, fulltextIndexed );
 
             for ( Map.Entry<String, Object> indexEntry : list ) {
 
@@ -1223,13 +1320,7 @@ public class RelationManagerImpl implements RelationManager {
 
                 for ( Map.Entry<String, Object> indexEntry : list ) {
 
-                    String name = indexEntry.getKey();
-                    if ( name.startsWith( entryName + "." ) ) {
-                        name = name.substring( entryName.length() + 1 );
-                    }
-                    else if ( name.startsWith( entryName ) ) {
-                        name = name.substring( entryName.length() );
-                    }
+                    String name = getIndexEntryPath( entryName, indexEntry.getKey() );
 
                     byte code = indexValueCode( indexEntry.getValue() );
                     Object val = toIndexableValue( indexEntry.getValue() );
@@ -1247,6 +1338,99 @@ public class RelationManagerImpl implements RelationManager {
     }
 
 
+    /** Get the key/value pairs a property is indexed under, including the derived location coordinates */
+    private List<Map.Entry<String, Object>> getIndexKeyValueList( String entryName, Object entryValue,
+                                                                  boolean fulltextIndexed ) {
+        List<Map.Entry<String, Object>> list = IndexUtils.getKeyValueList( entryName, entryValue, fulltextIndexed );
+
+        if ( entryName.equalsIgnoreCase( "location" ) && ( entryValue instanceof Map ) ) {
+            @SuppressWarnings("rawtypes") double latitude = MapUtils.getDoubleValue( ( Map ) entryValue, "latitude" );
+            @SuppressWarnings("rawtypes") double longitude =
+                    MapUtils.getDoubleValue( ( Map ) entryValue, "longitude" );
+            list.add( new AbstractMap.SimpleEntry<String, Object>( "location.coordinates",
+                    latitude + "," + longitude ) );
+        }
+
+        return list;
+    }
+
+
+    /** Get the object path of an index key relative to the property it was derived from */
+    private static String getIndexEntryPath( String entryName, String key ) {
+        if ( key.startsWith( entryName + "." ) ) {
+            return key.substring( entryName.length() + 1 );
+        }
+        else if ( key.startsWith( entryName ) ) {
+            return key.substring( entryName.length() );
+        }
+        return key;
+    }
+
+
+    /**
+     * Check whether the index entry ledger of the head entity matches the current values of its indexed properties.
+     * An entity for which this returns true would get exactly the same index entries back if it were re-saved, so
+     * index rebuilds can skip it.  Associated entities are indexed under their item's type and always report false.
+     */
+    @Metered(group = "core", name = "RelationManager_isIndexCurrent")
+    public boolean isIndexCurrent() throws Exception {
+
+        Entity entity = getHeadEntity();
+
+        if ( entity == null ) {
+            return true;
+        }
+
+        if ( Schema.isAssociatedEntityType( entity.getType() ) ) {
+            return false;
+        }
+
+        Set<List<Object>> expected = new HashSet<List<Object>>();
+
+        for ( Map.Entry<String, Object> property : entity.getProperties().entrySet() ) {
+            String propertyName = property.getKey();
+            Object propertyValue = property.getValue();
+
+            if ( propertyValue == null || !getDefaultSchema().isPropertyIndexed( entity.getType(), propertyName ) ) {
+                continue;
+            }
+
+            boolean fulltextIndexed = getDefaultSchema().isPropertyFulltextIndexed( entity.getType(), propertyName );
+
+            for ( Map.Entry<String, Object> indexEntry : getIndexKeyValueList( propertyName, propertyValue,
+                    fulltextIndexed ) ) {
+                expected.add( asList( propertyName, getIndexEntryPath( propertyName, indexEntry.getKey() ),
+                        toIndexableValue( indexEntry.getValue() ) ) );
+            }
+        }
+
+        List<HColumn<ByteBuffer, ByteBuffer>> entries =
+                cass.getAllColumns( cass.getApplicationKeyspace( applicationId ), ENTITY_INDEX_ENTRIES,
+                        entity.getUuid(), ByteBufferSerializer.get(), ByteBufferSerializer.get() );
+
+        Set<List<Object>> actual = new HashSet<List<Object>>();
+
+        for ( HColumn<ByteBuffer, ByteBuffer> entry : entries ) {
+            DynamicComposite composite = DynamicComposite.fromByteBuffer( entry.getName().duplicate() );
+
+            // set and dictionary entries have no path component and aren't rewritten by a property update
+            if ( composite.size() < 5 ) {
+                continue;
+            }
+
+            // more than one entry for the same value means a previous update was never cleaned up
+            List<Object> indexed =
+                    asList( composite.get( 0 ), composite.get( 4 ), toIndexableValue( composite.get( 2 ) ) );
+
+            if ( !actual.add( indexed ) ) {
+                return false;
+            }
+        }
+
+        return expected.equals( actual );
+    }
+
+
     @Metered(group = "core", name = "RelationManager_batchUpdatePropertyIndexes")
     public void batchUpdatePropertyIndexes( Mutator<ByteBuffer> batch, String propertyName, Object propertyValue,
                                             boolean entitySchemaHasProperty, boolean noRead, UUID timestampUuid )
@@ -2112,6 +2296,17 @@ public class RelationManagerImpl implements RelationManager {
         }
 
 
+        /** The collection id list is stored by uuid, so a forward scan of it is ordered as well */
+        @Override
+        protected boolean isUuidOrdered( QueryNode node ) {
+            if ( node instanceof AllNode ) {
+                return !query.isReversed();
+            }
+
+            return super.isUuidOrdered( node );
+        }
+
+
         public void visit( AllNode node ) throws Exception {
 
             String collectionName = collection.getName();
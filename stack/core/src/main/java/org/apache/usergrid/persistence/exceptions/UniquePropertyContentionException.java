@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.exceptions;
+
+
+/**
+ * Thrown when a unique property value could not be reserved because other entities kept claiming it at the same time,
+ * while no entity owns it.  Unlike {@link DuplicateUniquePropertyExistsException} the value may be free, so the
+ * operation can be retried
+ */
+public class UniquePropertyContentionException extends PersistenceException {
+
+    private static final long serialVersionUID = 1L;
+    final String entityType;
+    final String propertyName;
+    final Object propertyValue;
+
+
+    public UniquePropertyContentionException( String entityType, String propertyName, Object propertyValue ) {
+        super( "Entity " + entityType + " could not reserve the unique value " + propertyValue + " of property "
+                + propertyName + " because of concurrent updates, try again" );
+        this.entityType = entityType;
+        this.propertyName = propertyName;
+        this.propertyValue = propertyValue;
+    }
+
+
+    public String getEntityType() {
+        return entityType;
+    }
+
+
+    public String getPropertyName() {
+        return propertyName;
+    }
+
+
+    public Object getPropertyValue() {
+        return propertyValue;
+    }
+}
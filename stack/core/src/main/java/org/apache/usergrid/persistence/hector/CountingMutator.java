@@ -19,9 +19,19 @@
 package org.apache.usergrid.persistence.hector;
 
 
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import me.prettyprint.hector.api.Keyspace;
 import me.prettyprint.hector.api.Serializer;
 import me.prettyprint.hector.api.beans.HColumn;
@@ -34,7 +44,12 @@ import me.prettyprint.hector.api.mutation.Mutator;
 
 
 /**
- * Mutator proxy that automatically flushes mutations when they reach a size of 1k
+ * Mutator proxy that automatically flushes mutations when they reach a size of 1k.
+ * <p/>
+ * In pipelined mode a full batch is handed to a shared flush pool and the caller continues building the next one in a
+ * fresh mutator.  At most maxInFlight batches per mutator are flushing at once, further flushes wait for the oldest to
+ * finish.  A failed flush is thrown from the next {@link #execute()}, once every in flight batch has completed, and
+ * the mutations built after the failure are discarded rather than written.
  */
 public class CountingMutator<K> implements Mutator<K> {
 
@@ -46,12 +61,38 @@ public class CountingMutator<K> implements Mutator<K> {
      */
     public static int MAX_SIZE = 2000;
 
+    /**
+     * Number of batches a pipelined mutator may be flushing at once by default
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 2;
+
+    /**
+     * Pool shared by all pipelined mutators to flush their full batches.  The per mutator in flight limit bounds its
+     * queue
+     */
+    private static final ExecutorService FLUSH_EXECUTOR = Executors.newFixedThreadPool( 8,
+            new ThreadFactoryBuilder().setNameFormat( "mutator-flush-%d" ).setDaemon( true ).build() );
+
     /**
      * The maximum size a mutation can have
      */
     private final int maxSize;
 
-    private final Mutator<K> target;
+    /**
+     * Creates the mutator for the next batch in pipelined mode, null when flushing on the caller thread
+     */
+    private final MutatorFactory<K> factory;
+
+    private final int maxInFlight;
+
+    private final LinkedList<Future<MutationResult>> inFlight = new LinkedList<Future<MutationResult>>();
+
+    /**
+     * The first failure of a pipelined flush, thrown on the next execute
+     */
+    private RuntimeException flushFailure;
+
+    private Mutator<K> target;
 
 
     /**
@@ -60,6 +101,27 @@ public class CountingMutator<K> implements Mutator<K> {
     public CountingMutator( final Mutator<K> target, int maxSize ) {
         this.target = target;
         this.maxSize = maxSize;
+        this.factory = null;
+        this.maxInFlight = 0;
+    }
+
+
+    /**
+     * Create a pipelined mutator that flushes full batches in the background
+     *
+     * @param factory Creates a mutator for each batch
+     * @param maxSize The number of mutations in a full batch
+     * @param maxInFlight The number of batches that may be flushing at once before the caller waits
+     */
+    public CountingMutator( final MutatorFactory<K> factory, int maxSize, int maxInFlight ) {
+        if ( maxInFlight < 1 ) {
+            throw new IllegalArgumentException( "maxInFlight must be at least 1" );
+        }
+
+        this.factory = factory;
+        this.target = factory.createMutator();
+        this.maxSize = maxSize;
+        this.maxInFlight = maxInFlight;
     }
 
 
@@ -217,10 +279,26 @@ public class CountingMutator<K> implements Mutator<K> {
 
     @Override
     public MutationResult execute() {
+        if ( factory == null ) {
+            return target.execute();
+        }
+
+        awaitInFlight( 0 );
+
+        if ( flushFailure != null ) {
+            RuntimeException failure = flushFailure;
+            flushFailure = null;
+            target.discardPendingMutations();
+            throw failure;
+        }
+
         return target.execute();
     }
 
 
+    /**
+     * Discard the mutations that haven't been flushed yet.  Batches already handed to the flush pool are still written
+     */
     @Override
     public Mutator<K> discardPendingMutations() {
         return target.discardPendingMutations();
@@ -323,12 +401,98 @@ public class CountingMutator<K> implements Mutator<K> {
     public void checkAndFlush() {
 
         if ( target.getPendingMutationCount() >= maxSize ) {
+
+            if ( factory != null ) {
+                flushInBackground();
+                return;
+            }
+
             logger.info( "Max mutation size of {} reached.  Flushing", maxSize);
             target.execute();
         }
     }
 
 
+    /**
+     * Hand the full batch to the flush pool and start a new one, waiting first if too many batches are in flight
+     */
+    private void flushInBackground() {
+
+        awaitInFlight( maxInFlight - 1 );
+
+        if ( flushFailure != null ) {
+            logger.debug( "A previous flush failed, discarding {} mutations", target.getPendingMutationCount() );
+            target.discardPendingMutations();
+            return;
+        }
+
+        logger.debug( "Max mutation size of {} reached.  Flushing in the background", maxSize );
+
+        final Mutator<K> full = target;
+
+        target = factory.createMutator();
+
+        inFlight.add( FLUSH_EXECUTOR.submit( new Callable<MutationResult>() {
+            @Override
+            public MutationResult call() throws Exception {
+                return full.execute();
+            }
+        } ) );
+    }
+
+
+    /**
+     * Wait until no more than the given number of batches are flushing, recording the first failure
+     */
+    private void awaitInFlight( int max ) {
+
+        for ( Iterator<Future<MutationResult>> itr = inFlight.iterator(); itr.hasNext(); ) {
+            Future<MutationResult> flush = itr.next();
+
+            if ( flush.isDone() ) {
+                itr.remove();
+                complete( flush );
+            }
+        }
+
+        while ( inFlight.size() > max ) {
+            complete( inFlight.removeFirst() );
+        }
+    }
+
+
+    private void complete( Future<MutationResult> flush ) {
+        boolean interrupted = false;
+
+        try {
+            while ( true ) {
+                try {
+                    flush.get();
+                    return;
+                }
+                catch ( InterruptedException e ) {
+                    interrupted = true;
+                }
+            }
+        }
+        catch ( ExecutionException e ) {
+            Throwable cause = e.getCause();
+
+            logger.error( "Unable to flush mutations", cause );
+
+            if ( flushFailure == null ) {
+                flushFailure = cause instanceof RuntimeException ? ( RuntimeException ) cause :
+                               new RuntimeException( "Unable to flush mutations", cause );
+            }
+        }
+        finally {
+            if ( interrupted ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
     /**
      * Create a mutator that will flush when the maximum size is reached
      * @param keyspace
@@ -341,4 +505,28 @@ public class CountingMutator<K> implements Mutator<K> {
 
         return new CountingMutator<K>( target, MAX_SIZE );
     }
+
+
+    /**
+     * Create a mutator that flushes full batches in the background, with at most maxInFlight batches flushing at once
+     */
+    public static <K> CountingMutator<K> createPipelinedMutator( final Keyspace keyspace,
+                                                                 final Serializer<K> keySerializer,
+                                                                 int maxInFlight ) {
+        return new CountingMutator<K>( new MutatorFactory<K>() {
+            @Override
+            public Mutator<K> createMutator() {
+                return HFactory.createMutator( keyspace, keySerializer );
+            }
+        }, MAX_SIZE, maxInFlight );
+    }
+
+
+    /**
+     * Creates the mutators pipelined batches are built in
+     */
+    public interface MutatorFactory<K> {
+
+        Mutator<K> createMutator();
+    }
 }
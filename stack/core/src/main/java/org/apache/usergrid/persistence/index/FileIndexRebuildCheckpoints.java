@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.index;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+
+
+/**
+ * Keeps index rebuild checkpoints in a properties file.  The file is rewritten through a temporary copy every {@link
+ * #DEFAULT_WRITE_INTERVAL} changes and on flush, so a crash never leaves a partially written checkpoint behind and at
+ * worst repeats the pages stored since the last write.
+ */
+public class FileIndexRebuildCheckpoints implements IndexRebuildCheckpoints {
+
+    /** Number of changes between rewrites of the file */
+    public static final int DEFAULT_WRITE_INTERVAL = 100;
+
+    private final File file;
+
+    private final Properties checkpoints = new Properties();
+
+    private int writeInterval = DEFAULT_WRITE_INTERVAL;
+
+    /** Changes since the file was last written */
+    private int pending;
+
+
+    public FileIndexRebuildCheckpoints( File file ) throws IOException {
+        this.file = file;
+
+        if ( file.exists() ) {
+            InputStream in = new FileInputStream( file );
+
+            try {
+                checkpoints.load( in );
+            }
+            finally {
+                IOUtils.closeQuietly( in );
+            }
+        }
+    }
+
+
+    @Override
+    public synchronized String get( String key ) {
+        return checkpoints.getProperty( key );
+    }
+
+
+    /** Set the number of changes between rewrites of the file */
+    public synchronized void setWriteInterval( int writeInterval ) {
+        this.writeInterval = writeInterval;
+    }
+
+
+    @Override
+    public synchronized void put( String key, String value ) throws IOException {
+        checkpoints.setProperty( key, value );
+
+        if ( ++pending >= writeInterval ) {
+            flush();
+        }
+    }
+
+
+    /** Forget all checkpoints and remove the file, so the next run starts from the beginning */
+    public synchronized void delete() throws IOException {
+        checkpoints.clear();
+        pending = 0;
+
+        if ( file.exists() && !file.delete() ) {
+            throw new IOException( "Unable to delete checkpoint file " + file );
+        }
+    }
+
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if ( pending == 0 && file.exists() ) {
+            return;
+        }
+
+        File temp = new File( file.getPath() + ".tmp" );
+
+        OutputStream out = new FileOutputStream( temp );
+
+        try {
+            checkpoints.store( out, "Index rebuild checkpoints" );
+        }
+        finally {
+            IOUtils.closeQuietly( out );
+        }
+
+        if ( !temp.renameTo( file ) ) {
+            // some platforms won't rename over an existing file
+            if ( !file.delete() || !temp.renameTo( file ) ) {
+                throw new IOException( "Unable to replace checkpoint file " + file );
+            }
+        }
+
+        pending = 0;
+    }
+}
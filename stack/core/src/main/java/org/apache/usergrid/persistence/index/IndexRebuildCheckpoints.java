@@ -0,0 +1,34 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.index;
+
+
+/**
+ * Durable storage for the progress of an index rebuild, so that an interrupted rebuild picks up where it stopped.
+ * Implementations must be safe to call from several rebuild threads at once.
+ */
+public interface IndexRebuildCheckpoints {
+
+    /** @return the value last stored under the key, or null if there is none */
+    public String get( String key ) throws Exception;
+
+    /** Store the value under the key.  Implementations may defer writing it until the next flush */
+    public void put( String key, String value ) throws Exception;
+
+    /** Make all stored values durable */
+    public void flush() throws Exception;
+}
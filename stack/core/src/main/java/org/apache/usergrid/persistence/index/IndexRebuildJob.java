@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.index;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import org.apache.usergrid.batch.JobExecution;
+import org.apache.usergrid.batch.job.OnlyOnceJob;
+import org.apache.usergrid.persistence.EntityManagerFactory;
+import org.apache.usergrid.persistence.entities.JobData;
+
+import static org.apache.usergrid.persistence.cassandra.CassandraService.MANAGEMENT_APPLICATION_ID;
+import static org.apache.usergrid.utils.ConversionUtils.getBoolean;
+import static org.apache.usergrid.utils.ConversionUtils.getInt;
+import static org.apache.usergrid.utils.ConversionUtils.string;
+import static org.apache.usergrid.utils.ConversionUtils.uuid;
+
+
+/**
+ * Runs an {@link IndexRebuilder} from the scheduler.  The job data holds the application id and optionally the
+ * collections, thread count, write rate and whether current entities are skipped.  Progress is checkpointed into the
+ * job data, so a failed execution resumes where it stopped when the scheduler retries it.
+ */
+@Component(IndexRebuildJob.JOB_NAME)
+public class IndexRebuildJob extends OnlyOnceJob {
+
+    public static final String JOB_NAME = "indexRebuildJob";
+
+    public static final String APPLICATION_ID = "applicationId";
+    public static final String COLLECTIONS = "collections";
+    public static final String THREADS = "threads";
+    public static final String WRITES_PER_SECOND = "writesPerSecond";
+    public static final String SKIP_CURRENT = "skipCurrent";
+
+    /** Job data property holding the checkpoints */
+    public static final String CHECKPOINTS = "checkpoints";
+
+    /** Minimum time in milliseconds between saves of the job data */
+    private static final long SAVE_INTERVAL = 10000;
+
+    private static final Logger logger = LoggerFactory.getLogger( IndexRebuildJob.class );
+
+    private EntityManagerFactory emf;
+
+
+    @Override
+    protected void doJob( JobExecution execution ) throws Exception {
+
+        JobData data = execution.getJobData();
+
+        UUID applicationId = uuid( data.getProperty( APPLICATION_ID ), null );
+
+        if ( applicationId == null ) {
+            logger.error( "Job data {} has no {}, nothing to rebuild", data.getUuid(), APPLICATION_ID );
+            return;
+        }
+
+        IndexRebuilder rebuilder = new IndexRebuilder( emf, new JobCheckpoints( execution ) );
+
+        if ( data.getProperty( THREADS ) != null ) {
+            rebuilder.setThreads( getInt( data.getProperty( THREADS ) ) );
+        }
+
+        if ( data.getProperty( WRITES_PER_SECOND ) != null ) {
+            rebuilder.setWritesPerSecond( getInt( data.getProperty( WRITES_PER_SECOND ) ) );
+        }
+
+        if ( data.getProperty( SKIP_CURRENT ) != null ) {
+            rebuilder.setSkipCurrent( getBoolean( data.getProperty( SKIP_CURRENT ) ) );
+        }
+
+        IndexRebuilder.Progress progress = rebuilder.rebuild( applicationId, getCollections( data, applicationId ) );
+
+        // failing the execution makes the scheduler retry it from the saved checkpoints
+        if ( progress.getFailedShards() > 0 ) {
+            throw new Exception(
+                    progress.getFailedShards() + " ranges failed while rebuilding indexes for app id " + applicationId );
+        }
+    }
+
+
+    private Collection<String> getCollections( JobData data, UUID applicationId ) throws Exception {
+        Object collections = data.getProperty( COLLECTIONS );
+
+        if ( collections == null ) {
+            return emf.getEntityManager( applicationId ).getApplicationCollections();
+        }
+
+        List<String> names = new ArrayList<String>();
+
+        if ( collections instanceof Collection ) {
+            for ( Object name : ( Collection<?> ) collections ) {
+                names.add( string( name ) );
+            }
+        }
+        else {
+            for ( String name : string( collections ).split( "," ) ) {
+                if ( name.trim().length() > 0 ) {
+                    names.add( name.trim() );
+                }
+            }
+        }
+
+        return names;
+    }
+
+
+    @Override
+    protected long getDelay( JobExecution execution ) throws Exception {
+        return SAVE_INTERVAL;
+    }
+
+
+    @Override
+    public void dead( JobExecution execution ) throws Exception {
+        logger.error( "Index rebuild {} failed too many times, giving up", execution.getJobId() );
+    }
+
+
+    @Autowired
+    public void setEmf( EntityManagerFactory emf ) {
+        this.emf = emf;
+    }
+
+
+    /**
+     * Keeps the checkpoints in the job data.  The job data is saved, and the execution heartbeat sent, at most once
+     * per {@link #SAVE_INTERVAL} so the scheduler doesn't time the execution out while a rebuild is running.
+     */
+    private class JobCheckpoints implements IndexRebuildCheckpoints {
+
+        private final JobExecution execution;
+        private final Map<String, Object> checkpoints = new LinkedHashMap<String, Object>();
+
+        private long lastSave = System.currentTimeMillis();
+
+
+        @SuppressWarnings("unchecked")
+        private JobCheckpoints( JobExecution execution ) {
+            this.execution = execution;
+
+            Object saved = execution.getJobData().getProperty( CHECKPOINTS );
+
+            if ( saved instanceof Map ) {
+                checkpoints.putAll( ( Map<String, Object> ) saved );
+            }
+        }
+
+
+        @Override
+        public synchronized String get( String key ) {
+            return string( checkpoints.get( key ) );
+        }
+
+
+        @Override
+        public synchronized void put( String key, String value ) throws Exception {
+            checkpoints.put( key, value );
+
+            if ( System.currentTimeMillis() - lastSave >= SAVE_INTERVAL ) {
+                flush();
+            }
+        }
+
+
+        @Override
+        public synchronized void flush() throws Exception {
+            JobData data = execution.getJobData();
+
+            data.setProperty( CHECKPOINTS, new LinkedHashMap<String, Object>( checkpoints ) );
+            emf.getEntityManager( MANAGEMENT_APPLICATION_ID ).update( data );
+
+            execution.heartbeat();
+
+            lastSave = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,484 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.index;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.usergrid.persistence.Entity;
+import org.apache.usergrid.persistence.EntityManager;
+import org.apache.usergrid.persistence.EntityManagerFactory;
+import org.apache.usergrid.persistence.EntityRef;
+import org.apache.usergrid.persistence.Results;
+import org.apache.usergrid.persistence.Results.Level;
+import org.apache.usergrid.persistence.exceptions.DuplicateUniquePropertyExistsException;
+import org.apache.usergrid.utils.TokenBucket;
+import org.apache.usergrid.utils.UUIDUtils;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+
+/**
+ * Re-saves the entities of application collections so that their secondary indexes are rewritten.
+ * <p/>
+ * Each collection's id space is split into time ranges that are walked by a pool of worker threads.  After every page
+ * the position of the range is stored in the {@link IndexRebuildCheckpoints}, together with the range boundaries, so
+ * a rebuild that is started again with the same checkpoints resumes where it stopped.  Writes are throttled with a
+ * {@link TokenBucket}.  Optionally, entities whose entity index ledger already matches their properties are skipped;
+ * the ledger says nothing about the index rows themselves, so skipping is only safe when those rows weren't lost.
+ *
+ * @see EntityManager#isIndexCurrent(Entity)
+ */
+public class IndexRebuilder {
+
+    private static final Logger logger = LoggerFactory.getLogger( IndexRebuilder.class );
+
+    public static final int DEFAULT_THREADS = 8;
+    public static final int DEFAULT_SHARDS_PER_COLLECTION = 32;
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final long DEFAULT_REPORT_INTERVAL = 30000;
+
+    /** Checkpoint value of a range that has been walked to its end */
+    private static final String DONE = "done";
+
+    private final EntityManagerFactory emf;
+
+    private final IndexRebuildCheckpoints checkpoints;
+
+    private int threads = DEFAULT_THREADS;
+
+    private int shardsPerCollection = DEFAULT_SHARDS_PER_COLLECTION;
+
+    private int pageSize = DEFAULT_PAGE_SIZE;
+
+    private long reportInterval = DEFAULT_REPORT_INTERVAL;
+
+    private boolean skipCurrent = false;
+
+    /** Null when writes aren't throttled */
+    private TokenBucket writeLimiter;
+
+
+    public IndexRebuilder( EntityManagerFactory emf, IndexRebuildCheckpoints checkpoints ) {
+        this.emf = emf;
+        this.checkpoints = checkpoints;
+    }
+
+
+    /** Set the number of ranges walked concurrently */
+    public void setThreads( int threads ) {
+        this.threads = threads;
+    }
+
+
+    /** Set the number of time ranges each collection is split into */
+    public void setShardsPerCollection( int shardsPerCollection ) {
+        this.shardsPerCollection = shardsPerCollection;
+    }
+
+
+    public void setPageSize( int pageSize ) {
+        this.pageSize = pageSize;
+    }
+
+
+    /** Set the interval in milliseconds between progress reports */
+    public void setReportInterval( long reportInterval ) {
+        this.reportInterval = reportInterval;
+    }
+
+
+    /**
+     * Set whether entities with up to date index entries are skipped.  Defaults to false, so every entity is re-saved;
+     * don't enable it when rebuilding after index rows were lost, since only the entity's own ledger is checked
+     */
+    public void setSkipCurrent( boolean skipCurrent ) {
+        this.skipCurrent = skipCurrent;
+    }
+
+
+    /** Limit the number of entities re-saved per second across all threads.  0 or less removes the limit */
+    public void setWritesPerSecond( double writesPerSecond ) {
+        this.writeLimiter =
+                writesPerSecond > 0 ? new TokenBucket( writesPerSecond, Math.max( 1, ( long ) writesPerSecond ) ) :
+                null;
+    }
+
+
+    /**
+     * Rebuild the indexes of the given collections of an application, waiting until every range has been walked.
+     *
+     * @return the progress of the rebuild.  Ranges that failed are resumed from their last checkpoint on the next run
+     */
+    public Progress rebuild( UUID applicationId, Collection<String> collectionNames ) throws Exception {
+
+        EntityManager em = emf.getEntityManager( applicationId );
+
+        final Progress progress = new Progress();
+        List<Shard> shards = new ArrayList<Shard>();
+
+        for ( String collectionName : collectionNames ) {
+            List<Shard> collectionShards = getShards( em, applicationId, collectionName );
+
+            if ( !collectionShards.isEmpty() ) {
+                progress.estimated.addAndGet( em.getApplicationCollectionSize( collectionName ) );
+                shards.addAll( collectionShards );
+            }
+        }
+
+        logger.info( "Rebuilding indexes of {} collections for app id {} in {} ranges", new Object[] {
+                collectionNames.size(), applicationId, shards.size()
+        } );
+
+        ExecutorService workers = Executors.newFixedThreadPool( Math.max( 1, threads ),
+                new ThreadFactoryBuilder().setNameFormat( "index-rebuild-%d" ).setDaemon( true ).build() );
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat( "index-rebuild-report" ).setDaemon( true ).build() );
+
+        reporter.scheduleAtFixedRate( new Runnable() {
+            @Override
+            public void run() {
+                logger.info( "Index rebuild progress: {}", progress );
+            }
+        }, reportInterval, reportInterval, TimeUnit.MILLISECONDS );
+
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>( shards.size() );
+
+            for ( Shard shard : shards ) {
+                futures.add( workers.submit( new ShardRebuild( em, shard, progress ) ) );
+            }
+
+            for ( int i = 0; i < futures.size(); i++ ) {
+                try {
+                    futures.get( i ).get();
+                }
+                catch ( ExecutionException e ) {
+                    progress.failedShards.incrementAndGet();
+                    logger.error( "Unable to rebuild indexes for range " + shards.get( i ) + ", it will resume from "
+                            + "its last checkpoint", e.getCause() );
+                }
+            }
+        }
+        finally {
+            workers.shutdownNow();
+            reporter.shutdownNow();
+            checkpoints.flush();
+        }
+
+        logger.info( "Finished rebuilding indexes for app id {}: {}", applicationId, progress );
+
+        return progress;
+    }
+
+
+    /** Get the ranges of the collection, loading them from the checkpoints if this collection was started before */
+    private List<Shard> getShards( EntityManager em, UUID applicationId, String collectionName ) throws Exception {
+
+        String planKey = applicationId + "/" + collectionName;
+        String plan = checkpoints.get( planKey );
+
+        List<UUID> bounds = new ArrayList<UUID>();
+
+        if ( plan != null ) {
+            for ( String bound : plan.split( "," ) ) {
+                if ( bound.length() > 0 ) {
+                    bounds.add( UUID.fromString( bound ) );
+                }
+            }
+        }
+        else {
+            EntityRef app = em.getApplicationRef();
+
+            Results first = em.getCollection( app, collectionName, null, 1, Level.IDS, false );
+            Results last = em.getCollection( app, collectionName, null, 1, Level.IDS, true );
+
+            if ( first.size() == 0 ) {
+                return new ArrayList<Shard>();
+            }
+
+            bounds = split( first.getId(), last.getId(), shardsPerCollection );
+
+            StringBuilder builder = new StringBuilder();
+
+            for ( UUID bound : bounds ) {
+                if ( builder.length() > 0 ) {
+                    builder.append( ',' );
+                }
+                builder.append( bound );
+            }
+
+            checkpoints.put( planKey, builder.toString() );
+        }
+
+        List<Shard> shards = new ArrayList<Shard>( bounds.size() + 1 );
+
+        for ( int i = 0; i <= bounds.size(); i++ ) {
+            UUID start = i == 0 ? null : bounds.get( i - 1 );
+            UUID end = i == bounds.size() ? null : bounds.get( i );
+
+            shards.add( new Shard( planKey + "/" + i, collectionName, start, end ) );
+        }
+
+        return shards;
+    }
+
+
+    /**
+     * Split the time between the first and last id into equal ranges, returning the boundaries between them.  Ids
+     * that aren't time based can't be split and are walked as a single range.  The first range is open at the start
+     * and the last one open at the end, so entities created during the rebuild are still visited.
+     */
+    static List<UUID> split( UUID first, UUID last, int count ) {
+        List<UUID> bounds = new ArrayList<UUID>();
+
+        if ( count < 2 || !UUIDUtils.isTimeBased( first ) || !UUIDUtils.isTimeBased( last ) ) {
+            return bounds;
+        }
+
+        long start = UUIDUtils.getTimestampInMillis( first );
+        long end = UUIDUtils.getTimestampInMillis( last );
+
+        if ( end - start < count ) {
+            return bounds;
+        }
+
+        long width = ( end - start ) / count;
+
+        for ( int i = 1; i < count; i++ ) {
+            bounds.add( UUIDUtils.minTimeUUID( start + width * i ) );
+        }
+
+        return bounds;
+    }
+
+
+    /** Walks one range of a collection, re-saving the entities that need it */
+    private class ShardRebuild implements Callable<Void> {
+
+        private final EntityManager em;
+        private final Shard shard;
+        private final Progress progress;
+
+
+        private ShardRebuild( EntityManager em, Shard shard, Progress progress ) {
+            this.em = em;
+            this.shard = shard;
+            this.progress = progress;
+        }
+
+
+        @Override
+        public Void call() throws Exception {
+
+            String checkpoint = checkpoints.get( shard.key );
+
+            if ( DONE.equals( checkpoint ) ) {
+                logger.debug( "Range {} was already rebuilt", shard );
+                return null;
+            }
+
+            // the start result is inclusive, so a resumed range skips its checkpointed entity
+            UUID position = checkpoint != null ? UUID.fromString( checkpoint ) : shard.start;
+            boolean skipPosition = checkpoint != null;
+
+            EntityRef app = em.getApplicationRef();
+
+            while ( true ) {
+                int limit = skipPosition ? pageSize + 1 : pageSize;
+
+                Results results =
+                        em.getCollection( app, shard.collectionName, position, limit, Level.ALL_PROPERTIES, false );
+
+                List<Entity> entities = results.getEntities();
+
+                for ( Entity entity : entities ) {
+
+                    if ( shard.end != null && UUIDUtils.compare( entity.getUuid(), shard.end ) >= 0 ) {
+                        checkpoints.put( shard.key, DONE );
+                        return null;
+                    }
+
+                    if ( skipPosition && entity.getUuid().equals( position ) ) {
+                        continue;
+                    }
+
+                    rebuild( entity );
+                }
+
+                if ( entities.size() < limit ) {
+                    checkpoints.put( shard.key, DONE );
+                    return null;
+                }
+
+                position = entities.get( entities.size() - 1 ).getUuid();
+                skipPosition = true;
+
+                checkpoints.put( shard.key, position.toString() );
+            }
+        }
+
+
+        private void rebuild( Entity entity ) throws Exception {
+
+            progress.processed.incrementAndGet();
+
+            if ( skipCurrent && em.isIndexCurrent( entity ) ) {
+                progress.skipped.incrementAndGet();
+                return;
+            }
+
+            if ( writeLimiter != null ) {
+                writeLimiter.acquire( 1 );
+            }
+
+            try {
+                em.update( entity );
+                progress.updated.incrementAndGet();
+            }
+            catch ( DuplicateUniquePropertyExistsException dupee ) {
+                progress.failed.incrementAndGet();
+                logger.error( "duplicate property for type: {} with id: {} for range: {}.  Property name: {} , "
+                        + "value: {}", new Object[] {
+                        entity.getType(), entity.getUuid(), shard, dupee.getPropertyName(), dupee.getPropertyValue()
+                } );
+            }
+        }
+    }
+
+
+    /** A range of a collection's ids.  The start is inclusive, the end exclusive, and null bounds are open */
+    private static class Shard {
+
+        private final String key;
+        private final String collectionName;
+        private final UUID start;
+        private final UUID end;
+
+
+        private Shard( String key, String collectionName, UUID start, UUID end ) {
+            this.key = key;
+            this.collectionName = collectionName;
+            this.start = start;
+            this.end = end;
+        }
+
+
+        @Override
+        public String toString() {
+            return key + " [" + start + ", " + end + ")";
+        }
+    }
+
+
+    /** Counters of a running or finished rebuild */
+    public static class Progress {
+
+        private final long started = System.currentTimeMillis();
+
+        private final AtomicLong estimated = new AtomicLong();
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong updated = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong failedShards = new AtomicLong();
+
+
+        /** @return the number of entities in the rebuilt collections according to the collection counters */
+        public long getEstimated() {
+            return estimated.get();
+        }
+
+
+        /** @return the number of entities visited by this run */
+        public long getProcessed() {
+            return processed.get();
+        }
+
+
+        /** @return the number of entities that were re-saved */
+        public long getUpdated() {
+            return updated.get();
+        }
+
+
+        /** @return the number of entities whose indexes were already current */
+        public long getSkipped() {
+            return skipped.get();
+        }
+
+
+        /** @return the number of entities that couldn't be re-saved */
+        public long getFailed() {
+            return failed.get();
+        }
+
+
+        /** @return the number of ranges that stopped on an error */
+        public long getFailedShards() {
+            return failedShards.get();
+        }
+
+
+        /** @return the entities visited per second since the rebuild started */
+        public double getRate() {
+            long elapsed = Math.max( 1, System.currentTimeMillis() - started );
+            return processed.get() * 1000d / elapsed;
+        }
+
+
+        /**
+         * @return the estimated milliseconds until the rebuild finishes, or -1 if unknown.  Entities visited by an
+         *         earlier run aren't counted as processed, so a resumed rebuild overestimates
+         */
+        public long getEta() {
+            double rate = getRate();
+            long remaining = estimated.get() - processed.get();
+
+            if ( rate <= 0 || remaining <= 0 ) {
+                return -1;
+            }
+
+            return ( long ) ( remaining * 1000 / rate );
+        }
+
+
+        @Override
+        public String toString() {
+            long eta = getEta();
+
+            return String.format( "%d of ~%d entities (%d updated, %d skipped, %d failed, %d failed ranges), %.1f/s, "
+                    + "ETA %s", processed.get(), estimated.get(), updated.get(), skipped.get(), failed.get(),
+                    failedShards.get(), getRate(), eta < 0 ? "unknown" : ( eta / 1000 ) + "s" );
+        }
+    }
+}
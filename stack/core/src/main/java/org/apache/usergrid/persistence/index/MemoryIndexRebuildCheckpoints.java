@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.index;
+
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Keeps index rebuild checkpoints in memory only.  Used when a rebuild doesn't need to survive a restart, so every run
+ * starts from the beginning.
+ */
+public class MemoryIndexRebuildCheckpoints implements IndexRebuildCheckpoints {
+
+    private final Map<String, String> checkpoints = new HashMap<String, String>();
+
+
+    @Override
+    public synchronized String get( String key ) {
+        return checkpoints.get( key );
+    }
+
+
+    @Override
+    public synchronized void put( String key, String value ) {
+        checkpoints.put( key, value );
+    }
+
+
+    @Override
+    public void flush() {
+        // nothing to make durable
+    }
+}
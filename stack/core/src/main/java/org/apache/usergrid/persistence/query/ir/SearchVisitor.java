@@ -17,6 +17,7 @@
 package org.apache.usergrid.persistence.query.ir;
 
 
+import java.util.Collection;
 import java.util.Stack;
 
 import org.apache.usergrid.persistence.EntityManager;
@@ -116,6 +117,7 @@ public abstract class SearchVisitor implements NodeVisitor {
         SubtractionIterator subtraction = new SubtractionIterator( queryProcessor.getPageSizeHint( node ) );
         subtraction.setSubtractIterator( not );
         subtraction.setKeepIterator( keep );
+        subtraction.setUuidOrdered( isUuidOrdered( node.getKeepNode() ) && isUuidOrdered( node.getSubtractNode() ) );
 
         results.push( subtraction );
     }
@@ -146,6 +148,8 @@ public abstract class SearchVisitor implements NodeVisitor {
             union.addIterator( right );
         }
 
+        union.setUuidOrdered( isUuidOrdered( node.getLeft() ) && isUuidOrdered( node.getRight() ) );
+
         results.push( union );
     }
 
@@ -231,9 +235,19 @@ public abstract class SearchVisitor implements NodeVisitor {
      */
     @Override
     public void visit( SliceNode node ) throws Exception {
+        Collection<QuerySlice> slices = node.getAllSlices();
+
+        //nothing to intersect, use the slice directly so parents can see its pages and cursor
+        if ( slices.size() == 1 ) {
+            QuerySlice slice = slices.iterator().next();
+
+            results.push( new SliceIterator( slice, secondaryIndexScan( node, slice ), COLLECTION_PARSER ) );
+            return;
+        }
+
         IntersectionIterator intersections = new IntersectionIterator( queryProcessor.getPageSizeHint( node ) );
 
-        for ( QuerySlice slice : node.getAllSlices() ) {
+        for ( QuerySlice slice : slices ) {
             IndexScanner scanner = secondaryIndexScan( node, slice );
 
             intersections.addIterator( new SliceIterator( slice, scanner, COLLECTION_PARSER) );
@@ -243,6 +257,36 @@ public abstract class SearchVisitor implements NodeVisitor {
     }
 
 
+    /**
+     * True if the results of the node are guaranteed to come back in ascending uuid order.  Equality slices store their
+     * entries by value then uuid, so every match shares a value and is ordered by uuid.  Unions always sort, and
+     * intersections and subtractions keep the order of their inputs.  Range scans, geo and sorted results are ordered
+     * by something other than the uuid
+     */
+    protected boolean isUuidOrdered( QueryNode node ) {
+        if ( node instanceof SliceNode ) {
+            for ( QuerySlice slice : ( ( SliceNode ) node ).getAllSlices() ) {
+                if ( slice.isReversed() || slice.getStart() == null || !slice.getStart().equals( slice.getFinish() ) ) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        if ( node instanceof AndNode ) {
+            return isUuidOrdered( ( ( AndNode ) node ).getLeft() ) && isUuidOrdered( ( ( AndNode ) node ).getRight() );
+        }
+
+        if ( node instanceof NotNode ) {
+            return isUuidOrdered( ( ( NotNode ) node ).getKeepNode() );
+        }
+
+        return node instanceof OrNode || node instanceof UuidIdentifierNode || node instanceof EmailIdentifierNode
+                || node instanceof NameIdentifierNode;
+    }
+
+
     /**
      * Create a secondary index scan for the given slice node. DOES NOT apply to the "all" case. This should only
      * generate a slice for secondary property scanning
@@ -17,17 +17,22 @@
 package org.apache.usergrid.persistence.query.ir.result;
 
 
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Set;
 import java.util.UUID;
 
 import org.apache.usergrid.persistence.cassandra.CursorCache;
-
-import com.google.common.collect.Sets;
+import org.apache.usergrid.utils.UUIDUtils;
 
 
 /**
- * Simple iterator to perform Unions
+ * Iterator to perform subtraction.  Returns every column of the keep iterator that is not present in the subtract
+ * iterator.
+ * <p/>
+ * When both iterators are known to return their columns in ascending uuid order, the two are merged in lock step and
+ * each is read at most once per page of results.  Otherwise every page of keep has to be checked against a full scan
+ * of subtract.
  *
  * @author tnine
  */
@@ -36,6 +41,18 @@ public class SubtractionIterator extends MergeIterator {
     private ResultIterator keepIterator;
     private ResultIterator subtractIterator;
 
+    /** True if both iterators return their columns in ascending uuid order */
+    private boolean uuidOrdered;
+
+    /** The page of subtract currently being merged */
+    private Iterator<ScanColumn> subtractPage;
+
+    /** The smallest subtract column that hasn't been passed by keep yet */
+    private ScanColumn subtractHead;
+
+    /** True once every column of subtract has been passed, so we stop asking it for more */
+    private boolean subtractExhausted;
+
 
     public SubtractionIterator( int pageSize ) {
         super( pageSize );
@@ -54,6 +71,15 @@ public class SubtractionIterator extends MergeIterator {
     }
 
 
+    /**
+     * @param uuidOrdered True if both the keep and subtract iterators return their columns in ascending uuid order, in
+     * which case they can be merged instead of rescanning subtract for every page of keep
+     */
+    public void setUuidOrdered( boolean uuidOrdered ) {
+        this.uuidOrdered = uuidOrdered;
+    }
+
+
     /*
      * (non-Javadoc)
      *
@@ -63,6 +89,9 @@ public class SubtractionIterator extends MergeIterator {
     public void doReset() {
         keepIterator.reset();
         subtractIterator.reset();
+        subtractPage = null;
+        subtractHead = null;
+        subtractExhausted = false;
     }
 
 
@@ -77,6 +106,10 @@ public class SubtractionIterator extends MergeIterator {
             return null;
         }
 
+        if ( uuidOrdered ) {
+            return mergeAdvance();
+        }
+
         Set<ScanColumn> results = new LinkedHashSet<ScanColumn>( pageSize );
 
         /**
@@ -100,6 +133,56 @@ public class SubtractionIterator extends MergeIterator {
     }
 
 
+    /** Walk keep and subtract together, dropping every keep column whose uuid is the current head of subtract */
+    private Set<ScanColumn> mergeAdvance() {
+        Set<ScanColumn> results = new LinkedHashSet<ScanColumn>( pageSize );
+
+        /**
+         * Same ordering concern as the unsorted case, don't check keep for more unless we need it
+         */
+        while ( results.size() < pageSize && keepIterator.hasNext() ) {
+
+            for ( ScanColumn keep : keepIterator.next() ) {
+                if ( !isSubtracted( keep.getUUID() ) ) {
+                    results.add( keep );
+                }
+            }
+        }
+
+        return results;
+    }
+
+
+    /**
+     * Move the head of subtract forward until it's at or past the given uuid.  Subtract columns before it can never
+     * match again since keep is ascending
+     *
+     * @return true if the uuid is present in subtract
+     */
+    private boolean isSubtracted( UUID uuid ) {
+        while ( subtractHead == null || UUIDUtils.compare( subtractHead.getUUID(), uuid ) < 0 ) {
+
+            if ( subtractExhausted ) {
+                return false;
+            }
+
+            if ( subtractPage == null || !subtractPage.hasNext() ) {
+                if ( !subtractIterator.hasNext() ) {
+                    subtractExhausted = true;
+                    return false;
+                }
+
+                subtractPage = subtractIterator.next().iterator();
+                continue;
+            }
+
+            subtractHead = subtractPage.next();
+        }
+
+        return UUIDUtils.compare( subtractHead.getUUID(), uuid ) == 0;
+    }
+
+
     /* (non-Javadoc)
      * @see org.apache.usergrid.persistence.query.ir.result.ResultIterator#finalizeCursor(org.apache.usergrid.persistence.cassandra
      * .CursorCache)
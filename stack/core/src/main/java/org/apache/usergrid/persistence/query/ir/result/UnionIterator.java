@@ -22,8 +22,10 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.UUID;
 
@@ -34,6 +36,11 @@ import static org.apache.usergrid.persistence.cassandra.Serializers.*;
 
 /**
  * Simple iterator to perform Unions
+ * <p/>
+ * When every child is known to return its columns in ascending uuid order, the children are merged through a heap of
+ * their current columns.  Only one page is held per child and each child keeps its position between pages, so every
+ * child is read once per pass.  Otherwise every child is drained and reset for every page, and only the lowest page
+ * of values is kept.
  *
  * @author tnine
  */
@@ -45,6 +52,21 @@ public class UnionIterator extends MultiIterator {
 
     private final int id;
 
+    /** The uuid we were asked to resume after, null if we're starting from the beginning */
+    private final UUID minUuid;
+
+    /** True if every child returns its columns in ascending uuid order */
+    private boolean uuidOrdered;
+
+    /** The position of each child in the merge, created on the first merged page */
+    private List<MergeHead> heads;
+
+    /** Children with a current column, ordered by that column */
+    private PriorityQueue<MergeHead> heap;
+
+    /** The last column returned by the merge */
+    private ScanColumn lastMerged;
+
 
     /**
      * @param pageSize The page size to return
@@ -62,10 +84,21 @@ public class UnionIterator extends MultiIterator {
             parseMinUuid = ue.fromByteBuffer( minUuid );
         }
 
+        this.minUuid = parseMinUuid;
+
         list = new SortedColumnList( pageSize, parseMinUuid );
     }
 
 
+    /**
+     * @param uuidOrdered True if every child returns its columns in ascending uuid order, in which case they can be
+     * merged a page at a time instead of drained for every page
+     */
+    public void setUuidOrdered( boolean uuidOrdered ) {
+        this.uuidOrdered = uuidOrdered;
+    }
+
+
     /*
      * (non-Javadoc)
      *
@@ -80,6 +113,10 @@ public class UnionIterator extends MultiIterator {
             return null;
         }
 
+        if ( uuidOrdered ) {
+            return mergeAdvance();
+        }
+
 
         list.clear();
 
@@ -100,6 +137,45 @@ public class UnionIterator extends MultiIterator {
     }
 
 
+    /** Pop the lowest column off the heap until we have a full page, advancing only the child it came from */
+    private Set<ScanColumn> mergeAdvance() {
+        if ( heap == null ) {
+            heads = new ArrayList<MergeHead>( iterators.size() );
+            heap = new PriorityQueue<MergeHead>( iterators.size() );
+            lastMerged = minUuid == null ? null : new AbstractScanColumn( minUuid, null ) {};
+
+            for ( ResultIterator itr : iterators ) {
+                MergeHead head = new MergeHead( itr );
+                heads.add( head );
+
+                if ( head.advance() ) {
+                    heap.add( head );
+                }
+            }
+        }
+
+        Set<ScanColumn> results = new LinkedHashSet<ScanColumn>( pageSize );
+
+        while ( results.size() < pageSize && !heap.isEmpty() ) {
+            MergeHead head = heap.poll();
+
+            ScanColumn col = head.current;
+
+            //skip values we've already returned, either from another child or a previous query
+            if ( COMP.compare( lastMerged, col ) < 0 ) {
+                results.add( col );
+                lastMerged = col;
+            }
+
+            if ( head.advance() ) {
+                heap.add( head );
+            }
+        }
+
+        return results.size() == 0 ? null : results;
+    }
+
+
     /*
      * (non-Javadoc)
      *
@@ -114,6 +190,27 @@ public class UnionIterator extends MultiIterator {
         cache.setNextCursor( id, buff );
         //get our scan column and put them in the cache
         //we finalize the cursor of the min
+
+        if ( heads == null ) {
+            return;
+        }
+
+        /**
+         * Everything a child has at or below the last loaded value has been merged, so a slice can resume just after
+         * its last such value instead of scanning from the start and discarding up to our min again.  We can only
+         * do this when that value is in the page the slice currently holds
+         */
+        for ( MergeHead head : heads ) {
+            if ( !( head.iterator instanceof SliceIterator ) ) {
+                continue;
+            }
+
+            ScanColumn resume = head.lastAtOrBefore( lastLoaded );
+
+            if ( resume != null ) {
+                head.iterator.finalizeCursor( cache, resume.getUUID() );
+            }
+        }
     }
 
 
@@ -124,6 +221,77 @@ public class UnionIterator extends MultiIterator {
 
         list.reset();
 
+        heads = null;
+        heap = null;
+        lastMerged = null;
+    }
+
+
+    /** The position of a single child within the merge */
+    private static final class MergeHead implements Comparable<MergeHead> {
+
+        private final ResultIterator iterator;
+
+        /** The page of the child we're currently merging */
+        private Set<ScanColumn> page;
+
+        private Iterator<ScanColumn> pageIterator;
+
+        /** The lowest column of this child that hasn't been merged */
+        private ScanColumn current;
+
+
+        private MergeHead( ResultIterator iterator ) {
+            this.iterator = iterator;
+        }
+
+
+        /**
+         * Move to the next column, reading the next page of the child only once this one is used up
+         *
+         * @return false if the child has no columns left
+         */
+        private boolean advance() {
+            while ( pageIterator == null || !pageIterator.hasNext() ) {
+                if ( !iterator.hasNext() ) {
+                    current = null;
+                    return false;
+                }
+
+                page = iterator.next();
+                pageIterator = page.iterator();
+            }
+
+            current = pageIterator.next();
+
+            return true;
+        }
+
+
+        /** Get the highest column of the current page that isn't after the given uuid.  Null if there isn't one */
+        private ScanColumn lastAtOrBefore( UUID uuid ) {
+            if ( page == null ) {
+                return null;
+            }
+
+            ScanColumn found = null;
+
+            for ( ScanColumn col : page ) {
+                if ( UUIDUtils.compare( col.getUUID(), uuid ) > 0 ) {
+                    break;
+                }
+
+                found = col;
+            }
+
+            return found;
+        }
+
+
+        @Override
+        public int compareTo( final MergeHead o ) {
+            return COMP.compare( current, o.current );
+        }
     }
 
 
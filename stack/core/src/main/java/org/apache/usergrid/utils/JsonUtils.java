@@ -17,7 +17,9 @@
 package org.apache.usergrid.utils;
 
 
+import java.io.EOFException;
 import java.io.File;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -31,6 +33,9 @@ import org.apache.usergrid.exception.JsonWriteException;
 import org.apache.usergrid.persistence.Entity;
 
 import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
 import org.codehaus.jackson.io.JsonStringEncoder;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.map.SerializationConfig.Feature;
@@ -147,6 +152,104 @@ public class JsonUtils {
     }
 
 
+    /**
+     * Equivalent to <code>normalizeJsonTree( fromByteBuffer( byteBuffer ) )</code>, but the normalized values are
+     * produced directly from the parser's tokens, so no intermediate object graph is built and walked again.
+     */
+    public static Object fromByteBufferNormalized( ByteBuffer byteBuffer ) {
+        if ( ( byteBuffer == null ) || !byteBuffer.hasRemaining() ) {
+            return null;
+        }
+
+        JsonParser jp = null;
+        try {
+            jp = smile.createJsonParser( byteBuffer.array(), byteBuffer.arrayOffset() + byteBuffer.position(),
+                    byteBuffer.remaining() );
+
+            JsonToken token = jp.nextToken();
+            if ( token == null ) {
+                throw new EOFException( "No content to map to Object due to end of input" );
+            }
+
+            return readValue( jp, token, true );
+        }
+        catch ( Exception e ) {
+            LOG.error( "Error parsing SMILE bytes", e );
+        }
+        finally {
+            if ( jp != null ) {
+                try {
+                    jp.close();
+                }
+                catch ( IOException e ) {
+                    // nothing to release for an in memory parser
+                }
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Read the value at the current token.  When normalize is set the value is converted the way {@link
+     * #normalizeJsonTree(Object)} converts it: UUID strings become UUIDs and integers become longs, except for the
+     * "name" entries of a map, and the maps and lists held by a map are left as parsed.
+     */
+    private static Object readValue( JsonParser jp, JsonToken token, boolean normalize ) throws IOException {
+        switch ( token ) {
+            case START_OBJECT: {
+                Map<String, Object> map = new LinkedHashMap<String, Object>();
+                while ( ( token = jp.nextToken() ) == JsonToken.FIELD_NAME ) {
+                    String name = jp.getCurrentName();
+                    token = jp.nextToken();
+
+                    boolean container = token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY;
+
+                    map.put( name, readValue( jp, token,
+                            normalize && !container && !name.equalsIgnoreCase( "name" ) ) );
+                }
+                return map;
+            }
+            case START_ARRAY: {
+                List<Object> list = new ArrayList<Object>();
+                while ( ( token = jp.nextToken() ) != JsonToken.END_ARRAY ) {
+                    list.add( readValue( jp, token, normalize ) );
+                }
+                return list;
+            }
+            case VALUE_STRING: {
+                String text = jp.getText();
+                if ( normalize ) {
+                    UUID uuid = tryConvertToUUID( text );
+                    if ( uuid != null ) {
+                        return uuid;
+                    }
+                }
+                return text;
+            }
+            case VALUE_NUMBER_INT: {
+                Number number = jp.getNumberValue();
+                if ( normalize && ( number instanceof Integer || number instanceof BigInteger ) ) {
+                    return number.longValue();
+                }
+                return number;
+            }
+            case VALUE_NUMBER_FLOAT:
+                return jp.getDoubleValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_EMBEDDED_OBJECT:
+                return jp.getEmbeddedObject();
+            case VALUE_NULL:
+                return null;
+            default:
+                throw new JsonParseException( "Unexpected token " + token, jp.getCurrentLocation() );
+        }
+    }
+
+
     public static JsonNode toJsonNode( Object obj ) {
         if ( obj == null ) {
             return null;
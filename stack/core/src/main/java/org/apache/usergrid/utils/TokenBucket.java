@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.utils;
+
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+
+
+/**
+ * A token bucket rate limiter.  Tokens are added continuously at a fixed rate up to the capacity of the bucket, and
+ * each operation removes the tokens it needs.  The capacity bounds the burst allowed after a quiet period.
+ */
+public class TokenBucket {
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos( 1 );
+
+    private final Ticker ticker;
+
+    /** Tokens added per second */
+    private final double rate;
+
+    private final long capacity;
+
+    private double tokens;
+
+    private long lastRefill;
+
+
+    /**
+     * Create a full bucket
+     *
+     * @param permitsPerSecond The rate at which tokens are added
+     * @param capacity The maximum number of tokens the bucket holds
+     */
+    public TokenBucket( double permitsPerSecond, long capacity ) {
+        this( permitsPerSecond, capacity, Ticker.systemTicker() );
+    }
+
+
+    public TokenBucket( double permitsPerSecond, long capacity, Ticker ticker ) {
+        if ( permitsPerSecond <= 0 ) {
+            throw new IllegalArgumentException( "permitsPerSecond must be greater than 0" );
+        }
+
+        if ( capacity < 1 ) {
+            throw new IllegalArgumentException( "capacity must be at least 1" );
+        }
+
+        this.ticker = ticker;
+        this.rate = permitsPerSecond;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = ticker.read();
+    }
+
+
+    /**
+     * Take the permits if they are available right now
+     *
+     * @return true if the permits were taken
+     */
+    public synchronized boolean tryAcquire( int permits ) {
+        checkPermits( permits );
+        refill();
+
+        if ( tokens < permits ) {
+            return false;
+        }
+
+        tokens -= permits;
+        return true;
+    }
+
+
+    /** Wait until the permits are available and take them */
+    public void acquire( int permits ) throws InterruptedException {
+        checkPermits( permits );
+
+        while ( true ) {
+            long wait;
+
+            synchronized ( this ) {
+                refill();
+
+                if ( tokens >= permits ) {
+                    tokens -= permits;
+                    return;
+                }
+
+                wait = getWaitNanos( permits );
+            }
+
+            TimeUnit.NANOSECONDS.sleep( Math.max( wait, 1 ) );
+        }
+    }
+
+
+    /** @return the time in milliseconds until the permits will be available, 0 if they are available now */
+    public synchronized long getWaitMillis( int permits ) {
+        checkPermits( permits );
+        refill();
+
+        long millis = TimeUnit.MILLISECONDS.toNanos( 1 );
+
+        return ( getWaitNanos( permits ) + millis - 1 ) / millis;
+    }
+
+
+    /** @return the tokens currently in the bucket, rounded down */
+    public synchronized long getAvailable() {
+        refill();
+        return ( long ) tokens;
+    }
+
+
+    private long getWaitNanos( int permits ) {
+        if ( tokens >= permits ) {
+            return 0;
+        }
+
+        return ( long ) Math.ceil( ( permits - tokens ) * NANOS_PER_SECOND / rate );
+    }
+
+
+    private void refill() {
+        long now = ticker.read();
+        long elapsed = now - lastRefill;
+
+        if ( elapsed > 0 ) {
+            tokens = Math.min( capacity, tokens + elapsed * rate / NANOS_PER_SECOND );
+            lastRefill = now;
+        }
+    }
+
+
+    private void checkPermits( int permits ) {
+        if ( permits < 1 || permits > capacity ) {
+            throw new IllegalArgumentException( "permits must be between 1 and the bucket capacity of " + capacity );
+        }
+    }
+}
@@ -17,13 +17,13 @@
 package org.apache.usergrid.utils;
 
 
+import java.security.SecureRandom;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.fasterxml.uuid.EthernetAddress;
 import com.fasterxml.uuid.UUIDComparator;
@@ -55,65 +55,103 @@ public class UUIDUtils {
     }
 
 
-    private static ReentrantLock tsLock = new ReentrantLock( true );
-
     public static final UUID MIN_TIME_UUID = UUID.fromString( "00000000-0000-1000-8000-000000000000" );
 
     public static final UUID MAX_TIME_UUID = UUID.fromString( "ffffffff-ffff-1fff-bfff-ffffffffffff" );
 
     public static final UUID ZERO_UUID = new UUID( 0, 0 );
 
-    private static long timestampMillisNow = System.currentTimeMillis();
+    /** Number of 100ns intervals in a microsecond and a millisecond */
+    private static final long TICKS_PER_MICRO = 10L;
+    private static final long TICKS_PER_MILLI = 10000L;
+
+    /** The last timestamp handed out by {@link #newTimeUUID()}, in 100ns intervals since the unix epoch */
+    private static final AtomicLong lastTimestamp = new AtomicLong( 0 );
+
+    private static final AtomicInteger customMicrosPointer = new AtomicInteger( 0 );
+
+    /** Node id and clock sequence for {@link #newTimeUUID()}, chosen once per JVM */
+    private static final byte[] NODE_ID = new byte[6];
+    private static final int CLOCK_SEQUENCE;
+
 
-    private static AtomicInteger currentMicrosPoint = new AtomicInteger( 0 );
-    private static AtomicInteger customMicrosPointer = new AtomicInteger( 0 );
+    static {
+        EthernetAddress.constructMulticastAddress().toByteArray( NODE_ID, 0 );
+        CLOCK_SEQUENCE = new SecureRandom().nextInt() & 0x3FFF;
+    }
+
+
+    /**
+     * Randomness for UUIDs with caller provided timestamps.  Each thread has its own generator so that callers don't
+     * contend on a single synchronized source.
+     */
+    private static final ThreadLocal<Random> RANDOM = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random( new SecureRandom().nextLong() );
+        }
+    };
 
 
     /**
      * Return the "next" UUID in micro second resolution. <b>WARNING</b>: this is designed to return the next unique
-     * timestamped UUID for this JVM. Depending on velocity of the call, this method may block internally to insure that
+     * timestamped UUID for this JVM. Depending on velocity of the call, this method may spin internally to insure that
      * "now" is kept in sync with the UUIDs being generated by this call.
      * <p/>
-     * In other words, we will intentionally burn CPU insuring that this method is not executed more than 10k -1 times
-     * per millisecond and guarantee that those microseconds held within are sequential.
+     * Every UUID gets a distinct microsecond, claimed with a compare and set so callers never block each other.  When
+     * the 1000 microseconds of the current millisecond are used up callers yield until the clock moves on, and if the
+     * clock steps backwards the sequence keeps counting forward from the last value so it stays monotonic.
      * <p/>
      * If we did not do this, you would get <b>timestamp collision</b> even though the UUIDs will technically be
      * 'unique.'
      */
     public static java.util.UUID newTimeUUID() {
-        // get & inc counter, but roll on 1k (because we divide by 10 on retrieval)
-        // if count + currentMicro > 1k, block and roll
-        tsLock.lock();
-        long ts = System.currentTimeMillis();
-        if ( ts > timestampMillisNow ) {
-            timestampMillisNow = ts;
-            currentMicrosPoint.set( 0 );
-        }
-        int pointer = currentMicrosPoint.getAndIncrement();
-        try {
-            if ( pointer > 990 ) {
-                TimeUnit.MILLISECONDS.sleep( 1L );
+        long timestamp;
+
+        while ( true ) {
+            long now = System.currentTimeMillis() * TICKS_PER_MILLI;
+            long last = lastTimestamp.get();
+
+            timestamp = Math.max( now, last + TICKS_PER_MICRO );
+
+            // this millisecond is exhausted, wait for the next one
+            if ( timestamp >= now + TICKS_PER_MILLI && last < now + TICKS_PER_MILLI ) {
+                Thread.yield();
+                continue;
+            }
+
+            if ( lastTimestamp.compareAndSet( last, timestamp ) ) {
+                break;
             }
         }
-        catch ( Exception ex ) {
-            ex.printStackTrace();
-        }
-        finally {
-            tsLock.unlock();
-        }
-        return newTimeUUID( ts, MICROS[pointer] );
+
+        byte[] uuidBytes = new byte[16];
+        System.arraycopy( NODE_ID, 0, uuidBytes, 10, NODE_ID.length );
+        setTimestamp( timestamp / TICKS_PER_MILLI, uuidBytes, CLOCK_SEQUENCE, ( int ) ( timestamp % TICKS_PER_MILLI ) );
+
+        return uuid( uuidBytes );
     }
 
 
     private static final long KCLOCK_OFFSET = 0x01b21dd213814000L;
     private static final long KCLOCK_MULTIPLIER_L = 10000L;
 
-    private static final Random CLOCK_SEQ_RANDOM = new Random();
-
-
     // 14 bits of randomness
     private static int getRandomClockSequence() {
-        return CLOCK_SEQ_RANDOM.nextInt() & 0x3FFF;
+        return RANDOM.get().nextInt() & 0x3FFF;
+    }
+
+
+    // 47 bits of randomness, flagged as a multicast address so it can't clash with a real MAC address
+    private static void setRandomNode( byte[] uuidBytes ) {
+        long node = RANDOM.get().nextLong();
+
+        for ( int i = 10; i < 16; i++ ) {
+            uuidBytes[i] = ( byte ) node;
+            node >>>= 8;
+        }
+
+        uuidBytes[10] |= 0x01;
     }
 
 
@@ -180,9 +218,7 @@ public class UUIDUtils {
         }
 
         byte[] uuidBytes = new byte[16];
-        // 47 bits of randomness
-        EthernetAddress eth = EthernetAddress.constructMulticastAddress();
-        eth.toByteArray( uuidBytes, 10 );
+        setRandomNode( uuidBytes );
         setTimestamp( ts, uuidBytes, getRandomClockSequence(), timeoffset );
 
         return uuid( uuidBytes );
@@ -195,16 +231,7 @@ public class UUIDUtils {
      * with the same timestamp, you will have non-unique temporal values stored in your UUID.
      */
     public static UUID newTimeUUID( long ts ) {
-        tsLock.lock();
-        int pointer = customMicrosPointer.getAndIncrement();
-        try {
-            if ( pointer > 990 ) {
-                customMicrosPointer.set( 0 );
-            }
-        }
-        finally {
-            tsLock.unlock();
-        }
+        int pointer = ( customMicrosPointer.getAndIncrement() & Integer.MAX_VALUE ) % MICROS.length;
         return newTimeUUID( ts, MICROS[pointer] );
     }
 
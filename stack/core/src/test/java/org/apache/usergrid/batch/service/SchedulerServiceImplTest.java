@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.batch.service;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.apache.usergrid.batch.repository.JobDescriptor;
+import org.apache.usergrid.mq.Message;
+import org.apache.usergrid.mq.QueueManager;
+import org.apache.usergrid.mq.QueueManagerFactory;
+import org.apache.usergrid.mq.QueueQuery;
+import org.apache.usergrid.mq.QueueResults;
+import org.apache.usergrid.persistence.Entity;
+import org.apache.usergrid.persistence.EntityManager;
+import org.apache.usergrid.persistence.EntityManagerFactory;
+import org.apache.usergrid.persistence.Results;
+import org.apache.usergrid.persistence.entities.JobData;
+import org.apache.usergrid.persistence.entities.JobStat;
+import org.apache.usergrid.utils.UUIDUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+public class SchedulerServiceImplTest {
+
+    private static final String QUEUE = "/jobs";
+
+    private EntityManager em;
+    private QueueManager qm;
+    private SchedulerServiceImpl scheduler;
+
+    private List<Message> messages;
+    private List<Entity> entities;
+
+
+    @Before
+    public void setup() {
+        em = mock( EntityManager.class );
+        qm = mock( QueueManager.class );
+
+        EntityManagerFactory emf = mock( EntityManagerFactory.class );
+        when( emf.getEntityManager( any( UUID.class ) ) ).thenReturn( em );
+
+        QueueManagerFactory qmf = mock( QueueManagerFactory.class );
+        when( qmf.getQueueManager( any( UUID.class ) ) ).thenReturn( qm );
+
+        scheduler = new SchedulerServiceImpl();
+        scheduler.setEmf( emf );
+        scheduler.setQmf( qmf );
+
+        messages = new ArrayList<Message>();
+        entities = new ArrayList<Entity>();
+    }
+
+
+    @Test
+    public void hundredJobsInOneRead() throws Exception {
+        for ( int i = 0; i < 100; i++ ) {
+            addJob( "job" + i, true, true );
+        }
+
+        List<JobDescriptor> jobs = poll( 100 );
+
+        assertEquals( 100, jobs.size() );
+
+        for ( int i = 0; i < 100; i++ ) {
+            JobDescriptor job = jobs.get( i );
+
+            assertEquals( "job" + i, job.getJobName() );
+            assertSame( entities.get( i * 2 ), job.getData() );
+            assertSame( entities.get( i * 2 + 1 ), job.getStats() );
+        }
+
+        // a single multiget and no per job reads
+        verify( em, times( 1 ) ).get( anyCollectionOf( UUID.class ) );
+        verify( em, never() ).get( any( UUID.class ), eq( JobData.class ) );
+        verify( em, never() ).get( any( UUID.class ), eq( JobStat.class ) );
+        verify( qm, never() ).deleteTransaction( anyString(), any( UUID.class ), any( QueueQuery.class ) );
+    }
+
+
+    @Test
+    public void orphansDropped() throws Exception {
+        addJob( "complete", true, true );
+        Message noStats = addJob( "noStats", true, false );
+        Message noData = addJob( "noData", false, true );
+
+        List<JobDescriptor> jobs = poll( 10 );
+
+        assertEquals( 1, jobs.size() );
+        assertEquals( "complete", jobs.get( 0 ).getJobName() );
+
+        verify( em, times( 1 ) ).get( anyCollectionOf( UUID.class ) );
+
+        // both dropped jobs leave the queue and whatever they had left is deleted
+        verify( qm ).deleteTransaction( QUEUE, noStats.getTransaction(), null );
+        verify( qm ).deleteTransaction( QUEUE, noData.getTransaction(), null );
+        verify( em, times( 2 ) ).delete( any( Entity.class ) );
+    }
+
+
+    @Test
+    public void failedReadKeepsJobs() throws Exception {
+        addJob( "job", true, true );
+
+        when( qm.getFromQueue( eq( QUEUE ), any( QueueQuery.class ) ) ).thenReturn( new QueueResults( messages ) );
+        when( em.get( anyCollectionOf( UUID.class ) ) ).thenThrow( new RuntimeException( "read failed" ) );
+
+        assertEquals( 0, scheduler.getJobs( 10 ).size() );
+
+        verify( qm, never() ).deleteTransaction( anyString(), any( UUID.class ), any( QueueQuery.class ) );
+    }
+
+
+    /** Queue a job message, saving the data and stats that should be loadable for it */
+    private Message addJob( String jobName, boolean withData, boolean withStats ) {
+        JobData data = new JobData();
+        data.setUuid( UUIDUtils.newTimeUUID() );
+        data.setJobName( jobName );
+
+        JobStat stats = new JobStat( jobName, data.getUuid() );
+        stats.setUuid( UUIDUtils.newTimeUUID() );
+
+        if ( withData ) {
+            entities.add( data );
+        }
+
+        if ( withStats ) {
+            entities.add( stats );
+        }
+
+        Message message = new Message();
+        message.setUuid( UUIDUtils.newTimeUUID() );
+        message.setTransaction( UUIDUtils.newTimeUUID() );
+        message.setStringProperty( "jobName", jobName );
+        message.setProperty( "jobId", data.getUuid() );
+        message.setProperty( "statsId", stats.getUuid() );
+
+        messages.add( message );
+
+        return message;
+    }
+
+
+    private List<JobDescriptor> poll( int size ) throws Exception {
+        when( qm.getFromQueue( eq( QUEUE ), any( QueueQuery.class ) ) ).thenReturn( new QueueResults( messages ) );
+        when( em.get( anyCollectionOf( UUID.class ) ) ).thenReturn( Results.fromEntities( entities ) );
+
+        return scheduler.getJobs( size );
+    }
+}
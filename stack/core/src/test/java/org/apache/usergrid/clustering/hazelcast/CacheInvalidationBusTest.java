@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.clustering.hazelcast;
+
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.apache.usergrid.utils.UUIDUtils;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/** Runs two embedded Hazelcast members in this JVM and checks invalidations published on one reach both */
+public class CacheInvalidationBusTest {
+
+    private static HazelcastInstance first;
+    private static HazelcastInstance second;
+
+
+    @BeforeClass
+    public static void startMembers() {
+        first = Hazelcast.newHazelcastInstance( config() );
+        second = Hazelcast.newHazelcastInstance( config() );
+
+        assertEquals( 2, first.getCluster().getMembers().size() );
+    }
+
+
+    @AfterClass
+    public static void stopMembers() {
+        first.shutdown();
+        second.shutdown();
+    }
+
+
+    @Test
+    public void invalidationReachesEveryMember() throws Exception {
+        CacheInvalidationBus firstBus = new CacheInvalidationBus( first, "invalidation-reaches-every-member" );
+        CacheInvalidationBus secondBus = new CacheInvalidationBus( second, "invalidation-reaches-every-member" );
+        firstBus.init();
+        secondBus.init();
+
+        try {
+            RecordingListener local = new RecordingListener( 1 );
+            RecordingListener remote = new RecordingListener( 1 );
+            RecordingListener otherCache = new RecordingListener( 1 );
+
+            firstBus.register( "applications", local );
+            secondBus.register( "applications", remote );
+            secondBus.register( "services", otherCache );
+
+            UUID appId = UUIDUtils.newTimeUUID();
+
+            firstBus.invalidate( "applications", appId, "name" );
+
+            assertTrue( local.await() );
+            assertTrue( remote.await() );
+
+            List<Object> expected = Arrays.<Object>asList( appId, "name" );
+
+            assertEquals( expected, local.keys );
+            assertEquals( expected, remote.keys );
+
+            // only listeners of the invalidated cache are told
+            assertEquals( 0, otherCache.keys.size() );
+        }
+        finally {
+            firstBus.destroy();
+            secondBus.destroy();
+        }
+    }
+
+
+    @Test
+    public void unregisteredListenerIgnored() throws Exception {
+        CacheInvalidationBus firstBus = new CacheInvalidationBus( first, "unregistered-listener-ignored" );
+        CacheInvalidationBus secondBus = new CacheInvalidationBus( second, "unregistered-listener-ignored" );
+        firstBus.init();
+        secondBus.init();
+
+        try {
+            RecordingListener removed = new RecordingListener( 1 );
+            RecordingListener kept = new RecordingListener( 1 );
+
+            secondBus.register( "applications", removed );
+            secondBus.register( "applications", kept );
+            secondBus.unregister( "applications", removed );
+
+            firstBus.invalidate( "applications", "key" );
+
+            assertTrue( kept.await() );
+            assertEquals( 0, removed.keys.size() );
+        }
+        finally {
+            firstBus.destroy();
+            secondBus.destroy();
+        }
+    }
+
+
+    /** A local only cluster so the test doesn't join anything on the network */
+    private static Config config() {
+        Config config = new Config();
+        config.setPort( 5801 );
+        config.setPortAutoIncrement( true );
+        config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled( false );
+        config.getNetworkConfig().getJoin().getTcpIpConfig().setEnabled( true )
+              .setMembers( Arrays.asList( "127.0.0.1:5801", "127.0.0.1:5802" ) );
+        config.getNetworkConfig().getInterfaces().setEnabled( true ).addInterface( "127.0.0.1" );
+        return config;
+    }
+
+
+    private static class RecordingListener implements CacheInvalidationListener {
+
+        private final List<Object> keys = new CopyOnWriteArrayList<Object>();
+        private final CountDownLatch latch;
+
+
+        private RecordingListener( int expected ) {
+            latch = new CountDownLatch( expected );
+        }
+
+
+        @Override
+        public void invalidate( Collection<Object> keys ) {
+            this.keys.addAll( keys );
+            latch.countDown();
+        }
+
+
+        private boolean await() throws InterruptedException {
+            return latch.await( 10, TimeUnit.SECONDS );
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.locking.twotier;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.apache.usergrid.locking.Lock;
+import org.apache.usergrid.locking.LockManager;
+import org.apache.usergrid.locking.exception.UGLockException;
+import org.apache.usergrid.locking.singlenode.SingleNodeLockManagerImpl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class TwoTierLockManagerTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger( TwoTierLockManagerTest.class );
+
+    private CountingLockManager distributed;
+
+    private ExecutorService pool;
+
+
+    @Before
+    public void setUp() {
+        // the single node locks belong to the thread that took them, like the zookeeper ones
+        distributed = new CountingLockManager( new SingleNodeLockManagerImpl() );
+        pool = Executors.newFixedThreadPool( 16 );
+    }
+
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+
+    @Test
+    public void testLock() throws Exception {
+        TwoTierLockManagerImpl manager = new TwoTierLockManagerImpl( distributed );
+
+        UUID application = UUID.randomUUID();
+        String entity = UUID.randomUUID().toString();
+
+        // Lock a node twice to test reentrancy and validate.
+        Lock lock = manager.createLock( application, entity );
+        lock.lock();
+        lock.lock();
+
+        assertFalse( lockInDifferentThread( manager, application, entity ) );
+        assertFalse( lockInDifferentThread( distributed, application, entity ) );
+
+        lock.unlock();
+
+        assertFalse( lockInDifferentThread( manager, application, entity ) );
+
+        lock.unlock();
+
+        assertTrue( lockInDifferentThread( manager, application, entity ) );
+
+        // nobody in this JVM wants it any more, so the distributed lock was given up
+        assertTrue( lockInDifferentThread( distributed, application, entity ) );
+
+        // once for each two tier lock, and once for the direct lock above
+        assertEquals( 3, distributed.getAcquires() );
+    }
+
+
+    @Test
+    public void coalescesLocalWaiters() throws Exception {
+        final TwoTierLockManagerImpl manager = new TwoTierLockManagerImpl( distributed );
+
+        final UUID application = UUID.randomUUID();
+        final int threads = 8;
+        final int iterations = 200;
+
+        final Counter counter = new Counter();
+
+        List<Future<Void>> futures = contend( manager, application, threads, iterations, counter );
+
+        for ( Future<Void> future : futures ) {
+            future.get();
+        }
+
+        assertEquals( threads * iterations, counter.total );
+        assertEquals( 1, counter.maxConcurrent.get() );
+
+        long distributedAcquires = manager.getDistributedAcquires();
+
+        LOG.info( "{} acquires went to the distributed lock, {} were handed over locally", distributedAcquires,
+                manager.getLocalAcquires() );
+
+        assertEquals( threads * iterations, distributedAcquires + manager.getLocalAcquires() );
+        assertEquals( distributedAcquires, distributed.getAcquires() );
+        assertTrue( distributedAcquires < threads * iterations );
+
+        assertTrue( lockInDifferentThread( distributed, application, "path" ) );
+    }
+
+
+    @Test
+    public void excludesOtherNodes() throws Exception {
+        TwoTierLockManagerImpl first = new TwoTierLockManagerImpl( distributed );
+        TwoTierLockManagerImpl second = new TwoTierLockManagerImpl( distributed );
+
+        first.setMaxHoldMillis( 5 );
+        second.setMaxHoldMillis( 5 );
+
+        UUID application = UUID.randomUUID();
+        Counter counter = new Counter();
+
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        futures.addAll( contend( first, application, 4, 100, counter ) );
+        futures.addAll( contend( second, application, 4, 100, counter ) );
+
+        for ( Future<Void> future : futures ) {
+            future.get();
+        }
+
+        assertEquals( 800, counter.total );
+        assertEquals( 1, counter.maxConcurrent.get() );
+
+        assertTrue( lockInDifferentThread( distributed, application, "path" ) );
+    }
+
+
+    @Test
+    public void limitsHeldLocks() throws Exception {
+        TwoTierLockManagerImpl manager = new TwoTierLockManagerImpl( distributed, 2 );
+
+        UUID application = UUID.randomUUID();
+
+        Lock first = manager.createLock( application, "first" );
+        Lock second = manager.createLock( application, "second" );
+        first.lock();
+        second.lock();
+
+        assertEquals( 2, manager.getHeldLocks() );
+
+        // no holder thread is left for a third path until one of the others is given up
+        assertFalse( lockInDifferentThread( manager, application, "third" ) );
+
+        first.unlock();
+
+        assertTrue( lockInDifferentThread( manager, application, "third" ) );
+
+        second.unlock();
+    }
+
+
+    /** Lock the same path from many threads, recording how many are inside at once */
+    private List<Future<Void>> contend( final LockManager manager, final UUID application, int threads,
+                                        final int iterations, final Counter counter ) {
+
+        final CountDownLatch start = new CountDownLatch( 1 );
+
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+        for ( int i = 0; i < threads; i++ ) {
+            futures.add( pool.submit( new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+
+                    for ( int j = 0; j < iterations; j++ ) {
+                        Lock lock = manager.createLock( application, "path" );
+                        lock.lock();
+
+                        try {
+                            int inside = counter.concurrent.incrementAndGet();
+
+                            synchronized ( counter.maxConcurrent ) {
+                                counter.maxConcurrent.set( Math.max( inside, counter.maxConcurrent.get() ) );
+                            }
+
+                            // not atomic on purpose, lost updates show up as a low total
+                            int total = counter.total;
+                            Thread.yield();
+                            counter.total = total + 1;
+
+                            counter.concurrent.decrementAndGet();
+                        }
+                        finally {
+                            lock.unlock();
+                        }
+                    }
+
+                    return null;
+                }
+            } ) );
+        }
+
+        start.countDown();
+
+        return futures;
+    }
+
+
+    /** Acquires a lock in a different thread. */
+    private boolean lockInDifferentThread( final LockManager manager, final UUID application, final String path )
+            throws Exception {
+
+        Future<Boolean> status = pool.submit( new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                Lock lock = manager.createLock( application, path );
+
+                // the distributed lock is released by its holder thread, so give it a moment
+                boolean locked = lock.tryLock( 500, TimeUnit.MILLISECONDS );
+
+                if ( locked ) {
+                    lock.unlock();
+                }
+
+                return locked;
+            }
+        } );
+
+        return status.get( 2, TimeUnit.SECONDS );
+    }
+
+
+    private static class Counter {
+        private final AtomicInteger concurrent = new AtomicInteger();
+        private final AtomicInteger maxConcurrent = new AtomicInteger();
+        private volatile int total;
+    }
+
+
+    /** Counts the locks taken from the wrapped manager */
+    private static class CountingLockManager implements LockManager {
+
+        private final LockManager delegate;
+        private final AtomicInteger acquires = new AtomicInteger();
+
+
+        private CountingLockManager( LockManager delegate ) {
+            this.delegate = delegate;
+        }
+
+
+        @Override
+        public Lock createLock( UUID applicationId, String... path ) {
+            final Lock lock = delegate.createLock( applicationId, path );
+
+            return new Lock() {
+                @Override
+                public boolean tryLock( long timeout, TimeUnit time ) throws UGLockException {
+                    boolean locked = lock.tryLock( timeout, time );
+
+                    if ( locked ) {
+                        acquires.incrementAndGet();
+                    }
+
+                    return locked;
+                }
+
+
+                @Override
+                public void lock() throws UGLockException {
+                    lock.lock();
+                    acquires.incrementAndGet();
+                }
+
+
+                @Override
+                public void unlock() throws UGLockException {
+                    lock.unlock();
+                }
+            };
+        }
+
+
+        public int getAcquires() {
+            return acquires.get();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.mq;
+
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.apache.usergrid.cassandra.Concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+@Concurrent()
+public class MessageIndexPolicyTest {
+
+    @Test
+    public void defaultsToAll() {
+        Queue queue = new Queue( "/test" );
+
+        MessageIndexPolicy policy = queue.getIndexPolicy();
+
+        assertTrue( policy.isAll() );
+        assertTrue( policy.isIndexed( "anything" ) );
+    }
+
+
+    @Test
+    public void none() {
+        Queue queue = new Queue( "/test" );
+        queue.setProperty( Queue.QUEUE_INDEXES, "None" );
+
+        MessageIndexPolicy policy = queue.getIndexPolicy();
+
+        assertTrue( policy.isNone() );
+        assertFalse( policy.isIndexed( "anything" ) );
+    }
+
+
+    @Test
+    public void whitelist() {
+        MessageIndexPolicy fromList = MessageIndexPolicy.fromProperty( Arrays.asList( "color", "Size" ) );
+        MessageIndexPolicy fromString = MessageIndexPolicy.fromProperty( "color, size" );
+
+        for ( MessageIndexPolicy policy : new MessageIndexPolicy[] { fromList, fromString } ) {
+            assertFalse( policy.isAll() );
+            assertFalse( policy.isNone() );
+            assertTrue( policy.isIndexed( "color" ) );
+            assertTrue( policy.isIndexed( "size" ) );
+            assertTrue( policy.isIndexed( "color.name" ) );
+            assertFalse( policy.isIndexed( "weight" ) );
+            assertEquals( 2, policy.getProperties().size() );
+        }
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPolicy() {
+        MessageIndexPolicy.fromProperty( 5 );
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nestedName() {
+        MessageIndexPolicy.fromProperty( "color, size.height" );
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void reservedName() {
+        MessageIndexPolicy.fromProperty( Arrays.asList( "color", "all" ) );
+    }
+}
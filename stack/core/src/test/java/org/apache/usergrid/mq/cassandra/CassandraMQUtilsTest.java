@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.mq.cassandra;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.apache.usergrid.cassandra.Concurrent;
+import org.apache.usergrid.mq.Message;
+
+import me.prettyprint.hector.api.beans.HColumn;
+
+import static me.prettyprint.hector.api.factory.HFactory.createColumn;
+import static org.apache.usergrid.mq.cassandra.CassandraMQUtils.COMPACT_MESSAGE_COLUMN;
+import static org.apache.usergrid.mq.cassandra.CassandraMQUtils.deserializeMessage;
+import static org.apache.usergrid.mq.cassandra.CassandraMQUtils.serializeCompactMessage;
+import static org.apache.usergrid.mq.cassandra.CassandraMQUtils.serializeMessage;
+import static org.apache.usergrid.persistence.cassandra.Serializers.be;
+import static org.apache.usergrid.persistence.cassandra.Serializers.se;
+import static org.junit.Assert.assertEquals;
+
+
+@Concurrent()
+public class CassandraMQUtilsTest {
+
+    private Message createMessage() {
+        Message message = new Message();
+        message.setType( "test" );
+        message.setStringProperty( "name", "compact" );
+        message.setIntProperty( "count", 42 );
+        message.setObjectProperty( "tags", Arrays.asList( "a", "b" ) );
+        message.sync();
+        return message;
+    }
+
+
+    @Test
+    public void compactRoundTrip() {
+        Message message = createMessage();
+
+        List<HColumn<String, ByteBuffer>> columns = new ArrayList<HColumn<String, ByteBuffer>>();
+        columns.add( createColumn( COMPACT_MESSAGE_COLUMN, serializeCompactMessage( message ), se, be ) );
+
+        assertMessageEquals( message, deserializeMessage( columns ) );
+    }
+
+
+    @Test
+    public void columnRoundTrip() {
+        Message message = createMessage();
+
+        List<HColumn<String, ByteBuffer>> columns = new ArrayList<HColumn<String, ByteBuffer>>();
+
+        for ( Map.Entry<ByteBuffer, ByteBuffer> column : serializeMessage( message ).entrySet() ) {
+            columns.add( createColumn( se.fromByteBuffer( column.getKey() ), column.getValue(), se, be ) );
+        }
+
+        assertMessageEquals( message, deserializeMessage( columns ) );
+    }
+
+
+    @Test(expected = IllegalStateException.class)
+    public void unknownVersion() {
+        ByteBuffer value = serializeCompactMessage( createMessage() );
+        value.put( 0, ( byte ) 99 );
+
+        List<HColumn<String, ByteBuffer>> columns = new ArrayList<HColumn<String, ByteBuffer>>();
+        columns.add( createColumn( COMPACT_MESSAGE_COLUMN, value, se, be ) );
+
+        deserializeMessage( columns );
+    }
+
+
+    private void assertMessageEquals( Message expected, Message actual ) {
+        assertEquals( expected.getUuid(), actual.getUuid() );
+        assertEquals( expected.getType(), actual.getType() );
+        assertEquals( expected.getTimestamp(), actual.getTimestamp() );
+        assertEquals( "compact", actual.getStringProperty( "name" ) );
+        assertEquals( 42, actual.getIntProperty( "count" ) );
+        assertEquals( Arrays.asList( "a", "b" ), actual.getObjectProperty( "tags" ) );
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.mq.cassandra.io;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Test;
+import org.apache.usergrid.cassandra.Concurrent;
+import org.apache.usergrid.mq.Query.FilterOperator;
+import org.apache.usergrid.mq.QueryProcessor;
+import org.apache.usergrid.mq.QueueQuery;
+
+import me.prettyprint.hector.api.beans.DynamicComposite;
+import me.prettyprint.hector.api.beans.HColumn;
+
+import static me.prettyprint.hector.api.factory.HFactory.createColumn;
+import static org.apache.usergrid.mq.cassandra.QueueManagerImpl.QUEUE_SHARD_INTERVAL;
+import static org.apache.usergrid.persistence.cassandra.Serializers.be;
+import static org.apache.usergrid.utils.NumberUtils.roundLong;
+import static org.apache.usergrid.utils.UUIDUtils.getTimestampInMillis;
+import static org.apache.usergrid.utils.UUIDUtils.minTimeUUID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+@Concurrent()
+public class FilterSearchTest {
+
+    private static final int PAGE_SIZE = 1000;
+
+    private static final long BASE = roundLong( System.currentTimeMillis(), QUEUE_SHARD_INTERVAL );
+
+
+    @Test
+    public void equalityFiltersStopAtLimit() {
+        int count = 3000000;
+
+        FakeIndexSearch search = new FakeIndexSearch( 1, count );
+        search.match( "a", 2 );
+        search.match( "b", 3 );
+
+        QueueQuery query = new QueueQuery();
+        query.addFilter( "a", FilterOperator.EQUAL, "x" );
+        query.addFilter( "b", FilterOperator.EQUAL, "y" );
+        query.setLimit( 10 );
+
+        List<UUID> results = search.search( query );
+
+        assertEquals( 10, results.size() );
+
+        for ( int i = 0; i < results.size(); i++ ) {
+            assertEquals( search.uuid( i * 6 ), results.get( i ) );
+        }
+
+        // millions of candidates, but only the first page of each filter was needed
+        assertEquals( 2, search.reads );
+        assertTrue( search.columnsRead <= 2 * PAGE_SIZE );
+    }
+
+
+    @Test
+    public void sparseIntersectionStreams() {
+        int count = 2000000;
+
+        FakeIndexSearch search = new FakeIndexSearch( 1, count );
+        search.match( "a", 1 );
+        search.matchFrom( "b", count - 5 );
+
+        QueueQuery query = new QueueQuery();
+        query.addFilter( "a", FilterOperator.EQUAL, "x" );
+        query.addFilter( "b", FilterOperator.EQUAL, 7 );
+        query.setLimit( 10 );
+
+        List<UUID> results = search.search( query );
+
+        assertEquals( 5, results.size() );
+
+        for ( int i = 0; i < results.size(); i++ ) {
+            assertEquals( search.uuid( count - 5 + i ), results.get( i ) );
+        }
+
+        // every candidate of the first filter was read, but never more than a page at once
+        assertTrue( search.columnsRead >= count );
+        assertTrue( search.largestRead <= PAGE_SIZE + 1 );
+    }
+
+
+    @Test
+    public void reversedAcrossShards() {
+        FakeIndexSearch search = new FakeIndexSearch( QUEUE_SHARD_INTERVAL / 4, 20 );
+        search.match( "a", 2 );
+        search.match( "b", 1 );
+
+        QueueQuery query = new QueueQuery();
+        query.addFilter( "a", FilterOperator.EQUAL, "x" );
+        query.addFilter( "b", FilterOperator.GREATER_THAN, "m" );
+        query.setReversed( true );
+        query.setLimit( 3 );
+
+        List<UUID> results = search.search( query );
+
+        assertEquals( 3, results.size() );
+        assertEquals( search.uuid( 18 ), results.get( 0 ) );
+        assertEquals( search.uuid( 16 ), results.get( 1 ) );
+        assertEquals( search.uuid( 14 ), results.get( 2 ) );
+    }
+
+
+    @Test
+    public void rangeFilterSortedByShard() {
+        FakeIndexSearch search = new FakeIndexSearch( QUEUE_SHARD_INTERVAL / 4, 20 );
+        search.match( "a", 1 );
+        search.match( "b", 3 );
+
+        // a range is ordered by value, not by id
+        search.valueOrdered.put( "b", true );
+
+        QueueQuery query = new QueueQuery();
+        query.addFilter( "a", FilterOperator.EQUAL, "x" );
+        query.addFilter( "b", FilterOperator.LESS_THAN, 100 );
+        query.setLimit( 5 );
+
+        List<UUID> results = search.search( query );
+
+        assertEquals( 5, results.size() );
+
+        for ( int i = 0; i < results.size(); i++ ) {
+            assertEquals( search.uuid( i * 3 ), results.get( i ) );
+        }
+    }
+
+
+    /**
+     * A queue of messages whose index rows are generated as they are read.  Message i has a timestamp of i steps, and
+     * matches a property when it is selected by the rule of the property
+     */
+    private static class FakeIndexSearch extends FilterSearch {
+
+        private final long step;
+        private final int count;
+
+        private final Map<String, Integer> every = new HashMap<String, Integer>();
+        private final Map<String, Integer> from = new HashMap<String, Integer>();
+        private final Map<String, Boolean> valueOrdered = new HashMap<String, Boolean>();
+
+        private int reads;
+        private long columnsRead;
+        private int largestRead;
+
+
+        private FakeIndexSearch( long step, int count ) {
+            super( null );
+            this.step = step;
+            this.count = count;
+        }
+
+
+        private void match( String propertyName, int every ) {
+            this.every.put( propertyName, every );
+        }
+
+
+        private void matchFrom( String propertyName, int from ) {
+            this.from.put( propertyName, from );
+        }
+
+
+        private UUID uuid( int index ) {
+            return minTimeUUID( BASE + index * step );
+        }
+
+
+        private List<UUID> search( QueueQuery query ) {
+            QueueBounds bounds = new QueueBounds( uuid( 0 ), uuid( count ) );
+
+            if ( query.isReversed() ) {
+                // the newest message is the start of a reversed search, the oldest is excluded
+                bounds = new QueueBounds( uuid( -1 ), uuid( count - 1 ) );
+            }
+
+            return searchQueue( UUID.randomUUID(), bounds, new QueryProcessor( query ).getSlices(), query );
+        }
+
+
+        private boolean matches( String propertyName, int index ) {
+            Integer from = this.from.get( propertyName );
+
+            if ( from != null ) {
+                return index >= from;
+            }
+
+            return index % every.get( propertyName ) == 0;
+        }
+
+
+        @Override
+        protected List<HColumn<ByteBuffer, ByteBuffer>> getIndexColumns( UUID queueId, long shard,
+                                                                         String propertyName, ByteBuffer start,
+                                                                         ByteBuffer finish, boolean reversed,
+                                                                         int limit ) {
+
+            int first = ( int ) Math.max( 0, ( shard - BASE + step - 1 ) / step );
+            int last = ( int ) Math.min( count - 1, ( shard + QUEUE_SHARD_INTERVAL - 1 - BASE ) / step );
+
+            int position = reversed ? last : first;
+
+            if ( start != null ) {
+                DynamicComposite composite = DynamicComposite.fromByteBuffer( start.duplicate() );
+
+                if ( composite.size() > 2 ) {
+                    position = ( int ) ( ( getTimestampInMillis( ( UUID ) composite.get( 2 ) ) - BASE ) / step );
+                }
+            }
+
+            List<HColumn<ByteBuffer, ByteBuffer>> columns = new ArrayList<HColumn<ByteBuffer, ByteBuffer>>();
+
+            for ( int i = position; i >= first && i <= last && columns.size() < limit; i += reversed ? -1 : 1 ) {
+                if ( matches( propertyName, i ) ) {
+                    ByteBuffer name = new DynamicComposite( "v", "v", uuid( i ) ).serialize();
+                    columns.add( createColumn( name, ByteBuffer.allocate( 0 ), be, be ) );
+                }
+            }
+
+            if ( Boolean.TRUE.equals( valueOrdered.get( propertyName ) ) ) {
+                Collections.reverse( columns );
+            }
+
+            reads++;
+            columnsRead += columns.size();
+            largestRead = Math.max( largestRead, columns.size() );
+
+            return columns;
+        }
+    }
+}
@@ -23,6 +23,11 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -35,6 +40,7 @@ import org.apache.usergrid.cassandra.Concurrent;
 import org.apache.usergrid.persistence.Results.Level;
 import org.apache.usergrid.persistence.entities.User;
 import org.apache.usergrid.persistence.exceptions.DuplicateUniquePropertyExistsException;
+import org.apache.usergrid.persistence.exceptions.UniquePropertyContentionException;
 import org.apache.usergrid.persistence.exceptions.NoIndexException;
 import org.apache.usergrid.utils.JsonUtils;
 import org.apache.usergrid.utils.UUIDUtils;
@@ -1696,4 +1702,118 @@ public class CollectionIT extends AbstractCoreIT {
 
         em.create( "restaurant", restaurant2.getProperties() );
     }
+
+
+    @Test
+    public void concurrentDuplicateIdentifierTest() throws Exception {
+        UUID applicationId = setup.createApplication( "testOrganization", "concurrentDuplicateIdentifierTest" );
+        assertNotNull( applicationId );
+
+        final EntityManager em = setup.getEmf().getEntityManager( applicationId );
+        assertNotNull( em );
+
+        final int threads = 10;
+        final CountDownLatch start = new CountDownLatch( 1 );
+
+        ExecutorService executor = Executors.newFixedThreadPool( threads );
+        List<Future<Entity>> creates = new ArrayList<Future<Entity>>();
+
+        for ( int i = 0; i < threads; i++ ) {
+            final int index = i;
+
+            creates.add( executor.submit( new Callable<Entity>() {
+                @Override
+                public Entity call() throws Exception {
+                    User user = new User();
+                    user.setUsername( "racer" );
+                    user.setEmail( "racer" + index + "@usergrid.org" );
+
+                    start.await();
+
+                    // contention is retryable, only an owned value is a final answer
+                    while ( true ) {
+                        try {
+                            return em.create( user );
+                        }
+                        catch ( DuplicateUniquePropertyExistsException e ) {
+                            return null;
+                        }
+                        catch ( UniquePropertyContentionException e ) {
+                            Thread.sleep( 10 );
+                        }
+                    }
+                }
+            } ) );
+        }
+
+        start.countDown();
+
+        int created = 0;
+
+        for ( Future<Entity> create : creates ) {
+            if ( create.get() != null ) {
+                created++;
+            }
+        }
+
+        executor.shutdown();
+
+        assertEquals( "Exactly one racer must own the username", 1, created );
+
+        Query query = Query.fromQL( "select * where username = 'racer'" );
+        Results r = em.searchCollection( em.getApplicationRef(), "users", query );
+        assertEquals( 1, r.size() );
+
+        // once the racers are done the value is taken for good, not just claimed
+        User user = new User();
+        user.setUsername( "racer" );
+        user.setEmail( "racer@usergrid.org" );
+
+        try {
+            em.create( user );
+            fail( "The username was already taken" );
+        }
+        catch ( DuplicateUniquePropertyExistsException e ) {
+            // expected
+        }
+    }
+
+
+    @Test
+    public void failedUpdateReleasesClaims() throws Exception {
+        UUID applicationId = setup.createApplication( "testOrganization", "failedUpdateReleasesClaims" );
+        assertNotNull( applicationId );
+
+        EntityManager em = setup.getEmf().getEntityManager( applicationId );
+        assertNotNull( em );
+
+        User taken = new User();
+        taken.setUsername( "taken" );
+        taken.setEmail( "taken@usergrid.org" );
+        em.create( taken );
+
+        User updated = new User();
+        updated.setUsername( "updated" );
+        updated.setEmail( "updated@usergrid.org" );
+        Entity entity = em.create( updated );
+
+        // the new email is claimed before the taken username fails the update
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        properties.put( "email", "released@usergrid.org" );
+        properties.put( "username", "taken" );
+
+        try {
+            em.updateProperties( entity, properties );
+            fail( "The username was already taken" );
+        }
+        catch ( DuplicateUniquePropertyExistsException e ) {
+            // expected
+        }
+
+        // a claim left behind would make this collide until it expires
+        User other = new User();
+        other.setUsername( "other" );
+        other.setEmail( "released@usergrid.org" );
+        assertNotNull( em.create( other ) );
+    }
 }
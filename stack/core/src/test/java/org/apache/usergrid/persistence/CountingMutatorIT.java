@@ -131,4 +131,58 @@ public class CountingMutatorIT extends AbstractCoreIT {
         em.updateProperties( returned, properties );
 
     }
+
+
+    @Test
+    public void testBulkCreateAcrossMutators() throws Exception {
+
+        //temporarily set our max size to 10 so the bulk create spans many mutators
+        CountingMutator.MAX_SIZE = 10;
+
+        UUID applicationId = setup.createApplication( "testOrganization", "testBulkCreateAcrossMutators" );
+
+        EntityManager em = setup.getEmf().getEntityManager( applicationId );
+
+        Map<String, Object> existing = new LinkedHashMap<String, Object>();
+        existing.put( "username", "existinguser" );
+        em.create( "user", existing );
+
+        int size = 50;
+
+        List<Map<String, Object>> documents = new ArrayList<Map<String, Object>>();
+
+        for ( int i = 0; i < size; i++ ) {
+            Map<String, Object> props = new LinkedHashMap<String, Object>();
+            props.put( "username", "bulkuser" + i );
+            props.put( "email", "bulkuser" + i + "@foo.bar" );
+            documents.add( props );
+        }
+
+        //a duplicate of a document in the same batch, and a duplicate of an existing user
+        Map<String, Object> inBatchDuplicate = new LinkedHashMap<String, Object>();
+        inBatchDuplicate.put( "username", "bulkuser0" );
+        documents.add( inBatchDuplicate );
+
+        Map<String, Object> storedDuplicate = new LinkedHashMap<String, Object>();
+        storedDuplicate.put( "username", "existinguser" );
+        documents.add( storedDuplicate );
+
+        BulkCreateResults results = em.createBulk( "user", documents );
+
+        assertEquals( size, results.getCreatedCount() );
+        assertEquals( 2, results.getErrors().size() );
+        assertTrue( results.getErrors().containsKey( size ) );
+        assertTrue( results.getErrors().containsKey( size + 1 ) );
+
+        for ( int i = 0; i < size; i++ ) {
+            Entity created = results.getEntities().get( i );
+            assertNotNull( created );
+
+            Entity returned = em.get( created.getUuid() );
+            assertEquals( "bulkuser" + i, returned.getProperty( "username" ) );
+
+            EntityRef alias = em.getAlias( "user", "bulkuser" + i );
+            assertEquals( created.getUuid(), alias.getUuid() );
+        }
+    }
 }
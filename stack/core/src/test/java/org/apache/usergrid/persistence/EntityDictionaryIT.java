@@ -17,8 +17,11 @@
 package org.apache.usergrid.persistence;
 
 
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import org.junit.Test;
@@ -32,6 +35,7 @@ import org.apache.usergrid.utils.JsonUtils;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 
 @Concurrent()
@@ -131,4 +135,47 @@ public class EntityDictionaryIT extends AbstractCoreIT {
         assertEquals( credentials.getRecoverable(), returned.getRecoverable() );
         assertArrayEquals( credentials.getCryptoChain(), returned.getCryptoChain() );
     }
+
+
+    @Test
+    public void testDictionariesOfMultipleEntities() throws Exception {
+        LOG.info( "EntityDictionaryIT.testDictionariesOfMultipleEntities" );
+
+        UUID applicationId = setup.createApplication( "testOrganization", "testDictionariesOfMultipleEntities" );
+        assertNotNull( applicationId );
+
+        EntityManager em = setup.getEmf().getEntityManager( applicationId );
+        assertNotNull( em );
+
+        List<Entity> things = new ArrayList<Entity>();
+
+        for ( int i = 0; i < 3; i++ ) {
+            Map<String, Object> properties = new LinkedHashMap<String, Object>();
+            properties.put( "name", "thing" + i );
+
+            Entity thing = em.create( "thing", properties );
+            em.addToDictionary( thing, "colors", "color" + i, i );
+            things.add( thing );
+        }
+
+        Map<UUID, Set<String>> names = em.getDictionaries( things );
+
+        assertEquals( 3, names.size() );
+
+        Map<Entity, Set<String>> dictionaries = new LinkedHashMap<Entity, Set<String>>();
+
+        for ( Entity thing : things ) {
+            assertEquals( em.getDictionaries( thing ), names.get( thing.getUuid() ) );
+            assertTrue( names.get( thing.getUuid() ).contains( "colors" ) );
+
+            dictionaries.put( thing, names.get( thing.getUuid() ) );
+        }
+
+        Map<UUID, Map<String, Map<Object, Object>>> contents = em.getDictionariesAsMaps( dictionaries );
+
+        for ( Entity thing : things ) {
+            assertEquals( em.getDictionaryAsMap( thing, "colors" ),
+                    contents.get( thing.getUuid() ).get( "colors" ) );
+        }
+    }
 }
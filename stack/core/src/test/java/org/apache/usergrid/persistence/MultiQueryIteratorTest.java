@@ -0,0 +1,209 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.apache.usergrid.utils.UUIDUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+public class MultiQueryIteratorTest {
+
+    private static final int SOURCES = 20;
+
+    private static final long LATENCY = 50;
+
+    private ExecutorService executor;
+
+    /** The ids each source returns, in source order */
+    private Map<UUID, List<UUID>> children;
+
+
+    @Before
+    public void setup() {
+        executor = Executors.newFixedThreadPool( 8 );
+
+        children = new LinkedHashMap<UUID, List<UUID>>();
+
+        for ( int i = 0; i < SOURCES; i++ ) {
+            List<UUID> ids = new ArrayList<UUID>();
+
+            // leave some sources empty, they have to be skipped without breaking the order
+            for ( int j = 0; j < i % 4; j++ ) {
+                ids.add( UUIDUtils.newTimeUUID() );
+            }
+
+            children.put( UUIDUtils.newTimeUUID(), ids );
+        }
+    }
+
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+
+    @Test
+    public void prefetchKeepsSourceOrder() throws Exception {
+        // random latency so the sub-queries complete out of order
+        EntityManager em = latentEntityManager( true );
+
+        List<UUID> expected = new ArrayList<UUID>();
+
+        for ( List<UUID> ids : children.values() ) {
+            expected.addAll( ids );
+        }
+
+        assertEquals( expected, drain( new MultiQueryIterator( em, children.keySet().iterator(), query() ) ) );
+        assertEquals( expected,
+                drain( new MultiQueryIterator( em, children.keySet().iterator(), query(), executor, 4 ) ) );
+    }
+
+
+    @Test
+    public void prefetchHidesLatency() throws Exception {
+        EntityManager em = latentEntityManager( false );
+
+        long start = System.currentTimeMillis();
+        List<UUID> serial = drain( new MultiQueryIterator( em, children.keySet().iterator(), query() ) );
+        long serialTime = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        List<UUID> prefetched =
+                drain( new MultiQueryIterator( em, children.keySet().iterator(), query(), executor, 4 ) );
+        long prefetchTime = System.currentTimeMillis() - start;
+
+        assertEquals( serial, prefetched );
+
+        assertTrue( serialTime >= SOURCES * LATENCY );
+        assertTrue( "Prefetching took " + prefetchTime + "ms, serial took " + serialTime + "ms",
+                prefetchTime < serialTime / 2 );
+    }
+
+
+    @Test
+    public void closeCancelsPrefetch() throws Exception {
+        final UUID first = children.keySet().iterator().next();
+        final CountDownLatch started = new CountDownLatch( 4 );
+        final CountDownLatch cancelled = new CountDownLatch( 4 );
+
+        // the first source answers at once, every other one waits until its prefetch is cancelled
+        EntityManager em = mock( EntityManager.class );
+
+        when( em.searchCollection( any( EntityRef.class ), eq( "things" ), any( Query.class ) ) )
+                .thenAnswer( new Answer<Results>() {
+                    @Override
+                    public Results answer( InvocationOnMock invocation ) throws Throwable {
+                        EntityRef ref = ( EntityRef ) invocation.getArguments()[0];
+
+                        if ( ref.getUuid().equals( first ) ) {
+                            return Results.fromIdList( Collections.singletonList( UUIDUtils.newTimeUUID() ) );
+                        }
+
+                        started.countDown();
+
+                        try {
+                            Thread.sleep( Long.MAX_VALUE );
+                        }
+                        catch ( InterruptedException e ) {
+                            cancelled.countDown();
+                        }
+
+                        return Results.fromIdList( new ArrayList<UUID>() );
+                    }
+                } );
+
+        MultiQueryIterator itr = new MultiQueryIterator( em, children.keySet().iterator(), query(), executor, 4 );
+
+        assertTrue( itr.hasNext() );
+        itr.next();
+
+        assertTrue( started.await( 10, TimeUnit.SECONDS ) );
+
+        itr.close();
+
+        assertTrue( "Outstanding prefetches weren't cancelled", cancelled.await( 10, TimeUnit.SECONDS ) );
+        assertFalse( itr.hasNext() );
+    }
+
+
+    private static Query query() {
+        Query query = new Query();
+        query.setCollection( "things" );
+        query.setResultsLevel( Results.Level.IDS );
+        return query;
+    }
+
+
+    private static List<UUID> drain( Iterator<?> itr ) {
+        List<UUID> results = new ArrayList<UUID>();
+
+        while ( itr.hasNext() ) {
+            results.add( ( UUID ) itr.next() );
+        }
+
+        return results;
+    }
+
+
+    /** An entity manager that answers collection searches from the children map after a delay */
+    private EntityManager latentEntityManager( final boolean randomLatency ) throws Exception {
+        EntityManager em = mock( EntityManager.class );
+
+        final Random random = new Random();
+
+        when( em.searchCollection( any( EntityRef.class ), eq( "things" ), any( Query.class ) ) )
+                .thenAnswer( new Answer<Results>() {
+                    @Override
+                    public Results answer( InvocationOnMock invocation ) throws Throwable {
+                        EntityRef ref = ( EntityRef ) invocation.getArguments()[0];
+
+                        Thread.sleep( randomLatency ? random.nextInt( ( int ) LATENCY ) : LATENCY );
+
+                        return Results.fromIdList( new ArrayList<UUID>( children.get( ref.getUuid() ) ) );
+                    }
+                } );
+
+        return em;
+    }
+}
@@ -167,6 +167,7 @@ public class PathQueryIT extends AbstractCoreIT {
         int expectedDeviceQuerySize = 3;
 
         PathQuery groupsPQ = new PathQuery( em.getApplicationRef(), groupQuery );
+        groupsPQ.setPrefetch( 4 );
         PathQuery usersPQ = groupsPQ.chain( userQuery );
         PathQuery<Entity> devicesPQ = usersPQ.chain( deviceQuery );
 
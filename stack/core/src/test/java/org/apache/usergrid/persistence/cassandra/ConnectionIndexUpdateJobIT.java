@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.cassandra;
+
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.usergrid.AbstractCoreIT;
+import org.apache.usergrid.CoreITSuite;
+import org.apache.usergrid.batch.service.JobSchedulerService;
+import org.apache.usergrid.persistence.Entity;
+import org.apache.usergrid.persistence.EntityManager;
+import org.apache.usergrid.persistence.Query;
+import org.apache.usergrid.persistence.Results;
+
+import com.google.common.util.concurrent.Service.State;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+
+/** Updates an entity with more incoming connections than are indexed inline and waits for the connection indexes */
+public class ConnectionIndexUpdateJobIT extends AbstractCoreIT {
+
+    private static final Logger LOG = LoggerFactory.getLogger( ConnectionIndexUpdateJobIT.class );
+
+    private static final long WAIT_MAX_MILLIS = 60000;
+
+    /** Deferral is off by default, so the test enables it with this maximum */
+    private static final int INLINE_MAX = 10;
+
+
+    @Test
+    public void connectionQueriesConverge() throws Exception {
+        UUID applicationId = setup.createApplication( "ConnectionIndexUpdateJobIT", "connectionQueriesConverge" );
+        assertNotNull( applicationId );
+
+        EntityManager em = setup.getEmf().getEntityManager( applicationId );
+
+        JobSchedulerService jobScheduler = CoreITSuite.cassandraResource.getBean( JobSchedulerService.class );
+
+        if ( jobScheduler.state() != State.RUNNING ) {
+            jobScheduler.startAndWait();
+        }
+
+        EntityManagerFactoryImpl emf = ( EntityManagerFactoryImpl ) setup.getEmf();
+        int inlineMax = emf.getConnectionIndexInlineMax();
+
+        emf.setConnectionIndexInlineMax( INLINE_MAX );
+
+        try {
+            Map<String, Object> props = new LinkedHashMap<String, Object>();
+            props.put( "name", "popular" );
+            props.put( "color", "red" );
+
+            Entity popular = em.create( "thing", props );
+
+            List<Entity> fans = new ArrayList<Entity>();
+
+            for ( int i = 0; i <= INLINE_MAX; i++ ) {
+                props = new LinkedHashMap<String, Object>();
+                props.put( "name", "fan" + i );
+
+                Entity fan = em.create( "fan", props );
+                em.createConnection( fan, "likes", popular );
+                fans.add( fan );
+            }
+
+            assertEquals( 1, countLikes( em, fans.get( 0 ), "red" ) );
+
+            em.setProperty( popular, "color", "blue" );
+
+            long stop = System.currentTimeMillis() + WAIT_MAX_MILLIS;
+
+            for ( Entity fan : fans ) {
+                while ( countLikes( em, fan, "blue" ) == 0 || countLikes( em, fan, "red" ) > 0 ) {
+                    assertTrue( "Connection index of " + fan.getUuid() + " was not updated in time",
+                            System.currentTimeMillis() < stop );
+                    Thread.sleep( 500 );
+                }
+            }
+
+            LOG.info( "Connection indexes of {} fans were updated", fans.size() );
+        }
+        finally {
+            emf.setConnectionIndexInlineMax( inlineMax );
+        }
+    }
+
+
+    private int countLikes( EntityManager em, Entity fan, String color ) throws Exception {
+        Query query = Query.fromQL( "select * where color = '" + color + "'" );
+        query.setConnectionType( "likes" );
+
+        Results results = em.searchConnectedEntities( fan, query );
+
+        return results.size();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.cassandra;
+
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import org.apache.usergrid.persistence.DynamicEntity;
+import org.apache.usergrid.persistence.Schema;
+import org.apache.usergrid.persistence.cassandra.IndexUpdate.IndexEntry;
+import org.apache.usergrid.persistence.entities.JobData;
+import org.apache.usergrid.utils.JsonUtils;
+import org.apache.usergrid.utils.UUIDUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class ConnectionIndexUpdateJobTest {
+
+    @Test
+    public void roundTrip() {
+        UUID applicationId = UUIDUtils.newTimeUUID();
+        UUID timestamp = UUIDUtils.newTimeUUID();
+        UUID prevTimestamp = UUIDUtils.newTimeUUID();
+        UUID uuidValue = UUIDUtils.newTimeUUID();
+
+        DynamicEntity entity = new DynamicEntity( "cat", UUIDUtils.newTimeUUID() );
+
+        IndexUpdate update = new IndexUpdate( null, entity, "color", "blue", true, false, false, timestamp );
+
+        // a string that looks like a uuid must stay a string, and an integer must stay a big integer
+        update.addPrevEntry( "color", uuidValue.toString(), prevTimestamp, null );
+        update.addPrevEntry( "owner", uuidValue, prevTimestamp, null );
+        update.addNewEntry( "color", "blue" );
+        update.addNewEntry( "age", BigInteger.valueOf( 7 ) );
+        update.addNewEntry( "data", ByteBuffer.wrap( new byte[] { 1, 2, 3 } ) );
+        update.addIndex( "color" );
+
+        JobData data = ConnectionIndexUpdateJob.createJobData( applicationId, update );
+
+        IndexUpdate restored = ConnectionIndexUpdateJob.toIndexUpdate( reload( data ) );
+
+        assertEquals( entity.getUuid(), restored.getEntity().getUuid() );
+        assertEquals( entity.getType(), restored.getEntity().getType() );
+        assertEquals( "color", restored.getEntryName() );
+        assertEquals( timestamp, restored.getTimestampUuid() );
+        assertEquals( update.getTimestamp(), restored.getTimestamp() );
+        assertEquals( update.isMultiValue(), restored.isMultiValue() );
+        assertEquals( update.isRemoveListEntry(), restored.isRemoveListEntry() );
+        assertEquals( update.getIndexesSet(), restored.getIndexesSet() );
+
+        assertEntriesEqual( update, restored );
+    }
+
+
+    @Test
+    public void unsupportedValue() {
+        DynamicEntity entity = new DynamicEntity( "cat", UUIDUtils.newTimeUUID() );
+
+        IndexUpdate update = new IndexUpdate( null, entity, "age", 7, true, false, false, UUIDUtils.newTimeUUID() );
+
+        // values are made indexable before they're added, so a long is never expected
+        update.addNewEntry( "age", Long.valueOf( 7 ) );
+
+        assertNull( ConnectionIndexUpdateJob.createJobData( UUIDUtils.newTimeUUID(), update ) );
+    }
+
+
+    /** Pass every property through the same serialization the entity manager uses to store and load job data */
+    private JobData reload( JobData data ) {
+        JobData reloaded = new JobData();
+
+        for ( Map.Entry<String, Object> property : data.getProperties().entrySet() ) {
+            ByteBuffer bytes = Schema.serializeEntityProperty( "jobData", property.getKey(), property.getValue() );
+
+            reloaded.setProperty( property.getKey(),
+                    Schema.deserializeEntityProperty( "jobData", property.getKey(), bytes ) );
+        }
+
+        return reloaded;
+    }
+
+
+    private void assertEntriesEqual( IndexUpdate expected, IndexUpdate actual ) {
+        assertEquals( expected.getPrevEntries().size(), actual.getPrevEntries().size() );
+        assertEquals( expected.getNewEntries().size(), actual.getNewEntries().size() );
+
+        for ( int i = 0; i < expected.getPrevEntries().size(); i++ ) {
+            assertEntryEquals( expected.getPrevEntries().get( i ), actual.getPrevEntries().get( i ) );
+        }
+
+        for ( int i = 0; i < expected.getNewEntries().size(); i++ ) {
+            assertEntryEquals( expected.getNewEntries().get( i ), actual.getNewEntries().get( i ) );
+        }
+    }
+
+
+    private void assertEntryEquals( IndexEntry expected, IndexEntry actual ) {
+        assertEquals( expected.getPath(), actual.getPath() );
+        assertEquals( expected.getValue(), actual.getValue() );
+        assertTrue( expected.getValue().getClass().isInstance( actual.getValue() ) );
+        assertEquals( expected.getValueCode(), actual.getValueCode() );
+        assertEquals( expected.getTimestampUuid(), actual.getTimestampUuid() );
+        assertEquals( expected.getIndexComposite().serialize(), actual.getIndexComposite().serialize() );
+    }
+}
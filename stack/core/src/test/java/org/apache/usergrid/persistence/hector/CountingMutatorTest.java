@@ -0,0 +1,223 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.hector;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import me.prettyprint.hector.api.exceptions.HectorException;
+import me.prettyprint.hector.api.mutation.MutationResult;
+import me.prettyprint.hector.api.mutation.Mutator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+public class CountingMutatorTest {
+
+    private static final int MAX_SIZE = 3;
+
+
+    @Test
+    public void pipelinedFlushes() {
+        BatchFactory factory = new BatchFactory();
+
+        CountingMutator<String> mutator = new CountingMutator<String>( factory, MAX_SIZE, 2 );
+
+        for ( int i = 0; i < MAX_SIZE * 3 + 1; i++ ) {
+            mutator.addDeletion( "key" + i, "cf" );
+        }
+
+        // three full batches were handed off, the last mutation is still pending
+        assertEquals( 4, factory.batches.size() );
+        assertEquals( 1, mutator.getPendingMutationCount() );
+
+        mutator.execute();
+
+        for ( FakeBatch batch : factory.batches ) {
+            assertEquals( 1, batch.executions.get() );
+        }
+    }
+
+
+    @Test
+    public void flushFailureSurfacesOnExecute() {
+        HectorException failure = new HectorException( "flush failed" );
+
+        BatchFactory factory = new BatchFactory();
+        factory.failing = 0;
+        factory.failure = failure;
+
+        CountingMutator<String> mutator = new CountingMutator<String>( factory, MAX_SIZE, 2 );
+
+        for ( int i = 0; i < MAX_SIZE * 4 + 1; i++ ) {
+            mutator.addDeletion( "key" + i, "cf" );
+        }
+
+        try {
+            mutator.execute();
+            fail( "The flush failure should have been thrown" );
+        }
+        catch ( HectorException e ) {
+            assertSame( failure, e );
+        }
+
+        // the mutations left after the failure were discarded, not written
+        FakeBatch last = factory.batches.get( factory.batches.size() - 1 );
+        assertEquals( 0, last.executions.get() );
+        assertEquals( 0, last.pending.get() );
+
+        // the failure is only reported once
+        mutator.execute();
+    }
+
+
+    @Test
+    public void backpressure() throws Exception {
+        final CountDownLatch release = new CountDownLatch( 1 );
+
+        BatchFactory factory = new BatchFactory();
+        factory.block = release;
+
+        final CountingMutator<String> mutator = new CountingMutator<String>( factory, MAX_SIZE, 1 );
+
+        final CountDownLatch built = new CountDownLatch( 1 );
+
+        Thread builder = new Thread() {
+            @Override
+            public void run() {
+                // the second full batch must wait for the first to finish flushing
+                for ( int i = 0; i < MAX_SIZE * 2; i++ ) {
+                    mutator.addDeletion( "key" + i, "cf" );
+                }
+                built.countDown();
+            }
+        };
+
+        builder.start();
+
+        assertTrue( !built.await( 500, TimeUnit.MILLISECONDS ) );
+
+        release.countDown();
+
+        assertTrue( built.await( 5, TimeUnit.SECONDS ) );
+
+        mutator.execute();
+    }
+
+
+    @Test
+    public void synchronousFlush() {
+        FakeBatch batch = new FakeBatch( null, null );
+
+        CountingMutator<String> mutator = new CountingMutator<String>( batch.mutator, MAX_SIZE );
+
+        for ( int i = 0; i < MAX_SIZE; i++ ) {
+            mutator.addDeletion( "key" + i, "cf" );
+        }
+
+        assertEquals( 1, batch.executions.get() );
+        verify( batch.mutator, never() ).discardPendingMutations();
+    }
+
+
+    /** Creates mock mutators that count their pending mutations, the batch at index failing throws when executed */
+    private static class BatchFactory implements CountingMutator.MutatorFactory<String> {
+
+        private final List<FakeBatch> batches = new ArrayList<FakeBatch>();
+
+        private int failing = -1;
+        private RuntimeException failure;
+        private CountDownLatch block;
+
+
+        @Override
+        public synchronized Mutator<String> createMutator() {
+            FakeBatch batch = new FakeBatch( batches.size() == failing ? failure : null, block );
+            batches.add( batch );
+            return batch.mutator;
+        }
+    }
+
+
+    private static class FakeBatch {
+
+        @SuppressWarnings("unchecked")
+        private final Mutator<String> mutator = mock( Mutator.class );
+
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicInteger executions = new AtomicInteger();
+
+
+        private FakeBatch( final RuntimeException failure, final CountDownLatch block ) {
+            when( mutator.addDeletion( anyString(), anyString() ) ).thenAnswer( new Answer<Mutator<String>>() {
+                @Override
+                public Mutator<String> answer( InvocationOnMock invocation ) {
+                    pending.incrementAndGet();
+                    return mutator;
+                }
+            } );
+
+            when( mutator.getPendingMutationCount() ).thenAnswer( new Answer<Integer>() {
+                @Override
+                public Integer answer( InvocationOnMock invocation ) {
+                    return pending.get();
+                }
+            } );
+
+            when( mutator.discardPendingMutations() ).thenAnswer( new Answer<Mutator<String>>() {
+                @Override
+                public Mutator<String> answer( InvocationOnMock invocation ) {
+                    pending.set( 0 );
+                    return mutator;
+                }
+            } );
+
+            when( mutator.execute() ).thenAnswer( new Answer<MutationResult>() {
+                @Override
+                public MutationResult answer( InvocationOnMock invocation ) throws Throwable {
+                    if ( block != null ) {
+                        block.await();
+                    }
+
+                    if ( failure != null ) {
+                        throw failure;
+                    }
+
+                    executions.incrementAndGet();
+                    pending.set( 0 );
+                    return mock( MutationResult.class );
+                }
+            } );
+        }
+    }
+}
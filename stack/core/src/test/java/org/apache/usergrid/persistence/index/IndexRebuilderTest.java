@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.index;
+
+
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import org.apache.usergrid.utils.UUIDUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class IndexRebuilderTest {
+
+    @Test
+    public void splitTimeRange() {
+        long start = 1380000000000L;
+
+        UUID first = UUIDUtils.newTimeUUID( start );
+        UUID last = UUIDUtils.newTimeUUID( start + 1000 );
+
+        List<UUID> bounds = IndexRebuilder.split( first, last, 4 );
+
+        assertEquals( 3, bounds.size() );
+
+        UUID previous = first;
+
+        for ( UUID bound : bounds ) {
+            assertTrue( UUIDUtils.compare( previous, bound ) < 0 );
+            previous = bound;
+        }
+
+        assertTrue( UUIDUtils.compare( previous, last ) < 0 );
+        assertEquals( start + 250, UUIDUtils.getTimestampInMillis( bounds.get( 0 ) ) );
+    }
+
+
+    @Test
+    public void narrowRangeIsNotSplit() {
+        long start = 1380000000000L;
+
+        assertEquals( 0, IndexRebuilder
+                .split( UUIDUtils.newTimeUUID( start ), UUIDUtils.newTimeUUID( start + 3 ), 4 ).size() );
+    }
+
+
+    @Test
+    public void randomIdsAreNotSplit() {
+        assertEquals( 0, IndexRebuilder.split( UUID.randomUUID(), UUID.randomUUID(), 4 ).size() );
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.query.ir.result;
+
+
+import java.util.Set;
+
+import org.junit.Ignore;
+
+
+/**
+ * An in order iterator that counts the pages read from it
+ */
+@Ignore("not a test")
+public class CountingIterator extends InOrderIterator {
+
+    private int reads;
+
+
+    public CountingIterator( int pageSize ) {
+        super( pageSize );
+    }
+
+
+    @Override
+    public Set<ScanColumn> next() {
+        reads++;
+        return super.next();
+    }
+
+
+    /** @return the number of pages read so far */
+    public int getReads() {
+        return reads;
+    }
+}
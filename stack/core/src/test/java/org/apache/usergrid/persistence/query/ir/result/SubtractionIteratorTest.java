@@ -17,6 +17,8 @@
 package org.apache.usergrid.persistence.query.ir.result;
 
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 
@@ -178,4 +180,107 @@ public class SubtractionIteratorTest {
         assertTrue( page.contains( uuidColumn( id1 ) ) );
         assertEquals( 1, page.size() );
     }
+
+
+    @Test
+    public void mergedSubtract() {
+        UUID id1 = UUIDUtils.minTimeUUID( 1 );
+        UUID id2 = UUIDUtils.minTimeUUID( 2 );
+        UUID id3 = UUIDUtils.minTimeUUID( 3 );
+        UUID id4 = UUIDUtils.minTimeUUID( 4 );
+        UUID id5 = UUIDUtils.minTimeUUID( 5 );
+        UUID id6 = UUIDUtils.minTimeUUID( 6 );
+
+        InOrderIterator keep = new InOrderIterator( 2 );
+        keep.add( id1, id2, id3, id4, id5 );
+
+        InOrderIterator subtract = new InOrderIterator( 2 );
+        subtract.add( id1, id3, id5, id6 );
+
+        SubtractionIterator sub = new SubtractionIterator( 100 );
+        sub.setKeepIterator( keep );
+        sub.setSubtractIterator( subtract );
+        sub.setUuidOrdered( true );
+
+        Set<ScanColumn> page = sub.next();
+
+        assertTrue( page.contains( uuidColumn( id2 ) ) );
+        assertTrue( page.contains( uuidColumn( id4 ) ) );
+        assertEquals( 2, page.size() );
+
+        assertFalse( sub.hasNext() );
+    }
+
+
+    @Test
+    public void mergedReadsSubtractOnce() {
+        List<Set<ScanColumn>> legacyPages = new ArrayList<Set<ScanColumn>>();
+        List<Set<ScanColumn>> mergedPages = new ArrayList<Set<ScanColumn>>();
+
+        CountingIterator legacySubtract = subtractEvens();
+        CountingIterator mergedSubtract = subtractEvens();
+
+        SubtractionIterator legacy = new SubtractionIterator( 20 );
+        legacy.setKeepIterator( keepAll() );
+        legacy.setSubtractIterator( legacySubtract );
+
+        for ( Set<ScanColumn> page : legacy ) {
+            legacyPages.add( page );
+        }
+
+        SubtractionIterator merged = new SubtractionIterator( 20 );
+        merged.setKeepIterator( keepAll() );
+        merged.setSubtractIterator( mergedSubtract );
+        merged.setUuidOrdered( true );
+
+        for ( Set<ScanColumn> page : merged ) {
+            mergedPages.add( page );
+        }
+
+        assertEquals( legacyPages, mergedPages );
+        assertEquals( 50, countColumns( mergedPages ) );
+
+        // 5 pages of subtract, each read once instead of once for every page of keep
+        assertEquals( 5, mergedSubtract.getReads() );
+        assertEquals( 50, legacySubtract.getReads() );
+
+        // a reset must start the merge over from the beginning of subtract
+        merged.reset();
+
+        assertEquals( 50, countColumns( merged ) );
+        assertEquals( 10, mergedSubtract.getReads() );
+    }
+
+
+    private static InOrderIterator keepAll() {
+        InOrderIterator keep = new InOrderIterator( 10 );
+
+        for ( int i = 0; i < 100; i++ ) {
+            keep.add( UUIDUtils.minTimeUUID( i ) );
+        }
+
+        return keep;
+    }
+
+
+    private static CountingIterator subtractEvens() {
+        CountingIterator subtract = new CountingIterator( 10 );
+
+        for ( int i = 0; i < 100; i += 2 ) {
+            subtract.add( UUIDUtils.minTimeUUID( i ) );
+        }
+
+        return subtract;
+    }
+
+
+    private static int countColumns( Iterable<Set<ScanColumn>> pages ) {
+        int count = 0;
+
+        for ( Set<ScanColumn> page : pages ) {
+            count += page.size();
+        }
+
+        return count;
+    }
 }
@@ -18,7 +18,9 @@ package org.apache.usergrid.persistence.query.ir.result;
 
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 
@@ -464,4 +466,99 @@ public class UnionIteratorTest {
             array[array.length - i - 1] = temp;
         }
     }
+
+
+    @Test
+    public void mergedPagesReadOnce() {
+        // evens in one child, multiples of 3 in the other, 10 per page
+        CountingIterator evens = new CountingIterator( 10 );
+        CountingIterator threes = new CountingIterator( 10 );
+
+        Set<UUID> expected = new HashSet<UUID>();
+
+        for ( int i = 0; i < 100; i++ ) {
+            UUID id = UUIDUtils.minTimeUUID( i );
+
+            if ( i % 2 == 0 ) {
+                evens.add( id );
+                expected.add( id );
+            }
+
+            if ( i % 3 == 0 ) {
+                threes.add( id );
+                expected.add( id );
+            }
+        }
+
+        UnionIterator union = new UnionIterator( 10, 0, null );
+        union.addIterator( evens );
+        union.addIterator( threes );
+        union.setUuidOrdered( true );
+
+        List<UUID> results = new ArrayList<UUID>();
+
+        int lastReads = 0;
+
+        while ( union.hasNext() ) {
+            Set<ScanColumn> page = union.next();
+
+            assertTrue( page.size() <= 10 );
+
+            for ( ScanColumn col : page ) {
+                results.add( col.getUUID() );
+            }
+
+            // a page of 10 results can never need more than one new page from each child
+            int reads = evens.getReads() + threes.getReads();
+            assertTrue( "Read " + ( reads - lastReads ) + " pages for one page of results", reads - lastReads <= 2 );
+            lastReads = reads;
+        }
+
+        // every child page was read exactly once, 5 of evens and 4 of threes
+        assertEquals( 5, evens.getReads() );
+        assertEquals( 4, threes.getReads() );
+
+        assertEquals( expected.size(), results.size() );
+        assertEquals( expected, new HashSet<UUID>( results ) );
+
+        for ( int i = 1; i < results.size(); i++ ) {
+            assertTrue( UUIDUtils.compare( results.get( i - 1 ), results.get( i ) ) < 0 );
+        }
+    }
+
+
+    @Test
+    public void mergedValidCursorBytes() {
+        ByteBuffer cursor = UUIDSerializer.get().toByteBuffer( UUIDUtils.minTimeUUID( 4 ) );
+
+        UUID id1 = UUIDUtils.minTimeUUID( 1 );
+        UUID id2 = UUIDUtils.minTimeUUID( 2 );
+        UUID id4 = UUIDUtils.minTimeUUID( 4 );
+        UUID id5 = UUIDUtils.minTimeUUID( 5 );
+        UUID id6 = UUIDUtils.minTimeUUID( 6 );
+
+        InOrderIterator first = new InOrderIterator( 2 );
+        first.add( id1, id4, id5 );
+
+        InOrderIterator second = new InOrderIterator( 2 );
+        second.add( id2, id4, id6 );
+
+        UnionIterator union = new UnionIterator( 100, 1, cursor );
+        union.addIterator( first );
+        union.addIterator( second );
+        union.setUuidOrdered( true );
+
+        Set<ScanColumn> ids = union.next();
+
+        assertEquals( 2, ids.size() );
+        assertTrue( ids.contains( uuidColumn( id5 ) ) );
+        assertTrue( ids.contains( uuidColumn( id6 ) ) );
+
+        assertFalse( union.hasNext() );
+
+        // a reset resumes from the cursor again
+        union.reset();
+
+        assertEquals( ids, union.next() );
+    }
 }
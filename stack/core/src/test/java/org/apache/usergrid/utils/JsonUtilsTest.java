@@ -17,10 +17,13 @@
 package org.apache.usergrid.utils;
 
 
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 import org.codehaus.jackson.node.JsonNodeFactory;
 import org.codehaus.jackson.node.ObjectNode;
@@ -29,6 +32,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 
 public class JsonUtilsTest {
@@ -82,4 +86,65 @@ public class JsonUtilsTest {
         Object o = JsonUtils.normalizeJsonTree( node );
         assertEquals( java.util.LinkedHashMap.class, o.getClass() );
     }
+
+
+    @Test
+    public void testNormalizedDecodeMatchesTree() {
+        UUID uuid = UUIDUtils.newTimeUUID();
+
+        Map<String, Object> nested = new LinkedHashMap<String, Object>();
+        nested.put( "id", uuid.toString() );
+        nested.put( "count", 3 );
+        nested.put( "list", Arrays.asList( 1, uuid.toString() ) );
+
+        Map<String, Object> json = new LinkedHashMap<String, Object>();
+        json.put( "name", uuid.toString() );
+        json.put( "id", uuid.toString() );
+        json.put( "small", 1 );
+        json.put( "large", Long.MAX_VALUE );
+        json.put( "huge", new BigInteger( "123456789012345678901234567890" ) );
+        json.put( "ratio", 0.5 );
+        json.put( "flag", true );
+        json.put( "nothing", null );
+        json.put( "almost", "not-a-uuid-but-exactly-36-characters" );
+        json.put( "nested", nested );
+        json.put( "maps", Arrays.asList( nested, Arrays.asList( 7, nested ) ) );
+
+        List<Object> values = Arrays.<Object>asList( json, Arrays.asList( json, 5 ), uuid.toString(), 42, 2.5, "text",
+                Arrays.asList() );
+
+        for ( Object value : values ) {
+            ByteBuffer bytes = JsonUtils.toByteBuffer( value );
+
+            Object tree = JsonUtils.normalizeJsonTree( JsonUtils.fromByteBuffer( bytes.duplicate() ) );
+            Object streamed = JsonUtils.fromByteBufferNormalized( bytes.duplicate() );
+
+            assertEquals( tree, streamed );
+            assertEquals( describeTypes( tree ), describeTypes( streamed ) );
+        }
+
+        assertNull( JsonUtils.fromByteBufferNormalized( ByteBuffer.allocate( 0 ) ) );
+    }
+
+
+    /** Flatten a value into the java types it's made of, so equal values of different types are told apart */
+    private String describeTypes( Object value ) {
+        if ( value instanceof Map ) {
+            StringBuilder builder = new StringBuilder( "{" );
+            for ( Map.Entry<?, ?> entry : ( ( Map<?, ?> ) value ).entrySet() ) {
+                builder.append( entry.getKey() ).append( '=' ).append( describeTypes( entry.getValue() ) ).append( ',' );
+            }
+            return builder.append( '}' ).toString();
+        }
+
+        if ( value instanceof List ) {
+            StringBuilder builder = new StringBuilder( "[" );
+            for ( Object element : ( List<?> ) value ) {
+                builder.append( describeTypes( element ) ).append( ',' );
+            }
+            return builder.append( ']' ).toString();
+        }
+
+        return value == null ? "null" : value.getClass().getSimpleName();
+    }
 }
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.utils;
+
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class TokenBucketTest {
+
+    @Test
+    public void burstThenRefill() {
+        FakeTicker ticker = new FakeTicker();
+        TokenBucket bucket = new TokenBucket( 10, 5, ticker );
+
+        for ( int i = 0; i < 5; i++ ) {
+            assertTrue( bucket.tryAcquire( 1 ) );
+        }
+
+        assertFalse( bucket.tryAcquire( 1 ) );
+        assertEquals( 100, bucket.getWaitMillis( 1 ) );
+
+        ticker.advance( 100 );
+
+        assertTrue( bucket.tryAcquire( 1 ) );
+        assertFalse( bucket.tryAcquire( 1 ) );
+    }
+
+
+    @Test
+    public void neverExceedsCapacity() {
+        FakeTicker ticker = new FakeTicker();
+        TokenBucket bucket = new TokenBucket( 1000, 20, ticker );
+
+        assertTrue( bucket.tryAcquire( 20 ) );
+
+        ticker.advance( 60000 );
+
+        assertEquals( 20, bucket.getAvailable() );
+        assertEquals( 0, bucket.getWaitMillis( 20 ) );
+    }
+
+
+    @Test
+    public void acquireWaits() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket( 100, 1 );
+
+        long start = System.nanoTime();
+
+        for ( int i = 0; i < 11; i++ ) {
+            bucket.acquire( 1 );
+        }
+
+        // the first permit is free, the other ten need 10ms each
+        assertTrue( TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) >= 90 );
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void moreThanCapacity() {
+        new TokenBucket( 10, 5 ).tryAcquire( 6 );
+    }
+
+
+    private static class FakeTicker extends Ticker {
+
+        private long nanos;
+
+
+        public void advance( long millis ) {
+            nanos += TimeUnit.MILLISECONDS.toNanos( millis );
+        }
+
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+    }
+}
@@ -220,6 +220,57 @@ public class UUIDUtilsTest {
     }
 
 
+    @Test
+    public void concurrentUniqueAndMonotonic() throws Exception {
+        final int threads = 8;
+        final int count = 100 * 1000;
+
+        ExecutorService exec = Executors.newFixedThreadPool( threads );
+        List<Future<List<UUID>>> jobs = new ArrayList<Future<List<UUID>>>( threads );
+
+        long startTime = System.currentTimeMillis();
+
+        for ( int x = 0; x < threads; x++ ) {
+            jobs.add( exec.submit( new Callable<List<UUID>>() {
+                @Override
+                public List<UUID> call() throws Exception {
+                    List<UUID> uuids = new ArrayList<UUID>( count );
+
+                    for ( int i = 0; i < count; i++ ) {
+                        uuids.add( newTimeUUID() );
+                    }
+
+                    return uuids;
+                }
+            } ) );
+        }
+
+        Set<Long> micros = new HashSet<Long>( threads * count );
+
+        for ( Future<List<UUID>> job : jobs ) {
+            long previous = 0;
+
+            for ( UUID uuid : job.get() ) {
+                long timestamp = UUIDUtils.getTimestampInMicros( uuid );
+
+                assertTrue( "Timestamps must increase within a thread", timestamp > previous );
+                assertTrue( "Timestamp already generated", micros.add( timestamp ) );
+
+                previous = timestamp;
+            }
+        }
+
+        long elapsed = System.currentTimeMillis() - startTime;
+
+        exec.shutdown();
+
+        LOG.info( "{} threads generated {} UUIDs in {} ms", new Object[] { threads, threads * count, elapsed } );
+
+        // the generator never runs ahead of the clock
+        assertTrue( UUIDUtils.getTimestampInMillis( newTimeUUID() ) <= System.currentTimeMillis() );
+    }
+
+
     @Test
     public void timeUUIDOrderingRolls() {
 
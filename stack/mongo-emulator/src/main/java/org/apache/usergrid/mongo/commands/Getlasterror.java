@@ -17,9 +17,14 @@
 package org.apache.usergrid.mongo.commands;
 
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.MessageEvent;
 import org.apache.usergrid.mongo.MongoChannelHandler;
+import org.apache.usergrid.mongo.protocol.BulkInsertException;
 import org.apache.usergrid.mongo.protocol.OpQuery;
 import org.apache.usergrid.mongo.protocol.OpReply;
 
@@ -33,8 +38,23 @@ public class Getlasterror extends MongoCommand {
     public OpReply execute( MongoChannelHandler handler, ChannelHandlerContext ctx, MessageEvent e, OpQuery opQuery ) {
         OpReply reply = new OpReply( opQuery );
 
+        // a partially failed insert, report the error of each document
+        if ( ctx.getAttachment() instanceof BulkInsertException ) {
+            BulkInsertException bulkError = ( BulkInsertException ) ctx.getAttachment();
+
+            List<Map<?, ?>> writeErrors = new ArrayList<Map<?, ?>>();
+
+            for ( Map.Entry<Integer, Exception> error : bulkError.getErrors().entrySet() ) {
+                writeErrors.add( map( entry( "index", error.getKey() ),
+                        entry( "errmsg", error.getValue().getMessage() ) ) );
+            }
+
+            reply.addDocument( map( entry( "n", 0 ), entry( "connectionId", 20 ), entry( "wtime", 0 ),
+                    entry( "err", bulkError.getMessage() ), entry( "writeErrors", writeErrors ),
+                    entry( "ok", 0.0 ) ) );
+        }
         // there's an error in the attachment
-        if ( ctx.getAttachment() instanceof Exception ) {
+        else if ( ctx.getAttachment() instanceof Exception ) {
             reply.addDocument( map( entry( "n", 0 ), entry( "connectionId", 20 ), entry( "wtime", 0 ),
                     entry( "err", ( ( Exception ) ctx.getAttachment() ).getMessage() ), entry( "ok", 0.0 ) ) );
         }
@@ -0,0 +1,45 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.mongo.protocol;
+
+
+import java.util.Map;
+
+
+/**
+ * Reports the documents of an insert that could not be created.  Mongo only has a single "err" to report through
+ * getlasterror, so the message is that of the first failed document, and the failure of every document is available
+ * by its position in the insert
+ */
+public class BulkInsertException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Map<Integer, Exception> errors;
+
+
+    public BulkInsertException( Map<Integer, Exception> errors ) {
+        super( errors.isEmpty() ? null : errors.values().iterator().next().getMessage() );
+        this.errors = errors;
+    }
+
+
+    /** @return the failures keyed by the index of the document in the insert */
+    public Map<Integer, Exception> getErrors() {
+        return errors;
+    }
+}
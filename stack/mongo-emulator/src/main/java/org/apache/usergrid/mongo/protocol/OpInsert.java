@@ -35,6 +35,7 @@ import org.slf4j.LoggerFactory;
 import org.apache.usergrid.management.ApplicationInfo;
 import org.apache.usergrid.mongo.MongoChannelHandler;
 import org.apache.usergrid.mongo.utils.BSONUtils;
+import org.apache.usergrid.persistence.BulkCreateResults;
 import org.apache.usergrid.persistence.EntityManager;
 import org.apache.usergrid.persistence.Identifier;
 import org.apache.usergrid.security.shiro.utils.SubjectUtils;
@@ -146,23 +147,35 @@ public class OpInsert extends OpCrud {
 
         EntityManager em = handler.getEmf().getEntityManager( application.getId() );
 
+        List<Map<String, Object>> propertiesList = new ArrayList<Map<String, Object>>( documents.size() );
 
         for ( BSONObject document : documents ) {
-            try {
-                //special case to serialize mongo ObjectId if required
-                Object id = document.get( "_id" );
+            //special case to serialize mongo ObjectId if required
+            Object id = document.get( "_id" );
 
-                if ( id instanceof ObjectId ) {
-                    document.put( "_id", ( ( ObjectId ) id ).toStringMongod() );
+            if ( id instanceof ObjectId ) {
+                document.put( "_id", ( ( ObjectId ) id ).toStringMongod() );
+            }
+
+            propertiesList.add( document.toMap() );
+        }
+
+        try {
+            BulkCreateResults results = em.createBulk( getCollectionName(), propertiesList );
+
+            if ( results.hasErrors() ) {
+                for ( Map.Entry<Integer, Exception> error : results.getErrors().entrySet() ) {
+                    logger.error( "Unable to insert mongo document {}", documents.get( error.getKey() ),
+                            error.getValue() );
                 }
 
-                em.create( getCollectionName(), document.toMap() );
-            }
-            catch ( Exception e ) {
-                logger.error( "Unable to insert mongo document {}", document, e );
-                ctx.setAttachment( e );
+                ctx.setAttachment( new BulkInsertException( results.getErrors() ) );
             }
         }
+        catch ( Exception e ) {
+            logger.error( "Unable to insert {} mongo documents", documents.size(), e );
+            ctx.setAttachment( e );
+        }
 
         //insert never returns a response in mongo
         return null;
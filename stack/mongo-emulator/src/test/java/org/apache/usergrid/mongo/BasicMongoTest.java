@@ -33,6 +33,7 @@ import org.apache.usergrid.persistence.Results;
 import org.apache.usergrid.persistence.SimpleEntityRef;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
@@ -162,6 +163,41 @@ public class BasicMongoTest extends AbstractMongoTest {
     }
 
 
+    @Test
+    public void insertBatchWriteErrorsTest() throws Exception {
+
+        DB db = getDb();
+
+        BasicDBObject taken = new BasicDBObject();
+        taken.put( "username", "insertbatchtaken" );
+
+        assertNull( db.getCollection( "users" ).insert( taken ).getError() );
+
+        List<DBObject> docs = new ArrayList<DBObject>();
+
+        for ( String username : new String[] { "insertbatch1", "insertbatchtaken", "insertbatch2" } ) {
+            BasicDBObject doc = new BasicDBObject();
+            doc.put( "username", username );
+            docs.add( doc );
+        }
+
+        db.getCollection( "users" ).insert( docs, WriteConcern.NONE );
+
+        CommandResult lastError = db.getLastError();
+
+        assertFalse( lastError.ok() );
+
+        // only the document with the taken username failed, and it's reported by its position in the batch
+        List<?> writeErrors = ( List<?> ) lastError.get( "writeErrors" );
+
+        assertEquals( 1, writeErrors.size() );
+        assertEquals( 1, ( ( DBObject ) writeErrors.get( 0 ) ).get( "index" ) );
+
+        assertNotNull( db.getCollection( "users" ).findOne( new BasicDBObject( "username", "insertbatch1" ) ) );
+        assertNotNull( db.getCollection( "users" ).findOne( new BasicDBObject( "username", "insertbatch2" ) ) );
+    }
+
+
     @Test
     public void updateTest() throws Exception {
 
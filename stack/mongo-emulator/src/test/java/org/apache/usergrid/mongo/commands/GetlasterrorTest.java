@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.mongo.commands;
+
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.bson.BSONObject;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.junit.Test;
+import org.apache.usergrid.mongo.protocol.BulkInsertException;
+import org.apache.usergrid.mongo.protocol.OpQuery;
+import org.apache.usergrid.mongo.protocol.OpReply;
+import org.apache.usergrid.persistence.exceptions.DuplicateUniquePropertyExistsException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class GetlasterrorTest {
+
+    @Test
+    public void reportsEachFailedDocument() {
+        Map<Integer, Exception> errors = new TreeMap<Integer, Exception>();
+        errors.put( 1, new DuplicateUniquePropertyExistsException( "user", "username", "taken" ) );
+        errors.put( 3, new IllegalArgumentException( "bad document" ) );
+
+        BSONObject lastError = getLastError( new BulkInsertException( errors ) );
+
+        assertEquals( 0.0, lastError.get( "ok" ) );
+        assertEquals( errors.get( 1 ).getMessage(), lastError.get( "err" ) );
+
+        List<?> writeErrors = ( List<?> ) lastError.get( "writeErrors" );
+
+        assertEquals( 2, writeErrors.size() );
+
+        assertEquals( 1, ( ( Map<?, ?> ) writeErrors.get( 0 ) ).get( "index" ) );
+        assertEquals( errors.get( 1 ).getMessage(), ( ( Map<?, ?> ) writeErrors.get( 0 ) ).get( "errmsg" ) );
+
+        assertEquals( 3, ( ( Map<?, ?> ) writeErrors.get( 1 ) ).get( "index" ) );
+        assertEquals( "bad document", ( ( Map<?, ?> ) writeErrors.get( 1 ) ).get( "errmsg" ) );
+    }
+
+
+    @Test
+    public void reportsSingleError() {
+        BSONObject lastError = getLastError( new IllegalArgumentException( "no such application" ) );
+
+        assertEquals( 0.0, lastError.get( "ok" ) );
+        assertEquals( "no such application", lastError.get( "err" ) );
+        assertNull( lastError.get( "writeErrors" ) );
+    }
+
+
+    @Test
+    public void reportsSuccess() {
+        BSONObject lastError = getLastError( null );
+
+        assertEquals( 1.0, lastError.get( "ok" ) );
+        assertNull( lastError.get( "err" ) );
+    }
+
+
+    private static BSONObject getLastError( Object attachment ) {
+        OpReply reply = new Getlasterror().execute( null, context( attachment ), null, new OpQuery() );
+
+        assertEquals( 1, reply.getDocuments().size() );
+
+        return reply.getDocuments().get( 0 );
+    }
+
+
+    /** A channel context that only holds the attachment OpInsert leaves behind */
+    private static ChannelHandlerContext context( final Object attachment ) {
+        return ( ChannelHandlerContext ) Proxy.newProxyInstance( ChannelHandlerContext.class.getClassLoader(),
+                new Class<?>[] { ChannelHandlerContext.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke( Object proxy, Method method, Object[] args ) {
+                        if ( "getAttachment".equals( method.getName() ) ) {
+                            return attachment;
+                        }
+                        throw new UnsupportedOperationException( method.getName() );
+                    }
+                } );
+    }
+}
@@ -17,6 +17,8 @@
 package org.apache.usergrid.rest;
 
 
+import java.util.Properties;
+
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.ext.ContextResolver;
@@ -25,9 +27,13 @@ import javax.ws.rs.ext.Provider;
 import org.codehaus.jackson.jaxrs.Annotations;
 import org.codehaus.jackson.jaxrs.MapperConfigurator;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectWriter;
 import org.codehaus.jackson.map.SerializationConfig;
+import org.codehaus.jackson.smile.SmileFactory;
+import org.codehaus.jackson.util.MinimalPrettyPrinter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
 
@@ -41,7 +47,13 @@ public class JacksonCustomMapperProvider implements ContextResolver<ObjectMapper
     private static final Logger logger = LoggerFactory.getLogger( JacksonCustomMapperProvider.class );
 
     public final static Annotations[] BASIC_ANNOTATIONS = { Annotations.JACKSON };
+
+    /** Whether JSON responses are indented unless the request says otherwise with the pretty parameter */
+    public static final String PROPERTIES_PRETTY = "usergrid.rest.pretty";
+
     MapperConfigurator _mapperConfig;
+    MapperConfigurator _smileMapperConfig;
+    boolean pretty = true;
 
 
     public JacksonCustomMapperProvider() {
@@ -51,6 +63,43 @@ public class JacksonCustomMapperProvider implements ContextResolver<ObjectMapper
         // do configuration of mapper here
         _mapperConfig.configure( SerializationConfig.Feature.INDENT_OUTPUT, true );
         _mapperConfig.configure( SerializationConfig.Feature.WRITE_DATES_AS_TIMESTAMPS, false );
+
+        _smileMapperConfig = new MapperConfigurator( new ObjectMapper( new SmileFactory() ), BASIC_ANNOTATIONS );
+        _smileMapperConfig.setAnnotationsToUse( BASIC_ANNOTATIONS );
+        _smileMapperConfig.configure( SerializationConfig.Feature.WRITE_DATES_AS_TIMESTAMPS, false );
+    }
+
+
+    @Autowired(required = false)
+    public void setProperties( Properties properties ) {
+        setPretty( Boolean.parseBoolean( properties.getProperty( PROPERTIES_PRETTY, "true" ) ) );
+    }
+
+
+    public void setPretty( boolean pretty ) {
+        this.pretty = pretty;
+        _mapperConfig.configure( SerializationConfig.Feature.INDENT_OUTPUT, pretty );
+    }
+
+
+    /** @return true if JSON is indented by default */
+    public boolean isPretty() {
+        return pretty;
+    }
+
+
+    /** @return a JSON writer that indents its output or not, regardless of the default */
+    public ObjectWriter getJsonWriter( boolean pretty ) {
+        ObjectMapper mapper = _mapperConfig.getConfiguredMapper();
+        // the minimal printer adds no whitespace, overriding the mapper's indentation setting
+        return pretty ? mapper.writerWithDefaultPrettyPrinter() :
+               mapper.writer().withPrettyPrinter( new MinimalPrettyPrinter() );
+    }
+
+
+    /** @return the mapper used for application/x-jackson-smile responses */
+    public ObjectMapper getSmileMapper() {
+        return _smileMapperConfig.getConfiguredMapper();
     }
 
 
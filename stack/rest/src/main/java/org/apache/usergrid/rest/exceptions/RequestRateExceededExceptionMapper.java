@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.rest.exceptions;
+
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+
+
+/** <p> Map a RequestRateExceededException to an HTTP 429 response with a Retry-After header. </p> */
+@Provider
+public class RequestRateExceededExceptionMapper extends AbstractExceptionMapper<RequestRateExceededException> {
+
+    public static final int TOO_MANY_REQUESTS = 429;
+
+
+    @Override
+    public Response toResponse( RequestRateExceededException e ) {
+
+        // Retry-After is in whole seconds, round up so a client never retries too early
+        long retryAfter = Math.max( 1, ( e.getRetryAfterMillis() + 999 ) / 1000 );
+
+        return Response.fromResponse( toResponse( TOO_MANY_REQUESTS, e ) ).header( "Retry-After", retryAfter )
+                       .build();
+    }
+}
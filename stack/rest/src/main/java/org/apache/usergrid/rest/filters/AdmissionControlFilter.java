@@ -0,0 +1,238 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.rest.filters;
+
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.ws.rs.core.PathSegment;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.apache.usergrid.persistence.EntityManagerFactory;
+import org.apache.usergrid.persistence.Identifier;
+import org.apache.usergrid.rest.exceptions.RequestRateExceededException;
+import org.apache.usergrid.rest.utils.PathingUtils;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerRequestFilter;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+
+
+/**
+ * Refuses requests over the configured rate of their application before they are dispatched.  The limit is off unless
+ * its rate is set, and a single application's rate can be overridden with
+ * usergrid.rest.admission.application.rate.&lt;applicationId&gt;.  Refused requests get a 429 with a Retry-After.
+ * Authenticated callers are limited separately by PrincipalAdmissionControlFilter.
+ */
+@Component
+public class AdmissionControlFilter implements ContainerRequestFilter {
+
+    public static final String APPLICATION_RATE = "usergrid.rest.admission.application.rate";
+    public static final String APPLICATION_BURST = "usergrid.rest.admission.application.burst";
+
+    private static final Logger logger = LoggerFactory.getLogger( AdmissionControlFilter.class );
+
+    private static final Pattern UUID_PATTERN = Pattern.compile( Identifier.UUID_REX );
+
+    /** Maximum number of applications with a bucket */
+    private static final long MAX_KEYS = 100000;
+
+    private final Meter rejected;
+
+    private final LoadingCache<String, Optional<UUID>> applicationIds;
+
+    private EntityManagerFactory emf;
+
+    private RequestRateLimiter<UUID> applicationLimiter;
+
+
+    public AdmissionControlFilter() {
+        this.rejected = Metrics.newMeter( AdmissionControlFilter.class, "rejected", "requests", TimeUnit.SECONDS );
+
+        // remember applications that don't exist too, so unknown names don't hit cassandra on every request
+        this.applicationIds = CacheBuilder.newBuilder().maximumSize( 10000 ).expireAfterWrite( 1, TimeUnit.MINUTES )
+                                          .build( new CacheLoader<String, Optional<UUID>>() {
+                                              @Override
+                                              public Optional<UUID> load( String name ) throws Exception {
+                                                  return Optional.fromNullable( emf.lookupApplication( name ) );
+                                              }
+                                          } );
+    }
+
+
+    @Autowired
+    public void setEntityManagerFactory( EntityManagerFactory emf ) {
+        this.emf = emf;
+    }
+
+
+    @Autowired
+    public void setProperties( Properties properties ) {
+        double applicationRate = getDouble( properties, APPLICATION_RATE, 0 );
+        Map<UUID, Double> overrides = new HashMap<UUID, Double>();
+
+        for ( String name : properties.stringPropertyNames() ) {
+            if ( name.startsWith( APPLICATION_RATE + "." ) ) {
+                String applicationId = name.substring( APPLICATION_RATE.length() + 1 );
+
+                if ( !UUID_PATTERN.matcher( applicationId ).matches() ) {
+                    logger.warn( "Ignoring {}, {} is not an application id", name, applicationId );
+                    continue;
+                }
+
+                overrides.put( UUID.fromString( applicationId ), getDouble( properties, name, 0 ) );
+            }
+        }
+
+        if ( applicationRate > 0 || !overrides.isEmpty() ) {
+            // without a default rate only the overridden applications are limited
+            applicationLimiter = new RequestRateLimiter<UUID>( applicationRate,
+                    ( long ) getDouble( properties, APPLICATION_BURST, 0 ), overrides, MAX_KEYS );
+            logger.info( "Limiting applications to {} requests per second with {} overrides", applicationRate,
+                    overrides.size() );
+        }
+    }
+
+
+    @Override
+    public ContainerRequest filter( ContainerRequest request ) {
+        if ( applicationLimiter != null ) {
+            long wait = applicationLimiter.tryAcquire( getApplicationId( request.getPathSegments() ) );
+
+            if ( wait > 0 ) {
+                rejected.mark();
+                throw new RequestRateExceededException( "Too many requests for this application, try again later",
+                        wait );
+            }
+        }
+
+        return request;
+    }
+
+
+    /**
+     * Find the application a request is for from its path, following the routes of RootResource and
+     * OrganizationResource
+     *
+     * @return The application id, or null if the request isn't for an application
+     */
+    UUID getApplicationId( List<PathSegment> segments ) {
+        int i = 0;
+        String first = getSegment( segments, i );
+
+        if ( first == null ) {
+            return null;
+        }
+
+        if ( "applications".equals( first ) || "apps".equals( first ) ) {
+            return toUUID( getSegment( segments, i + 1 ) );
+        }
+
+        if ( isUUID( first ) ) {
+            // either an application id or an organization id followed by an application id
+            String second = getSegment( segments, i + 1 );
+            return UUID.fromString( isUUID( second ) ? second : first );
+        }
+
+        if ( "organizations".equals( first ) || "orgs".equals( first ) || "o".equals( first ) ) {
+            i++;
+        }
+
+        String organization = getSegment( segments, i );
+
+        if ( organization == null || "management".equals( organization ) || "system".equals( organization )
+                || "status".equals( organization ) || "lb-status".equals( organization ) ) {
+            return null;
+        }
+
+        String application = getSegment( segments, i + 1 );
+
+        if ( "applications".equals( application ) || "apps".equals( application ) || "a".equals( application ) ) {
+            application = getSegment( segments, i + 2 );
+        }
+
+        if ( application == null ) {
+            return null;
+        }
+
+        if ( isUUID( application ) ) {
+            return UUID.fromString( application );
+        }
+
+        try {
+            return applicationIds.getUnchecked( PathingUtils.assembleAppName( organization, application ) )
+                                 .orNull();
+        }
+        catch ( RuntimeException e ) {
+            // let the request through, the resource will report the error if the lookup keeps failing
+            logger.error( "Unable to look up application {}/{}", new Object[] { organization, application, e } );
+            return null;
+        }
+    }
+
+
+    private static String getSegment( List<PathSegment> segments, int index ) {
+        if ( index >= segments.size() ) {
+            return null;
+        }
+
+        String path = segments.get( index ).getPath();
+
+        return path.length() == 0 ? null : path;
+    }
+
+
+    private static boolean isUUID( String s ) {
+        return s != null && s.length() == 36 && UUID_PATTERN.matcher( s ).matches();
+    }
+
+
+    private static UUID toUUID( String s ) {
+        return isUUID( s ) ? UUID.fromString( s ) : null;
+    }
+
+
+    static double getDouble( Properties properties, String name, double defaultValue ) {
+        String value = properties.getProperty( name );
+
+        if ( value == null || value.trim().length() == 0 ) {
+            return defaultValue;
+        }
+
+        try {
+            return Double.parseDouble( value.trim() );
+        }
+        catch ( NumberFormatException e ) {
+            logger.warn( "Ignoring {}, {} is not a number", name, value );
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.rest.filters;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.codehaus.jackson.map.ObjectWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.apache.usergrid.rest.ApiResponse;
+import org.apache.usergrid.rest.JacksonCustomMapperProvider;
+
+import org.apache.commons.io.output.CloseShieldOutputStream;
+
+import com.sun.jersey.api.json.JSONWithPadding;
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerRequestFilter;
+import com.sun.jersey.spi.container.ContainerResponse;
+import com.sun.jersey.spi.container.ContainerResponseFilter;
+
+import static org.apache.commons.lang.StringUtils.isBlank;
+
+
+/**
+ * Chooses how {@link ApiResponse} output is encoded.  A client that prefers application/x-jackson-smile gets binary
+ * Smile instead of JSON, and the pretty query parameter overrides whether JSON is indented.  Resources only declare
+ * JSON, so the request is routed as JSON and the response entity is replaced on the way out.  Compression is left to
+ * the gzip filter that runs after this one.
+ */
+@Component
+public class ContentNegotiationFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+    private static final Logger logger = LoggerFactory.getLogger( ContentNegotiationFilter.class );
+
+    public static final String APPLICATION_SMILE = "application/x-jackson-smile";
+    public static final MediaType APPLICATION_SMILE_TYPE = MediaType.valueOf( APPLICATION_SMILE );
+
+    public static final String PRETTY_PARAMETER = "pretty";
+
+    private static final String PROPERTY_SMILE = ContentNegotiationFilter.class.getName() + ".smile";
+    private static final String PROPERTY_PRETTY = ContentNegotiationFilter.class.getName() + ".pretty";
+
+    private JacksonCustomMapperProvider mapperProvider;
+
+
+    public ContentNegotiationFilter() {
+        logger.info( "ContentNegotiationFilter is installed" );
+    }
+
+
+    @Autowired
+    public void setMapperProvider( JacksonCustomMapperProvider mapperProvider ) {
+        this.mapperProvider = mapperProvider;
+    }
+
+
+    @Override
+    public ContainerRequest filter( ContainerRequest request ) {
+        List<MediaType> accepted = request.getAcceptableMediaTypes();
+
+        if ( !accepted.isEmpty() && APPLICATION_SMILE_TYPE.isCompatible( accepted.get( 0 ) ) && !accepted.get( 0 )
+                .isWildcardType() ) {
+            request.getProperties().put( PROPERTY_SMILE, Boolean.TRUE );
+            request.getRequestHeaders().putSingle( HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON );
+        }
+
+        String pretty = request.getQueryParameters().getFirst( PRETTY_PARAMETER );
+
+        if ( pretty != null ) {
+            // a bare ?pretty asks for indentation
+            request.getProperties().put( PROPERTY_PRETTY, isBlank( pretty ) || Boolean.parseBoolean( pretty ) );
+        }
+
+        return request;
+    }
+
+
+    @Override
+    public ContainerResponse filter( ContainerRequest request, ContainerResponse response ) {
+        Object entity = response.getEntity();
+
+        if ( entity instanceof JSONWithPadding ) {
+            JSONWithPadding padding = ( JSONWithPadding ) entity;
+
+            // JSONP output is left to jersey
+            if ( !isBlank( padding.getCallbackName() ) ) {
+                return response;
+            }
+
+            entity = padding.getJsonSource();
+        }
+
+        if ( !( entity instanceof ApiResponse ) ) {
+            return response;
+        }
+
+        final ObjectWriter writer;
+        final MediaType mediaType;
+
+        if ( Boolean.TRUE.equals( request.getProperties().get( PROPERTY_SMILE ) ) ) {
+            writer = mapperProvider.getSmileMapper().writer();
+            mediaType = APPLICATION_SMILE_TYPE;
+        }
+        else {
+            Boolean pretty = ( Boolean ) request.getProperties().get( PROPERTY_PRETTY );
+
+            if ( pretty == null || pretty == mapperProvider.isPretty() ) {
+                return response;
+            }
+
+            writer = mapperProvider.getJsonWriter( pretty );
+            mediaType = MediaType.APPLICATION_JSON_TYPE;
+        }
+
+        final Object value = entity;
+
+        response.setEntity( new StreamingOutput() {
+            @Override
+            public void write( OutputStream output ) throws IOException, WebApplicationException {
+                // jackson closes the stream it writes to, which would cut off filters that wrap it
+                writer.writeValue( new CloseShieldOutputStream( output ), value );
+            }
+        } );
+        response.getHttpHeaders().putSingle( HttpHeaders.CONTENT_TYPE, mediaType );
+
+        return response;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.rest.filters;
+
+
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.shiro.subject.Subject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.apache.usergrid.rest.exceptions.RequestRateExceededException;
+import org.apache.usergrid.security.shiro.principals.ApplicationPrincipal;
+import org.apache.usergrid.security.shiro.principals.OrganizationPrincipal;
+import org.apache.usergrid.security.shiro.principals.UserPrincipal;
+import org.apache.usergrid.security.shiro.utils.SubjectUtils;
+
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerRequestFilter;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+
+
+/**
+ * Refuses requests over the configured rate of the user, organization or application client that made them.  Runs
+ * after the security filters and only counts subjects they authenticated, so unknown tokens and anonymous requests
+ * never get a bucket of their own.  Off unless usergrid.rest.admission.principal.rate is set.
+ */
+@Component
+public class PrincipalAdmissionControlFilter implements ContainerRequestFilter {
+
+    public static final String PRINCIPAL_RATE = "usergrid.rest.admission.principal.rate";
+    public static final String PRINCIPAL_BURST = "usergrid.rest.admission.principal.burst";
+
+    private static final Logger logger = LoggerFactory.getLogger( PrincipalAdmissionControlFilter.class );
+
+    /** Maximum number of principals with a bucket */
+    private static final long MAX_KEYS = 100000;
+
+    private final Meter rejected;
+
+    private RequestRateLimiter<String> principalLimiter;
+
+
+    public PrincipalAdmissionControlFilter() {
+        this.rejected =
+                Metrics.newMeter( PrincipalAdmissionControlFilter.class, "rejected", "requests", TimeUnit.SECONDS );
+    }
+
+
+    @Autowired
+    public void setProperties( Properties properties ) {
+        double principalRate = AdmissionControlFilter.getDouble( properties, PRINCIPAL_RATE, 0 );
+
+        if ( principalRate > 0 ) {
+            principalLimiter = new RequestRateLimiter<String>( principalRate,
+                    ( long ) AdmissionControlFilter.getDouble( properties, PRINCIPAL_BURST, 0 ), null, MAX_KEYS );
+            logger.info( "Limiting authenticated principals to {} requests per second", principalRate );
+        }
+    }
+
+
+    @Override
+    public ContainerRequest filter( ContainerRequest request ) {
+        if ( principalLimiter == null ) {
+            return request;
+        }
+
+        Subject subject = SubjectUtils.getSubject();
+
+        if ( subject == null || !subject.isAuthenticated() ) {
+            return request;
+        }
+
+        long wait = principalLimiter.tryAcquire( getPrincipalKey( subject.getPrincipal() ) );
+
+        if ( wait > 0 ) {
+            rejected.mark();
+            throw new RequestRateExceededException( "Too many requests for this user, try again later", wait );
+        }
+
+        return request;
+    }
+
+
+    /**
+     * Get the key the bucket of an authenticated principal is stored under
+     *
+     * @return The key, or null if requests from the principal aren't limited
+     */
+    static String getPrincipalKey( Object principal ) {
+        if ( principal instanceof UserPrincipal ) {
+            UserPrincipal user = ( UserPrincipal ) principal;
+            return user.getUser() == null ? null : "user/" + user.getUser().getUuid();
+        }
+
+        if ( principal instanceof OrganizationPrincipal ) {
+            return "organization/" + ( ( OrganizationPrincipal ) principal ).getOrganizationId();
+        }
+
+        if ( principal instanceof ApplicationPrincipal ) {
+            return "application/" + ( ( ApplicationPrincipal ) principal ).getApplicationId();
+        }
+
+        return null;
+    }
+}
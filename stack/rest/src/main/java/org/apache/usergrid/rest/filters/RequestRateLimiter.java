@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.rest.filters;
+
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+
+/**
+ * Token bucket rate limits for many keys, e.g. one bucket per application or per access token.  Each bucket is kept as
+ * the time at which it will next be full and updated with a compare and set, so admitting a request takes no locks.
+ * Buckets that have not been used for a while are dropped, which is harmless because an idle bucket has refilled.
+ */
+public class RequestRateLimiter<K> {
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos( 1 );
+
+    private final Ticker ticker;
+
+    private final LoadingCache<K, Bucket> buckets;
+
+
+    /**
+     * @param permitsPerSecond The rate at which requests are admitted for keys without an override, 0 or less to only
+     * limit the overridden keys
+     * @param burst The number of requests admitted at once after a quiet period, 0 or less for a second's worth of
+     * requests at the key's rate
+     * @param overrides Per key rates that replace permitsPerSecond, 0 or less to not limit the key
+     * @param maxKeys The number of buckets to keep
+     */
+    public RequestRateLimiter( double permitsPerSecond, long burst, Map<K, Double> overrides, long maxKeys ) {
+        this( permitsPerSecond, burst, overrides, maxKeys, Ticker.systemTicker() );
+    }
+
+
+    public RequestRateLimiter( final double permitsPerSecond, final long burst, Map<K, Double> overrides,
+                               long maxKeys, final Ticker ticker ) {
+        final Map<K, Double> rates = overrides == null ? Collections.<K, Double>emptyMap() : overrides;
+
+        this.ticker = ticker;
+        this.buckets = CacheBuilder.newBuilder().maximumSize( maxKeys ).expireAfterAccess( 10, TimeUnit.MINUTES )
+                                   .build( new CacheLoader<K, Bucket>() {
+                                       @Override
+                                       public Bucket load( K key ) {
+                                           Double rate = rates.get( key );
+
+                                           if ( rate == null ) {
+                                               rate = permitsPerSecond;
+                                           }
+
+                                           long size = burst > 0 ? burst : ( long ) Math.ceil( rate );
+
+                                           return new Bucket( rate, Math.max( 1, size ), ticker.read() );
+                                       }
+                                   } );
+    }
+
+
+    /**
+     * Take a permit for the key if one is available right now
+     *
+     * @return 0 if the request was admitted, otherwise the time in milliseconds until a permit will be available
+     */
+    public long tryAcquire( K key ) {
+        if ( key == null ) {
+            return 0;
+        }
+
+        long wait = buckets.getUnchecked( key ).tryAcquire( ticker.read() );
+
+        if ( wait == 0 ) {
+            return 0;
+        }
+
+        long millis = TimeUnit.MILLISECONDS.toNanos( 1 );
+
+        return ( wait + millis - 1 ) / millis;
+    }
+
+
+    /**
+     * A token bucket in its "theoretical arrival time" form.  Each admitted request pushes the arrival time on by one
+     * interval, and a request is refused while the arrival time is more than a burst ahead of now.
+     */
+    static final class Bucket {
+
+        /** Nanoseconds between permits, 0 if the bucket is unlimited */
+        private final long interval;
+
+        /** How far ahead of now the arrival time may run */
+        private final long tolerance;
+
+        private final AtomicLong arrival;
+
+
+        Bucket( double permitsPerSecond, long burst, long now ) {
+            this.interval = permitsPerSecond > 0 ? Math.max( 1, ( long ) ( NANOS_PER_SECOND / permitsPerSecond ) ) : 0;
+            this.tolerance = ( burst - 1 ) * interval;
+            this.arrival = new AtomicLong( now );
+        }
+
+
+        /** @return 0 if a permit was taken, otherwise the nanoseconds until one will be available */
+        long tryAcquire( long now ) {
+            if ( interval == 0 ) {
+                return 0;
+            }
+
+            while ( true ) {
+                long current = arrival.get();
+                long start = current - now > 0 ? current : now;
+                long ahead = start - now;
+
+                if ( ahead > tolerance ) {
+                    return ahead - tolerance;
+                }
+
+                if ( arrival.compareAndSet( current, start + interval ) ) {
+                    return 0;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.rest.filters;
+
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.apache.usergrid.management.ApplicationInfo;
+import org.apache.usergrid.management.OrganizationInfo;
+import org.apache.usergrid.management.UserInfo;
+import org.apache.usergrid.persistence.EntityManagerFactory;
+import org.apache.usergrid.security.shiro.principals.ApplicationGuestPrincipal;
+import org.apache.usergrid.security.shiro.principals.ApplicationPrincipal;
+import org.apache.usergrid.security.shiro.principals.ApplicationUserPrincipal;
+import org.apache.usergrid.security.shiro.principals.OrganizationPrincipal;
+
+import com.google.common.base.Ticker;
+import com.sun.jersey.api.uri.UriComponent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class AdmissionControlFilterTest {
+
+    private static final Logger logger = LoggerFactory.getLogger( AdmissionControlFilterTest.class );
+
+    private static final UUID APPLICATION_ID = UUID.fromString( "6a8c5e36-7a2c-11e4-9a5e-0f0d5c1d2a3b" );
+
+    private static final UUID ORGANIZATION_ID = UUID.fromString( "5e4b6f2a-7a2c-11e4-9a5e-0f0d5c1d2a3b" );
+
+    private static final UUID USER_ID = UUID.fromString( "7b9d6f4a-7a2c-11e4-9a5e-0f0d5c1d2a3b" );
+
+
+    @Test
+    public void rejectsOverBurstUntilRefilled() {
+        FakeTicker ticker = new FakeTicker();
+        RequestRateLimiter<String> limiter = new RequestRateLimiter<String>( 10, 5, null, 100, ticker );
+
+        for ( int i = 0; i < 5; i++ ) {
+            assertEquals( 0, limiter.tryAcquire( "token" ) );
+        }
+
+        // one permit every 100ms
+        assertEquals( 100, limiter.tryAcquire( "token" ) );
+
+        // other keys have their own bucket
+        assertEquals( 0, limiter.tryAcquire( "other" ) );
+
+        ticker.advance( 50 );
+        assertEquals( 50, limiter.tryAcquire( "token" ) );
+
+        ticker.advance( 50 );
+        assertEquals( 0, limiter.tryAcquire( "token" ) );
+        assertTrue( limiter.tryAcquire( "token" ) > 0 );
+
+        // a long quiet period only refills up to the burst
+        ticker.advance( 10000 );
+
+        for ( int i = 0; i < 5; i++ ) {
+            assertEquals( 0, limiter.tryAcquire( "token" ) );
+        }
+
+        assertTrue( limiter.tryAcquire( "token" ) > 0 );
+    }
+
+
+    @Test
+    public void overridesDefaultRate() {
+        FakeTicker ticker = new FakeTicker();
+        UUID unlimited = UUID.randomUUID();
+        RequestRateLimiter<UUID> limiter =
+                new RequestRateLimiter<UUID>( 0, 0, Collections.singletonMap( APPLICATION_ID, 2.0 ), 100, ticker );
+
+        assertEquals( 0, limiter.tryAcquire( APPLICATION_ID ) );
+        assertEquals( 0, limiter.tryAcquire( APPLICATION_ID ) );
+        assertEquals( 500, limiter.tryAcquire( APPLICATION_ID ) );
+
+        for ( int i = 0; i < 1000; i++ ) {
+            assertEquals( 0, limiter.tryAcquire( unlimited ) );
+        }
+
+        assertEquals( 0, limiter.tryAcquire( null ) );
+    }
+
+
+    @Test
+    public void admitsBurstOnceUnderContention() throws Exception {
+        final RequestRateLimiter<UUID> limiter = new RequestRateLimiter<UUID>( 1, 1000, null, 100, new FakeTicker() );
+        final AtomicInteger admitted = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool( 8 );
+
+        try {
+            Future<?>[] futures = new Future<?>[8];
+
+            for ( int i = 0; i < futures.length; i++ ) {
+                futures[i] = executor.submit( new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for ( int j = 0; j < 10000; j++ ) {
+                            if ( limiter.tryAcquire( APPLICATION_ID ) == 0 ) {
+                                admitted.incrementAndGet();
+                            }
+                        }
+                        return null;
+                    }
+                } );
+            }
+
+            for ( Future<?> future : futures ) {
+                future.get();
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals( 1000, admitted.get() );
+    }
+
+
+    @Test
+    public void findsApplicationInPath() {
+        AdmissionControlFilter filter = new AdmissionControlFilter();
+
+        assertEquals( APPLICATION_ID, getApplicationId( filter, APPLICATION_ID + "/users" ) );
+        assertEquals( APPLICATION_ID, getApplicationId( filter, "applications/" + APPLICATION_ID + "/users" ) );
+        assertEquals( APPLICATION_ID, getApplicationId( filter, ORGANIZATION_ID + "/" + APPLICATION_ID + "/users" ) );
+        assertEquals( APPLICATION_ID, getApplicationId( filter, "test-organization/" + APPLICATION_ID ) );
+        assertEquals( APPLICATION_ID,
+                getApplicationId( filter, "orgs/test-organization/apps/" + APPLICATION_ID + "/users" ) );
+
+        assertNull( getApplicationId( filter, "" ) );
+        assertNull( getApplicationId( filter, "management/token" ) );
+        assertNull( getApplicationId( filter, "status" ) );
+        assertNull( getApplicationId( filter, "test-organization/" ) );
+    }
+
+
+    @Test
+    public void findsPrincipalKey() {
+        UserInfo user = new UserInfo( APPLICATION_ID, USER_ID, "fred", "Fred", "fred@example.com", true, true, false,
+                null );
+
+        assertEquals( "user/" + USER_ID, PrincipalAdmissionControlFilter
+                .getPrincipalKey( new ApplicationUserPrincipal( APPLICATION_ID, user ) ) );
+        assertEquals( "organization/" + ORGANIZATION_ID, PrincipalAdmissionControlFilter
+                .getPrincipalKey( new OrganizationPrincipal( new OrganizationInfo( ORGANIZATION_ID, "test" ) ) ) );
+        assertEquals( "application/" + APPLICATION_ID, PrincipalAdmissionControlFilter
+                .getPrincipalKey( new ApplicationPrincipal( new ApplicationInfo( APPLICATION_ID, "test/app" ) ) ) );
+
+        assertNull( PrincipalAdmissionControlFilter.getPrincipalKey(
+                new ApplicationGuestPrincipal( new ApplicationInfo( APPLICATION_ID, "test/app" ) ) ) );
+        assertNull( PrincipalAdmissionControlFilter.getPrincipalKey( null ) );
+    }
+
+
+    /** Logs the cost of admitting a request by application id and by application name, doesn't assert on timing */
+    @Test
+    public void admissionOverhead() {
+        AdmissionControlFilter filter = new AdmissionControlFilter();
+        filter.setEntityManagerFactory( lookupOnly( APPLICATION_ID ) );
+
+        RequestRateLimiter<UUID> limiter = new RequestRateLimiter<UUID>( 1E9, 0, null, 100 );
+
+        assertEquals( APPLICATION_ID, getApplicationId( filter, "test-organization/test-app/users/fred" ) );
+
+        timeAdmission( filter, limiter, "test-organization/" + APPLICATION_ID + "/users/fred" );
+        timeAdmission( filter, limiter, "test-organization/test-app/users/fred" );
+    }
+
+
+    private static void timeAdmission( AdmissionControlFilter filter, RequestRateLimiter<UUID> limiter, String path ) {
+        int iterations = 1000000;
+        int admitted = 0;
+
+        // warm up before timing
+        for ( int i = 0; i < iterations; i++ ) {
+            admitted += limiter.tryAcquire( getApplicationId( filter, path ) ) == 0 ? 1 : 0;
+        }
+
+        long start = System.nanoTime();
+
+        for ( int i = 0; i < iterations; i++ ) {
+            admitted += limiter.tryAcquire( getApplicationId( filter, path ) ) == 0 ? 1 : 0;
+        }
+
+        long perRequest = ( System.nanoTime() - start ) / iterations;
+
+        logger.info( "Admitted {} requests for {}, {}ns per request", new Object[] { admitted, path, perRequest } );
+    }
+
+
+    /** An EntityManagerFactory that only knows how to look up one application */
+    private static EntityManagerFactory lookupOnly( final UUID applicationId ) {
+        return ( EntityManagerFactory ) Proxy.newProxyInstance( EntityManagerFactory.class.getClassLoader(),
+                new Class<?>[] { EntityManagerFactory.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke( Object proxy, Method method, Object[] args ) {
+                        if ( "lookupApplication".equals( method.getName() ) ) {
+                            return applicationId;
+                        }
+                        throw new UnsupportedOperationException( method.getName() );
+                    }
+                } );
+    }
+
+
+    private static UUID getApplicationId( AdmissionControlFilter filter, String path ) {
+        return filter.getApplicationId( UriComponent.decodePath( path, true ) );
+    }
+
+
+    private static class FakeTicker extends Ticker {
+
+        private long nanos = 1000;
+
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+
+        public void advance( long millis ) {
+            nanos += TimeUnit.MILLISECONDS.toNanos( millis );
+        }
+    }
+}
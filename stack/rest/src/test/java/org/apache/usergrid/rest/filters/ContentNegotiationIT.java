@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.rest.filters;
+
+
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.apache.usergrid.cassandra.Concurrent;
+import org.apache.usergrid.rest.AbstractRestIT;
+import org.apache.usergrid.rest.TestContextSetup;
+import org.apache.usergrid.utils.JsonUtils;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.apache.usergrid.utils.MapUtils.hashMap;
+
+
+/** Checks the size and content of compact, gzip and Smile encoded responses against the default JSON output */
+@Concurrent()
+public class ContentNegotiationIT extends AbstractRestIT {
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final ObjectMapper SMILE = new ObjectMapper( new SmileFactory() );
+
+    @Rule
+    public TestContextSetup context = new TestContextSetup( this );
+
+
+    @Test
+    public void compactJson() throws Exception {
+        String path = createEntities( "compacts" );
+
+        byte[] pretty = get( path + "?pretty=true", MediaType.APPLICATION_JSON, null );
+        byte[] compact = get( path + "?pretty=false", MediaType.APPLICATION_JSON, null );
+
+        assertTrue( compact.length < pretty.length );
+        assertEquals( entities( JSON.readTree( pretty ) ), entities( JSON.readTree( compact ) ) );
+    }
+
+
+    @Test
+    public void gzip() throws Exception {
+        String path = createEntities( "gzips" );
+
+        byte[] plain = get( path, MediaType.APPLICATION_JSON, null );
+        byte[] gzipped = get( path, MediaType.APPLICATION_JSON, "gzip" );
+
+        assertTrue( gzipped.length < plain.length );
+
+        byte[] inflated = IOUtils.toByteArray( new GZIPInputStream( new ByteArrayInputStream( gzipped ) ) );
+
+        assertEquals( entities( JSON.readTree( plain ) ), entities( JSON.readTree( inflated ) ) );
+    }
+
+
+    @Test
+    public void smile() throws Exception {
+        String path = createEntities( "smiles" );
+
+        byte[] json = get( path + "?pretty=false", MediaType.APPLICATION_JSON, null );
+        byte[] smile = get( path, ContentNegotiationFilter.APPLICATION_SMILE, null );
+
+        assertTrue( smile.length < json.length );
+        assertEquals( entities( JSON.readTree( json ) ), entities( SMILE.readTree( smile ) ) );
+    }
+
+
+    /** Create a page of entities and return the collection path */
+    private String createEntities( String collection ) throws Exception {
+        DefaultHttpClient client = new DefaultHttpClient();
+
+        HttpHost host = new HttpHost( super.getBaseURI().getHost(), super.getBaseURI().getPort() );
+
+        String path = String.format( "/%s/%s/%s", context.getOrgUuid(), context.getAppUuid(), collection );
+
+        for ( int i = 0; i < 20; i++ ) {
+            Map<String, Object> data = hashMap( "name", ( Object ) ( collection + i ) )
+                    .map( "description", "An entity with enough text that encoding matters " + i )
+                    .map( "ordinal", i );
+
+            HttpPost post = new HttpPost( path );
+            post.setEntity( new StringEntity( JsonUtils.mapToJsonString( data ) ) );
+            post.setHeader( HttpHeaders.AUTHORIZATION, "Bearer " + context.getActiveUser().getToken() );
+            post.setHeader( HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON );
+
+            HttpResponse rsp = client.execute( host, post );
+            EntityUtils.consume( rsp.getEntity() );
+
+            assertEquals( 200, rsp.getStatusLine().getStatusCode() );
+        }
+
+        return path;
+    }
+
+
+    private byte[] get( String path, String accept, String encoding ) throws Exception {
+        DefaultHttpClient client = new DefaultHttpClient();
+
+        HttpHost host = new HttpHost( super.getBaseURI().getHost(), super.getBaseURI().getPort() );
+
+        HttpGet get = new HttpGet( path + ( path.contains( "?" ) ? "&" : "?" ) + "limit=20" );
+        get.setHeader( HttpHeaders.AUTHORIZATION, "Bearer " + context.getActiveUser().getToken() );
+        get.setHeader( HttpHeaders.ACCEPT, accept );
+
+        if ( encoding != null ) {
+            get.setHeader( HttpHeaders.ACCEPT_ENCODING, encoding );
+        }
+
+        HttpResponse rsp = client.execute( host, get );
+
+        assertEquals( 200, rsp.getStatusLine().getStatusCode() );
+        assertTrue( rsp.getFirstHeader( HttpHeaders.CONTENT_TYPE ).getValue().startsWith( accept ) );
+
+        if ( encoding != null ) {
+            assertEquals( encoding, rsp.getFirstHeader( "Content-Encoding" ).getValue() );
+        }
+
+        return EntityUtils.toByteArray( rsp.getEntity() );
+    }
+
+
+    /** The entities of a response, leaving out fields such as the timestamp that differ between requests */
+    private JsonNode entities( JsonNode response ) {
+        JsonNode entities = response.get( "entities" );
+
+        assertEquals( 20, entities.size() );
+
+        return entities;
+    }
+}
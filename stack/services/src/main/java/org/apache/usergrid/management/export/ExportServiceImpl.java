@@ -17,12 +17,25 @@
 package org.apache.usergrid.management.export;
 
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.codehaus.jackson.JsonEncoding;
 import org.codehaus.jackson.JsonFactory;
@@ -31,6 +44,7 @@ import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.util.DefaultPrettyPrinter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 
 import org.apache.usergrid.batch.JobExecution;
 import org.apache.usergrid.batch.service.SchedulerService;
@@ -40,14 +54,18 @@ import org.apache.usergrid.persistence.ConnectionRef;
 import org.apache.usergrid.persistence.Entity;
 import org.apache.usergrid.persistence.EntityManager;
 import org.apache.usergrid.persistence.EntityManagerFactory;
-import org.apache.usergrid.persistence.PagingResultsIterator;
 import org.apache.usergrid.persistence.Query;
 import org.apache.usergrid.persistence.Results;
 import org.apache.usergrid.persistence.entities.Export;
 import org.apache.usergrid.persistence.entities.JobData;
+import org.apache.usergrid.services.assets.data.MultipartUploadClient;
 
 import com.google.common.collect.BiMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import static org.apache.commons.collections.MapUtils.getBooleanValue;
+import static org.apache.commons.collections.MapUtils.getIntValue;
+import static org.apache.usergrid.persistence.Schema.DICTIONARY_CONNECTED_TYPES;
 import static org.apache.usergrid.persistence.cassandra.CassandraService.MANAGEMENT_APPLICATION_ID;
 
 
@@ -76,8 +94,24 @@ public class ExportServiceImpl implements ExportService {
     //Amount of time that has passed before sending another heart beat in millis
     public static final int TIMESTAMP_DELTA = 5000;
 
+    public static final String PROPERTIES_EXPORT_THREADS = "usergrid.export.threads";
+    public static final String PROPERTIES_EXPORT_PART_SIZE = "usergrid.export.part.size";
+    public static final String PROPERTIES_EXPORT_PARALLEL_PARTS = "usergrid.export.parallel.parts";
+    public static final String PROPERTIES_EXPORT_STREAMING = "usergrid.export.streaming";
+
+    public static final int DEFAULT_EXPORT_THREADS = 4;
+    public static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_PARALLEL_PARTS = 3;
+
+    private int exportThreads = DEFAULT_EXPORT_THREADS;
+    private int partSize = DEFAULT_PART_SIZE;
+    private int maxParallelParts = DEFAULT_PARALLEL_PARTS;
+    private boolean streaming = false;
+
     private JsonFactory jsonFactory = new JsonFactory();
 
+    private final ObjectMapper mapper = new ObjectMapper();
+
 
     @Override
     public UUID schedule( final Map<String, Object> config ) throws Exception {
@@ -340,9 +374,46 @@ public class ExportServiceImpl implements ExportService {
 
             appFileName = prepareOutputFileName( "application", application.getValue(), null );
 
-            File ephemeral = collectionExportAndQuery( application.getKey(), config, export, jobExecution );
+            exportApplication( application.getKey(), appFileName, config, export, jobExecution, s3Export );
+        }
+    }
+
+
+    /**
+     * Export the collections of an application.  When streaming is enabled, a {@link StreamingS3Export} receives the
+     * export as gzip compressed, newline delimited JSON named after the file with a ".gz" suffix while it's being
+     * produced.  Otherwise the S3Export is handed a local file holding a JSON array once the export is complete.
+     */
+    private void exportApplication( UUID applicationUUID, String appFileName, final Map<String, Object> config,
+                                    Export export, final JobExecution jobExecution, S3Export s3Export )
+            throws Exception {
+
+        if ( !streaming || !( s3Export instanceof StreamingS3Export ) ) {
+            File ephemeral = collectionExportAndQuery( applicationUUID, config, export, jobExecution );
 
             fileTransfer( export, appFileName, ephemeral, config, s3Export );
+            return;
+        }
+
+        MultipartUploadClient client =
+                ( ( StreamingS3Export ) s3Export ).getUploadClient( config, appFileName + ".gz" );
+
+        try {
+            ExportSink sink = new MultipartExportSink( client, appFileName + ".gz", partSize, maxParallelParts );
+
+            try {
+                exportCollections( applicationUUID, config, jobExecution, sink );
+                sink.close();
+            }
+            catch ( Exception e ) {
+                sink.abort();
+                throw e;
+            }
+        }
+        finally {
+            if ( client instanceof Closeable ) {
+                ( ( Closeable ) client ).close();
+            }
         }
     }
 
@@ -373,9 +444,7 @@ public class ExportServiceImpl implements ExportService {
         ApplicationInfo application = managementService.getApplicationInfo( applicationId );
         String appFileName = prepareOutputFileName( "application", application.getName(), null );
 
-        File ephemeral = collectionExportAndQuery( applicationId, config, export, jobExecution );
-
-        fileTransfer( export, appFileName, ephemeral, config, s3Export );
+        exportApplication( applicationId, appFileName, config, export, jobExecution, s3Export );
     }
 
 
@@ -394,9 +463,7 @@ public class ExportServiceImpl implements ExportService {
                 ( String ) config.get( "collectionName" ) );
 
 
-        File ephemeral = collectionExportAndQuery( applicationUUID, config, export, jobExecution );
-
-        fileTransfer( export, appFileName, ephemeral, config, s3Export );
+        exportApplication( applicationUUID, appFileName, config, export, jobExecution, s3Export );
     }
 
 
@@ -416,7 +483,7 @@ public class ExportServiceImpl implements ExportService {
 
 
     /**
-     * Serialize and save the collection members of this <code>entity</code>
+     * Persists the collection members of this <code>entity</code> when it owns the collection being exported
      *
      * @param em Entity Manager
      * @param collection Collection Name
@@ -425,11 +492,6 @@ public class ExportServiceImpl implements ExportService {
     private void saveCollectionMembers( JsonGenerator jg, EntityManager em, String collection, Entity entity )
             throws Exception {
 
-        // Write connections
-        saveConnections( entity, em, jg );
-        // Write dictionaries
-        saveDictionaries( entity, em, jg );
-
         Set<String> collections = em.getCollections( entity );
 
         // If your application doesn't have any e
@@ -459,30 +521,24 @@ public class ExportServiceImpl implements ExportService {
                 jg.writeEndArray();
             }
         }
-
-        // Write connections
-        saveConnections( entity, em, jg );
-
-        // Write dictionaries
-        saveDictionaries( entity, em, jg );
     }
 
 
     /**
-     * Persists the connection for this entity.
+     * Persists the dictionaries for this entity.
      */
-    private void saveDictionaries( Entity entity, EntityManager em, JsonGenerator jg ) throws Exception {
+    private void saveDictionaries( JsonGenerator jg, Set<String> dictionaries,
+                                   Map<String, Map<Object, Object>> contents ) throws Exception {
 
         jg.writeFieldName( "dictionaries" );
         jg.writeStartObject();
 
-        Set<String> dictionaries = em.getDictionaries( entity );
         for ( String dictionary : dictionaries ) {
 
-            Map<Object, Object> dict = em.getDictionaryAsMap( entity, dictionary );
+            Map<Object, Object> dict = contents.get( dictionary );
 
             // nothing to do
-            if ( dict.isEmpty() ) {
+            if ( dict == null || dict.isEmpty() ) {
                 continue;
             }
 
@@ -504,18 +560,19 @@ public class ExportServiceImpl implements ExportService {
     /**
      * Persists the connection for this entity.
      */
-    private void saveConnections( Entity entity, EntityManager em, JsonGenerator jg ) throws Exception {
+    private void saveConnections( Entity entity, EntityManager em, JsonGenerator jg, Set<Object> connectionTypes )
+            throws Exception {
 
         jg.writeFieldName( "connections" );
         jg.writeStartObject();
 
-        Set<String> connectionTypes = em.getConnectionTypes( entity );
-        for ( String connectionType : connectionTypes ) {
+        for ( Object connectionType : connectionTypes ) {
 
-            jg.writeFieldName( connectionType );
+            jg.writeFieldName( connectionType.toString() );
             jg.writeStartArray();
 
-            Results results = em.getConnectedEntities( entity.getUuid(), connectionType, null, Results.Level.IDS );
+            Results results = em.getConnectedEntities( entity.getUuid(), connectionType.toString(), null,
+                    Results.Level.IDS );
             List<ConnectionRef> connections = results.getConnections();
 
             for ( ConnectionRef connectionRef : connections ) {
@@ -528,13 +585,75 @@ public class ExportServiceImpl implements ExportService {
     }
 
 
-    protected JsonGenerator getJsonGenerator( File ephermal ) throws IOException {
-        //TODO:shouldn't the below be UTF-16?
+    /**
+     * Serialize a page of entities, one JSON object each.  The dictionaries of the whole page, including the connection
+     * types, are read together instead of entity by entity.
+     *
+     * @param pretty True to pretty print the objects, as exports to a file always have been
+     */
+    private List<byte[]> serializeEntities( EntityManager em, String collection, List<Entity> entities,
+                                            boolean pretty ) throws Exception {
+
+        Map<UUID, Set<String>> dictionaryNames = em.getDictionaries( entities );
+
+        Map<Entity, Set<String>> dictionariesToRead = new LinkedHashMap<Entity, Set<String>>();
+
+        for ( Entity entity : entities ) {
+            Set<String> names = new HashSet<String>( getDictionaryNames( dictionaryNames, entity ) );
+            names.add( DICTIONARY_CONNECTED_TYPES );
+
+            dictionariesToRead.put( entity, names );
+        }
+
+        Map<UUID, Map<String, Map<Object, Object>>> dictionaries = em.getDictionariesAsMaps( dictionariesToRead );
+
+        List<byte[]> records = new ArrayList<byte[]>( entities.size() );
+
+        for ( Entity entity : entities ) {
+            Map<String, Map<Object, Object>> contents = dictionaries.get( entity.getUuid() );
+
+            if ( contents == null ) {
+                contents = Collections.emptyMap();
+            }
+
+            Map<Object, Object> connectedTypes = contents.get( DICTIONARY_CONNECTED_TYPES );
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            JsonGenerator jg = jsonFactory.createJsonGenerator( out, JsonEncoding.UTF8 );
+            jg.setCodec( mapper );
+
+            if ( pretty ) {
+                jg.setPrettyPrinter( new DefaultPrettyPrinter() );
+            }
+
+            jg.writeStartObject();
+            jg.writeFieldName( "Metadata" );
+            jg.writeObject( entity );
+
+            // Write connections
+            saveConnections( entity, em, jg,
+                    connectedTypes != null ? connectedTypes.keySet() : Collections.<Object>emptySet() );
+
+            // Write dictionaries
+            saveDictionaries( jg, getDictionaryNames( dictionaryNames, entity ), contents );
 
-        JsonGenerator jg = jsonFactory.createJsonGenerator( ephermal, JsonEncoding.UTF8 );
-        jg.setPrettyPrinter( new DefaultPrettyPrinter() );
-        jg.setCodec( new ObjectMapper() );
-        return jg;
+            saveCollectionMembers( jg, em, collection, entity );
+
+            jg.writeEndObject();
+            jg.close();
+
+            records.add( out.toByteArray() );
+        }
+
+        return records;
+    }
+
+
+    private static Set<String> getDictionaryNames( Map<UUID, Set<String>> dictionaryNames, Entity entity ) {
+        Set<String> names = dictionaryNames.get( entity.getUuid() );
+
+        return names != null ? names : Collections.<String>emptySet();
     }
 
 
@@ -561,68 +680,161 @@ public class ExportServiceImpl implements ExportService {
 
 
     /**
-     * handles the query and export of collections
+     * handles the query and export of collections into a local file holding a JSON array
      */
-    //TODO:Needs further refactoring.
     protected File collectionExportAndQuery( UUID applicationUUID, final Map<String, Object> config, Export export,
                                              final JobExecution jobExecution ) throws Exception {
 
-        EntityManager em = emf.getEntityManager( applicationUUID );
-        Map<String, Object> metadata = em.getApplicationCollectionMetadata();
-        long starting_time = System.currentTimeMillis();
         File ephemeral = new File( "tempExport" + UUID.randomUUID() );
         ephemeral.deleteOnExit();
 
+        FileExportSink sink = new FileExportSink( ephemeral );
 
-        JsonGenerator jg = getJsonGenerator( ephemeral );
+        try {
+            exportCollections( applicationUUID, config, jobExecution, sink );
+            sink.close();
+        }
+        catch ( Exception e ) {
+            sink.abort();
+            throw e;
+        }
 
-        jg.writeStartArray();
+        return ephemeral;
+    }
 
-        for ( String collectionName : metadata.keySet() ) {
-            if ( collectionName.equals( "exports" ) ) {
-                continue;
-            }
-            //if the collection you are looping through doesn't match the name of the one you want. Don't export it.
-
-            if ( ( config.get( "collectionName" ) == null ) || collectionName
-                    .equals( config.get( "collectionName" ) ) ) {
-                //Query entity manager for the entities in a collection
-                Query query = null;
-                if ( config.get( "query" ) == null ) {
-                    query = new Query();
+
+    /**
+     * Exports the selected collections of an application into the sink.  Collections are exported concurrently on
+     * {@link #setExportThreads(int)} threads while this thread keeps the job alive.
+     */
+    protected void exportCollections( UUID applicationUUID, final Map<String, Object> config,
+                                      final JobExecution jobExecution, final ExportSink sink ) throws Exception {
+
+        final EntityManager em = emf.getEntityManager( applicationUUID );
+        Map<String, Object> metadata = em.getApplicationCollectionMetadata();
+
+        // fail before any work is started if the query doesn't parse
+        getQuery( config );
+
+        ExecutorService workers = Executors.newFixedThreadPool( exportThreads,
+                new ThreadFactoryBuilder().setNameFormat( "export-" + applicationUUID + "-%d" ).setDaemon( true )
+                                          .build() );
+
+        try {
+            List<Future<Void>> exports = new ArrayList<Future<Void>>();
+
+            for ( final String collectionName : metadata.keySet() ) {
+                if ( collectionName.equals( "exports" ) ) {
+                    continue;
                 }
-                else {
+                //if the collection you are looping through doesn't match the name of the one you want. Don't export it.
+
+                if ( ( config.get( "collectionName" ) == null ) || collectionName
+                        .equals( config.get( "collectionName" ) ) ) {
+
+                    exports.add( workers.submit( new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            exportCollection( em, collectionName, config, sink );
+                            return null;
+                        }
+                    } ) );
+                }
+            }
+
+            long starting_time = System.currentTimeMillis();
+
+            for ( Future<Void> collectionExport : exports ) {
+                while ( true ) {
                     try {
-                        query = Query.fromQL( ( String ) config.get( "query" ) );
+                        collectionExport.get( TIMESTAMP_DELTA, TimeUnit.MILLISECONDS );
+                        break;
                     }
-                    catch ( Exception e ) {
-                        export.setErrorMessage( e.getMessage() );
+                    catch ( TimeoutException e ) {
+                        starting_time = checkTimeDelta( starting_time, jobExecution );
+                    }
+                    catch ( ExecutionException e ) {
+                        if ( e.getCause() instanceof Exception ) {
+                            throw ( Exception ) e.getCause();
+                        }
+                        throw e;
                     }
-                }
-                query.setLimit( MAX_ENTITY_FETCH );
-                query.setResultsLevel( Results.Level.ALL_PROPERTIES );
-                query.setCollection( collectionName );
-
-                Results entities = em.searchCollection( em.getApplicationRef(), collectionName, query );
-
-                //pages through the query and backs up all results.
-                PagingResultsIterator itr = new PagingResultsIterator( entities );
-                for ( Object e : itr ) {
-                    starting_time = checkTimeDelta( starting_time, jobExecution );
-                    Entity entity = ( Entity ) e;
-                    jg.writeStartObject();
-                    jg.writeFieldName( "Metadata" );
-                    jg.writeObject( entity );
-                    saveCollectionMembers( jg, em, ( String ) config.get( "collectionName" ), entity );
-                    jg.writeEndObject();
-                    jg.flush();
                 }
             }
         }
-        jg.writeEndArray();
-        jg.flush();
-        jg.close();
+        finally {
+            workers.shutdownNow();
+        }
+    }
 
-        return ephemeral;
+
+    /** Pages through a collection, writing each page to the sink */
+    private void exportCollection( EntityManager em, String collectionName, Map<String, Object> config,
+                                   ExportSink sink ) throws Exception {
+
+        //Query entity manager for the entities in a collection
+        Query query = getQuery( config );
+        query.setLimit( MAX_ENTITY_FETCH );
+        query.setResultsLevel( Results.Level.ALL_PROPERTIES );
+        query.setCollection( collectionName );
+
+        Results entities = em.searchCollection( em.getApplicationRef(), collectionName, query );
+
+        //pages through the query and backs up all results.
+        while ( entities != null && !entities.getEntities().isEmpty() ) {
+            sink.write( serializeEntities( em, ( String ) config.get( "collectionName" ), entities.getEntities(),
+                    sink.isPrettyPrinted() ) );
+
+            entities = entities.getNextPageResults();
+        }
+    }
+
+
+    /** Each collection gets its own parsed query, since queries carry paging state */
+    private Query getQuery( Map<String, Object> config ) throws Exception {
+        Query query = null;
+
+        if ( config.get( "query" ) != null ) {
+            query = Query.fromQL( ( String ) config.get( "query" ) );
+        }
+
+        return query != null ? query : new Query();
+    }
+
+
+    /** Tune the export from the usergrid.export.* properties */
+    @Autowired( required = false )
+    public void setProperties( Properties properties ) {
+        this.exportThreads = getIntValue( properties, PROPERTIES_EXPORT_THREADS, DEFAULT_EXPORT_THREADS );
+        this.partSize = getIntValue( properties, PROPERTIES_EXPORT_PART_SIZE, DEFAULT_PART_SIZE );
+        this.maxParallelParts = getIntValue( properties, PROPERTIES_EXPORT_PARALLEL_PARTS, DEFAULT_PARALLEL_PARTS );
+        this.streaming = getBooleanValue( properties, PROPERTIES_EXPORT_STREAMING, false );
+    }
+
+
+    /**
+     * Set whether exports to a {@link StreamingS3Export} are streamed as gzip compressed, newline delimited JSON
+     * instead of being uploaded as a single JSON array file
+     */
+    public void setStreaming( boolean streaming ) {
+        this.streaming = streaming;
+    }
+
+
+    /** Set the number of collections exported at once */
+    public void setExportThreads( int exportThreads ) {
+        this.exportThreads = exportThreads;
+    }
+
+
+    /** Set the compressed size of each part of a streamed export */
+    public void setPartSize( int partSize ) {
+        this.partSize = partSize;
+    }
+
+
+    /** Set the number of parts of a streamed export that may upload at once */
+    public void setMaxParallelParts( int maxParallelParts ) {
+        this.maxParallelParts = maxParallelParts;
     }
 }
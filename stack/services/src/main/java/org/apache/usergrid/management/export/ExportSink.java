@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.management.export;
+
+
+import java.util.List;
+
+
+/**
+ * Destination of the serialized entities of an export.  Collections are exported concurrently, so implementations must
+ * accept writes from several threads.
+ */
+public interface ExportSink {
+
+    /** Append a batch of serialized entities.  Each record is one complete JSON object */
+    void write( List<byte[]> records ) throws Exception;
+
+    /** @return true if records are pretty printed, false if each record must be written on a single line */
+    boolean isPrettyPrinted();
+
+    /** Finish the export once every record has been written */
+    void close() throws Exception;
+
+    /** Discard the export after a failure */
+    void abort();
+}
@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.management.export;
+
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+
+
+/**
+ * Writes an export to a local file as a single pretty printed JSON array, for S3Export implementations that upload
+ * whole files.  The array is laid out the way a JsonGenerator with a DefaultPrettyPrinter writes it
+ */
+public class FileExportSink implements ExportSink {
+
+    private static final byte[] SEPARATOR_FIRST = { ' ' };
+    private static final byte[] SEPARATOR = { ',', ' ' };
+    private static final byte[] END = { ' ', ']' };
+
+    private final File file;
+    private final OutputStream out;
+
+    private boolean empty = true;
+
+
+    public FileExportSink( File file ) throws IOException {
+        this.file = file;
+        this.out = new BufferedOutputStream( new FileOutputStream( file ) );
+
+        out.write( '[' );
+    }
+
+
+    @Override
+    public boolean isPrettyPrinted() {
+        return true;
+    }
+
+
+    @Override
+    public synchronized void write( List<byte[]> records ) throws IOException {
+        for ( byte[] record : records ) {
+            out.write( empty ? SEPARATOR_FIRST : SEPARATOR );
+
+            out.write( record );
+            empty = false;
+        }
+    }
+
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.write( END );
+        out.close();
+    }
+
+
+    @Override
+    public synchronized void abort() {
+        IOUtils.closeQuietly( out );
+    }
+
+
+    public File getFile() {
+        return file;
+    }
+}
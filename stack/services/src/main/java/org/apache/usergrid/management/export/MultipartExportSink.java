@@ -0,0 +1,238 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.management.export;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.usergrid.services.assets.data.MultipartUploadClient;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+
+/**
+ * Streams an export to S3 as gzip compressed, newline delimited JSON.  Every batch of records is compressed on the
+ * thread that wrote it into its own gzip member, and members are appended to the current part.  Once a part reaches the
+ * part size it is uploaded in the background while the export carries on, with at most maxParallelParts parts held in
+ * memory.  Concatenated gzip members form a valid gzip stream, so the assembled object decompresses as one file.
+ */
+public class MultipartExportSink implements ExportSink {
+
+    private static final Logger logger = LoggerFactory.getLogger( MultipartExportSink.class );
+
+    /** S3 rejects parts smaller than this, other than the last */
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    public static final String CONTENT_TYPE = "application/x-gzip";
+
+    private final MultipartUploadClient client;
+    private final String key;
+    private final String uploadId;
+    private final int partSize;
+
+    private final ExecutorService uploader;
+    private final Semaphore inFlight;
+
+    private final Map<Integer, String> partETags = new TreeMap<Integer, String>();
+    private final List<Future<?>> uploads = new ArrayList<Future<?>>();
+
+    private ByteArrayOutputStream part;
+    private int partNumber;
+
+
+    /**
+     * Start the upload
+     *
+     * @param client The client to upload with
+     * @param key The key of the assembled object
+     * @param partSize The compressed size at which a part is uploaded, at least {@link #MIN_PART_SIZE}
+     * @param maxParallelParts The number of parts that may be uploading at once
+     */
+    public MultipartExportSink( MultipartUploadClient client, String key, int partSize, int maxParallelParts ) {
+        this.client = client;
+        this.key = key;
+        this.partSize = Math.max( partSize, MIN_PART_SIZE );
+        this.inFlight = new Semaphore( maxParallelParts );
+        this.uploader = Executors.newFixedThreadPool( maxParallelParts,
+                new ThreadFactoryBuilder().setNameFormat( "export-upload-%d" ).setDaemon( true ).build() );
+        this.part = new ByteArrayOutputStream( this.partSize + this.partSize / 4 );
+        this.uploadId = client.initiate( key, CONTENT_TYPE, null );
+    }
+
+
+    @Override
+    public void write( List<byte[]> records ) throws Exception {
+        if ( records.isEmpty() ) {
+            return;
+        }
+
+        byte[] member = compress( records );
+
+        synchronized ( this ) {
+            part.write( member );
+
+            if ( part.size() >= partSize ) {
+                submitPart();
+            }
+        }
+    }
+
+
+    @Override
+    public boolean isPrettyPrinted() {
+        return false;
+    }
+
+
+    /** Compress the records into a single gzip member, one record per line */
+    static byte[] compress( List<byte[]> records ) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream( compressed );
+
+        for ( byte[] record : records ) {
+            gzip.write( record );
+            gzip.write( '\n' );
+        }
+
+        gzip.close();
+
+        return compressed.toByteArray();
+    }
+
+
+    /** Hand the current part to the uploader, waiting while too many parts are already in flight */
+    private void submitPart() throws Exception {
+        checkUploads();
+
+        inFlight.acquire();
+
+        final byte[] data = part.toByteArray();
+        final int number = ++partNumber;
+
+        part.reset();
+
+        try {
+            uploads.add( uploader.submit( new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try {
+                        String eTag = client.uploadPart( key, uploadId, number, data, data.length );
+
+                        synchronized ( partETags ) {
+                            partETags.put( number, eTag );
+                        }
+
+                        logger.debug( "Uploaded part {} of {} with {} bytes", new Object[] {
+                                number, key, data.length
+                        } );
+
+                        return null;
+                    }
+                    finally {
+                        inFlight.release();
+                    }
+                }
+            } ) );
+        }
+        catch ( RuntimeException e ) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+
+    /** Fail fast if an upload that already finished has failed */
+    private void checkUploads() throws Exception {
+        for ( Future<?> upload : uploads ) {
+            if ( upload.isDone() ) {
+                getUpload( upload );
+            }
+        }
+    }
+
+
+    private void getUpload( Future<?> upload ) throws Exception {
+        try {
+            upload.get();
+        }
+        catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof Exception ) {
+                throw ( Exception ) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+
+    @Override
+    public synchronized void close() throws Exception {
+        try {
+            // the last part may be smaller than the minimum, and an empty export still needs one part
+            if ( part.size() > 0 || partNumber == 0 ) {
+                if ( part.size() == 0 ) {
+                    part.write( compress( new ArrayList<byte[]>() ) );
+                }
+
+                submitPart();
+            }
+
+            for ( Future<?> upload : uploads ) {
+                getUpload( upload );
+            }
+
+            String eTag;
+
+            synchronized ( partETags ) {
+                eTag = client.complete( key, uploadId, partETags );
+            }
+
+            logger.info( "Uploaded export {} in {} parts, etag={}", new Object[] { key, partNumber, eTag } );
+        }
+        finally {
+            uploader.shutdown();
+        }
+    }
+
+
+    @Override
+    public synchronized void abort() {
+        uploader.shutdownNow();
+
+        try {
+            client.abort( key, uploadId );
+        }
+        catch ( Exception e ) {
+            logger.error( "Unable to abort upload of " + key, e );
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package org.apache.usergrid.management.export;
 
 
+import java.io.Closeable;
 import java.io.File;
 import java.util.Map;
 import java.util.Properties;
@@ -33,6 +34,9 @@ import org.jclouds.netty.config.NettyPayloadModule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.apache.usergrid.services.assets.data.MultipartUploadClient;
+import org.apache.usergrid.services.assets.data.S3MultipartUploadClient;
+
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.Module;
@@ -42,7 +46,7 @@ import com.google.inject.Module;
  *
  *
  */
-public class S3ExportImpl implements S3Export {
+public class S3ExportImpl implements StreamingS3Export {
 
     String fn;
 
@@ -105,7 +109,63 @@ public class S3ExportImpl implements S3Export {
         }
     }
 
+    /**
+     * Streaming uploads go through the aws-s3 api, since the generic s3 provider doesn't expose multipart uploads.  The
+     * returned client owns its context and releases it when closed.
+     */
+    @Override
+    public MultipartUploadClient getUploadClient( final Map<String, Object> exportInfo, String filename )
+            throws Exception {
+
+        fn = filename;
+
+        Map<String, Object> properties = ( Map<String, Object> ) exportInfo.get( "properties" );
+
+        Map<String, Object> storage_info = ( Map<String, Object> ) properties.get( "storage_info" );
+
+        String bucketName = ( String ) storage_info.get( "bucket_location" );
+        String accessId = ( String ) storage_info.get( "s3_access_id" );
+        String secretKey = ( String ) storage_info.get( "s3_key" );
+
+        final Iterable<? extends Module> MODULES = ImmutableSet
+                .of( new JavaUrlHttpCommandExecutorServiceModule(), new Log4JLoggingModule(),
+                        new NettyPayloadModule() );
+
+        BlobStoreContext context =
+                ContextBuilder.newBuilder( "aws-s3" ).credentials( accessId, secretKey ).modules( MODULES )
+                              .buildView( BlobStoreContext.class );
+
+        try {
+            context.getBlobStore().createContainerInLocation( null, bucketName );
+
+            return new ClosingUploadClient( context, bucketName );
+        }
+        catch ( RuntimeException e ) {
+            context.close();
+            throw e;
+        }
+    }
+
+
     @Override
     public String getFilename () {return fn;}
 
+
+    /** An upload client that closes the context it was created with */
+    private static class ClosingUploadClient extends S3MultipartUploadClient implements Closeable {
+
+        private final BlobStoreContext context;
+
+
+        private ClosingUploadClient( BlobStoreContext context, String bucketName ) {
+            super( context, bucketName );
+            this.context = context;
+        }
+
+
+        @Override
+        public void close() {
+            context.close();
+        }
+    }
 }
@@ -0,0 +1,34 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.management.export;
+
+
+import java.util.Map;
+
+import org.apache.usergrid.services.assets.data.MultipartUploadClient;
+
+
+/**
+ * An S3Export that can take an export as it is produced.  When usergrid.export.streaming is enabled the export service
+ * streams compressed parts through the returned client instead of writing a local file and calling {@link #copyToS3}.
+ * A client that is {@link java.io.Closeable} is closed once its upload has completed or been aborted.
+ */
+public interface StreamingS3Export extends S3Export {
+
+    /** Prepare the bucket named in the export info and return a client for uploading the named file to it */
+    MultipartUploadClient getUploadClient( Map<String, Object> exportInfo, String filename ) throws Exception;
+}
@@ -18,9 +18,12 @@ package org.apache.usergrid.security.crypto.command;
 
 
 import java.nio.charset.Charset;
+import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
 import org.mindrot.jbcrypt.BCrypt;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 import org.apache.usergrid.persistence.CredentialsInfo;
@@ -29,7 +32,8 @@ import static org.apache.commons.codec.binary.Base64.decodeBase64;
 
 
 /**
- * Simple bcrypt command.  Runtime encoding of bytes is expected to convert to a UTF8 string
+ * Simple bcrypt command.  Runtime encoding of bytes is expected to convert to a UTF8 string.  Hashing is CPU bound and
+ * deliberately slow, so it runs on a {@link HashingExecutor} rather than on the calling request thread
  *
  * @author tnine
  */
@@ -44,14 +48,21 @@ public class BcryptCommand extends EncryptionCommand {
      */
     private int defaultIterations = 2 ^ 11;
 
+    private volatile HashingExecutor hashingExecutor;
+
 
     /* (non-Javadoc)
      * @see org.apache.usergrid.security.crypto.command.EncryptionCommand#hash(byte[],
      * org.apache.usergrid.persistence.CredentialsInfo, java.util.UUID, java.util.UUID)
      */
     @Override
-    public byte[] hash( byte[] input, CredentialsInfo info, UUID userId, UUID applicationId ) {
-        return BCrypt.hashpw(new String(input, UTF8), BCrypt.gensalt(defaultIterations)).getBytes();
+    public byte[] hash( final byte[] input, CredentialsInfo info, UUID userId, UUID applicationId ) {
+        return getHashingExecutor().execute( applicationId, new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return BCrypt.hashpw( new String( input, UTF8 ), BCrypt.gensalt( defaultIterations ) ).getBytes();
+            }
+        } );
     }
 
 
@@ -59,16 +70,21 @@ public class BcryptCommand extends EncryptionCommand {
      * @see org.apache.usergrid.security.crypto.command.EncryptionCommand#auth(byte[],
      * org.apache.usergrid.persistence.CredentialsInfo, java.util.UUID, java.util.UUID)
      */
-    public byte[] auth( byte[] input, CredentialsInfo info, UUID userId, UUID applicationId ) {
+    public byte[] auth( final byte[] input, CredentialsInfo info, UUID userId, UUID applicationId ) {
         //our existing has the salt in it, extract it and re-use it
 
         String infoSecret = info.getSecret();
 
         Assert.notNull( infoSecret, "The credentials info must have a bcrypt compatible secret to perform auth" );
 
-        String existing = new String( decodeBase64( infoSecret ), UTF8 );
+        final String existing = new String( decodeBase64( infoSecret ), UTF8 );
 
-        return BCrypt.hashpw( new String( input, UTF8 ), existing ).getBytes( UTF8 );
+        return getHashingExecutor().execute( applicationId, new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return BCrypt.hashpw( new String( input, UTF8 ), existing ).getBytes( UTF8 );
+            }
+        } );
     }
 
 
@@ -83,6 +99,41 @@ public class BcryptCommand extends EncryptionCommand {
     }
 
 
+    /** Size the hashing pool from the usergrid.crypto.hash.* properties */
+    @Autowired( required = false )
+    public void setProperties( Properties properties ) {
+        setHashingExecutor( HashingExecutor.fromProperties( BCRYPT, properties ) );
+    }
+
+
+    /** Set the pool hashes are run on */
+    public synchronized void setHashingExecutor( HashingExecutor hashingExecutor ) {
+        if ( this.hashingExecutor != null ) {
+            this.hashingExecutor.shutdown();
+        }
+
+        this.hashingExecutor = hashingExecutor;
+    }
+
+
+    /** Get the pool hashes are run on, creating one with the default sizes if none was configured */
+    public HashingExecutor getHashingExecutor() {
+        HashingExecutor executor = hashingExecutor;
+
+        if ( executor != null ) {
+            return executor;
+        }
+
+        synchronized ( this ) {
+            if ( hashingExecutor == null ) {
+                hashingExecutor = HashingExecutor.fromProperties( BCRYPT, new Properties() );
+            }
+
+            return hashingExecutor;
+        }
+    }
+
+
     /* (non-Javadoc)
      * @see org.apache.usergrid.security.crypto.command.EncryptionCommand#getName()
      */
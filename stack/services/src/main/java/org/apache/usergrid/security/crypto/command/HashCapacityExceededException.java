@@ -0,0 +1,32 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.security.crypto.command;
+
+
+/**
+ * Thrown when a credentials hash is refused because the hashing pool is saturated, the caller's application is at its
+ * concurrency limit, or the hash waited in the queue for longer than allowed.  Callers should retry later
+ */
+public class HashCapacityExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+
+    public HashCapacityExceededException( String message ) {
+        super( message );
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.security.crypto.command;
+
+
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+
+import static org.apache.commons.collections.MapUtils.getIntValue;
+import static org.apache.commons.collections.MapUtils.getLongValue;
+
+
+/**
+ * Runs CPU bound credential hashes on a dedicated, bounded pool so that a login storm can't starve the request threads.
+ * Work is refused immediately when the queue is full or the calling application already has its maximum number of
+ * hashes running, and a hash that hasn't started within the allowed time is taken off the queue and refused, so callers
+ * are never held for longer than the queue timeout plus the time of their own hash.
+ */
+public class HashingExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger( HashingExecutor.class );
+
+    public static final String PROPERTIES_HASH_THREADS = "usergrid.crypto.hash.threads";
+    public static final String PROPERTIES_HASH_QUEUE_SIZE = "usergrid.crypto.hash.queue.size";
+    public static final String PROPERTIES_HASH_QUEUE_TIMEOUT = "usergrid.crypto.hash.queue.timeout";
+    public static final String PROPERTIES_HASH_APPLICATION_CONCURRENCY = "usergrid.crypto.hash.application.concurrency";
+
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_QUEUE_SIZE = DEFAULT_THREADS * 16;
+    public static final long DEFAULT_QUEUE_TIMEOUT = 2000;
+    public static final int DEFAULT_APPLICATION_CONCURRENCY = Math.max( 1, DEFAULT_THREADS / 2 );
+
+    private final ThreadPoolExecutor executor;
+
+    /** Maximum time in milliseconds a hash may wait before it starts */
+    private final long queueTimeout;
+
+    /** Maximum number of queued or running hashes for a single application */
+    private final int applicationConcurrency;
+
+    /** Hashes queued or running per application, an application is only present while it has any */
+    private final ConcurrentMap<UUID, AtomicInteger> applicationCounts = new ConcurrentHashMap<UUID, AtomicInteger>();
+
+    private final Timer hashTimer;
+    private final Timer queueTimer;
+    private final Meter rejections;
+
+
+    /**
+     * Create an executor
+     *
+     * @param name The name used to scope this executor's metrics and thread names
+     * @param threads The number of hashing threads
+     * @param queueSize The number of hashes that may wait for a thread
+     * @param queueTimeout The time in milliseconds a hash may wait for a thread before it's dropped
+     * @param applicationConcurrency The number of hashes that may be queued or running for one application
+     */
+    public HashingExecutor( String name, int threads, int queueSize, long queueTimeout, int applicationConcurrency ) {
+        this.queueTimeout = queueTimeout;
+        this.applicationConcurrency = applicationConcurrency;
+
+        this.executor = new ThreadPoolExecutor( threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>( queueSize ),
+                new ThreadFactoryBuilder().setNameFormat( name + "-hash-%d" ).setDaemon( true ).build(),
+                new ThreadPoolExecutor.AbortPolicy() );
+
+        this.hashTimer = Metrics.newTimer( HashingExecutor.class, "hash_latency", name, TimeUnit.MILLISECONDS,
+                TimeUnit.SECONDS );
+        this.queueTimer = Metrics.newTimer( HashingExecutor.class, "queue_time", name, TimeUnit.MILLISECONDS,
+                TimeUnit.SECONDS );
+        this.rejections = Metrics.newMeter( HashingExecutor.class, "rejections", name, "rejections", TimeUnit.SECONDS );
+
+        // gauges are registered by name, replace those of an earlier executor with the same name so they don't keep
+        // reporting a pool that has been shut down
+        MetricName queueDepth = new MetricName( HashingExecutor.class, "queue_depth", name );
+        MetricName activeHashes = new MetricName( HashingExecutor.class, "active_hashes", name );
+
+        Metrics.defaultRegistry().removeMetric( queueDepth );
+        Metrics.defaultRegistry().removeMetric( activeHashes );
+
+        Metrics.newGauge( queueDepth, new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return executor.getQueue().size();
+            }
+        } );
+
+        Metrics.newGauge( activeHashes, new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return executor.getActiveCount();
+            }
+        } );
+    }
+
+
+    /** Create an executor using the usergrid.crypto.hash.* settings, falling back to the defaults */
+    public static HashingExecutor fromProperties( String name, Properties properties ) {
+        return new HashingExecutor( name, getIntValue( properties, PROPERTIES_HASH_THREADS, DEFAULT_THREADS ),
+                getIntValue( properties, PROPERTIES_HASH_QUEUE_SIZE, DEFAULT_QUEUE_SIZE ),
+                getLongValue( properties, PROPERTIES_HASH_QUEUE_TIMEOUT, DEFAULT_QUEUE_TIMEOUT ),
+                getIntValue( properties, PROPERTIES_HASH_APPLICATION_CONCURRENCY, DEFAULT_APPLICATION_CONCURRENCY ) );
+    }
+
+
+    /**
+     * Run the hash on the pool and wait for its result.
+     *
+     * @param applicationId The application the hash is performed for.  Null for system level credentials, which are
+     * not subject to the per application limit
+     *
+     * @throws HashCapacityExceededException if the hash was refused
+     */
+    public byte[] execute( UUID applicationId, final Callable<byte[]> hash ) {
+
+        AtomicInteger applicationCount = acquire( applicationId );
+
+        try {
+            final long queued = System.nanoTime();
+
+            // whichever of the pool thread and the caller takes this first decides if the hash runs or is refused
+            final AtomicBoolean claimed = new AtomicBoolean();
+            final CountDownLatch started = new CountDownLatch( 1 );
+
+            Future<byte[]> future;
+
+            try {
+                future = executor.submit( new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        if ( !claimed.compareAndSet( false, true ) ) {
+                            // the caller gave up waiting
+                            return null;
+                        }
+
+                        started.countDown();
+
+                        queueTimer.update( System.nanoTime() - queued, TimeUnit.NANOSECONDS );
+
+                        long start = System.nanoTime();
+
+                        try {
+                            return hash.call();
+                        }
+                        finally {
+                            hashTimer.update( System.nanoTime() - start, TimeUnit.NANOSECONDS );
+                        }
+                    }
+                } );
+            }
+            catch ( RejectedExecutionException e ) {
+                rejections.mark();
+                logger.warn( "Hashing queue is full with {} pending hashes, rejecting", executor.getQueue().size() );
+                throw new HashCapacityExceededException( "Too many credential checks in progress, try again later" );
+            }
+
+            if ( !awaitStart( started ) && claimed.compareAndSet( false, true ) ) {
+                future.cancel( false );
+                executor.remove( ( Runnable ) future );
+                rejections.mark();
+                throw new HashCapacityExceededException(
+                        "Hash did not start within " + queueTimeout + "ms, try again later" );
+            }
+
+            return get( future );
+        }
+        finally {
+            release( applicationId, applicationCount );
+        }
+    }
+
+
+    /**
+     * Reserve a slot for the application, returning the counter to release or null if no limit applies.  A counter
+     * that dropped to zero is retired by setting it to -1 and removed, so it's never incremented again
+     */
+    private AtomicInteger acquire( UUID applicationId ) {
+        if ( applicationId == null ) {
+            return null;
+        }
+
+        while ( true ) {
+            AtomicInteger count = applicationCounts.get( applicationId );
+
+            if ( count == null ) {
+                AtomicInteger created = new AtomicInteger();
+                count = applicationCounts.putIfAbsent( applicationId, created );
+
+                if ( count == null ) {
+                    count = created;
+                }
+            }
+
+            int current = count.get();
+
+            if ( current < 0 ) {
+                // retired by a release that hasn't removed it yet
+                applicationCounts.remove( applicationId, count );
+                continue;
+            }
+
+            if ( current >= applicationConcurrency ) {
+                rejections.mark();
+                throw new HashCapacityExceededException( "Application " + applicationId
+                        + " has too many credential checks in progress, try again later" );
+            }
+
+            if ( count.compareAndSet( current, current + 1 ) ) {
+                return count;
+            }
+        }
+    }
+
+
+    /** Release the slot of an application, removing its counter once it has no hashes left */
+    private void release( UUID applicationId, AtomicInteger count ) {
+        if ( count == null ) {
+            return;
+        }
+
+        if ( count.decrementAndGet() == 0 && count.compareAndSet( 0, -1 ) ) {
+            applicationCounts.remove( applicationId, count );
+        }
+    }
+
+
+    /** Wait up to the queue timeout for the hash to start, returning false if it didn't */
+    private boolean awaitStart( CountDownLatch started ) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( queueTimeout );
+        boolean interrupted = false;
+
+        try {
+            while ( true ) {
+                try {
+                    return started.await( deadline - System.nanoTime(), TimeUnit.NANOSECONDS );
+                }
+                catch ( InterruptedException e ) {
+                    interrupted = true;
+                }
+            }
+        }
+        finally {
+            if ( interrupted ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    private byte[] get( Future<byte[]> future ) {
+        boolean interrupted = false;
+
+        try {
+            while ( true ) {
+                try {
+                    return future.get();
+                }
+                catch ( InterruptedException e ) {
+                    interrupted = true;
+                }
+            }
+        }
+        catch ( ExecutionException e ) {
+            Throwable cause = e.getCause();
+
+            if ( cause instanceof RuntimeException ) {
+                throw ( RuntimeException ) cause;
+            }
+
+            if ( cause instanceof Error ) {
+                throw ( Error ) cause;
+            }
+
+            throw new RuntimeException( "Unable to compute hash", cause );
+        }
+        finally {
+            if ( interrupted ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    /** @return the number of applications with hashes queued or running */
+    int getApplicationCount() {
+        return applicationCounts.size();
+    }
+
+
+    /** @return the number of hashes waiting for a thread */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -18,6 +18,7 @@ package org.apache.usergrid.services;
 
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -25,6 +26,7 @@ import java.util.UUID;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.apache.usergrid.persistence.BulkCreateResults;
 import org.apache.usergrid.persistence.Entity;
 import org.apache.usergrid.persistence.EntityRef;
 import org.apache.usergrid.persistence.Query;
@@ -37,6 +39,7 @@ import org.apache.usergrid.services.exceptions.ForbiddenServiceOperationExceptio
 import org.apache.usergrid.services.exceptions.ServiceResourceNotFoundException;
 
 import static org.apache.usergrid.utils.ClassUtils.cast;
+import static org.apache.usergrid.utils.InflectionUtils.singularize;
 
 
 public class AbstractCollectionService extends AbstractService {
@@ -352,13 +355,21 @@ public class AbstractCollectionService extends AbstractService {
         checkPermissionsForCollection( context );
 
         if ( context.getPayload().isBatch() ) {
-            List<Entity> entities = new ArrayList<Entity>();
             List<Map<String, Object>> batch = context.getPayload().getBatchProperties();
             logger.info( "Attempting to batch create " + batch.size() + " entities in collection " + context
                     .getCollectionName() );
+
+            String itemType = getBulkEntityType( context );
+
+            if ( itemType != null ) {
+                return postCollectionBulk( context, itemType, batch );
+            }
+
+            List<Entity> entities = new ArrayList<Entity>();
+            List<Map<String, Object>> errors = new ArrayList<Map<String, Object>>();
             int i = 1;
             for ( Map<String, Object> p : batch ) {
-                logger.info( "Creating entity " + i + " in collection " + context.getCollectionName() );
+                logger.debug( "Creating entity " + i + " in collection " + context.getCollectionName() );
 
                 Entity item = null;
 
@@ -370,11 +381,12 @@ public class AbstractCollectionService extends AbstractService {
                     logger.error( "Entity " + i + " unable to be created in collection " + context.getCollectionName(),
                             e );
 
+                    errors.add( batchError( i - 1, e ) );
                     i++;
                     continue;
                 }
 
-                logger.info(
+                logger.debug(
                         "Entity " + i + " created in collection " + context.getCollectionName() + " with UUID " + item
                                 .getUuid() );
 
@@ -382,7 +394,8 @@ public class AbstractCollectionService extends AbstractService {
                 entities.add( item );
                 i++;
             }
-            return new ServiceResults( this, context, Type.COLLECTION, Results.fromEntities( entities ), null, null );
+            return new ServiceResults( this, context, Type.COLLECTION, Results.fromEntities( entities ),
+                    batchMetadata( errors ), null );
         }
 
         Entity item = em.createItemInCollection( context.getOwner(), context.getCollectionName(), getEntityType(),
@@ -394,6 +407,86 @@ public class AbstractCollectionService extends AbstractService {
     }
 
 
+    /**
+     * Create all the entities of a batch post with a single bulk create.  Entities that could not be created are left
+     * out of the results and reported in the metadata of the response by their position in the batch
+     */
+    protected ServiceResults postCollectionBulk( ServiceContext context, String itemType,
+                                                 List<Map<String, Object>> batch ) throws Exception {
+
+        BulkCreateResults created = em.createBulk( itemType, batch );
+
+        List<Entity> entities = new ArrayList<Entity>( created.getCreatedCount() );
+
+        for ( Entity item : created.getEntities() ) {
+            if ( item != null ) {
+                entities.add( importEntity( context, item ) );
+            }
+        }
+
+        List<Map<String, Object>> errors = new ArrayList<Map<String, Object>>();
+
+        for ( Map.Entry<Integer, Exception> error : created.getErrors().entrySet() ) {
+            logger.error( "Entity " + ( error.getKey() + 1 ) + " unable to be created in collection " + context
+                    .getCollectionName(), error.getValue() );
+
+            errors.add( batchError( error.getKey(), error.getValue() ) );
+        }
+
+        logger.info( "Created " + entities.size() + " of " + batch.size() + " entities in collection " + context
+                .getCollectionName() );
+
+        return new ServiceResults( this, context, Type.COLLECTION, Results.fromEntities( entities ),
+                batchMetadata( errors ), null );
+    }
+
+
+    /**
+     * Get the entity type a batch post can be bulk created as.  Only items of the application collections are created
+     * directly by the entity manager, everything else has to go through the relation manager one item at a time
+     *
+     * @return The entity type, or null if the batch must be created item by item
+     */
+    protected String getBulkEntityType( ServiceContext context ) {
+
+        if ( !em.getApplicationRef().getUuid().equals( context.getOwner().getUuid() ) ) {
+            return null;
+        }
+
+        String itemType = getEntityType();
+
+        if ( Schema.TYPE_ENTITY.equals( itemType ) ) {
+            itemType = singularize( context.getCollectionName() );
+        }
+
+        if ( Schema.TYPE_ROLE.equals( itemType ) ) {
+            return null;
+        }
+
+        return itemType;
+    }
+
+
+    private static Map<String, Object> batchError( int index, Exception e ) {
+        Map<String, Object> error = new LinkedHashMap<String, Object>();
+        error.put( "index", index );
+        error.put( "error", e.getClass().getSimpleName() );
+        error.put( "error_description", e.getMessage() );
+        return error;
+    }
+
+
+    private static Map<String, Object> batchMetadata( List<Map<String, Object>> errors ) {
+        if ( errors.isEmpty() ) {
+            return null;
+        }
+
+        Map<String, Object> metadata = new LinkedHashMap<String, Object>();
+        metadata.put( "errors", errors );
+        return metadata;
+    }
+
+
     @Override
     public ServiceResults putCollection( ServiceContext context ) throws Exception {
         return postCollection( context );
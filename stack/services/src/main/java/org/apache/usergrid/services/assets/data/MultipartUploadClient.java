@@ -0,0 +1,37 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.services.assets.data;
+
+
+import java.util.Map;
+
+
+/** The operations of an S3 style multipart upload, kept separate so uploads can be run against a local stand-in */
+public interface MultipartUploadClient {
+
+    /** Start an upload of the given key, returning the upload id */
+    public String initiate( String key, String contentType, String contentDisposition );
+
+    /** Upload the first length bytes of data as the given part number, returning the part's etag */
+    public String uploadPart( String key, String uploadId, int partNumber, byte[] data, int length );
+
+    /** Complete the upload from the etag of each part number, returning the etag of the assembled object */
+    public String complete( String key, String uploadId, Map<Integer, String> partETags );
+
+    /** Abandon the upload and discard any parts already sent */
+    public void abort( String key, String uploadId );
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.services.assets.data;
+
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * A bounded set of reusable part sized buffers shared by all uploads.  Buffers are only allocated when an upload needs
+ * one and no released buffer is free, up to the buffer count.  Taking a buffer blocks while every buffer is in use,
+ * which bounds the memory held by uploads no matter how many run at once.  An upload that can't get a buffer within the
+ * timeout fails rather than waiting behind slow uploads indefinitely.
+ */
+public class PartBufferPool {
+
+    /** Default time in milliseconds to wait for a free buffer */
+    public static final long DEFAULT_TIMEOUT = 30000;
+
+    private final int partSize;
+    private final long timeout;
+    private final Semaphore permits;
+    private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+
+
+    public PartBufferPool( int partSize, int bufferCount ) {
+        this( partSize, bufferCount, DEFAULT_TIMEOUT );
+    }
+
+
+    /**
+     * @param partSize The size of each buffer
+     * @param bufferCount The maximum number of buffers
+     * @param timeout The time in milliseconds to wait for a free buffer
+     */
+    public PartBufferPool( int partSize, int bufferCount, long timeout ) {
+        this.partSize = partSize;
+        this.timeout = timeout;
+        this.permits = new Semaphore( bufferCount );
+    }
+
+
+    /**
+     * Take a buffer, waiting until one is free
+     *
+     * @throws IOException if no buffer became free within the timeout
+     */
+    public byte[] acquire() throws InterruptedException, IOException {
+        if ( !permits.tryAcquire( timeout, TimeUnit.MILLISECONDS ) ) {
+            throw new IOException( "No upload buffer became free within " + timeout
+                    + "ms, too many uploads are in progress, try again later" );
+        }
+
+        byte[] buffer = buffers.poll();
+
+        return buffer != null ? buffer : new byte[partSize];
+    }
+
+
+    /** Return a buffer taken with {@link #acquire()} */
+    public void release( byte[] buffer ) {
+        buffers.offer( buffer );
+        permits.release();
+    }
+
+
+    public int getPartSize() {
+        return partSize;
+    }
+
+
+    /** @return the number of buffers not currently in use */
+    public int available() {
+        return permits.availablePermits();
+    }
+}
@@ -17,45 +17,41 @@
 package org.apache.usergrid.services.assets.data;
 
 
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import org.jclouds.ContextBuilder;
-import org.jclouds.blobstore.AsyncBlobStore;
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.BlobStoreContext;
 import org.jclouds.blobstore.domain.Blob;
 import org.jclouds.blobstore.domain.BlobBuilder;
 import org.jclouds.blobstore.options.GetOptions;
-import org.jclouds.blobstore.options.PutOptions;
 import org.jclouds.http.config.JavaUrlHttpCommandExecutorServiceModule;
 import org.jclouds.logging.log4j.config.Log4JLoggingModule;
 import org.jclouds.netty.config.NettyPayloadModule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
 import org.apache.usergrid.persistence.Entity;
-import org.apache.usergrid.persistence.EntityManager;
-import org.apache.usergrid.persistence.EntityManagerFactory;
 
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 
 import com.google.common.collect.ImmutableSet;
-import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.Module;
 
 
+/**
+ * Stores assets in an S3 bucket.  Assets smaller than a part are sent with a single put, larger ones are streamed as a
+ * multipart upload from a shared pool of part buffers.  Either way the upload has completed when {@link #write}
+ * returns, so the request thread is held for the whole upload of a large asset, and the entity's file metadata holds
+ * the final length, checksum and etag.
+ */
 public class S3BinaryStore implements BinaryStore {
 
     private static final Iterable<? extends Module> MODULES = ImmutableSet
@@ -64,14 +60,22 @@ public class S3BinaryStore implements BinaryStore {
     private static final Logger LOG = LoggerFactory.getLogger( S3BinaryStore.class );
     private static final long FIVE_MB = ( FileUtils.ONE_MB * 5 );
 
+    /** The size of each part of a multipart upload.  S3 requires at least 5 MB for all but the last part */
+    private static final int PART_SIZE = ( int ) FIVE_MB;
+
+    /** The number of leading bytes used to detect the content type */
+    private static final int MIME_SNIFF_SIZE = 64 * 1024;
+
     private BlobStoreContext context;
     private String accessId;
     private String secretKey;
     private String bucketName;
     private ExecutorService executor = Executors.newFixedThreadPool( 10 );
-
-    @Autowired
-    private EntityManagerFactory emf;
+    private int partBufferCount = 10;
+    private long partBufferTimeout = PartBufferPool.DEFAULT_TIMEOUT;
+    private PartBufferPool partBuffers;
+    private int maxParallelParts = 3;
+    private MultipartUploadClient uploadClient;
 
 
     public S3BinaryStore( String accessId, String secretKey, String bucketName ) {
@@ -105,24 +109,28 @@ public class S3BinaryStore implements BinaryStore {
     public void write( final UUID appId, final Entity entity, InputStream inputStream ) throws IOException {
 
         String uploadFileName = AssetUtils.buildAssetKey( appId, entity );
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        long written = IOUtils.copyLarge( inputStream, baos, 0, FIVE_MB );
-        byte[] data = baos.toByteArray();
 
         final Map<String, Object> fileMetadata = AssetUtils.getFileMetadata( entity );
         fileMetadata.put( AssetUtils.LAST_MODIFIED, System.currentTimeMillis() );
 
-        String mimeType = AssetMimeHandler.get().getMimeType( entity, data );
+        Object contentDisposition = fileMetadata.get( AssetUtils.CONTENT_DISPOSITION );
+
+        // read into a buffer that only grows as data arrives, a pool buffer is only taken for a multipart upload
+        byte[] data = readHead( inputStream, PART_SIZE );
+        int written = data.length;
+
+        byte[] head = written > MIME_SNIFF_SIZE ? Arrays.copyOf( data, MIME_SNIFF_SIZE ) : data;
+        String mimeType = AssetMimeHandler.get().getMimeType( entity, head );
 
-        if ( written < FIVE_MB ) { // total smaller than 5mb
+        if ( written < PART_SIZE ) { // the whole thing fits in a single part
 
             BlobStore blobStore = getContext().getBlobStore();
             BlobBuilder.PayloadBlobBuilder bb =
                     blobStore.blobBuilder( uploadFileName ).payload( data ).calculateMD5().contentType( mimeType );
 
             fileMetadata.put( AssetUtils.CONTENT_LENGTH, written );
-            if ( fileMetadata.get( AssetUtils.CONTENT_DISPOSITION ) != null ) {
-                bb.contentDisposition( fileMetadata.get( AssetUtils.CONTENT_DISPOSITION ).toString() );
+            if ( contentDisposition != null ) {
+                bb.contentDisposition( contentDisposition.toString() );
             }
             final Blob blob = bb.build();
 
@@ -132,56 +140,107 @@ public class S3BinaryStore implements BinaryStore {
             String eTag = blobStore.putBlob( bucketName, blob );
             fileMetadata.put( AssetUtils.E_TAG, eTag );
         }
-        else { // bigger than 5mb... dump 5 mb tmp files and upload from them
+        else { // bigger than a part... stream the parts as they arrive, write returns once the upload completes
 
-            // todo: yes, AsyncBlobStore is deprecated, but there appears to be no replacement yet
-            final AsyncBlobStore blobStore = getContext().getAsyncBlobStore();
+            PartBufferPool buffers = getPartBuffers();
+
+            byte[] firstPart;
 
-            File tempFile = File.createTempFile( entity.getUuid().toString(), "tmp" );
-            tempFile.deleteOnExit();
-            OutputStream os = null;
             try {
-                os = new BufferedOutputStream( new FileOutputStream( tempFile.getAbsolutePath() ) );
-                os.write( data );
-                written += IOUtils.copyLarge( inputStream, os, 0, ( FileUtils.ONE_GB * 5 ) );
+                firstPart = buffers.acquire();
             }
-            finally {
-                IOUtils.closeQuietly( os );
+            catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException( "Interrupted waiting for an upload buffer" );
             }
 
-            BlobBuilder.PayloadBlobBuilder bb =
-                    blobStore.blobBuilder( uploadFileName ).payload( tempFile ).calculateMD5().contentType( mimeType );
+            System.arraycopy( data, 0, firstPart, 0, written );
 
-            fileMetadata.put( AssetUtils.CONTENT_LENGTH, written );
-            if ( fileMetadata.get( AssetUtils.CONTENT_DISPOSITION ) != null ) {
-                bb.contentDisposition( fileMetadata.get( AssetUtils.CONTENT_DISPOSITION ).toString() );
+            StreamingMultipartUpload upload =
+                    new StreamingMultipartUpload( getUploadClient(), buffers, executor, maxParallelParts );
+
+            StreamingMultipartUpload.UploadResult result = upload.upload( uploadFileName, mimeType,
+                    contentDisposition != null ? contentDisposition.toString() : null, firstPart, written,
+                    inputStream );
+
+            fileMetadata.put( AssetUtils.CONTENT_LENGTH, result.getContentLength() );
+            fileMetadata.put( AssetUtils.CHECKSUM, Hex.encodeHexString( result.getMd5() ) );
+            fileMetadata.put( AssetUtils.E_TAG, result.getETag() );
+        }
+    }
+
+
+    /**
+     * Read up to limit bytes from the stream.  The buffer starts small and doubles as data arrives, so a small upload
+     * never holds more memory than its own size
+     *
+     * @return The bytes read, fewer than limit only if the stream ended
+     */
+    static byte[] readHead( InputStream input, int limit ) throws IOException {
+        byte[] buffer = new byte[Math.min( MIME_SNIFF_SIZE, limit )];
+        int length = 0;
+
+        while ( length < limit ) {
+            if ( length == buffer.length ) {
+                buffer = Arrays.copyOf( buffer, ( int ) Math.min( limit, buffer.length * 2L ) );
             }
-            final Blob blob = bb.build();
 
-            final File finalTempFile = tempFile;
-            final ListenableFuture<String> future =
-                    blobStore.putBlob( bucketName, blob, PutOptions.Builder.multipart() );
-
-            Runnable listener = new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        String eTag = future.get();
-                        fileMetadata.put( AssetUtils.E_TAG, eTag );
-                        EntityManager em = emf.getEntityManager( appId );
-                        em.update( entity );
-                        finalTempFile.delete();
-                    }
-                    catch ( Exception e ) {
-                        LOG.error( "error uploading", e );
-                    }
-                    if ( finalTempFile != null && finalTempFile.exists() ) {
-                        finalTempFile.delete();
-                    }
-                }
-            };
-            future.addListener( listener, executor );
+            int read = input.read( buffer, length, buffer.length - length );
+
+            if ( read == -1 ) {
+                return Arrays.copyOf( buffer, length );
+            }
+
+            length += read;
         }
+
+        return buffer;
+    }
+
+
+    /** Get the part buffers, the pool is built on first use so a store that never uploads a large asset has none */
+    private synchronized PartBufferPool getPartBuffers() {
+        if ( partBuffers == null ) {
+            partBuffers = new PartBufferPool( PART_SIZE, partBufferCount, partBufferTimeout );
+        }
+
+        return partBuffers;
+    }
+
+
+    private synchronized MultipartUploadClient getUploadClient() {
+        if ( uploadClient == null ) {
+            uploadClient = new S3MultipartUploadClient( getContext(), bucketName );
+        }
+
+        return uploadClient;
+    }
+
+
+    /** Use a different multipart client, such as a local S3 compatible stand-in */
+    public synchronized void setUploadClient( MultipartUploadClient uploadClient ) {
+        this.uploadClient = uploadClient;
+    }
+
+
+    /**
+     * Set the number of part buffers shared by all multipart uploads.  This bounds the memory used for those uploads at
+     * bufferCount times 5 MB.  Must be set before the first upload
+     */
+    public synchronized void setPartBufferCount( int bufferCount ) {
+        this.partBufferCount = bufferCount;
+    }
+
+
+    /** Set the time in milliseconds an upload waits for a free part buffer before it fails */
+    public synchronized void setPartBufferTimeout( long partBufferTimeout ) {
+        this.partBufferTimeout = partBufferTimeout;
+    }
+
+
+    /** Set the number of parts of a single upload that may be sent at once */
+    public void setMaxParallelParts( int maxParallelParts ) {
+        this.maxParallelParts = maxParallelParts;
     }
 
 
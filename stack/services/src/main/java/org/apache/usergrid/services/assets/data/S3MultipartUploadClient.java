@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.services.assets.data;
+
+
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+
+import org.jclouds.aws.s3.AWSS3ApiMetadata;
+import org.jclouds.aws.s3.AWSS3Client;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.io.Payload;
+import org.jclouds.io.Payloads;
+import org.jclouds.s3.domain.ObjectMetadataBuilder;
+
+
+/** Multipart uploads against Amazon S3 through the jclouds aws-s3 api */
+public class S3MultipartUploadClient implements MultipartUploadClient {
+
+    private final AWSS3Client s3;
+    private final String bucketName;
+
+
+    public S3MultipartUploadClient( BlobStoreContext context, String bucketName ) {
+        this.s3 = context.unwrap( AWSS3ApiMetadata.CONTEXT_TOKEN ).getApi();
+        this.bucketName = bucketName;
+    }
+
+
+    @Override
+    public String initiate( String key, String contentType, String contentDisposition ) {
+        ObjectMetadataBuilder metadata = ObjectMetadataBuilder.create().key( key ).contentType( contentType );
+
+        if ( contentDisposition != null ) {
+            metadata.contentDisposition( contentDisposition );
+        }
+
+        return s3.initiateMultipartUpload( bucketName, metadata.build() );
+    }
+
+
+    @Override
+    public String uploadPart( String key, String uploadId, int partNumber, byte[] data, int length ) {
+        //stream straight from the pooled buffer rather than copying it into a right sized array
+        Payload payload = Payloads.newInputStreamPayload( new ByteArrayInputStream( data, 0, length ) );
+        payload.getContentMetadata().setContentLength( ( long ) length );
+
+        return s3.uploadPart( bucketName, key, partNumber, uploadId, payload );
+    }
+
+
+    @Override
+    public String complete( String key, String uploadId, Map<Integer, String> partETags ) {
+        return s3.completeMultipartUpload( bucketName, key, uploadId, partETags );
+    }
+
+
+    @Override
+    public void abort( String key, String uploadId ) {
+        s3.abortMultipartUpload( bucketName, key, uploadId );
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.services.assets.data;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Uploads a stream as a multipart object while it is still being read.  Each part is read into a buffer from a shared
+ * {@link PartBufferPool} and handed to the executor, so at most maxParallelParts parts of one upload are in flight and
+ * nothing is ever staged on disk.  The MD5 of the whole object is computed as the parts go by.
+ */
+public class StreamingMultipartUpload {
+
+    private static final Logger LOG = LoggerFactory.getLogger( StreamingMultipartUpload.class );
+
+    private final MultipartUploadClient client;
+    private final PartBufferPool buffers;
+    private final ExecutorService executor;
+    private final int maxParallelParts;
+
+
+    public StreamingMultipartUpload( MultipartUploadClient client, PartBufferPool buffers, ExecutorService executor,
+                                     int maxParallelParts ) {
+        this.client = client;
+        this.buffers = buffers;
+        this.executor = executor;
+        this.maxParallelParts = maxParallelParts;
+    }
+
+
+    /**
+     * Upload the object.  The first part has already been read into a buffer taken from the pool, ownership of that
+     * buffer passes to this method.
+     *
+     * @param firstPart A pool buffer holding the first bytes of the object
+     * @param firstLength The number of bytes held in firstPart
+     * @param input The remainder of the object
+     */
+    public UploadResult upload( String key, String contentType, String contentDisposition, byte[] firstPart,
+                                int firstLength, InputStream input ) throws IOException {
+
+        MessageDigest md5 = newMd5();
+
+        final Map<Integer, String> partETags = new TreeMap<Integer, String>();
+        final Exception[] failure = new Exception[1];
+        final Semaphore inFlight = new Semaphore( maxParallelParts );
+
+        String uploadId = null;
+        byte[] buffer = firstPart;
+        int length = firstLength;
+        int partNumber = 1;
+        long total = 0;
+
+        try {
+            uploadId = client.initiate( key, contentType, contentDisposition );
+
+            while ( length > 0 ) {
+                md5.update( buffer, 0, length );
+                total += length;
+
+                synchronized ( partETags ) {
+                    if ( failure[0] != null ) {
+                        break;
+                    }
+                }
+
+                inFlight.acquire();
+
+                //the part owns the buffer from here on
+                byte[] part = buffer;
+                buffer = null;
+
+                submitPart( key, uploadId, partNumber++, part, length, partETags, failure, inFlight );
+
+                buffer = buffers.acquire();
+                length = fill( input, buffer );
+            }
+
+            //wait for every part to finish
+            inFlight.acquire( maxParallelParts );
+            inFlight.release( maxParallelParts );
+
+            synchronized ( partETags ) {
+                if ( failure[0] != null ) {
+                    throw new IOException( "Unable to upload part of " + key, failure[0] );
+                }
+            }
+
+            String eTag = client.complete( key, uploadId, partETags );
+
+            LOG.debug( "Uploaded {} bytes in {} parts to {}", new Object[] { total, partNumber - 1, key } );
+
+            return new UploadResult( eTag, md5.digest(), total );
+        }
+        catch ( InterruptedException e ) {
+            abort( key, uploadId );
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while uploading " + key );
+        }
+        catch ( IOException e ) {
+            abort( key, uploadId );
+            throw e;
+        }
+        catch ( RuntimeException e ) {
+            abort( key, uploadId );
+            throw new IOException( "Unable to upload " + key, e );
+        }
+        finally {
+            if ( buffer != null ) {
+                buffers.release( buffer );
+            }
+        }
+    }
+
+
+    private void submitPart( final String key, final String uploadId, final int partNumber, final byte[] buffer,
+                             final int length, final Map<Integer, String> partETags, final Exception[] failure,
+                             final Semaphore inFlight ) {
+        try {
+            executor.execute( new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        String eTag = client.uploadPart( key, uploadId, partNumber, buffer, length );
+
+                        synchronized ( partETags ) {
+                            partETags.put( partNumber, eTag );
+                        }
+                    }
+                    catch ( Exception e ) {
+                        LOG.error( "Unable to upload part {} of {}", new Object[] { partNumber, key, e } );
+
+                        synchronized ( partETags ) {
+                            if ( failure[0] == null ) {
+                                failure[0] = e;
+                            }
+                        }
+                    }
+                    finally {
+                        buffers.release( buffer );
+                        inFlight.release();
+                    }
+                }
+            } );
+        }
+        catch ( RejectedExecutionException e ) {
+            buffers.release( buffer );
+            inFlight.release();
+            throw e;
+        }
+    }
+
+
+    private void abort( String key, String uploadId ) {
+        if ( uploadId == null ) {
+            return;
+        }
+
+        try {
+            client.abort( key, uploadId );
+        }
+        catch ( RuntimeException e ) {
+            LOG.error( "Unable to abort upload {} of {}", new Object[] { uploadId, key, e } );
+        }
+    }
+
+
+    /** Read from the stream until the buffer is full or the stream ends, returning the number of bytes read */
+    public static int fill( InputStream input, byte[] buffer ) throws IOException {
+        int total = 0;
+
+        while ( total < buffer.length ) {
+            int read = input.read( buffer, total, buffer.length - total );
+
+            if ( read == -1 ) {
+                break;
+            }
+
+            total += read;
+        }
+
+        return total;
+    }
+
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance( "MD5" );
+        }
+        catch ( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException( "MD5 is not available", e );
+        }
+    }
+
+
+    /** The outcome of a completed upload */
+    public static class UploadResult {
+
+        private final String eTag;
+        private final byte[] md5;
+        private final long contentLength;
+
+
+        public UploadResult( String eTag, byte[] md5, long contentLength ) {
+            this.eTag = eTag;
+            this.md5 = md5;
+            this.contentLength = contentLength;
+        }
+
+
+        public String getETag() {
+            return eTag;
+        }
+
+
+        /** @return the MD5 of the whole object */
+        public byte[] getMd5() {
+            return md5;
+        }
+
+
+        public long getContentLength() {
+            return contentLength;
+        }
+    }
+}
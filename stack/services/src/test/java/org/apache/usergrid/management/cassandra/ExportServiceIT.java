@@ -18,13 +18,17 @@
 package org.apache.usergrid.management.cassandra;
 
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileReader;
+import java.io.InputStreamReader;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.zip.GZIPInputStream;
 
 import org.jclouds.ContextBuilder;
 import org.jclouds.blobstore.BlobStore;
@@ -55,6 +59,7 @@ import org.apache.usergrid.management.OrganizationInfo;
 import org.apache.usergrid.management.UserInfo;
 import org.apache.usergrid.management.export.ExportJob;
 import org.apache.usergrid.management.export.ExportService;
+import org.apache.usergrid.management.export.ExportServiceImpl;
 import org.apache.usergrid.management.export.S3Export;
 import org.apache.usergrid.management.export.S3ExportImpl;
 import org.apache.usergrid.persistence.Entity;
@@ -67,6 +72,7 @@ import com.google.inject.Module;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -312,6 +318,86 @@ public class ExportServiceIT {
     }
 
 
+    @Test
+    public void testStreamingCollectionExport() throws Exception {
+
+        MockStreamingS3ExportImpl s3Export = new MockStreamingS3ExportImpl();
+
+        ExportServiceImpl exportService = ( ExportServiceImpl ) setup.getExportService();
+        HashMap<String, Object> payload = payloadBuilder();
+
+        payload.put( "organizationId", organization.getUuid() );
+        payload.put( "applicationId", applicationId );
+        payload.put( "collectionName", "streamers" );
+
+        EntityManager em = setup.getEmf().getEntityManager( applicationId );
+
+        Map<UUID, Entity> created = new HashMap<UUID, Entity>();
+
+        for ( int i = 0; i < 3; i++ ) {
+            Map<String, Object> properties = new LinkedHashMap<String, Object>();
+            properties.put( "name", "streamer" + i );
+
+            Entity entity = em.create( "streamer", properties );
+            created.put( entity.getUuid(), entity );
+        }
+
+        Entity[] entities = created.values().toArray( new Entity[created.size()] );
+
+        em.createConnection( em.getRef( entities[0].getUuid() ), "follows", em.getRef( entities[1].getUuid() ) );
+
+        UUID exportUUID = exportService.schedule( payload );
+
+        JobData jobData = jobDataCreator( payload, exportUUID, s3Export );
+
+        JobExecution jobExecution = mock( JobExecution.class );
+        when( jobExecution.getJobData() ).thenReturn( jobData );
+
+        exportService.setStreaming( true );
+
+        try {
+            exportService.doExport( jobExecution );
+        }
+        finally {
+            exportService.setStreaming( false );
+        }
+
+        assertEquals( "FINISHED", exportService.getState( exportUUID ) );
+        assertTrue( s3Export.getFilename().endsWith( ".json.gz" ) );
+        assertFalse( s3Export.isAborted() );
+        assertTrue( s3Export.isClosed() );
+        assertNotNull( s3Export.getCompleted() );
+
+        BufferedReader reader = new BufferedReader( new InputStreamReader(
+                new GZIPInputStream( new ByteArrayInputStream( s3Export.getCompleted() ) ), "UTF-8" ) );
+
+        JSONParser parser = new JSONParser();
+        int count = 0;
+
+        for ( String record = reader.readLine(); record != null; record = reader.readLine() ) {
+            JSONObject entity = ( JSONObject ) parser.parse( record );
+            JSONObject entityData = ( JSONObject ) entity.get( "Metadata" );
+            UUID uuid = UUID.fromString( ( String ) entityData.get( "uuid" ) );
+
+            assertEquals( created.get( uuid ).getName(), entityData.get( "name" ) );
+
+            JSONObject connections = ( JSONObject ) entity.get( "connections" );
+            assertNotNull( connections );
+
+            if ( uuid.equals( entities[0].getUuid() ) ) {
+                org.json.simple.JSONArray follows = ( org.json.simple.JSONArray ) connections.get( "follows" );
+
+                assertEquals( 1, follows.size() );
+                assertEquals( entities[1].getUuid().toString(), follows.get( 0 ) );
+            }
+
+            count++;
+        }
+
+        assertEquals( 3, count );
+    }
+
+
     //
     //creation of files doesn't always delete itself
     @Test
@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.management.cassandra;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.usergrid.management.export.StreamingS3Export;
+import org.apache.usergrid.services.assets.data.MultipartUploadClient;
+
+
+/**
+ * Keeps a streamed export in memory, assembling the uploaded parts once the upload completes
+ */
+public class MockStreamingS3ExportImpl implements StreamingS3Export {
+
+    private final Map<Integer, byte[]> parts = new ConcurrentHashMap<Integer, byte[]>();
+
+    private volatile String filename;
+    private volatile byte[] completed;
+    private volatile boolean aborted;
+    private volatile boolean closed;
+
+
+    @Override
+    public void copyToS3( File ephemeral, Map<String, Object> exportInfo, String filename ) {
+        throw new UnsupportedOperationException( "Streaming exports shouldn't be copied from a file" );
+    }
+
+
+    @Override
+    public MultipartUploadClient getUploadClient( Map<String, Object> exportInfo, String filename ) {
+        this.filename = filename;
+
+        return new LocalUploadClient();
+    }
+
+
+    @Override
+    public String getFilename() {
+        return filename;
+    }
+
+
+    public byte[] getCompleted() {
+        return completed;
+    }
+
+
+    public boolean isAborted() {
+        return aborted;
+    }
+
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+
+    private class LocalUploadClient implements MultipartUploadClient, Closeable {
+
+        @Override
+        public String initiate( String key, String contentType, String contentDisposition ) {
+            return "upload-" + key;
+        }
+
+
+        @Override
+        public String uploadPart( String key, String uploadId, int partNumber, byte[] data, int length ) {
+            parts.put( partNumber, Arrays.copyOf( data, length ) );
+            return "etag-" + partNumber;
+        }
+
+
+        @Override
+        public String complete( String key, String uploadId, Map<Integer, String> partETags ) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            for ( int i = 1; i <= partETags.size(); i++ ) {
+                out.write( parts.get( i ), 0, parts.get( i ).length );
+            }
+
+            completed = out.toByteArray();
+
+            return "etag-" + key;
+        }
+
+
+        @Override
+        public void abort( String key, String uploadId ) {
+            aborted = true;
+        }
+
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
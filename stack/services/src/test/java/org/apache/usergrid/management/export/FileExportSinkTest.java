@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.management.export;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.util.DefaultPrettyPrinter;
+import org.junit.Test;
+
+import org.apache.commons.io.FileUtils;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class FileExportSinkTest {
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+
+    /** Records pretty printed one at a time lay out the file exactly like one generator writing the whole array */
+    @Test
+    public void matchesSingleGeneratorLayout() throws Exception {
+        List<Map<String, Object>> entities = Arrays.asList( entity( "first" ), entity( "second" ), entity( "third" ) );
+
+        assertEquals( writeWithOneGenerator( entities ), writeWithSink( entities ) );
+    }
+
+
+    @Test
+    public void matchesSingleGeneratorLayoutWhenEmpty() throws Exception {
+        List<Map<String, Object>> entities = Collections.emptyList();
+
+        assertEquals( writeWithOneGenerator( entities ), writeWithSink( entities ) );
+    }
+
+
+    private String writeWithOneGenerator( List<Map<String, Object>> entities ) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        JsonGenerator jg = jsonFactory.createJsonGenerator( out, JsonEncoding.UTF8 );
+        jg.setPrettyPrinter( new DefaultPrettyPrinter() );
+        jg.setCodec( mapper );
+
+        jg.writeStartArray();
+
+        for ( Map<String, Object> entity : entities ) {
+            writeEntity( jg, entity );
+        }
+
+        jg.writeEndArray();
+        jg.close();
+
+        return out.toString( "UTF-8" );
+    }
+
+
+    private String writeWithSink( List<Map<String, Object>> entities ) throws Exception {
+        List<byte[]> records = new ArrayList<byte[]>();
+
+        for ( Map<String, Object> entity : entities ) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            JsonGenerator jg = jsonFactory.createJsonGenerator( out, JsonEncoding.UTF8 );
+            jg.setPrettyPrinter( new DefaultPrettyPrinter() );
+            jg.setCodec( mapper );
+
+            writeEntity( jg, entity );
+            jg.close();
+
+            records.add( out.toByteArray() );
+        }
+
+        File file = File.createTempFile( "FileExportSinkTest", ".json" );
+
+        try {
+            FileExportSink sink = new FileExportSink( file );
+
+            // split across writes like concurrent collection exports
+            if ( !records.isEmpty() ) {
+                sink.write( records.subList( 0, 1 ) );
+                sink.write( records.subList( 1, records.size() ) );
+            }
+
+            sink.close();
+
+            return FileUtils.readFileToString( file, "UTF-8" );
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+
+    private static void writeEntity( JsonGenerator jg, Map<String, Object> entity ) throws Exception {
+        jg.writeStartObject();
+        jg.writeFieldName( "Metadata" );
+        jg.writeObject( entity );
+        jg.writeFieldName( "connections" );
+        jg.writeStartObject();
+        jg.writeFieldName( "likes" );
+        jg.writeStartArray();
+        jg.writeObject( "7f0c5c3a-7a2c-11e4-9a5e-0f0d5c1d2a3b" );
+        jg.writeEndArray();
+        jg.writeEndObject();
+        jg.writeEndObject();
+    }
+
+
+    private static Map<String, Object> entity( String name ) {
+        Map<String, Object> entity = new LinkedHashMap<String, Object>();
+        entity.put( "name", name );
+        entity.put( "tags", Arrays.asList( "a", "b" ) );
+        return entity;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.management.export;
+
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+import org.apache.usergrid.services.assets.data.MultipartUploadClient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class MultipartExportSinkTest {
+
+    @Test
+    public void partsDecompressAsOneStream() throws Exception {
+        LocalMultipartUploadClient client = new LocalMultipartUploadClient( null );
+
+        MultipartExportSink sink =
+                new MultipartExportSink( client, "export.json.gz", MultipartExportSink.MIN_PART_SIZE, 2 );
+
+        List<String> written = new ArrayList<String>();
+        Random random = new Random( 42 );
+
+        // random records compress poorly, so this spans several parts
+        for ( int batch = 0; batch < 64; batch++ ) {
+            List<byte[]> records = new ArrayList<byte[]>();
+
+            for ( int i = 0; i < 100; i++ ) {
+                String record =
+                        "{\"uuid\":\"" + batch + "-" + i + "\",\"data\":\"" + randomText( random, 1024 ) + "\"}";
+                written.add( record );
+                records.add( record.getBytes( "UTF-8" ) );
+            }
+
+            sink.write( records );
+        }
+
+        sink.close();
+
+        assertTrue( client.getPartCount() > 1 );
+
+        for ( int i = 1; i < client.getPartCount(); i++ ) {
+            assertTrue( client.getPart( i ).length >= MultipartExportSink.MIN_PART_SIZE );
+        }
+
+        assertEquals( written, readLines( client.getCompleted() ) );
+    }
+
+
+    @Test
+    public void emptyExport() throws Exception {
+        LocalMultipartUploadClient client = new LocalMultipartUploadClient( null );
+
+        MultipartExportSink sink =
+                new MultipartExportSink( client, "export.json.gz", MultipartExportSink.MIN_PART_SIZE, 2 );
+        sink.close();
+
+        assertEquals( 1, client.getPartCount() );
+        assertTrue( readLines( client.getCompleted() ).isEmpty() );
+    }
+
+
+    @Test
+    public void failedPartFailsClose() throws Exception {
+        LocalMultipartUploadClient client = new LocalMultipartUploadClient( 1 );
+
+        MultipartExportSink sink =
+                new MultipartExportSink( client, "export.json.gz", MultipartExportSink.MIN_PART_SIZE, 2 );
+        sink.write( Arrays.asList( "{}".getBytes( "UTF-8" ) ) );
+
+        try {
+            sink.close();
+            fail( "Close should fail when a part fails" );
+        }
+        catch ( IllegalStateException e ) {
+            sink.abort();
+        }
+
+        assertTrue( client.isAborted() );
+        assertNull( client.getCompleted() );
+    }
+
+
+    private List<String> readLines( byte[] data ) throws Exception {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader( new GZIPInputStream( new ByteArrayInputStream( data ) ), "UTF-8" ) );
+
+        List<String> lines = new ArrayList<String>();
+
+        for ( String line = reader.readLine(); line != null; line = reader.readLine() ) {
+            lines.add( line );
+        }
+
+        return lines;
+    }
+
+
+    private String randomText( Random random, int length ) {
+        StringBuilder text = new StringBuilder( length );
+
+        for ( int i = 0; i < length; i++ ) {
+            text.append( ( char ) ( ' ' + 1 + random.nextInt( 94 ) ) );
+        }
+
+        return text.toString().replace( "\"", "'" ).replace( "\\", "/" );
+    }
+
+
+    /** An in memory stand-in for S3 that assembles the parts it's given */
+    private static class LocalMultipartUploadClient implements MultipartUploadClient {
+
+        private final Integer failingPart;
+        private final Map<Integer, byte[]> parts = new ConcurrentHashMap<Integer, byte[]>();
+
+        private volatile byte[] completed;
+        private volatile boolean aborted;
+
+
+        private LocalMultipartUploadClient( Integer failingPart ) {
+            this.failingPart = failingPart;
+        }
+
+
+        @Override
+        public String initiate( String key, String contentType, String contentDisposition ) {
+            assertEquals( MultipartExportSink.CONTENT_TYPE, contentType );
+            return "upload-" + key;
+        }
+
+
+        @Override
+        public String uploadPart( String key, String uploadId, int partNumber, byte[] data, int length ) {
+            if ( failingPart != null && failingPart == partNumber ) {
+                throw new IllegalStateException( "Part " + partNumber + " failed" );
+            }
+
+            parts.put( partNumber, Arrays.copyOf( data, length ) );
+
+            return "etag-" + partNumber;
+        }
+
+
+        @Override
+        public String complete( String key, String uploadId, Map<Integer, String> partETags ) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            for ( int i = 1; i <= partETags.size(); i++ ) {
+                assertEquals( "etag-" + i, partETags.get( i ) );
+                out.write( parts.get( i ), 0, parts.get( i ).length );
+            }
+
+            completed = out.toByteArray();
+
+            return "etag-" + key;
+        }
+
+
+        @Override
+        public void abort( String key, String uploadId ) {
+            aborted = true;
+        }
+
+
+        public byte[] getCompleted() {
+            return completed;
+        }
+
+
+        public byte[] getPart( int partNumber ) {
+            return parts.get( partNumber );
+        }
+
+
+        public int getPartCount() {
+            return parts.size();
+        }
+
+
+        public boolean isAborted() {
+            return aborted;
+        }
+    }
+}
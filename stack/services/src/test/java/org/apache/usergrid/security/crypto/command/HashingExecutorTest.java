@@ -0,0 +1,258 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.security.crypto.command;
+
+
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class HashingExecutorTest {
+
+    private static final byte[] RESULT = new byte[] { 1, 2, 3 };
+
+    private final CountDownLatch release = new CountDownLatch( 1 );
+
+    private HashingExecutor executor;
+
+
+    @After
+    public void shutdown() {
+        release.countDown();
+
+        if ( executor != null ) {
+            executor.shutdown();
+        }
+    }
+
+
+    @Test
+    public void executesHash() {
+        executor = new HashingExecutor( "executesHash", 1, 1, 1000, 1 );
+
+        byte[] result = executor.execute( UUID.randomUUID(), new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return RESULT;
+            }
+        } );
+
+        assertArrayEquals( RESULT, result );
+    }
+
+
+    @Test
+    public void rejectsOverApplicationLimit() throws Exception {
+        executor = new HashingExecutor( "rejectsOverApplicationLimit", 2, 10, 10000, 1 );
+
+        UUID applicationId = UUID.randomUUID();
+
+        CountDownLatch started = blockInBackground( applicationId );
+
+        assertTrue( started.await( 10, TimeUnit.SECONDS ) );
+
+        try {
+            executor.execute( applicationId, immediate() );
+            fail( "Second hash for the same application should be rejected" );
+        }
+        catch ( HashCapacityExceededException e ) {
+            //expected
+        }
+
+        //other applications and system credentials are still served
+        assertArrayEquals( RESULT, executor.execute( UUID.randomUUID(), immediate() ) );
+        assertArrayEquals( RESULT, executor.execute( null, immediate() ) );
+    }
+
+
+    @Test
+    public void forgetsIdleApplications() throws Exception {
+        executor = new HashingExecutor( "forgetsIdleApplications", 2, 10, 10000, 1 );
+
+        for ( int i = 0; i < 100; i++ ) {
+            executor.execute( UUID.randomUUID(), immediate() );
+        }
+
+        assertEquals( 0, executor.getApplicationCount() );
+
+        UUID applicationId = UUID.randomUUID();
+
+        assertTrue( blockInBackground( applicationId ).await( 10, TimeUnit.SECONDS ) );
+        assertEquals( 1, executor.getApplicationCount() );
+
+        release.countDown();
+
+        while ( executor.getApplicationCount() > 0 ) {
+            Thread.sleep( 10 );
+        }
+
+        // a retired counter doesn't hold on to the limit
+        assertArrayEquals( RESULT, executor.execute( applicationId, immediate() ) );
+    }
+
+
+    @Test
+    public void rejectsWhenQueueFull() throws Exception {
+        executor = new HashingExecutor( "rejectsWhenQueueFull", 1, 1, 10000, 10 );
+
+        CountDownLatch started = blockInBackground( null );
+
+        assertTrue( started.await( 10, TimeUnit.SECONDS ) );
+
+        //fills the single queue slot
+        blockInBackground( null );
+
+        while ( executor.getQueueDepth() < 1 ) {
+            Thread.sleep( 10 );
+        }
+
+        try {
+            executor.execute( null, immediate() );
+            fail( "Hash should be rejected when the queue is full" );
+        }
+        catch ( HashCapacityExceededException e ) {
+            //expected
+        }
+    }
+
+
+    @Test( expected = HashCapacityExceededException.class )
+    public void rejectsAfterQueueTimeout() throws Exception {
+        executor = new HashingExecutor( "rejectsAfterQueueTimeout", 1, 10, 50, 10 );
+
+        CountDownLatch started = blockInBackground( null );
+
+        assertTrue( started.await( 10, TimeUnit.SECONDS ) );
+
+        //release the blocking hash only after our queued hash has waited past the timeout
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep( 200 );
+                }
+                catch ( InterruptedException e ) {
+                    //ignore
+                }
+                release.countDown();
+            }
+        }.start();
+
+        executor.execute( null, immediate() );
+    }
+
+
+    @Test
+    public void rejectsWithoutWaitingForBusyPool() throws Exception {
+        executor = new HashingExecutor( "rejectsWithoutWaitingForBusyPool", 1, 10, 50, 10 );
+
+        CountDownLatch started = blockInBackground( null );
+
+        assertTrue( started.await( 10, TimeUnit.SECONDS ) );
+
+        //the blocking hash is never released, the queued one must still be refused once its timeout passes
+        long start = System.nanoTime();
+
+        try {
+            executor.execute( null, immediate() );
+            fail( "Hash should be rejected when it can't start within the queue timeout" );
+        }
+        catch ( HashCapacityExceededException e ) {
+            //expected
+        }
+
+        assertTrue( TimeUnit.NANOSECONDS.toSeconds( System.nanoTime() - start ) < 5 );
+
+        //the refused hash was taken off the queue
+        assertEquals( 0, executor.getQueueDepth() );
+    }
+
+
+    @Test
+    public void gaugesFollowReplacementExecutor() throws Exception {
+        executor = new HashingExecutor( "gaugesFollowReplacementExecutor", 1, 10, 10000, 10 );
+
+        CountDownLatch started = blockInBackground( null );
+
+        assertTrue( started.await( 10, TimeUnit.SECONDS ) );
+
+        assertEquals( 1, getActiveHashes( "gaugesFollowReplacementExecutor" ) );
+
+        HashingExecutor replacement = new HashingExecutor( "gaugesFollowReplacementExecutor", 1, 10, 10000, 10 );
+
+        try {
+            assertEquals( 0, getActiveHashes( "gaugesFollowReplacementExecutor" ) );
+        }
+        finally {
+            replacement.shutdown();
+        }
+    }
+
+
+    @SuppressWarnings( "unchecked" )
+    private int getActiveHashes( String name ) {
+        MetricName metricName = new MetricName( HashingExecutor.class, "active_hashes", name );
+
+        return ( ( Gauge<Integer> ) Metrics.defaultRegistry().allMetrics().get( metricName ) ).value();
+    }
+
+
+    /** Start a hash on another thread that blocks until released.  Returns a latch that opens once it is running */
+    private CountDownLatch blockInBackground( final UUID applicationId ) {
+        final CountDownLatch started = new CountDownLatch( 1 );
+
+        new Thread() {
+            @Override
+            public void run() {
+                executor.execute( applicationId, new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        started.countDown();
+                        release.await();
+                        return RESULT;
+                    }
+                } );
+            }
+        }.start();
+
+        return started;
+    }
+
+
+    private Callable<byte[]> immediate() {
+        return new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return RESULT;
+            }
+        };
+    }
+}
@@ -17,8 +17,15 @@
 package org.apache.usergrid.services;
 
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.junit.Assert;
 import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.apache.usergrid.cassandra.Concurrent;
 import org.apache.usergrid.persistence.Entity;
 import org.apache.usergrid.persistence.Schema;
@@ -31,10 +38,14 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.apache.usergrid.persistence.Schema.TYPE_APPLICATION;
+import static org.apache.usergrid.services.ServiceParameter.parameters;
+import static org.apache.usergrid.services.ServicePayload.batchPayload;
 
 
 @Concurrent()
 public class CollectionServiceIT extends AbstractServiceIT {
+    private static final Logger LOG = LoggerFactory.getLogger( CollectionServiceIT.class );
+
     public static final String CST_TEST_GROUP = "cst-test-group";
 
 
@@ -288,4 +299,37 @@ public class CollectionServiceIT extends AbstractServiceIT {
             //ok
         }
     }
+
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void batchPostThousand() throws Exception {
+        List<Map<String, Object>> batch = new ArrayList<Map<String, Object>>();
+
+        for ( int i = 0; i < 1000; i++ ) {
+            Map<String, Object> properties = new LinkedHashMap<String, Object>();
+            properties.put( "username", "batch-user-" + i );
+            batch.add( properties );
+        }
+
+        //a duplicate of the first username, only this item should fail
+        batch.get( 500 ).put( "username", "batch-user-0" );
+
+        long start = System.currentTimeMillis();
+
+        ServiceResults results =
+                app.getSm().newRequest( ServiceAction.POST, parameters( "users" ), batchPayload( batch ) ).execute();
+
+        long elapsed = Math.max( System.currentTimeMillis() - start, 1 );
+
+        LOG.info( "Batch posted {} entities in {} ms, {} entities per second",
+                new Object[] { batch.size(), elapsed, batch.size() * 1000 / elapsed } );
+
+        assertEquals( 999, results.getEntities().size() );
+
+        List<Map<String, Object>> errors = ( List<Map<String, Object>> ) results.getServiceMetadata().get( "errors" );
+
+        assertEquals( 1, errors.size() );
+        assertEquals( 500, errors.get( 0 ).get( "index" ) );
+    }
 }
@@ -0,0 +1,251 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.services.assets.data;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class StreamingMultipartUploadTest {
+
+    private static final int PART_SIZE = 1024;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool( 8 );
+
+
+    @After
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+
+    @Test
+    public void uploadsAllParts() throws Exception {
+        byte[] data = randomBytes( PART_SIZE * 10 + 17 );
+
+        PartBufferPool buffers = new PartBufferPool( PART_SIZE, 4 );
+        LocalMultipartUploadClient client = new LocalMultipartUploadClient( null );
+
+        StreamingMultipartUpload.UploadResult result = upload( client, buffers, 2, data );
+
+        assertEquals( data.length, result.getContentLength() );
+        assertArrayEquals( MessageDigest.getInstance( "MD5" ).digest( data ), result.getMd5() );
+        assertArrayEquals( data, client.getCompleted() );
+        assertEquals( 11, client.getPartCount() );
+
+        //never more parts in flight than allowed, and every buffer was given back
+        assertTrue( client.getMaxConcurrent() <= 2 );
+        assertEquals( 4, buffers.available() );
+    }
+
+
+    @Test
+    public void abortsOnPartFailure() throws Exception {
+        byte[] data = randomBytes( PART_SIZE * 6 );
+
+        PartBufferPool buffers = new PartBufferPool( PART_SIZE, 3 );
+        LocalMultipartUploadClient client = new LocalMultipartUploadClient( 3 );
+
+        try {
+            upload( client, buffers, 2, data );
+            fail( "Upload should fail when a part fails" );
+        }
+        catch ( IOException e ) {
+            //expected
+        }
+
+        assertTrue( client.isAborted() );
+        assertEquals( null, client.getCompleted() );
+        assertEquals( 3, buffers.available() );
+    }
+
+
+    @Test
+    public void failsWhenNoBufferFrees() throws Exception {
+        PartBufferPool buffers = new PartBufferPool( PART_SIZE, 1, 50 );
+
+        buffers.acquire();
+
+        try {
+            buffers.acquire();
+            fail( "Acquire should give up once the timeout passes" );
+        }
+        catch ( IOException e ) {
+            //expected
+        }
+    }
+
+
+    @Test
+    public void reusesReleasedBuffers() throws Exception {
+        PartBufferPool buffers = new PartBufferPool( PART_SIZE, 2, 50 );
+
+        byte[] first = buffers.acquire();
+        byte[] second = buffers.acquire();
+
+        assertEquals( 0, buffers.available() );
+        assertTrue( first != second );
+
+        buffers.release( first );
+
+        //a released buffer is handed out again rather than allocating another
+        assertTrue( first == buffers.acquire() );
+    }
+
+
+    @Test
+    public void readsHeadUpToLimit() throws Exception {
+        byte[] small = randomBytes( 100 );
+        assertArrayEquals( small, S3BinaryStore.readHead( new ByteArrayInputStream( small ), PART_SIZE * 4 ) );
+
+        byte[] large = randomBytes( 1024 * 1024 );
+        byte[] head = S3BinaryStore.readHead( new ByteArrayInputStream( large ), 200 * 1024 );
+        assertArrayEquals( Arrays.copyOf( large, 200 * 1024 ), head );
+    }
+
+
+    private StreamingMultipartUpload.UploadResult upload( MultipartUploadClient client, PartBufferPool buffers,
+                                                          int maxParallelParts, byte[] data ) throws Exception {
+
+        ByteArrayInputStream input = new ByteArrayInputStream( data );
+
+        byte[] firstPart = buffers.acquire();
+        int length = StreamingMultipartUpload.fill( input, firstPart );
+
+        return new StreamingMultipartUpload( client, buffers, executor, maxParallelParts )
+                .upload( "key", "application/octet-stream", null, firstPart, length, input );
+    }
+
+
+    private byte[] randomBytes( int size ) {
+        byte[] data = new byte[size];
+        new Random( size ).nextBytes( data );
+        return data;
+    }
+
+
+    /** An in memory stand-in for S3 that assembles the parts it's given */
+    private static class LocalMultipartUploadClient implements MultipartUploadClient {
+
+        private final Integer failingPart;
+        private final Map<Integer, byte[]> parts = new ConcurrentHashMap<Integer, byte[]>();
+        private final AtomicInteger concurrent = new AtomicInteger();
+        private final AtomicInteger maxConcurrent = new AtomicInteger();
+
+        private volatile byte[] completed;
+        private volatile boolean aborted;
+
+
+        private LocalMultipartUploadClient( Integer failingPart ) {
+            this.failingPart = failingPart;
+        }
+
+
+        @Override
+        public String initiate( String key, String contentType, String contentDisposition ) {
+            return "upload-" + key;
+        }
+
+
+        @Override
+        public String uploadPart( String key, String uploadId, int partNumber, byte[] data, int length ) {
+            int current = concurrent.incrementAndGet();
+
+            try {
+                synchronized ( maxConcurrent ) {
+                    maxConcurrent.set( Math.max( maxConcurrent.get(), current ) );
+                }
+
+                //give other parts a chance to overlap with this one
+                Thread.sleep( 5 );
+
+                if ( failingPart != null && failingPart == partNumber ) {
+                    throw new IllegalStateException( "Part " + partNumber + " failed" );
+                }
+
+                parts.put( partNumber, Arrays.copyOf( data, length ) );
+
+                return "etag-" + partNumber;
+            }
+            catch ( InterruptedException e ) {
+                throw new IllegalStateException( e );
+            }
+            finally {
+                concurrent.decrementAndGet();
+            }
+        }
+
+
+        @Override
+        public String complete( String key, String uploadId, Map<Integer, String> partETags ) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            for ( int i = 1; i <= partETags.size(); i++ ) {
+                assertEquals( "etag-" + i, partETags.get( i ) );
+                out.write( parts.get( i ), 0, parts.get( i ).length );
+            }
+
+            completed = out.toByteArray();
+
+            return "etag-" + key;
+        }
+
+
+        @Override
+        public void abort( String key, String uploadId ) {
+            aborted = true;
+        }
+
+
+        public byte[] getCompleted() {
+            return completed;
+        }
+
+
+        public int getPartCount() {
+            return parts.size();
+        }
+
+
+        public int getMaxConcurrent() {
+            return maxConcurrent.get();
+        }
+
+
+        public boolean isAborted() {
+            return aborted;
+        }
+    }
+}
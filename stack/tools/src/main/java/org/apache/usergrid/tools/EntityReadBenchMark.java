@@ -19,7 +19,10 @@ package org.apache.usergrid.tools;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Stack;
 import java.util.UUID;
 import java.util.concurrent.Callable;
@@ -34,6 +37,8 @@ import org.springframework.util.Assert;
 import org.apache.usergrid.persistence.IndexBucketLocator;
 import org.apache.usergrid.persistence.IndexBucketLocator.IndexType;
 import org.apache.usergrid.persistence.cassandra.EntityManagerImpl;
+import org.apache.usergrid.utils.JsonUtils;
+import org.apache.usergrid.utils.UUIDUtils;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Option;
@@ -81,8 +86,15 @@ public class EntityReadBenchMark extends ToolBase {
     private final Timer dictReads =
             Metrics.newTimer( ReadWorker.class, "dictionary", TimeUnit.MILLISECONDS, TimeUnit.SECONDS );
 
+    private final Timer treeDecodes =
+            Metrics.newTimer( ReadWorker.class, "decode_tree", TimeUnit.MICROSECONDS, TimeUnit.SECONDS );
+
+    private final Timer streamDecodes =
+            Metrics.newTimer( ReadWorker.class, "decode_stream", TimeUnit.MICROSECONDS, TimeUnit.SECONDS );
+
     private static final String TYPE_DICTIONARY = "dict";
     private static final String TYPE_ENTITY = "entity";
+    private static final String TYPE_DECODE = "decode";
 
 
     @Override
@@ -105,7 +117,7 @@ public class EntityReadBenchMark extends ToolBase {
 
 
         Option typeOption = OptionBuilder.withArgName( "type" ).hasArg().isRequired( true )
-                                         .withDescription( "Read type to use, 'dict' or 'entity'" ).create( "type" );
+                                         .withDescription( "Read type to use, 'dict', 'entity' or 'decode'" ).create( "type" );
 
         Options options = new Options();
         options.addOption( hostOption );
@@ -165,6 +177,9 @@ public class EntityReadBenchMark extends ToolBase {
             else if ( TYPE_DICTIONARY.equals( type ) ) {
                 worker = new DictReadWorker( i, size, appId );
             }
+            else if ( TYPE_DECODE.equals( type ) ) {
+                worker = new DecodeWorker( i, size, appId );
+            }
             else {
                 throw new IllegalArgumentException( "You must specifiy the 'type' option" );
             }
@@ -329,6 +344,78 @@ public class EntityReadBenchMark extends ToolBase {
     }
 
 
+    /**
+     * Decodes property column values holding nested maps with both the tree based decoder and the streaming one,
+     * timing each and checking they agree.  No cassandra reads are made, so the timers only measure decoding
+     */
+    private class DecodeWorker extends ReadWorker {
+
+        private final List<ByteBuffer> columns = new ArrayList<ByteBuffer>();
+
+
+        private DecodeWorker( int workerNumber, int count, UUID appId ) throws Exception {
+            super( workerNumber, count, appId );
+
+            for ( int i = 0; i < 10; i++ ) {
+                columns.add( JsonUtils.toByteBuffer( createValue( i ) ) );
+            }
+        }
+
+
+        private Map<String, Object> createValue( int size ) {
+            Map<String, Object> value = new LinkedHashMap<String, Object>();
+
+            value.put( "name", "test-" + size );
+            value.put( "owner", UUIDUtils.newTimeUUID().toString() );
+            value.put( "count", size );
+            value.put( "ratio", size / 10.0 );
+            value.put( "active", size % 2 == 0 );
+
+            List<Object> children = new ArrayList<Object>();
+
+            for ( int i = 0; i < size; i++ ) {
+                Map<String, Object> child = new LinkedHashMap<String, Object>();
+                child.put( "id", UUIDUtils.newTimeUUID().toString() );
+                child.put( "index", i );
+                child.put( "tags", Arrays.asList( "a" + i, "b" + i, "c" + i ) );
+                children.add( child );
+            }
+
+            value.put( "children", children );
+
+            if ( size > 0 ) {
+                value.put( "parent", createValue( size - 1 ) );
+            }
+
+            return value;
+        }
+
+
+        /* (non-Javadoc)
+         * @see org.apache.usergrid.tools.EntityReadBenchMark.ReadWorker#doRead()
+         */
+        @Override
+        protected void doRead( String value ) throws Exception {
+            for ( ByteBuffer column : columns ) {
+
+                TimerContext timer = treeDecodes.time();
+
+                Object tree = JsonUtils.normalizeJsonTree( JsonUtils.fromByteBuffer( column.duplicate() ) );
+
+                timer.stop();
+
+                timer = streamDecodes.time();
+
+                Object streamed = JsonUtils.fromByteBufferNormalized( column.duplicate() );
+
+                timer.stop();
+
+                Assert.isTrue( tree.equals( streamed ) );
+            }
+        }
+    }
+
+
     private class UniqueIndexer {
 
         private Keyspace keyspace;
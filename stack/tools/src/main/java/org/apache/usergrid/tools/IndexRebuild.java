@@ -17,6 +17,7 @@
 package org.apache.usergrid.tools;
 
 
+import java.io.File;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
@@ -26,12 +27,11 @@ import java.util.UUID;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.apache.usergrid.persistence.Entity;
 import org.apache.usergrid.persistence.EntityManager;
-import org.apache.usergrid.persistence.Query;
-import org.apache.usergrid.persistence.Results;
-import org.apache.usergrid.persistence.entities.Application;
-import org.apache.usergrid.persistence.exceptions.DuplicateUniquePropertyExistsException;
+import org.apache.usergrid.persistence.index.FileIndexRebuildCheckpoints;
+import org.apache.usergrid.persistence.index.IndexRebuildCheckpoints;
+import org.apache.usergrid.persistence.index.IndexRebuilder;
+import org.apache.usergrid.persistence.index.MemoryIndexRebuildCheckpoints;
 import org.apache.usergrid.utils.UUIDUtils;
 
 import org.apache.commons.cli.CommandLine;
@@ -43,7 +43,9 @@ import org.apache.commons.cli.Options;
 
 /**
  * This is a utility to load all entities in an application and re-save them, this forces the secondary indexing to be
- * updated.
+ * updated.  Collections are walked in parallel ranges.  When a checkpoint file is passed, progress is written to it
+ * so running the tool again with the same file resumes an interrupted rebuild; the file is removed once every range
+ * has been rebuilt.
  *
  * @author tnine
  */
@@ -59,10 +61,13 @@ public class IndexRebuild extends ToolBase {
      */
     private static final String COLLECTION_ARG = "col";
 
-    /**
-     *
-     */
-    private static final int PAGE_SIZE = 100;
+    private static final String THREADS_ARG = "threads";
+
+    private static final String RATE_ARG = "rate";
+
+    private static final String CHECKPOINT_ARG = "checkpoint";
+
+    private static final String SKIP_CURRENT_ARG = "skipcurrent";
 
 
     private static final Logger logger = LoggerFactory.getLogger( IndexRebuild.class );
@@ -82,11 +87,29 @@ public class IndexRebuild extends ToolBase {
         Option collectionOption = OptionBuilder.withArgName( COLLECTION_ARG ).hasArg().isRequired( false )
                                                .withDescription( "colleciton name" ).create( COLLECTION_ARG );
 
+        Option threadsOption = OptionBuilder.withArgName( THREADS_ARG ).hasArg().isRequired( false )
+                                            .withDescription( "number of worker threads" ).create( THREADS_ARG );
+
+        Option rateOption = OptionBuilder.withArgName( RATE_ARG ).hasArg().isRequired( false )
+                                         .withDescription( "maximum entities re-saved per second" ).create( RATE_ARG );
+
+        Option checkpointOption = OptionBuilder.withArgName( CHECKPOINT_ARG ).hasArg().isRequired( false )
+                                               .withDescription( "checkpoint file used to resume the rebuild" )
+                                               .create( CHECKPOINT_ARG );
+
+        Option skipCurrentOption = OptionBuilder.isRequired( false ).withDescription(
+                "skip entities whose index ledger is current, don't use when index rows were lost" )
+                                                .create( SKIP_CURRENT_ARG );
+
 
         Options options = new Options();
         options.addOption( hostOption );
         options.addOption( appOption );
         options.addOption( collectionOption );
+        options.addOption( threadsOption );
+        options.addOption( rateOption );
+        options.addOption( checkpointOption );
+        options.addOption( skipCurrentOption );
 
         return options;
     }
@@ -104,6 +127,35 @@ public class IndexRebuild extends ToolBase {
 
         logger.info( "Starting index rebuild" );
 
+        FileIndexRebuildCheckpoints checkpointFile = null;
+        IndexRebuildCheckpoints checkpoints;
+
+        if ( line.hasOption( CHECKPOINT_ARG ) ) {
+            File file = new File( line.getOptionValue( CHECKPOINT_ARG ) );
+
+            logger.info( "Using checkpoint file {}", file.getAbsolutePath() );
+
+            checkpointFile = new FileIndexRebuildCheckpoints( file );
+            checkpoints = checkpointFile;
+        }
+        else {
+            checkpoints = new MemoryIndexRebuildCheckpoints();
+        }
+
+        IndexRebuilder rebuilder = new IndexRebuilder( emf, checkpoints );
+
+        if ( line.hasOption( THREADS_ARG ) ) {
+            rebuilder.setThreads( Integer.parseInt( line.getOptionValue( THREADS_ARG ) ) );
+        }
+
+        if ( line.hasOption( RATE_ARG ) ) {
+            rebuilder.setWritesPerSecond( Double.parseDouble( line.getOptionValue( RATE_ARG ) ) );
+        }
+
+        rebuilder.setSkipCurrent( line.hasOption( SKIP_CURRENT_ARG ) );
+
+        long failedRanges = 0;
+
         /**
          * Goes through each app id specified
          */
@@ -113,10 +165,18 @@ public class IndexRebuild extends ToolBase {
 
             Set<String> collections = getCollections( line, appId );
 
-            for ( String collection : collections ) {
+            failedRanges += rebuilder.rebuild( appId, collections ).getFailedShards();
+        }
 
-                reindex( appId, collection );
-            }
+        if ( failedRanges > 0 ) {
+            logger.error( "{} ranges failed, run the tool again with the same -{} file to resume them", failedRanges,
+                    CHECKPOINT_ARG );
+            return;
+        }
+
+        // everything was rebuilt, the next run must start over rather than resume a finished rebuild
+        if ( checkpointFile != null ) {
+            checkpointFile.delete();
         }
 
         logger.info( "Finished index rebuild" );
@@ -163,43 +223,4 @@ public class IndexRebuild extends ToolBase {
 
         return em.getApplicationCollections();
     }
-
-
-    /** The application id. The collection name. */
-    private void reindex( UUID appId, String collectionName ) throws Exception {
-        logger.info( "Reindexing collection: {} for app id: {}", collectionName, appId );
-
-        EntityManager em = emf.getEntityManager( appId );
-        Application app = em.getApplication();
-
-        // search for all orgs
-
-        Query query = new Query();
-        query.setLimit( PAGE_SIZE );
-        Results r = null;
-
-        do {
-
-            r = em.searchCollection( app, collectionName, query );
-
-            for ( Entity entity : r.getEntities() ) {
-                logger.info( "Updating entity type: {} with id: {} for app id: {}", new Object[] {
-                        entity.getType(), entity.getUuid(), appId
-                } );
-
-                try {
-                    em.update( entity );
-                }
-                catch ( DuplicateUniquePropertyExistsException dupee ) {
-                    logger.error( "duplicate property for type: {} with id: {} for app id: {}.  Property name: {} , "
-                            + "value: {}", new Object[] {
-                            entity.getType(), entity.getUuid(), appId, dupee.getPropertyName(), dupee.getPropertyValue()
-                    } );
-                }
-            }
-
-            query.setCursor( r.getCursor() );
-        }
-        while ( r != null && r.size() == PAGE_SIZE );
-    }
 }
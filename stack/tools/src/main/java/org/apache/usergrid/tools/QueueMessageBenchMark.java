@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.tools;
+
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.apache.usergrid.mq.Message;
+import org.apache.usergrid.mq.QueueManager;
+import org.apache.usergrid.mq.QueueManagerFactory;
+import org.apache.usergrid.mq.QueuePosition;
+import org.apache.usergrid.mq.QueueQuery;
+import org.apache.usergrid.mq.QueueResults;
+import org.apache.usergrid.mq.cassandra.QueueManagerFactoryImpl;
+import org.apache.usergrid.utils.UUIDUtils;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.lang.RandomStringUtils;
+
+
+/**
+ * Compares post and get throughput of queue messages stored one column per property against messages stored as a
+ * single compact column, for 1 KB and 10 KB messages.
+ */
+public class QueueMessageBenchMark extends ToolBase {
+
+    private static final Logger logger = LoggerFactory.getLogger( QueueMessageBenchMark.class );
+
+    private static final int[] MESSAGE_SIZES = { 1024, 10 * 1024 };
+
+    private static final int PAGE_SIZE = 100;
+
+    private QueueManagerFactory qmf;
+
+
+    @Override
+    @SuppressWarnings("static-access")
+    public Options createOptions() {
+
+        Option hostOption =
+                OptionBuilder.withArgName( "host" ).hasArg().isRequired( true ).withDescription( "Cassandra host" )
+                             .create( "host" );
+
+        Option countOption = OptionBuilder.withArgName( "count" ).hasArg().isRequired( true )
+                                          .withDescription( "Number of messages per run" ).create( "count" );
+
+        Option appIdOption = OptionBuilder.withArgName( "appId" ).hasArg().isRequired( true )
+                                          .withDescription( "Application Id to use" ).create( "appId" );
+
+        Options options = new Options();
+        options.addOption( hostOption );
+        options.addOption( countOption );
+        options.addOption( appIdOption );
+
+        return options;
+    }
+
+
+    @Override
+    public void runTool( CommandLine line ) throws Exception {
+        startSpring();
+
+        int count = Integer.parseInt( line.getOptionValue( "count" ) );
+
+        UUID appId = UUID.fromString( line.getOptionValue( "appId" ) );
+
+        QueueManagerFactoryImpl factory = ( QueueManagerFactoryImpl ) qmf;
+
+        for ( int size : MESSAGE_SIZES ) {
+            for ( boolean compact : new boolean[] { false, true } ) {
+                factory.setCompactMessages( compact );
+
+                String format = compact ? "compact" : "columns";
+                String queuePath = "/benchmark/" + format + "/" + size + "/" + UUIDUtils.newTimeUUID();
+
+                run( factory.getQueueManager( appId ), queuePath, format, size, count );
+            }
+        }
+    }
+
+
+    private void run( QueueManager qm, String queuePath, String format, int size, int count ) {
+
+        // warm up the connections and the code paths before measuring
+        qm.postToQueue( queuePath + "/warmup", createMessage( size ) );
+        qm.getFromQueue( queuePath + "/warmup", new QueueQuery() );
+
+        long start = System.nanoTime();
+
+        for ( int i = 0; i < count; i++ ) {
+            qm.postToQueue( queuePath, createMessage( size ) );
+        }
+
+        long postNanos = System.nanoTime() - start;
+
+        QueueQuery query = new QueueQuery().withConsumerId( UUIDUtils.newTimeUUID() )
+                                           .withPosition( QueuePosition.CONSUMER );
+        query.setLimit( PAGE_SIZE );
+
+        int read = 0;
+
+        start = System.nanoTime();
+
+        while ( read < count ) {
+            QueueResults results = qm.getFromQueue( queuePath, query );
+
+            if ( results.getMessages().isEmpty() ) {
+                break;
+            }
+
+            read += results.getMessages().size();
+        }
+
+        long getNanos = System.nanoTime() - start;
+
+        logger.info( "{} format, {} byte messages: posted {} in {} ms ({} msg/s), read {} in {} ms ({} msg/s)",
+                new Object[] {
+                        format, size, count, TimeUnit.NANOSECONDS.toMillis( postNanos ), rate( count, postNanos ), read,
+                        TimeUnit.NANOSECONDS.toMillis( getNanos ), rate( read, getNanos )
+                } );
+    }
+
+
+    /** Create a message with a handful of properties whose values add up to roughly the requested size */
+    private Message createMessage( int size ) {
+        Map<String, Object> properties = new TreeMap<String, Object>();
+
+        int fields = 8;
+
+        for ( int i = 0; i < fields; i++ ) {
+            properties.put( "field" + i, RandomStringUtils.randomAlphanumeric( size / fields ) );
+        }
+
+        Message message = new Message( properties );
+        message.setIndexed( false );
+
+        return message;
+    }
+
+
+    private static long rate( int count, long nanos ) {
+        return nanos == 0 ? 0 : count * TimeUnit.SECONDS.toNanos( 1 ) / nanos;
+    }
+
+
+    @Autowired
+    public void setQueueManagerFactory( QueueManagerFactory qmf ) {
+        this.qmf = qmf;
+    }
+}
@@ -17,15 +17,23 @@
 package org.apache.usergrid.tools;
 
 
+import java.io.File;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,16 +48,22 @@ import org.apache.usergrid.persistence.cassandra.CassandraService;
 import org.apache.usergrid.persistence.cassandra.EntityManagerImpl;
 import org.apache.usergrid.persistence.cassandra.index.IndexScanner;
 import org.apache.usergrid.persistence.entities.Application;
+import org.apache.usergrid.persistence.index.FileIndexRebuildCheckpoints;
+import org.apache.usergrid.persistence.index.IndexRebuildCheckpoints;
+import org.apache.usergrid.persistence.index.MemoryIndexRebuildCheckpoints;
 import org.apache.usergrid.persistence.query.ir.result.ScanColumn;
 import org.apache.usergrid.persistence.query.ir.result.SliceIterator;
 import org.apache.usergrid.persistence.query.ir.result.UUIDIndexSliceParser;
 import org.apache.usergrid.persistence.schema.CollectionInfo;
+import org.apache.usergrid.utils.TokenBucket;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import me.prettyprint.hector.api.Keyspace;
 import me.prettyprint.hector.api.beans.AbstractComposite.ComponentEquality;
 import me.prettyprint.hector.api.beans.DynamicComposite;
@@ -77,18 +91,38 @@ import static org.apache.usergrid.persistence.cassandra.Serializers.*;
  * <p/>
  * USERGRID-323
  * <p/>
+ * Collections are audited in parallel a page of entities at a time, reading the index rows and index entries of the
+ * whole page at once.  When a checkpoint file is passed, the last audited entity of every collection is written to
+ * it, so running the tool again with the same file resumes an interrupted cleanup.  The file is removed once every
+ * collection has been audited.
  * <p/>
- * UniqueIndexCleanup -app [appid] -col [collectionname]
+ * UniqueIndexCleanup -app [appid] -col [collectionname] -threads [count] -checkpoint [file]
  *
  * @author tnine
  */
 public class UniqueIndexCleanup extends ToolBase {
 
     /**
-     *
+     * Number of entities audited together
      */
     private static final int PAGE_SIZE = 100;
 
+    /**
+     * Maximum number of entity index entry rows read at once
+     */
+    private static final int ENTRY_MULTIGET_SIZE = 100;
+
+    /**
+     * Number of columns read from an index row at a time
+     */
+    private static final int INDEX_SCAN_SIZE = 1000;
+
+    private static final int DEFAULT_THREADS = 4;
+
+    /**
+     * Checkpoint of a collection that was completely audited
+     */
+    private static final String DONE = "done";
 
 
     private static final Logger logger = LoggerFactory.getLogger( UniqueIndexCleanup.class );
@@ -103,6 +137,16 @@ public class UniqueIndexCleanup extends ToolBase {
      */
     private static final String COLLECTION_ARG = "col";
 
+    private static final String THREADS_ARG = "threads";
+
+    private static final String RATE_ARG = "rate";
+
+    private static final String CHECKPOINT_ARG = "checkpoint";
+
+    private IndexRebuildCheckpoints checkpoints;
+
+    private TokenBucket auditLimiter;
+
 
     @Override
     @SuppressWarnings("static-access")
@@ -130,6 +174,23 @@ public class UniqueIndexCleanup extends ToolBase {
 
         options.addOption( collectionOption );
 
+        Option threadsOption = OptionBuilder.withArgName( THREADS_ARG ).hasArg().isRequired( false )
+                                            .withDescription( "number of collections audited at once" )
+                                            .create( THREADS_ARG );
+
+        options.addOption( threadsOption );
+
+        Option rateOption = OptionBuilder.withArgName( RATE_ARG ).hasArg().isRequired( false )
+                                         .withDescription( "maximum entities audited per second" ).create( RATE_ARG );
+
+        options.addOption( rateOption );
+
+        Option checkpointOption = OptionBuilder.withArgName( CHECKPOINT_ARG ).hasArg().isRequired( false )
+                                               .withDescription( "checkpoint file used to resume the cleanup" )
+                                               .create( CHECKPOINT_ARG );
+
+        options.addOption( checkpointOption );
+
         return options;
     }
 
@@ -146,13 +207,33 @@ public class UniqueIndexCleanup extends ToolBase {
 
         logger.info( "Starting entity cleanup" );
 
+        FileIndexRebuildCheckpoints checkpointFile = null;
+
+        if ( line.hasOption( CHECKPOINT_ARG ) ) {
+            File file = new File( line.getOptionValue( CHECKPOINT_ARG ) );
+
+            logger.info( "Using checkpoint file {}", file.getAbsolutePath() );
+
+            checkpointFile = new FileIndexRebuildCheckpoints( file );
+            checkpoints = checkpointFile;
+        }
+        else {
+            checkpoints = new MemoryIndexRebuildCheckpoints();
+        }
+
+        if ( line.hasOption( RATE_ARG ) ) {
+            double rate = Double.parseDouble( line.getOptionValue( RATE_ARG ) );
+            auditLimiter = new TokenBucket( rate, Math.max( PAGE_SIZE, ( long ) rate ) );
+        }
+
+        int threads = Integer.parseInt( line.getOptionValue( THREADS_ARG, String.valueOf( DEFAULT_THREADS ) ) );
+
         Map<String, UUID> apps = getApplications( emf, line );
 
+        List<CollectionCleanup> cleanups = new ArrayList<CollectionCleanup>();
 
         for ( Entry<String, UUID> app : apps.entrySet() ) {
 
-            logger.info( "Starting cleanup for app {}", app.getKey() );
-
             UUID applicationId = app.getValue();
             EntityManagerImpl em = ( EntityManagerImpl ) emf.getEntityManager( applicationId );
 
@@ -164,218 +245,447 @@ public class UniqueIndexCleanup extends ToolBase {
                 continue;
             }
 
-            CassandraService cass = em.getCass();
-            IndexBucketLocator indexBucketLocator = em.getIndexBucketLocator();
+            for ( String collectionName : getCollectionNames( em, line ) ) {
+                cleanups.add( new CollectionCleanup( em, applicationId, collectionName ) );
+            }
+        }
 
-            Keyspace ko = cass.getApplicationKeyspace( applicationId );
+        logger.info( "Auditing {} collections in {} apps with {} threads", new Object[] {
+                cleanups.size(), apps.size(), threads
+        } );
 
-            UUID timestampUuid = newTimeUUID();
-            long timestamp = getTimestampInMicros( timestampUuid );
+        ExecutorService workers = Executors.newFixedThreadPool( Math.max( 1, threads ),
+                new ThreadFactoryBuilder().setNameFormat( "unique-index-cleanup-%d" ).setDaemon( true ).build() );
 
+        int failed = 0;
 
-            // go through each collection and audit the values
-            for ( String collectionName : getCollectionNames( em, line ) ) {
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>( cleanups.size() );
 
+            for ( CollectionCleanup cleanup : cleanups ) {
+                futures.add( workers.submit( cleanup ) );
+            }
 
-                IndexScanner scanner = cass.getIdList( cass.getApplicationKeyspace( applicationId ),
-                        key( applicationId, DICTIONARY_COLLECTIONS, collectionName ), null, null, PAGE_SIZE, false,
-                        indexBucketLocator, applicationId, collectionName, false );
+            for ( int i = 0; i < futures.size(); i++ ) {
+                try {
+                    futures.get( i ).get();
+                }
+                catch ( ExecutionException e ) {
+                    failed++;
+                    logger.error( "Unable to audit " + cleanups.get( i ) + ", it will resume from its last checkpoint",
+                            e.getCause() );
+                }
+            }
+        }
+        finally {
+            workers.shutdownNow();
+            checkpoints.flush();
+        }
 
-                SliceIterator itr = new SliceIterator( null, scanner, new UUIDIndexSliceParser() );
+        if ( failed > 0 ) {
+            logger.error( "{} collections failed, run the tool again with the same -{} file to resume them", failed,
+                    CHECKPOINT_ARG );
+            return;
+        }
 
+        // every collection was audited, the next run must start over rather than skip them as done
+        if ( checkpointFile != null ) {
+            checkpointFile.delete();
+        }
 
-                while ( itr.hasNext() ) {
+        logger.info( "Completed audit of apps" );
+    }
 
-                    Set<ScanColumn> ids = itr.next();
 
-                    CollectionInfo collection = getDefaultSchema().getCollection( "application", collectionName );
+    private Map<String, UUID> getApplications( EntityManagerFactory emf, CommandLine line ) throws Exception {
+        String appName = line.getOptionValue( APPLICATION_ARG );
 
+        if ( appName == null ) {
+            return emf.getApplications();
+        }
 
-                    //We shouldn't have to do this, but otherwise the cursor won't work
-                    Set<String> indexed = collection.getPropertiesIndexed();
+        ApplicationInfo app = managementService.getApplicationInfo( Identifier.from( appName ) );
+
+        if ( app == null ) {
+            logger.error( "Could not find application with id or name {}", appName );
+            System.exit( 3 );
+        }
 
-                    // what's left needs deleted, do so
 
-                    logger.info( "Auditing {} entities for collection {} in app {}", new Object[] {
-                            ids.size(), collectionName, app.getValue()
-                    } );
+        Map<String, UUID> apps = new HashMap<String, UUID>();
 
-                    for ( ScanColumn col : ids ) {
-                        final UUID id = col.getUUID();
-                        boolean reIndex = false;
+        apps.put( app.getName(), app.getId() );
 
-                        Mutator<ByteBuffer> m = createMutator( ko, be );
+        return apps;
+    }
 
-                        try {
 
-                            for ( String prop : indexed ) {
+    private Set<String> getCollectionNames( EntityManager em, CommandLine line ) throws Exception {
 
-                                String bucket =
-                                        indexBucketLocator.getBucket( applicationId, IndexType.COLLECTION, id, prop );
+        String collectionName = line.getOptionValue( COLLECTION_ARG );
 
-                                Object rowKey = key( applicationId, collection.getName(), prop, bucket );
+        if ( collectionName == null ) {
+            return em.getApplicationCollections();
+        }
 
-                                List<HColumn<ByteBuffer, ByteBuffer>> indexCols =
-                                        scanIndexForAllTypes( ko, indexBucketLocator, applicationId, rowKey, id, prop );
 
-                                // loop through the indexed values and verify them as present in
-                                // our entity_index_entries. If they aren't, we need to delete the
-                                // from the secondary index, and mark
-                                // this object for re-index via n update
-                                for ( HColumn<ByteBuffer, ByteBuffer> index : indexCols ) {
+        Set<String> names = new HashSet<String>();
+        names.add( collectionName );
 
-                                    DynamicComposite secondaryIndexValue =
-                                            DynamicComposite.fromByteBuffer( index.getName().duplicate() );
+        return names;
+    }
 
-                                    Object code = secondaryIndexValue.get( 0 );
-                                    Object propValue = secondaryIndexValue.get( 1 );
-                                    UUID timestampId = ( UUID ) secondaryIndexValue.get( 3 );
 
-                                    DynamicComposite existingEntryStart =
-                                            new DynamicComposite( prop, code, propValue, timestampId );
-                                    DynamicComposite existingEntryFinish =
-                                            new DynamicComposite( prop, code, propValue, timestampId );
+    /** Audits one collection of an app, a page of entities at a time */
+    private class CollectionCleanup implements Callable<Void> {
 
-                                    setEqualityFlag( existingEntryFinish, ComponentEquality.GREATER_THAN_EQUAL );
+        private final EntityManagerImpl em;
+        private final UUID applicationId;
+        private final String collectionName;
+        private final String checkpointKey;
 
-                                    // now search our EntityIndexEntry for previous values, see if
-                                    // they don't match this one
+        private final CassandraService cass;
+        private final IndexBucketLocator indexBucketLocator;
+        private final Keyspace ko;
 
-                                    List<HColumn<ByteBuffer, ByteBuffer>> entries =
-                                            cass.getColumns( ko, ENTITY_INDEX_ENTRIES, id, existingEntryStart,
-                                                    existingEntryFinish, INDEX_ENTRY_LIST_COUNT, false );
 
-                                    // we wouldn't find this column in our entity_index_entries
-                                    // audit. Delete it, then mark this entity for update
-                                    if ( entries.size() == 0 ) {
-                                        logger.info(
-                                                "Could not find reference to value '{}' for property '{}' on entity " +
-                                                        "{} in collection {}. " + " Forcing reindex",
-                                                new Object[] { propValue, prop, id, collectionName } );
+        private CollectionCleanup( EntityManagerImpl em, UUID applicationId, String collectionName ) {
+            this.em = em;
+            this.applicationId = applicationId;
+            this.collectionName = collectionName;
+            this.checkpointKey = applicationId + "/" + collectionName;
 
-                                        addDeleteToMutator( m, ENTITY_INDEX, rowKey, index.getName().duplicate(),
-                                                timestamp );
+            this.cass = em.getCass();
+            this.indexBucketLocator = em.getIndexBucketLocator();
+            this.ko = cass.getApplicationKeyspace( applicationId );
+        }
 
-                                        reIndex = true;
-                                    }
 
-                                    if ( entries.size() > 1 ) {
-                                        logger.info(
-                                                "Found more than 1 entity referencing unique index for property '{}' " +
-                                                        "with value " + "'{}'", prop, propValue );
-                                        reIndex = true;
-                                    }
-                                }
-                            }
+        @Override
+        public Void call() throws Exception {
 
-                            //force this entity to be updated
-                            if ( reIndex ) {
-                                Entity entity = em.get( id );
+            String checkpoint = checkpoints.get( checkpointKey );
 
-                                //entity may not exist, but we should have deleted rows from the index
-                                if ( entity == null ) {
-                                    logger.warn( "Entity with id {} did not exist in app {}", id, applicationId );
-                                    //now execute the cleanup. In this case the entity is gone,
-                                    // so we'll want to remove references from
-                                    // the secondary index
-                                    m.execute();
-                                    continue;
-                                }
+            if ( DONE.equals( checkpoint ) ) {
+                logger.info( "Collection {} was already audited", this );
+                return null;
+            }
+
+            CollectionInfo collection = getDefaultSchema().getCollection( "application", collectionName );
+
+            if ( collection == null ) {
+                logger.warn( "Collection {} is not in the schema, skipping it", this );
+                checkpoints.put( checkpointKey, DONE );
+                return null;
+            }
+
+            // the scanner skips the checkpointed entity, it was audited before the checkpoint was written
+            UUID start = checkpoint != null ? UUID.fromString( checkpoint ) : null;
+
+            if ( start != null ) {
+                logger.info( "Resuming audit of {} after entity {}", this, start );
+            }
+            else {
+                logger.info( "Starting audit of {}", this );
+            }
+
+            IndexScanner scanner =
+                    cass.getIdList( ko, key( applicationId, DICTIONARY_COLLECTIONS, collectionName ), start, null,
+                            PAGE_SIZE, false, indexBucketLocator, applicationId, collectionName, false );
+
+            SliceIterator itr = new SliceIterator( null, scanner, new UUIDIndexSliceParser() );
+
+            long audited = 0;
+
+            while ( itr.hasNext() ) {
+
+                List<UUID> ids = new ArrayList<UUID>( PAGE_SIZE );
+
+                for ( ScanColumn col : itr.next() ) {
+                    ids.add( col.getUUID() );
+                }
+
+                if ( ids.isEmpty() ) {
+                    continue;
+                }
+
+                if ( auditLimiter != null ) {
+                    auditLimiter.acquire( ids.size() );
+                }
+
+                logger.debug( "Auditing {} entities for {}", ids.size(), this );
+
+                auditPage( collection, ids );
+
+                audited += ids.size();
+
+                checkpoints.put( checkpointKey, ids.get( ids.size() - 1 ).toString() );
+            }
 
+            checkpoints.put( checkpointKey, DONE );
 
-                                logger.info( "Reindex complete for entity with id '{} ", id );
-                                em.update( entity );
+            logger.info( "Audited {} entities of {}", audited, this );
 
-                                //now execute the cleanup. This way if the above update fails,
-                                // we still have enough data to run again
-                                // later
-                                m.execute();
-                            }
+            return null;
+        }
+
+
+        /**
+         * Audit the indexed properties of a page of entities.  Every index row the page touches is scanned once and the
+         * index entries of the page are read a batch of entities at a time
+         */
+        private void auditPage( CollectionInfo collection, List<UUID> ids ) throws Exception {
+
+            // the index columns to delete for each entity that needs a re-index
+            Map<UUID, List<StaleIndexColumn>> reIndex = new LinkedHashMap<UUID, List<StaleIndexColumn>>();
+
+            //We shouldn't have to do this, but otherwise the cursor won't work
+            Set<String> indexed = collection.getPropertiesIndexed();
+
+            for ( String prop : indexed ) {
+
+                Map<UUID, List<StaleIndexColumn>> indexCols = scanIndex( collection, prop, ids );
+
+                if ( indexCols.isEmpty() ) {
+                    continue;
+                }
+
+                Map<UUID, Map<List<Object>, Integer>> entries =
+                        getIndexEntries( prop, new ArrayList<UUID>( indexCols.keySet() ) );
+
+                // loop through the indexed values and verify them as present in
+                // our entity_index_entries. If they aren't, we need to delete the
+                // from the secondary index, and mark
+                // this object for re-index via n update
+                for ( Entry<UUID, List<StaleIndexColumn>> entity : indexCols.entrySet() ) {
+
+                    UUID id = entity.getKey();
+                    Map<List<Object>, Integer> entityEntries = entries.get( id );
+
+                    for ( StaleIndexColumn index : entity.getValue() ) {
+
+                        Integer references = entityEntries != null ? entityEntries.get( index.entry ) : null;
+
+                        if ( references == null ) {
+                            logger.info( "Could not find reference to value '{}' for property '{}' on entity "
+                                    + "{} in collection {}. " + " Forcing reindex",
+                                    new Object[] { index.entry.get( 1 ), prop, id, collectionName } );
+
+                            getStale( reIndex, id ).add( index );
                         }
-                        catch ( Exception e ) {
-                            logger.error( "Unable to process entity with id '{}'", id, e );
+                        else if ( references > 1 ) {
+                            // the index column is referenced, so it stays, but the entity is re-saved
+                            logger.info( "Found more than 1 entity referencing unique index for property '{}' "
+                                    + "with value " + "'{}'", prop, index.entry.get( 1 ) );
+
+                            getStale( reIndex, id );
                         }
                     }
                 }
             }
-        }
 
-        logger.info( "Completed audit of apps" );
-    }
+            if ( reIndex.isEmpty() ) {
+                return;
+            }
 
+            Map<UUID, Entity> entities = new HashMap<UUID, Entity>();
 
-    private Map<String, UUID> getApplications( EntityManagerFactory emf, CommandLine line ) throws Exception {
-        String appName = line.getOptionValue( APPLICATION_ARG );
+            for ( Entity entity : em.get( reIndex.keySet() ).getEntities() ) {
+                entities.put( entity.getUuid(), entity );
+            }
 
-        if ( appName == null ) {
-            return emf.getApplications();
+            long timestamp = getTimestampInMicros( newTimeUUID() );
+
+            Mutator<ByteBuffer> m = createMutator( ko, be );
+
+            for ( Entry<UUID, List<StaleIndexColumn>> stale : reIndex.entrySet() ) {
+
+                UUID id = stale.getKey();
+                Entity entity = entities.get( id );
+
+                //entity may not exist, but we should have deleted rows from the index
+                if ( entity == null ) {
+                    logger.warn( "Entity with id {} did not exist in app {}", id, applicationId );
+                }
+                else {
+                    try {
+                        em.update( entity );
+                        logger.info( "Reindex complete for entity with id '{} ", id );
+                    }
+                    catch ( Exception e ) {
+                        // leave its index columns in place, so the cleanup can be run again later
+                        logger.error( "Unable to process entity with id '{}'", id, e );
+                        continue;
+                    }
+                }
+
+                for ( StaleIndexColumn index : stale.getValue() ) {
+                    addDeleteToMutator( m, ENTITY_INDEX, index.rowKey, index.name.duplicate(), timestamp );
+                }
+            }
+
+            //now execute the cleanup. This way if an update above fails,
+            // we still have enough data to run again later
+            m.execute();
         }
 
-        ApplicationInfo app = managementService.getApplicationInfo( Identifier.from( appName ) );
 
-        if ( app == null ) {
-            logger.error( "Could not find application with id or name {}", appName );
-            System.exit( 3 );
+        /** Get the index columns to delete for the entity, marking it for a re-index */
+        private List<StaleIndexColumn> getStale( Map<UUID, List<StaleIndexColumn>> reIndex, UUID id ) {
+            List<StaleIndexColumn> stale = reIndex.get( id );
+
+            if ( stale == null ) {
+                stale = new ArrayList<StaleIndexColumn>();
+                reIndex.put( id, stale );
+            }
+
+            return stale;
         }
 
 
-        Map<String, UUID> apps = new HashMap<String, UUID>();
+        /**
+         * Scan the index rows of the property for the entities of the page.  Entities are grouped by index bucket so
+         * that every row is read once for the whole page
+         */
+        private Map<UUID, List<StaleIndexColumn>> scanIndex( CollectionInfo collection, String prop, List<UUID> ids )
+                throws Exception {
 
-        apps.put( app.getName(), app.getId() );
+            Map<Object, Set<UUID>> rows = new LinkedHashMap<Object, Set<UUID>>();
 
-        return apps;
-    }
+            for ( UUID id : ids ) {
+                String bucket = indexBucketLocator.getBucket( applicationId, IndexType.COLLECTION, id, prop );
 
+                Object rowKey = key( applicationId, collection.getName(), prop, bucket );
 
-    private Set<String> getCollectionNames( EntityManager em, CommandLine line ) throws Exception {
+                Set<UUID> rowIds = rows.get( rowKey );
 
-        String collectionName = line.getOptionValue( COLLECTION_ARG );
+                if ( rowIds == null ) {
+                    rowIds = new HashSet<UUID>();
+                    rows.put( rowKey, rowIds );
+                }
 
-        if ( collectionName == null ) {
-            return em.getApplicationCollections();
-        }
+                rowIds.add( id );
+            }
 
+            Map<UUID, List<StaleIndexColumn>> results = new LinkedHashMap<UUID, List<StaleIndexColumn>>();
 
-        Set<String> names = new HashSet<String>();
-        names.add( collectionName );
+            for ( Entry<Object, Set<UUID>> row : rows.entrySet() ) {
+                scanIndexRow( prop, row.getKey(), row.getValue(), results );
+            }
 
-        return names;
-    }
+            return results;
+        }
 
 
-    private List<HColumn<ByteBuffer, ByteBuffer>> scanIndexForAllTypes( Keyspace ko,
-                                                                        IndexBucketLocator indexBucketLocator,
-                                                                        UUID applicationId, Object rowKey,
-                                                                        UUID entityId, String prop ) throws Exception {
+        private void scanIndexRow( String prop, Object rowKey, Set<UUID> entityIds,
+                                   Map<UUID, List<StaleIndexColumn>> results ) throws Exception {
 
-        //TODO Determine the index bucket.  Scan the entire index for properties with this entityId.
+            DynamicComposite start = null;
 
+            List<HColumn<ByteBuffer, ByteBuffer>> cols;
 
-        DynamicComposite start = null;
+            do {
+                cols = cass.getColumns( ko, ENTITY_INDEX, rowKey, start, null, INDEX_SCAN_SIZE, false );
 
-        List<HColumn<ByteBuffer, ByteBuffer>> cols;
+                for ( HColumn<ByteBuffer, ByteBuffer> col : cols ) {
+                    DynamicComposite secondaryIndexValue =
+                            DynamicComposite.fromByteBuffer( col.getName().duplicate() );
 
-        List<HColumn<ByteBuffer, ByteBuffer>> results = new ArrayList<HColumn<ByteBuffer, ByteBuffer>>();
+                    // the start column of every page after the first was the last column of the previous one
+                    if ( start != null && start.equals( secondaryIndexValue ) ) {
+                        continue;
+                    }
 
+                    UUID storedId = ( UUID ) secondaryIndexValue.get( 2 );
 
-        do {
-            cols = cass.getColumns( ko, ENTITY_INDEX, rowKey, start, null, 100, false );
+                    //add it to the set.  We can't short circuit due to property ordering
+                    if ( entityIds.contains( storedId ) ) {
+                        List<StaleIndexColumn> entityCols = results.get( storedId );
 
-            for ( HColumn<ByteBuffer, ByteBuffer> col : cols ) {
-                DynamicComposite secondaryIndexValue = DynamicComposite.fromByteBuffer( col.getName().duplicate() );
+                        if ( entityCols == null ) {
+                            entityCols = new ArrayList<StaleIndexColumn>();
+                            results.put( storedId, entityCols );
+                        }
 
-                UUID storedId = ( UUID ) secondaryIndexValue.get( 2 );
+                        entityCols.add( new StaleIndexColumn( rowKey, col.getName(), secondaryIndexValue ) );
+                    }
+                }
 
-                //add it to the set.  We can't short circuit due to property ordering
-                if ( entityId.equals( storedId ) ) {
-                    results.add( col );
+                if ( !cols.isEmpty() ) {
+                    start = DynamicComposite.fromByteBuffer( cols.get( cols.size() - 1 ).getName().duplicate() );
                 }
+            }
+            while ( cols.size() == INDEX_SCAN_SIZE );
+        }
+
+
+        /**
+         * Read the entity_index_entries of the property for the entities, {@link #ENTRY_MULTIGET_SIZE} entities at a
+         * time
+         *
+         * @return The number of entries with each code, value and timestamp, by entity id
+         */
+        private Map<UUID, Map<List<Object>, Integer>> getIndexEntries( String prop, List<UUID> ids )
+                throws Exception {
+
+            DynamicComposite start = new DynamicComposite( prop );
+            DynamicComposite finish = new DynamicComposite( prop );
 
-                start = secondaryIndexValue;
+            setEqualityFlag( finish, ComponentEquality.GREATER_THAN_EQUAL );
+
+            Map<UUID, Map<List<Object>, Integer>> results = new HashMap<UUID, Map<List<Object>, Integer>>();
+
+            for ( int i = 0; i < ids.size(); i += ENTRY_MULTIGET_SIZE ) {
+
+                List<UUID> batch = ids.subList( i, Math.min( i + ENTRY_MULTIGET_SIZE, ids.size() ) );
+
+                Map<ByteBuffer, List<HColumn<ByteBuffer, ByteBuffer>>> rows =
+                        cass.multiGetColumns( ko, ENTITY_INDEX_ENTRIES, batch, start, finish, INDEX_ENTRY_LIST_COUNT,
+                                false );
+
+                for ( Entry<ByteBuffer, List<HColumn<ByteBuffer, ByteBuffer>>> row : rows.entrySet() ) {
+
+                    Map<List<Object>, Integer> entries = new HashMap<List<Object>, Integer>( row.getValue().size() );
+
+                    for ( HColumn<ByteBuffer, ByteBuffer> col : row.getValue() ) {
+                        DynamicComposite entry = DynamicComposite.fromByteBuffer( col.getName().duplicate() );
+
+                        List<Object> key = Arrays.asList( entry.get( 1 ), entry.get( 2 ), entry.get( 3 ) );
+                        Integer count = entries.get( key );
+
+                        entries.put( key, count == null ? 1 : count + 1 );
+                    }
+
+                    results.put( ue.fromByteBuffer( row.getKey().duplicate() ), entries );
+                }
             }
+
+            return results;
+        }
+
+
+        @Override
+        public String toString() {
+            return "collection " + collectionName + " in app " + applicationId;
         }
-        while ( cols.size() == 100 );
+    }
+
 
-        return results;
+    /** A column of a secondary index row, with the entry it should have in entity_index_entries */
+    private static class StaleIndexColumn {
+
+        private final Object rowKey;
+        private final ByteBuffer name;
+
+        /** The code, value and timestamp of the index column */
+        private final List<Object> entry;
+
+
+        private StaleIndexColumn( Object rowKey, ByteBuffer name, DynamicComposite secondaryIndexValue ) {
+            this.rowKey = rowKey;
+            this.name = name;
+            this.entry = Arrays.asList( secondaryIndexValue.get( 0 ), secondaryIndexValue.get( 1 ),
+                    secondaryIndexValue.get( 3 ) );
+        }
     }
 }
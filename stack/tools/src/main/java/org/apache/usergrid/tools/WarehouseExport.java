@@ -18,9 +18,14 @@ package org.apache.usergrid.tools;
 
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -36,6 +41,11 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import org.jclouds.ContextBuilder;
@@ -64,10 +74,12 @@ import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
+import org.apache.commons.io.IOUtils;
 
 import com.google.common.collect.BiMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Module;
 
 import au.com.bytecode.opencsv.CSVReader;
@@ -78,9 +90,13 @@ import static org.apache.usergrid.persistence.Schema.getDefaultSchema;
 
 /**
  * Exports all known (non-Dynamic) fields from Schema that are primitive, Date, or String into a pipe-delimited file.
- * Also includes (hard-coded for now) fields from Notification, Notifier, and Receipt.  With no -startTime, scans the
- * existing *.csv files in the output directory and starts from last end date found. With no -endTime, ends at current
- * time - 1 hour. Explicitly sets "cassandra.readcl=ONE" for efficiency.
+ * Also includes (hard-coded for now) fields from Notification, Notifier, and Receipt.  Every application is exported
+ * by a pool of -threads workers into its own partition directory, named by application id, holding a *.csv file and a
+ * *.manifest file with the time window and row counts of the export.  A partition is uploaded as soon as it is
+ * finished, and its manifest is only kept once the upload succeeded.  Applications without changes in the window
+ * produce no files.  With no -startTime, each partition starts from the last end date found in its manifests, or in the *.csv
+ * files of older whole-run exports in the output directory. With no -endTime, ends at current time - 1 hour.
+ * Explicitly sets "cassandra.readcl=ONE" for efficiency.
  */
 public class WarehouseExport extends ExportingToolBase {
 
@@ -99,6 +115,12 @@ public class WarehouseExport extends ExportingToolBase {
     private static final String START_TIME = "startTime";
     private static final String END_TIME = "endTime";
     private static final String UPLOAD = "upload";
+    private static final String THREADS = "threads";
+
+    private static final int DEFAULT_THREADS = 4;
+
+    private static final String CSV_EXTENSION = ".csv";
+    private static final String MANIFEST_EXTENSION = ".manifest";
 
     private static final String[] NOTIFICATION_ATTRIBUTES = {
             "payloads", "queued", "started", "finished", "deliver", "expire", "canceled", "errorMessage", "statistics"
@@ -118,10 +140,17 @@ public class WarehouseExport extends ExportingToolBase {
     }
 
 
-    private CSVWriter writer;
     private String[] collectionNames;
     private Map<String, String[]> collectionFieldMap;
-    private Date startTime, endTime;
+
+    /** The start time given on the command line, null if every partition resumes from its own manifests */
+    private Date startTime;
+    private Date endTime;
+
+    /** The end time of the last whole-run export, written before the export was partitioned */
+    private long legacyEndTime;
+
+    private BlobStoreContext blobStoreContext;
 
 
     @Override
@@ -138,50 +167,73 @@ public class WarehouseExport extends ExportingToolBase {
         outputDir = createOutputParentDir();
         LOG.info( "Export directory: {}", outputDir.getAbsolutePath() );
 
-        // create writer
         applyStartTime( line );
         applyEndTime( line );
-        LOG.error( "startTime: {}, endTime: {}", startTime, endTime );
-        if ( startTime.getTime() >= endTime.getTime() ) {
+        LOG.info( "startTime: {}, endTime: {}", startTime, endTime );
+        if ( startTime != null && startTime.getTime() >= endTime.getTime() ) {
             LOG.error( "startTime must be before endTime. exiting." );
             System.exit( 1 );
         }
 
-        // create "modified" query to select data
-        StringBuilder builder = new StringBuilder();
-        builder.append( "modified >= " ).append( startTime.getTime() ).append( " and " );
-        builder.append( "modified <= " ).append( endTime.getTime() );
-        String queryString = builder.toString();
+        // build the shared field map before any worker needs it
+        getCollectionFieldMap();
+
+        if ( line.hasOption( UPLOAD ) ) {
+            blobStoreContext = createBlobStoreContext();
+        }
+
+        int threads = Integer.parseInt( line.getOptionValue( THREADS, String.valueOf( DEFAULT_THREADS ) ) );
+
+        String dateString = formatDate( new Date() );
 
-        // create writer
-        String dateString = DATE_FORMAT.format( new Date() );
-        String fileName = outputDir.getAbsolutePath() + "/" + dateString + ".csv";
-        FileWriter fw = new FileWriter( fileName );
-        writer = new CSVWriter( fw, SEPARATOR, CSVWriter.NO_QUOTE_CHARACTER, '\'' );
+        List<ApplicationExport> exports = new ArrayList<ApplicationExport>();
+
+        // Loop through the organizations
+        Map<UUID, String> organizations = getOrganizations();
+        for ( Entry<UUID, String> orgIdAndName : organizations.entrySet() ) {
+            exports.addAll( getApplicationExports( orgIdAndName, dateString ) );
+        }
+
+        LOG.info( "Exporting {} applications with {} threads", exports.size(), threads );
+
+        ExecutorService workers = Executors.newFixedThreadPool( Math.max( 1, threads ),
+                new ThreadFactoryBuilder().setNameFormat( "warehouse-export-%d" ).setDaemon( true ).build() );
+
+        int failed = 0;
 
         try {
-            writeMetadata();
-            writeHeaders();
+            List<Future<Long>> futures = new ArrayList<Future<Long>>( exports.size() );
 
-            // Loop through the organizations
-            Map<UUID, String> organizations = getOrganizations();
-            for ( Entry<UUID, String> orgIdAndName : organizations.entrySet() ) {
-                exportApplicationsForOrg( orgIdAndName, queryString );
+            for ( ApplicationExport export : exports ) {
+                futures.add( workers.submit( export ) );
+            }
+
+            for ( int i = 0; i < futures.size(); i++ ) {
+                try {
+                    futures.get( i ).get();
+                }
+                catch ( ExecutionException e ) {
+                    failed++;
+                    LOG.error( "Unable to export " + exports.get( i ) + ", the next run will export its time window "
+                            + "again", e.getCause() );
+                }
             }
         }
         finally {
-            writer.close();
+            workers.shutdownNow();
+
+            if ( blobStoreContext != null ) {
+                blobStoreContext.close();
+            }
         }
 
-        // now that file is written, copy it to S3
-        if ( line.hasOption( "upload" ) ) {
-            LOG.info( "Copy to S3" );
-            copyToS3( fileName );
+        if ( failed > 0 ) {
+            LOG.error( "{} of {} applications failed to export", failed, exports.size() );
         }
     }
 
 
-    private void copyToS3( String fileName ) {
+    private BlobStoreContext createBlobStoreContext() {
 
         String bucketName = ( String ) properties.get( BUCKET_PROPNAME );
         String accessId = ( String ) properties.get( ACCESS_ID_PROPNAME );
@@ -213,22 +265,31 @@ public class WarehouseExport extends ExportingToolBase {
             throw new RuntimeException( ex );
         }
 
-        try {
-            File file = new File( fileName );
-            AsyncBlobStore blobStore = context.getAsyncBlobStore();
-            BlobBuilder blobBuilder =
-                    blobStore.blobBuilder( file.getName() ).payload( file ).calculateMD5().contentType( "text/plain" )
-                             .contentLength( file.length() );
+        return context;
+    }
 
-            Blob blob = blobBuilder.build();
 
-            ListenableFuture<String> futureETag = blobStore.putBlob( bucketName, blob, PutOptions.Builder.multipart() );
+    /** Copy a file of a partition to S3, under the name of the partition directory */
+    private void copyToS3( File file ) throws Exception {
+        copyToS3( file, file.getName() );
+    }
 
-            LOG.info( "Uploaded file etag=" + futureETag.get() );
-        }
-        catch ( Exception e ) {
-            LOG.error( "Error uploading to blob store", e );
-        }
+
+    /** Copy a file of a partition to S3 under the given name, in the folder named after the partition directory */
+    private void copyToS3( File file, String name ) throws Exception {
+
+        String bucketName = ( String ) properties.get( BUCKET_PROPNAME );
+
+        AsyncBlobStore blobStore = blobStoreContext.getAsyncBlobStore();
+        BlobBuilder blobBuilder =
+                blobStore.blobBuilder( file.getParentFile().getName() + "/" + name ).payload( file )
+                         .calculateMD5().contentType( "text/plain" ).contentLength( file.length() );
+
+        Blob blob = blobBuilder.build();
+
+        ListenableFuture<String> futureETag = blobStore.putBlob( bucketName, blob, PutOptions.Builder.multipart() );
+
+        LOG.info( "Uploaded file {} etag={}", name, futureETag.get() );
     }
 
 
@@ -245,9 +306,13 @@ public class WarehouseExport extends ExportingToolBase {
 
         Option upload = OptionBuilder.withDescription( "upload files to blob-store" ).create( UPLOAD );
 
+        Option threads = OptionBuilder.hasArg().withDescription( "number of applications exported at once -threads" )
+                                      .create( THREADS );
+
         options.addOption( startTime );
         options.addOption( endTime );
         options.addOption( upload );
+        options.addOption( threads );
 
         return options;
     }
@@ -259,22 +324,61 @@ public class WarehouseExport extends ExportingToolBase {
             startTime = new Date( Long.parseLong( line.getOptionValue( START_TIME ) ) );
         }
         else {
-            // attempt to read last end time from directory
-            File[] files = outputDir.listFiles( new FilenameFilter() {
+            // partitions without a manifest resume from the last end time of a whole-run export
+            legacyEndTime = readLastEndTime( outputDir.listFiles( new FilenameFilter() {
                 @Override
                 public boolean accept( File dir, String name ) {
-                    return name.endsWith( ".csv" );
+                    return name.endsWith( CSV_EXTENSION );
                 }
-            } );
-            long lastEndTime = 0;
-            for ( File file : files ) {
-                long endTime = readEndTime( file );
+            } ) );
+        }
+    }
+
+
+    /** Get the start time of a partition, from the command line or just after the last export of the partition */
+    private Date getPartitionStartTime( File partitionDir ) throws Exception {
+
+        if ( startTime != null ) {
+            return startTime;
+        }
+
+        // a csv file without a manifest was never finished, so only manifests count
+        long lastEndTime = 0;
+        File[] manifests = partitionDir.listFiles( new FilenameFilter() {
+            @Override
+            public boolean accept( File dir, String name ) {
+                return name.endsWith( MANIFEST_EXTENSION );
+            }
+        } );
+
+        if ( manifests != null ) {
+            for ( File manifest : manifests ) {
+                long endTime = Long.parseLong( readManifest( manifest ).getProperty( "end", "0" ) );
                 if ( endTime > lastEndTime ) {
                     lastEndTime = endTime;
                 }
             }
-            startTime = new Date( lastEndTime + 1 );
         }
+
+        return new Date( Math.max( lastEndTime, legacyEndTime ) + 1 );
+    }
+
+
+    private long readLastEndTime( File[] files ) throws Exception {
+        long lastEndTime = 0;
+
+        if ( files == null ) {
+            return lastEndTime;
+        }
+
+        for ( File file : files ) {
+            long endTime = readEndTime( file );
+            if ( endTime > lastEndTime ) {
+                lastEndTime = endTime;
+            }
+        }
+
+        return lastEndTime;
     }
 
 
@@ -303,12 +407,49 @@ public class WarehouseExport extends ExportingToolBase {
     }
 
 
-    private void writeMetadata() {
-        writer.writeNext( new String[] { "start", "" + startTime.getTime(), "end", "" + endTime.getTime() } );
+    private Properties readManifest( File file ) throws IOException {
+        Properties manifest = new Properties();
+        InputStream in = new FileInputStream( file );
+        try {
+            manifest.load( in );
+        }
+        finally {
+            IOUtils.closeQuietly( in );
+        }
+        return manifest;
+    }
+
+
+    /**
+     * Write the manifest to a temporary file.  It only marks the partition as finished once {@link #commitManifest}
+     * renames it, so a partial manifest or one whose upload failed never does
+     */
+    private File writeManifest( File file, Properties manifest ) throws IOException {
+        File temp = new File( file.getPath() + ".tmp" );
+        OutputStream out = new FileOutputStream( temp );
+        try {
+            manifest.store( out, "Warehouse export partition" );
+        }
+        finally {
+            IOUtils.closeQuietly( out );
+        }
+        return temp;
     }
 
 
-    private void writeHeaders() {
+    private void commitManifest( File temp, File file ) throws IOException {
+        if ( !temp.renameTo( file ) ) {
+            throw new IOException( "Unable to write manifest " + file );
+        }
+    }
+
+
+    private void writeMetadata( CSVWriter writer, Date partitionStart ) {
+        writer.writeNext( new String[] { "start", "" + partitionStart.getTime(), "end", "" + endTime.getTime() } );
+    }
+
+
+    private void writeHeaders( CSVWriter writer ) {
         writer.writeNext( getHeaders() );
     }
 
@@ -420,69 +561,203 @@ public class WarehouseExport extends ExportingToolBase {
     }
 
 
-    private void exportApplicationsForOrg( Entry<UUID, String> orgIdAndName, String queryString ) throws Exception {
+    private List<ApplicationExport> getApplicationExports( Entry<UUID, String> orgIdAndName, String dateString )
+            throws Exception {
 
         LOG.info( "organization: {} / {}", orgIdAndName.getValue(), orgIdAndName.getKey() );
 
         String orgName = orgIdAndName.getValue();
 
+        List<ApplicationExport> exports = new ArrayList<ApplicationExport>();
+
         BiMap<UUID, String> applications = managementService.getApplicationsForOrganization( orgIdAndName.getKey() );
         for ( Entry<UUID, String> appIdAndName : applications.entrySet() ) {
 
             String appName = appIdAndName.getValue();
             appName = appName.substring( appName.indexOf( '/' ) + 1 );
 
-            LOG.info( "application {} / {}", appName, appIdAndName.getKey() );
+            exports.add( new ApplicationExport( orgName, appName, appIdAndName.getKey(), dateString ) );
+        }
+
+        return exports;
+    }
 
-            EntityManager em = emf.getEntityManager( appIdAndName.getKey() );
-            Map<String, String[]> cfm = getCollectionFieldMap();
 
-            // Loop through the collections of the Application
-            Set<String> collections = em.getApplicationCollections();
-            for ( String collectionName : collections ) {
+    /** Exports the entities of one application modified in the time window of its partition */
+    private class ApplicationExport implements Callable<Long> {
 
-                // set up for retrieving only the necessary properties
-                String entityType = InflectionUtils.singularize( collectionName );
-                String[] props = cfm.get( entityType );
-                Collection<String> properties =
-                        new ArrayList<String>( BASE_ATTRIBUTES.length + ( props != null ? props.length : 0 ) );
-                properties.addAll( Arrays.asList( BASE_ATTRIBUTES ) );
-                if ( props != null ) {
-                    properties.addAll( Arrays.asList( props ) );
-                }
+        private final String orgName;
+        private final String appName;
+        private final UUID applicationId;
+        private final String dateString;
 
-                Query query = Query.fromQL( queryString );
-                query.setLimit( MAX_ENTITY_FETCH );
-                query.setResultsLevel( Level.REFS );
-                Results results = em.searchCollection( em.getApplicationRef(), collectionName, query );
 
-                while ( results.size() > 0 ) {
+        private ApplicationExport( String orgName, String appName, UUID applicationId, String dateString ) {
+            this.orgName = orgName;
+            this.appName = appName;
+            this.applicationId = applicationId;
+            this.dateString = dateString;
+        }
 
-                    List<Entity> entities = em.getPartialEntities( results.getIds(), properties );
 
-                    for ( Entity entity : entities ) {
-                        write( orgName, appName, entity, em );
-                    }
+        @Override
+        public Long call() throws Exception {
+
+            File partitionDir = createDir( new File( outputDir, applicationId.toString() ).getPath() );
+
+            Date partitionStart = getPartitionStartTime( partitionDir );
+
+            if ( partitionStart.getTime() >= endTime.getTime() ) {
+                LOG.info( "application {} / {} is already exported up to {}",
+                        new Object[] { appName, applicationId, endTime } );
+                return 0L;
+            }
 
-                    if ( results.getCursor() == null ) {
-                        break;
+            LOG.info( "application {} / {} from {} to {}",
+                    new Object[] { appName, applicationId, partitionStart, endTime } );
+
+            // create "modified" query to select data
+            StringBuilder builder = new StringBuilder();
+            builder.append( "modified >= " ).append( partitionStart.getTime() ).append( " and " );
+            builder.append( "modified <= " ).append( endTime.getTime() );
+            String queryString = builder.toString();
+
+            File csvFile = new File( partitionDir, dateString + CSV_EXTENSION );
+            File manifestFile = new File( partitionDir, dateString + MANIFEST_EXTENSION );
+
+            Map<String, Long> collectionRows = new TreeMap<String, Long>();
+            long rows = 0;
+
+            CSVWriter writer =
+                    new CSVWriter( new FileWriter( csvFile ), SEPARATOR, CSVWriter.NO_QUOTE_CHARACTER, '\'' );
+
+            try {
+                writeMetadata( writer, partitionStart );
+                writeHeaders( writer );
+
+                EntityManager em = emf.getEntityManager( applicationId );
+                Map<String, String[]> cfm = getCollectionFieldMap();
+
+                // Loop through the collections of the Application
+                Set<String> collections = em.getApplicationCollections();
+                for ( String collectionName : collections ) {
+
+                    long count = exportCollection( writer, em, cfm, collectionName, queryString );
+
+                    if ( count > 0 ) {
+                        collectionRows.put( collectionName, count );
+                        rows += count;
                     }
+                }
+            }
+            finally {
+                writer.close();
+            }
+
+            // the next run covers the window again, so there's nothing to record
+            if ( rows == 0 ) {
+                LOG.info( "application {} / {} has no changes", appName, applicationId );
+
+                if ( !csvFile.delete() ) {
+                    LOG.warn( "Unable to delete empty export {}", csvFile );
+                }
+
+                return 0L;
+            }
+
+            Properties manifest = new Properties();
+            manifest.setProperty( "organization", orgName );
+            manifest.setProperty( "application", appName );
+            manifest.setProperty( "applicationId", applicationId.toString() );
+            manifest.setProperty( "file", csvFile.getName() );
+            manifest.setProperty( "start", "" + partitionStart.getTime() );
+            manifest.setProperty( "end", "" + endTime.getTime() );
+            manifest.setProperty( "rows", "" + rows );
+
+            for ( Map.Entry<String, Long> entry : collectionRows.entrySet() ) {
+                manifest.setProperty( "rows." + entry.getKey(), "" + entry.getValue() );
+            }
+
+            File pendingManifest = writeManifest( manifestFile, manifest );
+
+            try {
+                // the manifest goes last, so a reader never finds one before its data
+                if ( blobStoreContext != null ) {
+                    copyToS3( csvFile );
+                    copyToS3( pendingManifest, manifestFile.getName() );
+                }
+
+                commitManifest( pendingManifest, manifestFile );
+            }
+            finally {
+                // still there if an upload failed, the next run exports the window again
+                if ( pendingManifest.exists() && !pendingManifest.delete() ) {
+                    LOG.warn( "Unable to delete manifest {}", pendingManifest );
+                }
+            }
+
+            LOG.info( "application {} / {} exported {} rows", new Object[] { appName, applicationId, rows } );
+
+            return rows;
+        }
+
+
+        private long exportCollection( CSVWriter writer, EntityManager em, Map<String, String[]> cfm,
+                                       String collectionName, String queryString ) throws Exception {
+
+            // set up for retrieving only the necessary properties
+            String entityType = InflectionUtils.singularize( collectionName );
+            String[] props = cfm.get( entityType );
+            Collection<String> properties =
+                    new ArrayList<String>( BASE_ATTRIBUTES.length + ( props != null ? props.length : 0 ) );
+            properties.addAll( Arrays.asList( BASE_ATTRIBUTES ) );
+            if ( props != null ) {
+                properties.addAll( Arrays.asList( props ) );
+            }
+
+            long count = 0;
+
+            Query query = Query.fromQL( queryString );
+            query.setLimit( MAX_ENTITY_FETCH );
+            query.setResultsLevel( Level.REFS );
+            Results results = em.searchCollection( em.getApplicationRef(), collectionName, query );
+
+            while ( results.size() > 0 ) {
 
-                    query.setCursor( results.getCursor() );
-                    results = em.searchCollection( em.getApplicationRef(), collectionName, query );
+                List<Entity> entities = em.getPartialEntities( results.getIds(), properties );
+
+                for ( Entity entity : entities ) {
+                    write( writer, orgName, appName, entity, em );
+                    count++;
+                }
+
+                if ( results.getCursor() == null ) {
+                    break;
                 }
+
+                query.setCursor( results.getCursor() );
+                results = em.searchCollection( em.getApplicationRef(), collectionName, query );
             }
+
+            return count;
+        }
+
+
+        @Override
+        public String toString() {
+            return "application " + appName + " / " + applicationId;
         }
     }
 
 
-    private void write( String orgName, String appName, Entity entity, EntityManager em ) throws Exception {
+    private void write( CSVWriter writer, String orgName, String appName, Entity entity, EntityManager em )
+            throws Exception {
 
         Map<String, String[]> cfm = getCollectionFieldMap();
 
         String uuid = entity.getUuid().toString();
-        String created = DATE_FORMAT.format( entity.getCreated() );
-        String modified = DATE_FORMAT.format( entity.getModified() );
+        String created = formatDate( entity.getCreated() );
+        String modified = formatDate( entity.getModified() );
         String type = entity.getType();
 
         List<String> values = new ArrayList<String>( 30 );
@@ -513,4 +788,12 @@ public class WarehouseExport extends ExportingToolBase {
         values.toArray( stringValues );
         writer.writeNext( stringValues );
     }
+
+
+    /** SimpleDateFormat is not thread safe, and the partitions are written concurrently */
+    private static String formatDate( Object date ) {
+        synchronized ( DATE_FORMAT ) {
+            return DATE_FORMAT.format( date );
+        }
+    }
 }